@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Works out how far the sync journal is settled: the highest record id that every record up to
+ * has either been committed or rolled back, so that no record with a lower id can still turn up.
+ * Record ids are handed out when a record is inserted, not when its transaction commits, so a
+ * record of a transaction that is still open can be passed by newer records that are already
+ * committed; how old the newer records are says nothing about it.
+ * <p>
+ * Every observation notes the next record id to be handed out and the transactions open at the
+ * time, which hold all the ids below it that aren't visible yet. Once all of those transactions
+ * are gone, everything below that id is settled. The id has to be read before the open
+ * transactions, so that a transaction holding an id below it can't have started afterwards.
+ */
+public class JournalWatermark {
+	
+	/**
+	 * The most observations waiting for their transactions to finish, further ones are merged
+	 * into the last
+	 */
+	static final int MAX_PENDING = 100;
+	
+	private static final JournalWatermark instance = new JournalWatermark();
+	
+	private final List<Mark> pending = new ArrayList<Mark>();
+	
+	private Integer settled;
+	
+	JournalWatermark() {
+	}
+	
+	/**
+	 * @return the watermark of the journal of this server
+	 */
+	public static JournalWatermark getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Notes what the journal looks like now and works out how far it is settled
+	 * 
+	 * @param nextRecordId one more than the highest record id in the journal, read before the open
+	 *            transactions
+	 * @param openTransactions the ids of the transactions open now, other than the caller's
+	 * @return the highest record id that is settled, or null if none is known to be yet
+	 * @should not settle a record of a transaction that is still open
+	 * @should settle everything below the next record id if no transaction is open
+	 * @should merge observations once too many are waiting
+	 */
+	public synchronized Integer observe(int nextRecordId, Set<String> openTransactions) {
+		for (Iterator<Mark> i = pending.iterator(); i.hasNext();) {
+			Mark mark = i.next();
+			mark.transactions.retainAll(openTransactions);
+			if (mark.transactions.isEmpty()) {
+				settle(mark.nextRecordId - 1);
+				i.remove();
+			}
+		}
+		
+		if (openTransactions.isEmpty()) {
+			settle(nextRecordId - 1);
+			pending.clear();
+		} else if (pending.size() >= MAX_PENDING) {
+			Mark last = pending.get(pending.size() - 1);
+			last.nextRecordId = Math.max(last.nextRecordId, nextRecordId);
+			last.transactions.addAll(openTransactions);
+		} else {
+			pending.add(new Mark(nextRecordId, openTransactions));
+		}
+		
+		return settled;
+	}
+	
+	/**
+	 * @return the highest record id settled as of the last observation, or null
+	 */
+	public synchronized Integer getSettled() {
+		return settled;
+	}
+	
+	private void settle(int recordId) {
+		if (settled == null || recordId > settled)
+			settled = recordId;
+	}
+	
+	/**
+	 * The next record id at the time of an observation, and the transactions still to finish
+	 * before everything below it is settled
+	 */
+	private static class Mark {
+		
+		private int nextRecordId;
+		
+		private final Set<String> transactions;
+		
+		private Mark(int nextRecordId, Set<String> transactions) {
+			this.nextRecordId = nextRecordId;
+			this.transactions = new HashSet<String>(transactions);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 checksums of a file in fixed size segments, so that a download that was resumed, or only
+ * partly damaged, can be checked a segment at a time and only the bad segments fetched again. <br/>
+ * They are kept in a file next to the one they are for (see {@link #getFile(File)}), one segment
+ * per line: its offset, its length and its checksum in hex.
+ */
+public class SegmentChecksums {
+	
+	/**
+	 * The segment size used unless another one is given
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	
+	private final int segmentSize;
+	
+	private final List<long[]> segments = new ArrayList<long[]>();
+	
+	private final CRC32 crc = new CRC32();
+	
+	private long length = 0;
+	
+	private long segmentStart = 0;
+	
+	public SegmentChecksums() {
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * @param segmentSize the number of bytes per segment
+	 */
+	public SegmentChecksums(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * Adds bytes to the checksummed data, starting new segments as needed
+	 * 
+	 * @param b the bytes
+	 * @param off where they start
+	 * @param len how many there are
+	 */
+	public void update(byte[] b, int off, int len) {
+		while (len > 0) {
+			int n = (int) Math.min(len, segmentSize - (length - segmentStart));
+			crc.update(b, off, n);
+			length += n;
+			off += n;
+			len -= n;
+			if (length - segmentStart == segmentSize)
+				endSegment();
+		}
+	}
+	
+	/**
+	 * Ends the current segment and adds the given bytes as a segment of their own, whatever their
+	 * size
+	 * 
+	 * @param bytes the bytes of the segment
+	 */
+	public void addSegment(byte[] bytes) {
+		endSegment();
+		crc.update(bytes, 0, bytes.length);
+		length += bytes.length;
+		endSegment();
+	}
+	
+	/**
+	 * Ends the current segment, if it has anything in it
+	 */
+	public void endSegment() {
+		if (length > segmentStart) {
+			segments.add(new long[] { segmentStart, length - segmentStart, crc.getValue() });
+			segmentStart = length;
+			crc.reset();
+		}
+	}
+	
+	/**
+	 * @return the total number of bytes checksummed
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * @return the segments so far, each as its offset, length and checksum
+	 */
+	public List<long[]> getSegments() {
+		return segments;
+	}
+	
+	/**
+	 * @param target the stream the checksummed bytes are written to
+	 * @return a stream that adds everything written to it to these checksums on the way to the
+	 *         given stream
+	 */
+	public OutputStream checksumming(OutputStream target) {
+		return new FilterOutputStream(target) {
+			
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				update(b, off, len);
+			}
+		};
+	}
+	
+	/**
+	 * Writes the segments, one per line
+	 * 
+	 * @param writer where to write them
+	 * @should write the offset length and checksum of every segment
+	 */
+	public void write(Writer writer) {
+		endSegment();
+		PrintWriter out = new PrintWriter(writer);
+		for (long[] segment : segments) {
+			out.println(segment[0] + " " + segment[1] + " " + Long.toHexString(segment[2]));
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Saves the checksums next to the given file
+	 * 
+	 * @param file the file they are for
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		File sums = getFile(file);
+		File temp = new File(sums.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), SyncConstants.UTF8);
+		try {
+			write(writer);
+		}
+		finally {
+			writer.close();
+		}
+		sums.delete();
+		if (!temp.renameTo(sums))
+			throw new IOException("Unable to write " + sums);
+	}
+	
+	/**
+	 * Reads the checksums kept next to the given file, working them out (and keeping them) if
+	 * there are none yet or they are out of date
+	 * 
+	 * @param file the file
+	 * @return its checksums
+	 * @throws IOException
+	 * @should work out the checksums of a file that has none yet
+	 * @should read the checksums kept for a file
+	 */
+	public static SegmentChecksums forFile(File file) throws IOException {
+		File sums = getFile(file);
+		if (sums.exists() && sums.lastModified() >= file.lastModified()) {
+			SegmentChecksums checksums = new SegmentChecksums();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sums),
+			        SyncConstants.UTF8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.trim().split(" ");
+					if (fields.length == 3)
+						checksums.segments.add(new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						        Long.parseLong(fields[2], 16) });
+				}
+			}
+			finally {
+				reader.close();
+			}
+			if (!checksums.segments.isEmpty()) {
+				long[] last = checksums.segments.get(checksums.segments.size() - 1);
+				checksums.length = checksums.segmentStart = last[0] + last[1];
+			}
+			if (checksums.length == file.length())
+				return checksums;
+		}
+		
+		SegmentChecksums checksums = new SegmentChecksums();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				checksums.update(buffer, 0, read);
+			}
+		}
+		finally {
+			in.close();
+		}
+		checksums.endSegment();
+		checksums.save(file);
+		return checksums;
+	}
+	
+	/**
+	 * @param file a file
+	 * @return where the checksums of the given file are kept
+	 */
+	public static File getFile(File file) {
+		return new File(file.getPath() + ".crc");
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * A compressed dump of the parent database that new children are seeded from, together with the
+ * place in the sync journal it was taken at. Everything journaled up to that {@link #getPosition()}
+ * is in the dump, so a child restored from it only needs the records after it. <br/>
+ * The current snapshot is described by a properties file in the sync application directory, which
+ * points at the dump next to it.
+ */
+public class SyncCloneSnapshot {
+	
+	private static final String DESCRIPTOR_FILE_NAME = "clone_snapshot.properties";
+	
+	private String fileName;
+	
+	private SyncRecordPosition position;
+	
+	private Date dateCreated;
+	
+	public SyncCloneSnapshot(String fileName, SyncRecordPosition position, Date dateCreated) {
+		this.fileName = fileName;
+		this.position = position;
+		this.dateCreated = dateCreated;
+	}
+	
+	/**
+	 * @return the gzip compressed sql dump
+	 */
+	public File getFile() {
+		return new File(SyncUtil.getSyncApplicationDir(), fileName);
+	}
+	
+	/**
+	 * @return the last journal record included in the dump, its record id is 0 if there was none
+	 */
+	public SyncRecordPosition getPosition() {
+		return position;
+	}
+	
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+	
+	/**
+	 * Reads the description of the current snapshot
+	 * 
+	 * @return the current snapshot, or null if there is none or its dump is gone
+	 */
+	public static SyncCloneSnapshot getCurrent() {
+		File descriptor = new File(SyncUtil.getSyncApplicationDir(), DESCRIPTOR_FILE_NAME);
+		if (!descriptor.exists())
+			return null;
+		
+		Properties props = new Properties();
+		try {
+			InputStream in = new FileInputStream(descriptor);
+			try {
+				props.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new SyncException("Unable to read " + descriptor, e);
+		}
+		
+		String timestamp = props.getProperty("record.timestamp");
+		SyncCloneSnapshot snapshot = new SyncCloneSnapshot(props.getProperty("file"), new SyncRecordPosition(
+		        Integer.valueOf(props.getProperty("record.id", "0")), timestamp == null ? null : new Date(Long
+		                .parseLong(timestamp))), new Date(Long.parseLong(props.getProperty("created"))));
+		return snapshot.getFile().exists() ? snapshot : null;
+	}
+	
+	/**
+	 * Makes this the current snapshot, deleting the dump of the previous one
+	 */
+	public void makeCurrent() {
+		SyncCloneSnapshot previous = getCurrent();
+		
+		Properties props = new Properties();
+		props.setProperty("file", fileName);
+		props.setProperty("record.id", position.getRecordId().toString());
+		if (position.getTimestamp() != null)
+			props.setProperty("record.timestamp", Long.toString(position.getTimestamp().getTime()));
+		props.setProperty("created", Long.toString(dateCreated.getTime()));
+		
+		File descriptor = new File(SyncUtil.getSyncApplicationDir(), DESCRIPTOR_FILE_NAME);
+		File temp = new File(descriptor.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				props.store(out, "Current clone snapshot");
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			throw new SyncException("Unable to write " + temp, e);
+		}
+		descriptor.delete();
+		if (!temp.renameTo(descriptor))
+			throw new SyncException("Unable to write " + descriptor);
+		
+		if (previous != null && !previous.fileName.equals(fileName))
+			previous.getFile().delete();
+	}
+	
+	@Override
+	public String toString() {
+		return "SyncCloneSnapshot(" + fileName + ", " + position + ")";
+	}
+}
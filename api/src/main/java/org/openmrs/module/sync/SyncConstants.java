@@ -39,8 +39,18 @@ public class SyncConstants {
 	
 	public static final String CLONE_IMPORT_FILE_NAME = "db_clone_import_parent_";
 	
+	public static final String CLONE_IMPORT_CHECKPOINT_FILE_NAME = "db_clone_import.checkpoint";
+	
 	public static final String CLONE_EXPORT_FILE_NAME = "db_clone_export_child_";
 	
+	/**
+	 * Tables left out of the database a child is created from: queues that only mean something on
+	 * this server, and the sync journal and configuration, which the child keeps its own of
+	 */
+	public static final String[] CLONE_IGNORED_TABLES = { "hl7_in_archive", "hl7_in_queue", "hl7_in_error",
+	        "formentry_archive", "formentry_queue", "formentry_error", "sync_class", "sync_import", "sync_payload",
+	        "sync_record", "sync_record_term", "sync_server", "sync_server_class", "sync_server_record" };
+	
 	public static final int CONNECTION_TIMEOUT_MS = 10000; //http connection timeout in milliseconds
 	
 	public static final SyncRecordState[] SYNC_TO_PARENT_STATES = { SyncRecordState.NEW, SyncRecordState.PENDING_SEND,
@@ -145,10 +155,108 @@ public class SyncConstants {
 	
 	public static final String PROPERTY_ENABLE_COMPRESSION = "sync.enable_compression";
 	
+	public static final String PROPERTY_COMPRESSION_CODECS = "sync.compression_codecs";
+	
+	public static final String PROPERTY_COMPRESSION_CODECS_DEFAULT = "gzip";
+	
+	public static final String PROPERTY_COMPRESSION_LEVEL = "sync.compression_level";
+	
+	public static final String PROPERTY_COMPRESSION_LEVEL_DEFAULT = "6";
+	
+	public static final String PROPERTY_COMPRESSION_DICTIONARY = "sync.compression_dictionary";
+	
+	public static final String PROPERTY_COMPRESSION_DICTIONARY_DEFAULT = "";
+	
+	public static final String PROPERTY_COMPRESS_PAYLOADS = "sync.compress_payloads";
+	
+	public static final String PROPERTY_COMPRESS_PAYLOADS_DEFAULT = "false";
+	
+	public static final String PROPERTY_SHARE_PAYLOADS = "sync.share_payloads";
+	
+	public static final String PROPERTY_SHARE_PAYLOADS_DEFAULT = "false";
+	
 	public static final String PROPERTY_VERSION = "sync.version";
 	
 	public static final String PROPERTY_CONNECTION_TIMEOUT = "sync.connection_timeout";
 	
+	public static final String PROPERTY_MAX_CONCURRENT_TRANSMISSIONS = "sync.max_concurrent_transmissions";
+	
+	public static final String PROPERTY_MAX_CONCURRENT_TRANSMISSIONS_DEFAULT = "2";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_SIZE = "sync.adaptive_batch_size";
+	
+	public static final String PROPERTY_ADAPTIVE_BATCH_SIZE_DEFAULT = "true";
+	
+	public static final String PROPERTY_NAME_MAX_RECORDS_WEB_CEILING = "sync.max_records.web_ceiling";
+	
+	public static final String PROPERTY_NAME_MAX_RECORDS_WEB_CEILING_DEFAULT = "500";
+	
+	public static final String PROPERTY_PUSH_ENABLED = "sync.push.enabled";
+	
+	public static final String PROPERTY_PUSH_ENABLED_DEFAULT = "true";
+	
+	public static final String PROPERTY_PUSH_QUIET_PERIOD = "sync.push.quiet_period";
+	
+	public static final String PROPERTY_PUSH_QUIET_PERIOD_DEFAULT = "5000";
+	
+	public static final String PROPERTY_PUSH_MAX_DELAY = "sync.push.max_delay";
+	
+	public static final String PROPERTY_PUSH_MAX_DELAY_DEFAULT = "30000";
+	
+	public static final String PROPERTY_PRIORITY_CLASSES = "sync.priority_classes";
+	
+	public static final String PROPERTY_PRIORITY_CLASSES_DEFAULT = "org.openmrs.Obs,org.openmrs.Encounter,org.openmrs.Order";
+	
+	public static final String PROPERTY_SKIP_STOPPED_RECORDS = "sync.skip_stopped_records";
+	
+	public static final String PROPERTY_SKIP_STOPPED_RECORDS_DEFAULT = "true";
+	
+	public static final String PROPERTY_CHILD_CURSORS = "sync.child_cursors";
+	
+	public static final String PROPERTY_CHILD_CURSORS_DEFAULT = "false";
+	
+	public static final String PROPERTY_SERIALIZED_RECORD_CACHE_SIZE = "sync.serialized_record_cache_size";
+	
+	public static final String PROPERTY_SERIALIZED_RECORD_CACHE_SIZE_DEFAULT = "16";
+	
+	public static final String PROPERTY_COLLECTION_DELTA = "sync.collection_delta";
+	
+	public static final String PROPERTY_COLLECTION_DELTA_DEFAULT = "false";
+	
+	public static final String PROPERTY_NATIVE_EXPORT = "sync.native_export";
+	
+	public static final String PROPERTY_NATIVE_EXPORT_DEFAULT = "false";
+	
+	public static final String PROPERTY_EXPORT_THREADS = "sync.export_threads";
+	
+	public static final String PROPERTY_EXPORT_THREADS_DEFAULT = "4";
+	
+	public static final String PROPERTY_IMPORT_THREADS = "sync.import_threads";
+	
+	public static final String PROPERTY_IMPORT_THREADS_DEFAULT = "4";
+	
+	public static final String PROPERTY_CLONE_SNAPSHOT_MAX_AGE = "sync.clone_snapshot_max_age";
+	
+	public static final String PROPERTY_CLONE_SNAPSHOT_MAX_AGE_DEFAULT = "7";
+	
+	public static final String CLONE_SNAPSHOT_FILE_NAME = "db_clone_snapshot_";
+	
+	public static final String PROPERTY_ARCHIVE_ENABLED = "sync.archive.enabled";
+	
+	public static final String PROPERTY_ARCHIVE_ENABLED_DEFAULT = "true";
+	
+	public static final String PROPERTY_ARCHIVE_SEGMENT_SIZE = "sync.archive.segment_size";
+	
+	public static final String PROPERTY_ARCHIVE_SEGMENT_SIZE_DEFAULT = "16";
+	
+	public static final String PROPERTY_ARCHIVE_MAX_SIZE = "sync.archive.max_size";
+	
+	public static final String PROPERTY_ARCHIVE_MAX_SIZE_DEFAULT = "512";
+	
+	public static final String PROPERTY_ARCHIVE_MAX_AGE = "sync.archive.max_age";
+	
+	public static final String PROPERTY_ARCHIVE_MAX_AGE_DEFAULT = "30";
+	
 	public static final String PROPERTY_SYSTEM_ID_TEMPLATE = "sync.system_id_template";
 	
 	public static final String PROPERTY_SYSTEM_ID_TEMPLATE_DEFAULT = "{SYNCSERVERNAME}_{NEXTUSERID}{CHECKDIGIT}";
@@ -159,6 +267,8 @@ public class SyncConstants {
 	
 	public static final String DIR_JOURNAL = "journal";
 	
+	public static final String DIR_RECORD = "recrd";
+	
 	public static final String SCHEDULED_TASK_CLASS = SyncTask.class.getName();
 	
 	public static final String SCHEDULED_TASK_PROPERTY_SERVER_ID = "serverId";
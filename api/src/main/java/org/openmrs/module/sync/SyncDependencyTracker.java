@@ -0,0 +1,232 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of the entities touched by a set of held back journal records, so that records that
+ * depend on them can be held back too while the others carry on.
+ * <p>
+ * What a record writes and reads is taken from its payload: the keys of its items are the uuids of
+ * the objects it saves or deletes, and the uuids that appear in the content of its items are the
+ * objects it refers to. A record depends on a held back one if it writes or refers to an object the
+ * held back record writes, or deletes an object the held back record refers to.
+ * <p>
+ * The payload of a journal record never changes, so the {@link Footprint} worked out for a record
+ * is remembered by the record's uuid. Records that stay stopped are then looked at only once rather
+ * than on every transmission.
+ */
+public class SyncDependencyTracker {
+	
+	private static final Pattern UUID_PATTERN = Pattern
+	        .compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+	
+	/**
+	 * The number of record footprints remembered, the least recently used ones are dropped first
+	 */
+	public static final int FOOTPRINT_CACHE_SIZE = 1000;
+	
+	private static final Map<String, Footprint> footprints = Collections
+	        .synchronizedMap(new LinkedHashMap<String, Footprint>(16, 0.75f, true) {
+		        
+		        private static final long serialVersionUID = 1L;
+		        
+		        @Override
+		        protected boolean removeEldestEntry(Map.Entry<String, Footprint> eldest) {
+			        return size() > FOOTPRINT_CACHE_SIZE;
+		        }
+	        });
+	
+	private final Set<String> written = new HashSet<String>();
+	
+	private final Set<String> touched = new HashSet<String>();
+	
+	private final Set<String> heldBackUuids = new HashSet<String>();
+	
+	private int heldBack = 0;
+	
+	/**
+	 * Holds back the given record, so that the records depending on it will be held back too
+	 * 
+	 * @param record the record to hold back
+	 */
+	public void holdBack(SyncRecord record) {
+		holdBack(record.getUuid(), getFootprint(record));
+	}
+	
+	/**
+	 * Holds back the record with the given uuid and footprint, for when the footprint is known
+	 * without loading the record
+	 * 
+	 * @param uuid the uuid of the record to hold back, may be null
+	 * @param footprint the objects the record writes and touches
+	 * @should hold back the records depending on the given footprint
+	 */
+	public void holdBack(String uuid, Footprint footprint) {
+		written.addAll(footprint.getWritten());
+		touched.addAll(footprint.getTouched());
+		if (uuid != null)
+			heldBackUuids.add(uuid);
+		heldBack++;
+	}
+	
+	/**
+	 * @param uuid the uuid of a record
+	 * @return true if the record with the given uuid was held back itself
+	 */
+	public boolean isHeldBack(String uuid) {
+		return uuid != null && heldBackUuids.contains(uuid);
+	}
+	
+	/**
+	 * @param record the record to check
+	 * @return true if the record writes or refers to an object written by a held back record, or
+	 *         deletes one a held back record refers to
+	 * @should return false when nothing is held back
+	 * @should return true for a record referring to an object written by a held back record
+	 * @should return true for a record deleting an object referred to by a held back record
+	 * @should return false for an unrelated record
+	 */
+	public boolean dependsOnHeldBack(SyncRecord record) {
+		if (heldBack == 0)
+			return false;
+		Footprint footprint = getFootprint(record);
+		if (!Collections.disjoint(footprint.getTouched(), written))
+			return true;
+		return !Collections.disjoint(footprint.getDeleted(), touched);
+	}
+	
+	/**
+	 * @return the number of records held back
+	 */
+	public int getHeldBackCount() {
+		return heldBack;
+	}
+	
+	/**
+	 * Gets the footprint of the given record, from the cache if it was worked out before
+	 * 
+	 * @param record the record to look at
+	 * @return the objects the record writes, touches and deletes
+	 */
+	public static Footprint getFootprint(SyncRecord record) {
+		Footprint footprint = getCachedFootprint(record.getUuid());
+		if (footprint == null) {
+			footprint = new Footprint(getEntitiesWritten(record), getEntitiesTouched(record), getEntitiesDeleted(record));
+			if (record.getUuid() != null)
+				footprints.put(record.getUuid(), footprint);
+		}
+		return footprint;
+	}
+	
+	/**
+	 * @param uuid the uuid of a record
+	 * @return the footprint of the record if it is cached, otherwise null
+	 */
+	public static Footprint getCachedFootprint(String uuid) {
+		return uuid == null ? null : footprints.get(uuid);
+	}
+	
+	/**
+	 * @param record the record to look at
+	 * @return the uuids of the objects the record saves or deletes
+	 */
+	public static Set<String> getEntitiesWritten(SyncRecord record) {
+		Set<String> uuids = new HashSet<String>();
+		if (record.getItems() != null) {
+			for (SyncItem item : record.getItems()) {
+				if (item.getKey() != null && item.getKey().getKeyValue() != null)
+					uuids.add(item.getKey().getKeyValue().toString());
+			}
+		}
+		return uuids;
+	}
+	
+	/**
+	 * @param record the record to look at
+	 * @return the uuids of the objects the record saves or deletes, and of the ones it refers to
+	 */
+	public static Set<String> getEntitiesTouched(SyncRecord record) {
+		Set<String> uuids = getEntitiesWritten(record);
+		if (record.getItems() != null) {
+			for (SyncItem item : record.getItems()) {
+				if (item.getContent() != null) {
+					Matcher matcher = UUID_PATTERN.matcher(item.getContent());
+					while (matcher.find()) {
+						uuids.add(matcher.group());
+					}
+				}
+			}
+		}
+		return uuids;
+	}
+	
+	private static Set<String> getEntitiesDeleted(SyncRecord record) {
+		Set<String> uuids = new HashSet<String>();
+		if (record.getItems() != null) {
+			for (SyncItem item : record.getItems()) {
+				if (item.getState() == SyncItemState.DELETED && item.getKey() != null && item.getKey().getKeyValue() != null)
+					uuids.add(item.getKey().getKeyValue().toString());
+			}
+		}
+		return uuids;
+	}
+	
+	/**
+	 * The uuids of the objects a record writes, touches and deletes, which is all the tracker needs
+	 * to know about a record
+	 */
+	public static class Footprint {
+		
+		private final Set<String> written;
+		
+		private final Set<String> touched;
+		
+		private final Set<String> deleted;
+		
+		public Footprint(Set<String> written, Set<String> touched, Set<String> deleted) {
+			this.written = Collections.unmodifiableSet(written);
+			this.touched = Collections.unmodifiableSet(touched);
+			this.deleted = Collections.unmodifiableSet(deleted);
+		}
+		
+		/**
+		 * @return the uuids of the objects the record saves or deletes
+		 */
+		public Set<String> getWritten() {
+			return written;
+		}
+		
+		/**
+		 * @return the uuids of the objects the record saves or deletes, and of the ones it refers to
+		 */
+		public Set<String> getTouched() {
+			return touched;
+		}
+		
+		/**
+		 * @return the uuids of the objects the record deletes
+		 */
+		public Set<String> getDeleted() {
+			return deleted;
+		}
+	}
+}
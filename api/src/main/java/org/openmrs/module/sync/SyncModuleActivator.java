@@ -15,7 +15,17 @@ package org.openmrs.module.sync;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.Activator;
+import org.openmrs.module.sync.api.impl.SyncConfigurationCache;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.bundle.TransmissionArchive;
+import org.openmrs.module.sync.scheduler.SyncLaneScheduler;
+import org.openmrs.module.sync.scheduler.SyncPushTrigger;
+import org.openmrs.module.sync.api.db.hibernate.usertype.SyncItemListSerializingUserType;
+import org.openmrs.module.sync.server.compression.CompressionDictionaries;
 
 /**
  * This class contains the logic that is run every time this module
@@ -25,11 +35,49 @@ public class SyncModuleActivator implements Activator {
 
 	private Log log = LogFactory.getLog(this.getClass());
 
+	private final GlobalPropertyListener globalPropertyListener = new SyncGlobalPropertyListener();
+
 	/**
 	 * @see org.openmrs.module.Activator#startup()
 	 */
 	public void startup() {
 		log.info("Starting Synchronization Module");
+		
+		try {
+			SyncItemListSerializingUserType.setCompressionEnabled(Boolean.parseBoolean(Context.getAdministrationService()
+			        .getGlobalProperty(SyncConstants.PROPERTY_COMPRESS_PAYLOADS,
+			            SyncConstants.PROPERTY_COMPRESS_PAYLOADS_DEFAULT)));
+			SyncItemListSerializingUserType.setSharingEnabled(Boolean.parseBoolean(Context.getAdministrationService()
+			        .getGlobalProperty(SyncConstants.PROPERTY_SHARE_PAYLOADS, SyncConstants.PROPERTY_SHARE_PAYLOADS_DEFAULT)));
+			CompressionDictionaries.setCurrent(Context.getAdministrationService().getGlobalProperty(
+			    SyncConstants.PROPERTY_COMPRESSION_DICTIONARY, SyncConstants.PROPERTY_COMPRESSION_DICTIONARY_DEFAULT));
+			Context.getAdministrationService().addGlobalPropertyListener(globalPropertyListener);
+			SyncConfigurationCache.setEnabled(true);
+		}
+		catch (Exception e) {
+			log.warn("Unable to read the sync payload storage settings, payloads will be stored as plain xml", e);
+		}
+		
+		try {
+			SyncLaneScheduler.getInstance().clearInterruptedSyncs();
+		}
+		catch (Exception e) {
+			log.warn("Unable to check for syncs that were interrupted by the last shutdown", e);
+		}
+		
+		try {
+			SyncPushTrigger.getInstance().configure(Context.getService(SyncService.class).getSyncSettings());
+		}
+		catch (Exception e) {
+			log.warn("Unable to read the push settings, the defaults apply until the first scheduled sync", e);
+		}
+		
+		try {
+			TransmissionArchive.getInstance().configure(Context.getService(SyncService.class).getSyncSettings());
+		}
+		catch (Exception e) {
+			log.warn("Unable to read the archive settings, the defaults apply until the first scheduled sync", e);
+		}
 	}
 	
 	/**
@@ -37,6 +85,62 @@ public class SyncModuleActivator implements Activator {
 	 */
 	public void shutdown() {
 		log.info("Shutting down Synchronization Module");
+		
+		SyncConfigurationCache.setEnabled(false);
+		SyncPushTrigger.getInstance().shutdown();
+		TransmissionArchive.getInstance().shutdown();
+		try {
+			Context.getAdministrationService().removeGlobalPropertyListener(globalPropertyListener);
+		}
+		catch (Exception e) {
+			log.debug("Unable to remove the sync global property listener", e);
+		}
+	}
+	
+	/**
+	 * Drops changed sync global properties from the {@link SyncConfigurationCache} and keeps the
+	 * payload storage settings of {@link SyncItemListSerializingUserType} in line with
+	 * {@link SyncConstants#PROPERTY_COMPRESS_PAYLOADS} and {@link SyncConstants#PROPERTY_SHARE_PAYLOADS},
+	 * follows {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY} and switches pushing on or off along with {@link SyncConstants#PROPERTY_PUSH_ENABLED}
+	 * and archiving along with {@link SyncConstants#PROPERTY_ARCHIVE_ENABLED}
+	 */
+	private static class SyncGlobalPropertyListener implements GlobalPropertyListener {
+		
+		public boolean supportsPropertyName(String propertyName) {
+			return propertyName != null && propertyName.startsWith(SyncConfigurationCache.GLOBAL_PROPERTY_PREFIX);
+		}
+		
+		public void globalPropertyChanged(GlobalProperty newValue) {
+			apply(newValue.getProperty(), newValue.getPropertyValue());
+		}
+		
+		public void globalPropertyDeleted(String propertyName) {
+			apply(propertyName, null);
+		}
+		
+		private void apply(String propertyName, String value) {
+			SyncConfigurationCache.invalidateGlobalProperty(propertyName);
+			
+			if (SyncConstants.PROPERTY_COMPRESS_PAYLOADS.equals(propertyName)) {
+				if (value == null)
+					value = SyncConstants.PROPERTY_COMPRESS_PAYLOADS_DEFAULT;
+				SyncItemListSerializingUserType.setCompressionEnabled(Boolean.parseBoolean(value));
+			} else if (SyncConstants.PROPERTY_SHARE_PAYLOADS.equals(propertyName)) {
+				if (value == null)
+					value = SyncConstants.PROPERTY_SHARE_PAYLOADS_DEFAULT;
+				SyncItemListSerializingUserType.setSharingEnabled(Boolean.parseBoolean(value));
+			} else if (SyncConstants.PROPERTY_COMPRESSION_DICTIONARY.equals(propertyName)) {
+				CompressionDictionaries.setCurrent(value);
+			} else if (SyncConstants.PROPERTY_PUSH_ENABLED.equals(propertyName)) {
+				if (value == null)
+					value = SyncConstants.PROPERTY_PUSH_ENABLED_DEFAULT;
+				SyncPushTrigger.getInstance().setEnabled(Boolean.parseBoolean(value.trim()));
+			} else if (SyncConstants.PROPERTY_ARCHIVE_ENABLED.equals(propertyName)) {
+				if (value == null)
+					value = SyncConstants.PROPERTY_ARCHIVE_ENABLED_DEFAULT;
+				TransmissionArchive.getInstance().setEnabled(Boolean.parseBoolean(value.trim()));
+			}
+		}
 	}
 	
 }
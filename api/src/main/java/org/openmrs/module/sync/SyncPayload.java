@@ -0,0 +1,70 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A sync record payload that is stored once and referenced by hash from every record with the same
+ * content, see
+ * {@link org.openmrs.module.sync.api.db.hibernate.usertype.SyncItemListSerializingUserType#setSharingEnabled(boolean)}.
+ * Rows are written directly by the user type; this class only exists so the table is mapped.
+ */
+public class SyncPayload implements Serializable {
+	
+	public static final long serialVersionUID = 1L;
+	
+	private String hash;
+	
+	private String payload;
+	
+	private Date lastReferenced;
+	
+	public SyncPayload() {
+	}
+	
+	/**
+	 * @return the SHA-1 of the xml of the payload
+	 */
+	public String getHash() {
+		return hash;
+	}
+	
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+	
+	/**
+	 * @return the stored (possibly compressed) payload
+	 */
+	public String getPayload() {
+		return payload;
+	}
+	
+	public void setPayload(String payload) {
+		this.payload = payload;
+	}
+	
+	/**
+	 * @return the last time a sync record was written that uses this payload
+	 */
+	public Date getLastReferenced() {
+		return lastReferenced;
+	}
+	
+	public void setLastReferenced(Date lastReferenced) {
+		this.lastReferenced = lastReferenced;
+	}
+}
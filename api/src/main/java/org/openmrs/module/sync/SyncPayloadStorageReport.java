@@ -0,0 +1,103 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.Serializable;
+
+/**
+ * Totals collected while re-encoding the payload column of the sync journal, see
+ * {@link org.openmrs.module.sync.api.SyncService#recodeSyncRecordPayloads(Integer, Integer)}. Sizes
+ * are the number of UTF-8 bytes in the stored column values.
+ */
+public class SyncPayloadStorageReport implements Serializable {
+	
+	public static final long serialVersionUID = 1L;
+	
+	private int recordsScanned = 0;
+	
+	private int recordsRewritten = 0;
+	
+	private long bytesBefore = 0;
+	
+	private long bytesAfter = 0;
+	
+	private Integer lastRecordId = null;
+	
+	/**
+	 * Records one row of the journal
+	 * 
+	 * @param recordId the id of the row
+	 * @param sizeBefore the stored size before re-encoding
+	 * @param sizeAfter the stored size after re-encoding
+	 * @param rewritten true if the row was actually updated
+	 */
+	public void addRecord(Integer recordId, long sizeBefore, long sizeAfter, boolean rewritten) {
+		recordsScanned++;
+		if (rewritten)
+			recordsRewritten++;
+		bytesBefore += sizeBefore;
+		bytesAfter += sizeAfter;
+		lastRecordId = recordId;
+	}
+	
+	/**
+	 * Adds the totals of a later batch to this report
+	 * 
+	 * @param batch the report of the batch
+	 */
+	public void add(SyncPayloadStorageReport batch) {
+		recordsScanned += batch.getRecordsScanned();
+		recordsRewritten += batch.getRecordsRewritten();
+		bytesBefore += batch.getBytesBefore();
+		bytesAfter += batch.getBytesAfter();
+		if (batch.getLastRecordId() != null)
+			lastRecordId = batch.getLastRecordId();
+	}
+	
+	public int getRecordsScanned() {
+		return recordsScanned;
+	}
+	
+	public int getRecordsRewritten() {
+		return recordsRewritten;
+	}
+	
+	public long getBytesBefore() {
+		return bytesBefore;
+	}
+	
+	public long getBytesAfter() {
+		return bytesAfter;
+	}
+	
+	/**
+	 * @return the number of bytes saved, negative if the payloads grew (e.g. when decompressing)
+	 */
+	public long getBytesSaved() {
+		return bytesBefore - bytesAfter;
+	}
+	
+	/**
+	 * @return the id of the last record looked at, the next batch starts after this one
+	 */
+	public Integer getLastRecordId() {
+		return lastRecordId;
+	}
+	
+	@Override
+	public String toString() {
+		return "scanned " + recordsScanned + " records, rewrote " + recordsRewritten + ", payload bytes " + bytesBefore
+		        + " -> " + bytesAfter + " (saved " + getBytesSaved() + ")";
+	}
+}
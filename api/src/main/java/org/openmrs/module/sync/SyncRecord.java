@@ -14,13 +14,17 @@
 package org.openmrs.module.sync;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.openmrs.module.sync.serialization.IItem;
 import org.openmrs.module.sync.serialization.Item;
@@ -61,6 +65,30 @@ public class SyncRecord implements Serializable, IItem {
     private Set<SyncServerRecord> serverRecords = null;
     private RemoteServer forServer = null;
     private String originalUuid = null;
+    private String searchTerms = null;
+    private Set<String> terms = null;
+    private boolean termsChanged = false;
+
+    /**
+     * The longest search terms string that is stored, see {@link #getSearchTerms()}
+     */
+    public static final int MAX_SEARCH_TERMS_LENGTH = 20000;
+
+    /**
+     * The most search terms that are stored for a record, see {@link #getTerms()}
+     */
+    public static final int MAX_TERMS = 200;
+
+    /**
+     * The longest search term, longer ones are cut
+     */
+    public static final int MAX_TERM_LENGTH = 100;
+
+    private static final Pattern FIELD = Pattern.compile("type=\"([^\"]*)\"[^>]*>([^<]*)<");
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}_.-]+");
+
+    private static final Pattern CHARACTER_REFERENCE = Pattern.compile("&#x?[0-9a-fA-F]+;");
 
     public String getOriginalUuid() {
         return originalUuid;
@@ -90,6 +118,150 @@ public class SyncRecord implements Serializable, IItem {
         }
     }
 
+    /**
+     * Space separated list of the terms the items in this record are found by: their contained
+     * types and keys (uuids), the types and uuids of the objects they refer to and the words of
+     * their other values, in lower case. This is stored next to the payload so that records can be
+     * searched for without having to look inside the payload, which may be compressed.
+     * 
+     * @return the search terms, computed from the current items if they have changed
+     * @see #getTerms()
+     */
+    public String getSearchTerms() {
+        if (searchTerms == null && items != null) {
+            searchTerms = buildSearchTerms(items.values());
+            termsChanged = true;
+        }
+        
+        return searchTerms;
+    }
+
+    public void setSearchTerms(String searchTerms) {
+        this.searchTerms = searchTerms;
+    }
+
+    /**
+     * The {@link #getSearchTerms()} one by one. They are stored a row each in the sync_record_term
+     * table, which is indexed on the term so that the maintenance search finds records by a term, or
+     * the start of one, without reading through the journal.
+     * 
+     * @return the search terms, updated when the items have changed
+     */
+    public Set<String> getTerms() {
+        if (termsChanged) {
+            termsChanged = false;
+            Set<String> current = splitSearchTerms(getSearchTerms());
+            if (terms == null) {
+                terms = current;
+            } else {
+                terms.retainAll(current);
+                terms.addAll(current);
+            }
+        }
+        if (terms == null)
+            terms = new HashSet<String>();
+        
+        return terms;
+    }
+
+    public void setTerms(Set<String> terms) {
+        this.terms = terms;
+        this.termsChanged = false;
+    }
+
+    /**
+     * @param searchTerms space separated search terms
+     * @return the terms
+     */
+    public static Set<String> splitSearchTerms(String searchTerms) {
+        Set<String> terms = new HashSet<String>();
+        if (searchTerms != null) {
+            for (String term : searchTerms.split(" ")) {
+                if (term.length() > 0)
+                    terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @param text a search, as entered
+     * @return the terms in it, cut up and in lower case the way the terms of a record are
+     */
+    public static List<String> getSearchTermsOf(String text) {
+        Set<String> terms = new LinkedHashSet<String>();
+        if (text != null)
+            addWords(terms, text);
+        return new ArrayList<String>(terms);
+    }
+
+    /**
+     * @param syncItems the items to index
+     * @return the search terms for the given items
+     * @see #getSearchTerms()
+     */
+    public static String buildSearchTerms(Collection<SyncItem> syncItems) {
+        Set<String> terms = new LinkedHashSet<String>();
+        for (SyncItem item : syncItems) {
+            if (item.getContainedType() != null)
+                addClassTerms(terms, item.getContainedType().getName());
+            if (item.getKey() != null && item.getKey().getKeyValue() != null)
+                addTerm(terms, item.getKey().getKeyValue().toString());
+        }
+        for (SyncItem item : syncItems) {
+            if (item.getContent() == null)
+                continue;
+            Matcher field = FIELD.matcher(item.getContent());
+            while (field.find() && terms.size() < MAX_TERMS) {
+                String type = field.group(1);
+                String value = CHARACTER_REFERENCE.matcher(field.group(2)).replaceAll(" ");
+                if (type.indexOf('.') > 0) {
+                    // a reference to another object: its type and uuid
+                    addClassTerms(terms, type);
+                    addTerm(terms, value);
+                } else if (!"boolean".equals(type) && !"timestamp".equals(type)) {
+                    addWords(terms, value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                            .replace("&apos;", "'").replace("&amp;", "&"));
+                }
+            }
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        for (String term : terms) {
+            if (sb.length() + term.length() + 1 > MAX_SEARCH_TERMS_LENGTH)
+                break;
+            if (sb.length() > 0)
+                sb.append(" ");
+            sb.append(term);
+        }
+        
+        return sb.toString();
+    }
+
+    private static void addClassTerms(Set<String> terms, String className) {
+        addTerm(terms, className);
+        addTerm(terms, className.substring(className.lastIndexOf('.') + 1));
+    }
+
+    private static void addWords(Set<String> terms, String text) {
+        for (String word : WORD_SEPARATOR.split(text)) {
+            addTerm(terms, word);
+        }
+    }
+
+    private static void addTerm(Set<String> terms, String term) {
+        int start = 0;
+        int end = term.length();
+        while (start < end && ".-_".indexOf(term.charAt(start)) >= 0)
+            start++;
+        while (end > start && ".-_".indexOf(term.charAt(end - 1)) >= 0)
+            end--;
+        if (end - start < 2 || terms.size() >= MAX_TERMS)
+            return;
+        
+        terms.add(term.substring(start, Math.min(end, start + MAX_TERM_LENGTH)).toLowerCase());
+    }
+
     public Integer getRecordId() {
     	return recordId;
     }
@@ -170,6 +342,8 @@ public class SyncRecord implements Serializable, IItem {
         }
         
         items.put(SyncRecord.deriveMapKey(syncItem),syncItem);
+        searchTerms = null;
+        termsChanged = true;
     }
 
     /**
@@ -201,6 +375,8 @@ public class SyncRecord implements Serializable, IItem {
     public void setItems(Collection<SyncItem> newItems) {
     	if(newItems == null) return;
     	items = new LinkedHashMap<String,SyncItem>();
+    	searchTerms = null;
+    	termsChanged = true;
     	for(SyncItem newItem : newItems) {
     		this.addItem(newItem);
     	}
@@ -253,19 +429,8 @@ public class SyncRecord implements Serializable, IItem {
         }
         xml.setAttribute(me, "uuid", uuid);
 
-        if ( this.getForServer() != null ) {
-            if ( !this.getForServer().getServerType().equals(RemoteServerType.PARENT)) {
-                SyncServerRecord serverRecord = this.getServerRecord(this.getForServer());
-                xml.setAttribute(me, "state", serverRecord.getState().toString());
-                xml.setAttribute(me, "retryCount", Integer.toString(serverRecord.getRetryCount()));
-            } else {
-                xml.setAttribute(me, "state", state.toString());
-                xml.setAttribute(me, "retryCount", Integer.toString(retryCount));
-            }
-        } else {
-            xml.setAttribute(me, "state", state.toString());
-            xml.setAttribute(me, "retryCount", Integer.toString(retryCount));
-        }
+        xml.setAttribute(me, "state", getTransmittedState().toString());
+        xml.setAttribute(me, "retryCount", Integer.toString(getTransmittedRetryCount()));
         
         if (timestamp != null) {
         	xml.setAttribute(me, "timestamp", new TimestampNormalizer().toString(timestamp));
@@ -318,6 +483,8 @@ public class SyncRecord implements Serializable, IItem {
                 items.put(SyncRecord.deriveMapKey(syncItem),syncItem);
             }
         }
+        searchTerms = null;
+        termsChanged = true;
     }
 
     public Set<String> getContainedClassSet() {
@@ -390,6 +557,24 @@ public class SyncRecord implements Serializable, IItem {
     public void setForServer(RemoteServer forServer) {
         this.forServer = forServer;
     }
+
+    /**
+     * @return the state written out with this record: the one for the child it is sent to, if any
+     */
+    SyncRecordState getTransmittedState() {
+        if (forServer != null && !forServer.getServerType().equals(RemoteServerType.PARENT))
+            return getServerRecord(forServer).getState();
+        return state;
+    }
+
+    /**
+     * @return the retry count written out with this record: the one for the child it is sent to, if any
+     */
+    int getTransmittedRetryCount() {
+        if (forServer != null && !forServer.getServerType().equals(RemoteServerType.PARENT))
+            return getServerRecord(forServer).getRetryCount();
+        return retryCount;
+    }
     
     public Map<RemoteServer, SyncServerRecord> getRemoteRecords() {
     	Map<RemoteServer, SyncServerRecord> ret = new LinkedHashMap<RemoteServer, SyncServerRecord>();
@@ -0,0 +1,178 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.serialization.Record;
+
+/**
+ * Keeps serialized records in memory so that a record sent to many children is only written out
+ * once. {@link SyncTransmission}s are put together from these pieces with
+ * {@link Record#createFragment(org.openmrs.module.sync.serialization.Item, String)}, so a parent
+ * handing the same new records to each of its children serializes them for the first child only.
+ * <p>
+ * Pieces are keyed by the record uuid and the wire format, plus the state and retry count written
+ * with the record since those can differ between children. The payload of a record never changes
+ * once it is journaled, so nothing has to be invalidated: the least recently used pieces are
+ * simply dropped once they take up more than {@link SyncSettings#getSerializedRecordCacheSize()}.
+ */
+public class SyncRecordFragmentCache {
+	
+	/**
+	 * Wire format of the pieces in this cache, part of their key
+	 */
+	public static final String FORMAT_XML = "xml";
+	
+	private static final Log log = LogFactory.getLog(SyncRecordFragmentCache.class);
+	
+	private static final SyncRecordFragmentCache instance = new SyncRecordFragmentCache(
+	        Long.parseLong(SyncConstants.PROPERTY_SERIALIZED_RECORD_CACHE_SIZE_DEFAULT) * 1024L * 1024L);
+	
+	private final LinkedHashMap<String, String> fragments = new LinkedHashMap<String, String>(256, 0.75f, true);
+	
+	private long maxSize;
+	
+	private long size = 0;
+	
+	private long hits = 0;
+	
+	private long misses = 0;
+	
+	/**
+	 * @param maxSize the most bytes of serialized records to keep, 0 to keep none
+	 */
+	public SyncRecordFragmentCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * @return the cache shared by all transmissions
+	 */
+	public static SyncRecordFragmentCache getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * @return false if records are serialized anew for every transmission
+	 */
+	public synchronized boolean isEnabled() {
+		return maxSize > 0;
+	}
+	
+	/**
+	 * Changes how much is kept, dropping the least recently used pieces if there is too much already
+	 * 
+	 * @param maxSize the most bytes of serialized records to keep, 0 to keep none
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		if (this.maxSize != maxSize) {
+			this.maxSize = maxSize;
+			evict();
+		}
+	}
+	
+	/**
+	 * Gets the record serialized the way {@link SyncRecord#save(Record, org.openmrs.module.sync.serialization.Item)}
+	 * would for the server it is for, serializing it only if it isn't kept already
+	 * 
+	 * @param record the record to serialize
+	 * @return the xml of the record
+	 * @throws Exception if the record can't be serialized
+	 */
+	public String getFragment(SyncRecord record) throws Exception {
+		if (record.getUuid() == null)
+			return Record.toFragment(record);
+		
+		String key = FORMAT_XML + ":" + record.getUuid() + ":" + record.getTransmittedState() + ":"
+		        + record.getTransmittedRetryCount();
+		
+		synchronized (this) {
+			String fragment = fragments.get(key);
+			if (fragment != null) {
+				hits++;
+				return fragment;
+			}
+			misses++;
+		}
+		
+		// serialized outside the lock, two transmissions racing for the same record just both do it
+		String fragment = Record.toFragment(record);
+		put(key, fragment);
+		return fragment;
+	}
+	
+	/**
+	 * @return the number of records that were served from memory
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * @return the number of records that had to be serialized
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * @return the estimated bytes taken up by the records kept
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Drops everything kept
+	 */
+	public synchronized void clear() {
+		fragments.clear();
+		size = 0;
+	}
+	
+	private synchronized void put(String key, String fragment) {
+		long fragmentSize = sizeOf(key, fragment);
+		if (fragmentSize > maxSize)
+			return;
+		
+		String previous = fragments.put(key, fragment);
+		if (previous != null)
+			size -= sizeOf(key, previous);
+		size += fragmentSize;
+		evict();
+	}
+	
+	/**
+	 * Drops the least recently used pieces until the rest fits
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, String>> it = fragments.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, String> eldest = it.next();
+			size -= sizeOf(eldest.getKey(), eldest.getValue());
+			it.remove();
+		}
+		if (log.isTraceEnabled())
+			log.trace("Keeping " + fragments.size() + " serialized records in " + size + " bytes");
+	}
+	
+	private static long sizeOf(String key, String fragment) {
+		return 2L * (key.length() + fragment.length());
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Lightweight pointer to a place in the sync journal: just the record id and timestamp of a
+ * {@link SyncRecord}, without its payload. The journal is always walked in (timestamp, recordId)
+ * order, so two positions are enough to decide whether one record comes before another.
+ */
+public class SyncRecordPosition implements Serializable {
+
+	public static final long serialVersionUID = 1L;
+
+	private Integer recordId;
+
+	private Date timestamp;
+
+	public SyncRecordPosition(Integer recordId, Date timestamp) {
+		this.recordId = recordId;
+		this.timestamp = timestamp;
+	}
+
+	public Integer getRecordId() {
+		return recordId;
+	}
+
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Compares this position against the given record using the journal order (timestamp first,
+	 * then record id for records sharing a timestamp).
+	 *
+	 * @param record the record to compare against
+	 * @return true if the given record is at or after this position in the journal
+	 */
+	public boolean isAtOrBefore(SyncRecord record) {
+		if (record == null || record.getRecordId() == null)
+			return false;
+
+		if (timestamp != null && record.getTimestamp() != null) {
+			int compare = timestamp.compareTo(record.getTimestamp());
+			if (compare != 0)
+				return compare < 0;
+		}
+
+		return recordId.compareTo(record.getRecordId()) <= 0;
+	}
+
+	@Override
+	public String toString() {
+		return "SyncRecordPosition(" + recordId + ", " + timestamp + ")";
+	}
+}
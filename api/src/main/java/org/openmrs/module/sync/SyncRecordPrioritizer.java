@@ -0,0 +1,123 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Picks the records that go into a transmission when more are waiting than fit, letting records
+ * that contain priority classes (such as obs, encounters and orders) go ahead of the backlog.
+ * <p>
+ * Priority classes are matched the way {@link SyncClass} names are: a record is a priority record
+ * if one of its {@link SyncRecord#getContainedClassSet() contained classes} starts with one of the
+ * configured names. <br/>
+ * A priority record only goes ahead of the records before it if it doesn't depend on any of them
+ * (see {@link SyncDependencyTracker}), so changes to the same entity still arrive in the order they
+ * were made.
+ * Part of every batch ({@link #NORMAL_SHARE}) is kept for the oldest other records so that the
+ * backlog keeps moving, and the records picked are always sent in journal order.
+ */
+public class SyncRecordPrioritizer {
+	
+	/**
+	 * How many batches worth of waiting records are looked through for priority records
+	 */
+	public static final int LOOKAHEAD = 10;
+	
+	/**
+	 * Share of each batch left to the oldest records that were not picked for their priority
+	 */
+	public static final double NORMAL_SHARE = 0.2;
+	
+	private final List<String> priorityClasses;
+	
+	/**
+	 * @param priorityClasses the class names (or their beginnings) of the priority records
+	 */
+	public SyncRecordPrioritizer(Collection<String> priorityClasses) {
+		this.priorityClasses = new ArrayList<String>(priorityClasses);
+	}
+	
+	/**
+	 * @return true if no priority classes are configured, so records simply go in journal order
+	 */
+	public boolean isEmpty() {
+		return priorityClasses.isEmpty();
+	}
+	
+	/**
+	 * @param record the record to check
+	 * @return true if the record contains one of the priority classes
+	 */
+	public boolean isPriority(SyncRecord record) {
+		for (String containedClass : record.getContainedClassSet()) {
+			for (String priorityClass : priorityClasses) {
+				if (containedClass.startsWith(priorityClass))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Picks up to max records out of the waiting ones
+	 * 
+	 * @param waiting the records waiting to be sent, in journal order
+	 * @param max the most records to pick
+	 * @return the records to send, in journal order
+	 * @should return all records when they fit
+	 * @should let priority records go ahead of the others
+	 * @should keep a share of the batch for the oldest other records
+	 * @should not let a priority record overtake an earlier change to an entity it refers to
+	 */
+	public List<SyncRecord> select(List<SyncRecord> waiting, int max) {
+		if (waiting.size() <= max)
+			return waiting;
+		if (isEmpty())
+			return new ArrayList<SyncRecord>(waiting.subList(0, max));
+		
+		int priorityQuota = max - (int) Math.ceil(max * NORMAL_SHARE);
+		boolean[] picked = new boolean[waiting.size()];
+		int pickedCount = 0;
+		
+		// the records passed over so far
+		SyncDependencyTracker passedOver = new SyncDependencyTracker();
+		for (int i = 0; i < waiting.size(); i++) {
+			SyncRecord record = waiting.get(i);
+			if (pickedCount < priorityQuota && isPriority(record) && !passedOver.dependsOnHeldBack(record)) {
+				picked[i] = true;
+				pickedCount++;
+			} else {
+				passedOver.holdBack(record);
+			}
+		}
+		
+		// fill up with the oldest of the rest, which can't overtake anything
+		for (int i = 0; i < waiting.size() && pickedCount < max; i++) {
+			if (!picked[i]) {
+				picked[i] = true;
+				pickedCount++;
+			}
+		}
+		
+		List<SyncRecord> selected = new ArrayList<SyncRecord>(max);
+		for (int i = 0; i < waiting.size(); i++) {
+			if (picked[i])
+				selected.add(waiting.get(i));
+		}
+		return selected;
+	}
+}
@@ -0,0 +1,505 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.api.SyncService;
+import org.springframework.util.StringUtils;
+
+/**
+ * Immutable snapshot of the sync global properties that are read during every transmission, parsed
+ * once into their typed values. Get the current one from {@link SyncService#getSyncSettings()}, it
+ * is replaced whenever one of the sync.* global properties changes.
+ */
+public class SyncSettings {
+	
+	private static final Log log = LogFactory.getLog(SyncSettings.class);
+	
+	/**
+	 * Used when {@link SyncConstants#PROPERTY_CONNECTION_TIMEOUT} isn't set and the timeout can't
+	 * be derived from the web batch size either
+	 */
+	private static final double DEFAULT_CONNECTION_TIMEOUT = 300000.0;
+	
+	private final long maxRetryCount;
+	
+	private final Set<String> ignoredExceptionClassNames;
+	
+	private final boolean compressionEnabled;
+	
+	private final List<String> compressionCodecs;
+	
+	private final int compressionLevel;
+	
+	private final Integer maxRecordsWeb;
+	
+	private final Integer maxRecordsFile;
+	
+	private final int maxPageRecords;
+	
+	private final double connectionTimeout;
+	
+	private final boolean connectionTimeoutConfigured;
+	
+	private final boolean adaptiveBatchSize;
+	
+	private final int maxRecordsWebCeiling;
+	
+	private final boolean pushEnabled;
+	
+	private final long pushQuietPeriod;
+	
+	private final long pushMaxDelay;
+	
+	private final String datePattern;
+	
+	private final int maxConcurrentTransmissions;
+	
+	private final List<String> priorityClasses;
+	
+	private final boolean skipStoppedRecords;
+	
+	private final boolean childCursors;
+	
+	private final long serializedRecordCacheSize;
+	
+	private final boolean collectionDelta;
+	
+	private final long cloneSnapshotMaxAge;
+	
+	private final boolean archiveEnabled;
+	
+	private final long archiveSegmentSize;
+	
+	private final long archiveMaxSize;
+	
+	private final long archiveMaxAge;
+	
+	/**
+	 * Reads and parses the settings through the given service. Values that can't be parsed are
+	 * logged and replaced by their defaults.
+	 * 
+	 * @param syncService the service to read the global properties from
+	 * @return the current settings
+	 */
+	public static SyncSettings read(SyncService syncService) {
+		return new SyncSettings(syncService);
+	}
+	
+	private SyncSettings(SyncService syncService) {
+		maxRetryCount = parseInteger(syncService, SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT,
+		    SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT);
+		
+		Set<String> exceptionNames = new HashSet<String>();
+		String ignored = syncService.getGlobalProperty(SyncConstants.PROPERTY_NAME_IGNORED_JAVA_EXCEPTIONS);
+		if (ignored != null) {
+			for (String name : ignored.split(",")) {
+				if (StringUtils.hasText(name))
+					exceptionNames.add(name.trim());
+			}
+		}
+		ignoredExceptionClassNames = Collections.unmodifiableSet(exceptionNames);
+		
+		String compression = syncService.getGlobalProperty(SyncConstants.PROPERTY_ENABLE_COMPRESSION);
+		compressionEnabled = compression == null ? true : Boolean.parseBoolean(compression);
+		
+		List<String> codecs = new ArrayList<String>();
+		String codecsGP = syncService.getGlobalProperty(SyncConstants.PROPERTY_COMPRESSION_CODECS);
+		if (!StringUtils.hasText(codecsGP))
+			codecsGP = SyncConstants.PROPERTY_COMPRESSION_CODECS_DEFAULT;
+		for (String name : codecsGP.split(",")) {
+			if (StringUtils.hasText(name))
+				codecs.add(name.trim().toLowerCase());
+		}
+		compressionCodecs = Collections.unmodifiableList(codecs);
+		compressionLevel = Math.min(9, Math.max(1, parseInteger(syncService, SyncConstants.PROPERTY_COMPRESSION_LEVEL,
+		    SyncConstants.PROPERTY_COMPRESSION_LEVEL_DEFAULT)));
+		
+		maxRecordsWeb = parseInteger(syncService, SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB, null);
+		maxRecordsFile = parseInteger(syncService, SyncConstants.PROPERTY_NAME_MAX_RECORDS_FILE, null);
+		
+		Integer pageRecords = parseInteger(syncService, SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS,
+		    SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS_DEFAULT);
+		if (pageRecords < 1)
+			pageRecords = Integer.valueOf(SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS_DEFAULT);
+		maxPageRecords = pageRecords;
+		
+		Double configuredTimeout = parseConfiguredTimeout(syncService);
+		connectionTimeoutConfigured = configuredTimeout != null;
+		connectionTimeout = connectionTimeoutConfigured ? configuredTimeout : getDefaultConnectionTimeout(syncService,
+		    maxRecordsWeb);
+		
+		String adaptive = syncService.getGlobalProperty(SyncConstants.PROPERTY_ADAPTIVE_BATCH_SIZE);
+		adaptiveBatchSize = StringUtils.hasText(adaptive) ? Boolean.parseBoolean(adaptive.trim()) : Boolean
+		        .parseBoolean(SyncConstants.PROPERTY_ADAPTIVE_BATCH_SIZE_DEFAULT);
+		int ceiling = parseInteger(syncService, SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB_CEILING,
+		    SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB_CEILING_DEFAULT);
+		if (maxRecordsWeb != null && ceiling < maxRecordsWeb)
+			ceiling = maxRecordsWeb;
+		maxRecordsWebCeiling = Math.max(1, ceiling);
+		
+		String push = syncService.getGlobalProperty(SyncConstants.PROPERTY_PUSH_ENABLED);
+		pushEnabled = StringUtils.hasText(push) ? Boolean.parseBoolean(push.trim()) : Boolean
+		        .parseBoolean(SyncConstants.PROPERTY_PUSH_ENABLED_DEFAULT);
+		pushQuietPeriod = Math.max(0, parseInteger(syncService, SyncConstants.PROPERTY_PUSH_QUIET_PERIOD,
+		    SyncConstants.PROPERTY_PUSH_QUIET_PERIOD_DEFAULT));
+		pushMaxDelay = Math.max(pushQuietPeriod, parseInteger(syncService, SyncConstants.PROPERTY_PUSH_MAX_DELAY,
+		    SyncConstants.PROPERTY_PUSH_MAX_DELAY_DEFAULT));
+		
+		String pattern = syncService.getGlobalProperty(SyncConstants.PROPERTY_DATE_PATTERN);
+		datePattern = StringUtils.hasText(pattern) ? pattern : SyncConstants.DEFAULT_DATE_PATTERN;
+		
+		Integer concurrent = parseInteger(syncService, SyncConstants.PROPERTY_MAX_CONCURRENT_TRANSMISSIONS,
+		    SyncConstants.PROPERTY_MAX_CONCURRENT_TRANSMISSIONS_DEFAULT);
+		maxConcurrentTransmissions = Math.max(1, concurrent);
+		
+		List<String> priority = new ArrayList<String>();
+		String priorityGP = syncService.getGlobalProperty(SyncConstants.PROPERTY_PRIORITY_CLASSES);
+		if (priorityGP == null)
+			priorityGP = SyncConstants.PROPERTY_PRIORITY_CLASSES_DEFAULT;
+		for (String name : priorityGP.split(",")) {
+			if (StringUtils.hasText(name))
+				priority.add(name.trim());
+		}
+		priorityClasses = Collections.unmodifiableList(priority);
+		
+		String skip = syncService.getGlobalProperty(SyncConstants.PROPERTY_SKIP_STOPPED_RECORDS);
+		skipStoppedRecords = StringUtils.hasText(skip) ? Boolean.parseBoolean(skip.trim()) : Boolean
+		        .parseBoolean(SyncConstants.PROPERTY_SKIP_STOPPED_RECORDS_DEFAULT);
+		
+		String cursors = syncService.getGlobalProperty(SyncConstants.PROPERTY_CHILD_CURSORS);
+		childCursors = StringUtils.hasText(cursors) ? Boolean.parseBoolean(cursors.trim()) : Boolean
+		        .parseBoolean(SyncConstants.PROPERTY_CHILD_CURSORS_DEFAULT);
+		
+		serializedRecordCacheSize = Math.max(0, parseInteger(syncService,
+		    SyncConstants.PROPERTY_SERIALIZED_RECORD_CACHE_SIZE,
+		    SyncConstants.PROPERTY_SERIALIZED_RECORD_CACHE_SIZE_DEFAULT)) * 1024L * 1024L;
+		
+		String delta = syncService.getGlobalProperty(SyncConstants.PROPERTY_COLLECTION_DELTA);
+		collectionDelta = StringUtils.hasText(delta) ? Boolean.parseBoolean(delta.trim()) : Boolean
+		        .parseBoolean(SyncConstants.PROPERTY_COLLECTION_DELTA_DEFAULT);
+		
+		cloneSnapshotMaxAge = Math.max(0, parseInteger(syncService, SyncConstants.PROPERTY_CLONE_SNAPSHOT_MAX_AGE,
+		    SyncConstants.PROPERTY_CLONE_SNAPSHOT_MAX_AGE_DEFAULT)) * 24L * 60 * 60 * 1000;
+		
+		String archive = syncService.getGlobalProperty(SyncConstants.PROPERTY_ARCHIVE_ENABLED);
+		archiveEnabled = StringUtils.hasText(archive) ? Boolean.parseBoolean(archive.trim()) : Boolean
+		        .parseBoolean(SyncConstants.PROPERTY_ARCHIVE_ENABLED_DEFAULT);
+		archiveSegmentSize = Math.max(1, parseInteger(syncService, SyncConstants.PROPERTY_ARCHIVE_SEGMENT_SIZE,
+		    SyncConstants.PROPERTY_ARCHIVE_SEGMENT_SIZE_DEFAULT)) * 1024L * 1024L;
+		archiveMaxSize = Math.max(archiveSegmentSize, parseInteger(syncService, SyncConstants.PROPERTY_ARCHIVE_MAX_SIZE,
+		    SyncConstants.PROPERTY_ARCHIVE_MAX_SIZE_DEFAULT) * 1024L * 1024L);
+		archiveMaxAge = Math.max(0, parseInteger(syncService, SyncConstants.PROPERTY_ARCHIVE_MAX_AGE,
+		    SyncConstants.PROPERTY_ARCHIVE_MAX_AGE_DEFAULT)) * 24L * 60 * 60 * 1000;
+	}
+	
+	/**
+	 * @return the number of times a record is sent before it is marked as failed
+	 * @see SyncConstants#PROPERTY_NAME_MAX_RETRY_COUNT
+	 */
+	public long getMaxRetryCount() {
+		return maxRetryCount;
+	}
+	
+	/**
+	 * @return the class names of the exceptions that don't count as a failed attempt
+	 * @see SyncConstants#PROPERTY_NAME_IGNORED_JAVA_EXCEPTIONS
+	 */
+	public Set<String> getIgnoredExceptionClassNames() {
+		return ignoredExceptionClassNames;
+	}
+	
+	/**
+	 * @param exception the exception thrown while creating a transmission
+	 * @return true if the given exception should not count against the retry limit
+	 */
+	public boolean isIgnoredException(Throwable exception) {
+		return exception != null && ignoredExceptionClassNames.contains(exception.getClass().getName());
+	}
+	
+	/**
+	 * @return whether transmissions sent over the web are compressed
+	 * @see SyncConstants#PROPERTY_ENABLE_COMPRESSION
+	 */
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+	
+	/**
+	 * @return the names of the compression codecs to send with, in order of preference
+	 * @see SyncConstants#PROPERTY_COMPRESSION_CODECS
+	 */
+	public List<String> getCompressionCodecs() {
+		return compressionCodecs;
+	}
+	
+	/**
+	 * @return the level, from 1 to 9, of the codecs that can be tuned
+	 * @see SyncConstants#PROPERTY_COMPRESSION_LEVEL
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/**
+	 * @return the maximum number of records sent over the web at once, or null if there is no limit
+	 * @see SyncConstants#PROPERTY_NAME_MAX_RECORDS_WEB
+	 */
+	public Integer getMaxRecordsWeb() {
+		return maxRecordsWeb;
+	}
+	
+	/**
+	 * @return the maximum number of records put in a file at once, or null if there is no limit
+	 * @see SyncConstants#PROPERTY_NAME_MAX_RECORDS_FILE
+	 */
+	public Integer getMaxRecordsFile() {
+		return maxRecordsFile;
+	}
+	
+	/**
+	 * @return the number of records shown per page
+	 * @see SyncConstants#PROPERTY_NAME_MAX_PAGE_RECORDS
+	 */
+	public int getMaxPageRecords() {
+		return maxPageRecords;
+	}
+	
+	/**
+	 * @return the connection timeout in milliseconds
+	 * @see SyncConstants#PROPERTY_CONNECTION_TIMEOUT
+	 */
+	public double getConnectionTimeout() {
+		return connectionTimeout;
+	}
+	
+	/**
+	 * @return true if the connection timeout was set explicitly rather than derived from the web
+	 *         batch size
+	 */
+	public boolean isConnectionTimeoutConfigured() {
+		return connectionTimeoutConfigured;
+	}
+	
+	/**
+	 * @return true if the batch size and timeout are adapted to the throughput of each link
+	 * @see SyncConstants#PROPERTY_ADAPTIVE_BATCH_SIZE
+	 * @see org.openmrs.module.sync.server.AdaptiveBatchController
+	 */
+	public boolean isAdaptiveBatchSize() {
+		return adaptiveBatchSize;
+	}
+	
+	/**
+	 * @return the most records the adaptive batch may grow to, never less than
+	 *         {@link #getMaxRecordsWeb()}
+	 * @see SyncConstants#PROPERTY_NAME_MAX_RECORDS_WEB_CEILING
+	 */
+	public int getMaxRecordsWebCeiling() {
+		return maxRecordsWebCeiling;
+	}
+	
+	/**
+	 * @return true if changes are pushed to the servers with a scheduled sync as soon as they are
+	 *         journaled instead of waiting for the schedule
+	 * @see SyncConstants#PROPERTY_PUSH_ENABLED
+	 */
+	public boolean isPushEnabled() {
+		return pushEnabled;
+	}
+	
+	/**
+	 * @return the milliseconds without new changes after which a push is sent
+	 * @see SyncConstants#PROPERTY_PUSH_QUIET_PERIOD
+	 */
+	public long getPushQuietPeriod() {
+		return pushQuietPeriod;
+	}
+	
+	/**
+	 * @return the most milliseconds a journaled change waits for its push, however busy the journal
+	 *         is; never less than the quiet period
+	 * @see SyncConstants#PROPERTY_PUSH_MAX_DELAY
+	 */
+	public long getPushMaxDelay() {
+		return pushMaxDelay;
+	}
+	
+	/**
+	 * @return the pattern dates are entered and shown with in the sync pages
+	 * @see SyncConstants#PROPERTY_DATE_PATTERN
+	 */
+	public String getDatePattern() {
+		return datePattern;
+	}
+	
+	/**
+	 * @return the number of servers that may be synchronized with at the same time, at least 1
+	 * @see SyncConstants#PROPERTY_MAX_CONCURRENT_TRANSMISSIONS
+	 */
+	public int getMaxConcurrentTransmissions() {
+		return maxConcurrentTransmissions;
+	}
+	
+	/**
+	 * @return the class names (or their beginnings, like sync class names) of the records that are
+	 *         sent ahead of the others, empty if records are sent in journal order
+	 * @see SyncConstants#PROPERTY_PRIORITY_CLASSES
+	 * @see SyncRecordPrioritizer
+	 */
+	public List<String> getPriorityClasses() {
+		return priorityClasses;
+	}
+	
+	/**
+	 * @return true if only the records that depend on a record that reached the max retry count are
+	 *         held back with it, false if everything after it is
+	 * @see SyncConstants#PROPERTY_SKIP_STOPPED_RECORDS
+	 * @see SyncDependencyTracker
+	 */
+	public boolean isSkipStoppedRecords() {
+		return skipStoppedRecords;
+	}
+	
+	/**
+	 * @return true if the progress of child servers is to be kept as an acknowledged cursor (see
+	 *         {@link org.openmrs.module.sync.server.RemoteServer#getAcknowledgedRecordId()}) rather
+	 *         than a row per record and child
+	 * @see SyncConstants#PROPERTY_CHILD_CURSORS
+	 */
+	public boolean isChildCursors() {
+		return childCursors;
+	}
+	
+	/**
+	 * @return the bytes of memory that serialized records are kept in to be reused for the other
+	 *         servers they are sent to, 0 if they are serialized anew for each transmission
+	 * @see SyncConstants#PROPERTY_SERIALIZED_RECORD_CACHE_SIZE
+	 * @see SyncRecordFragmentCache
+	 */
+	public long getSerializedRecordCacheSize() {
+		return serializedRecordCacheSize;
+	}
+	
+	/**
+	 * @return true if an update to a collection is journaled as the entries added and removed only,
+	 *         false if every entry of the collection is listed
+	 * @see SyncConstants#PROPERTY_COLLECTION_DELTA
+	 */
+	public boolean isCollectionDelta() {
+		return collectionDelta;
+	}
+	
+	/**
+	 * @return milliseconds after which a clone snapshot is no longer used to seed children
+	 * @see SyncConstants#PROPERTY_CLONE_SNAPSHOT_MAX_AGE
+	 */
+	public long getCloneSnapshotMaxAge() {
+		return cloneSnapshotMaxAge;
+	}
+	
+	/**
+	 * @return true if the transmissions and responses sent and received are kept in the
+	 *         transmission archive
+	 * @see SyncConstants#PROPERTY_ARCHIVE_ENABLED
+	 */
+	public boolean isArchiveEnabled() {
+		return archiveEnabled;
+	}
+	
+	/**
+	 * @return the bytes after which the transmission archive starts a new segment
+	 * @see SyncConstants#PROPERTY_ARCHIVE_SEGMENT_SIZE
+	 */
+	public long getArchiveSegmentSize() {
+		return archiveSegmentSize;
+	}
+	
+	/**
+	 * @return the most bytes the segments of the transmission archive take up together; never less
+	 *         than one segment
+	 * @see SyncConstants#PROPERTY_ARCHIVE_MAX_SIZE
+	 */
+	public long getArchiveMaxSize() {
+		return archiveMaxSize;
+	}
+	
+	/**
+	 * @return the milliseconds a segment of the transmission archive is kept, 0 to keep segments
+	 *         until the archive is full
+	 * @see SyncConstants#PROPERTY_ARCHIVE_MAX_AGE
+	 */
+	public long getArchiveMaxAge() {
+		return archiveMaxAge;
+	}
+	
+	/**
+	 * @return the configured timeout if there is a valid one, otherwise null
+	 */
+	private static Double parseConfiguredTimeout(SyncService syncService) {
+		String timeoutGP = syncService.getGlobalProperty(SyncConstants.PROPERTY_CONNECTION_TIMEOUT);
+		try {
+			if (StringUtils.hasText(timeoutGP))
+				return Double.parseDouble(timeoutGP.trim());
+		}
+		catch (NumberFormatException ex) {
+			log.error("Could not convert " + timeoutGP + " to Double.  Please enter a valid number of miliseconds, or leave "
+			        + SyncConstants.PROPERTY_CONNECTION_TIMEOUT + " blank to use the default.");
+		}
+		return null;
+	}
+	
+	/**
+	 * Works out a timeout from the number of records sent over the web at once
+	 */
+	private static double getDefaultConnectionTimeout(SyncService syncService, Integer maxRecordsWeb) {
+		if (maxRecordsWeb == null) {
+			if (syncService.getGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB) != null)
+				return DEFAULT_CONNECTION_TIMEOUT;
+			maxRecordsWeb = Integer.valueOf(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT);
+		}
+		
+		// formula we cooked up after running several tests: latency + 0.1N
+		return (3 + (maxRecordsWeb * 0.1)) * 6000;
+	}
+	
+	private static Integer parseInteger(SyncService syncService, String propertyName, String defaultValue) {
+		String value = syncService.getGlobalProperty(propertyName);
+		if (StringUtils.hasText(value)) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Only Integers are allowed as values for the global property '" + propertyName + "'");
+			}
+		}
+		return defaultValue == null ? null : Integer.valueOf(defaultValue);
+	}
+	
+	@Override
+	public String toString() {
+		return "SyncSettings(maxRetryCount=" + maxRetryCount + ", maxRecordsWeb=" + maxRecordsWeb + ", maxRecordsFile="
+		        + maxRecordsFile + ", compressionEnabled=" + compressionEnabled + ", connectionTimeout=" + connectionTimeout
+		        + ", adaptiveBatchSize=" + adaptiveBatchSize + ", maxRecordsWebCeiling=" + maxRecordsWebCeiling
+		        + ", pushEnabled=" + pushEnabled
+		        + ")";
+	}
+}
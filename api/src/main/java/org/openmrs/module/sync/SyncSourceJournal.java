@@ -166,12 +166,24 @@ public class SyncSourceJournal implements SyncSource {
 	}
 	
 	// state-based version that takes into consideration what should/shouldn't be sent to a given server
+	// when more records are waiting than fit, the ones with priority classes go first (see SyncRecordPrioritizer)
 	public List<SyncRecord> getChanged(RemoteServer server, Integer maxResults) throws SyncException {
 		List<SyncRecord> changed = new ArrayList<SyncRecord>();
 		
 		try {
 			SyncService syncService = Context.getService(SyncService.class);
-			changed = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, server, maxResults, null);
+			SyncRecordPrioritizer prioritizer = new SyncRecordPrioritizer(syncService.getSyncSettings()
+			        .getPriorityClasses());
+			int max = maxResults == null ? Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT) : maxResults;
+			
+			if (max > 0 && !prioritizer.isEmpty()) {
+				int lookahead = (int) Math.min(Integer.MAX_VALUE, (long) max * SyncRecordPrioritizer.LOOKAHEAD);
+				List<SyncRecord> waiting = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, server,
+				    lookahead, null);
+				changed = prioritizer.select(waiting, max);
+			} else {
+				changed = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, server, maxResults, null);
+			}
 			
 		}
 		catch (Exception e) {
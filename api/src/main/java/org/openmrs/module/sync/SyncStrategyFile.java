@@ -14,6 +14,8 @@
 package org.openmrs.module.sync;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -23,6 +25,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.module.sync.server.ServerClassFilter;
 import org.openmrs.module.sync.server.SyncServerRecord;
 
 /**
@@ -72,15 +75,18 @@ public class SyncStrategyFile {
 	 * - select records from sync journal that are in the correct state (see
 	 * SyncConstants.SYNC_TO_PARENT_STATES) <br/>
 	 * - if a sync record from the journal reached state of FAILED_AND_STOPPED; do not attempt to
-	 * send it and records after it again <br/>
+	 * send it and the records that depend on it again (or all records after it, if
+	 * {@link SyncSettings#isSkipStoppedRecords()} is off); the records held back don't count towards
+	 * maxSyncRecords, the journal is looked further into until the batch is full <br/>
 	 * - filter out records that contain classes that are not accepted by the server
 	 * 
 	 * @param source server from where changes are to be retrieved (local server)
-	 * @param writeFileToo flag to dump file or not
+	 * @param writeFileToo flag to keep the transmission in the archive or not
 	 * @param server server to send Tx to
 	 * @param maxSyncRecords The maximum number of sync records to include in the Sync Transmission
 	 * @return
 	 * @see org.openmrs.module.sync.SyncConstants#SYNC_TO_PARENT_STATES
+	 * @should send the records behind held back ones when these fill the batch
 	 */
 	public SyncTransmission createStateBasedSyncTransmission(SyncSource source, boolean writeFileToo, RemoteServer server,
 	                                                         boolean requestResponseWithTransmission, Integer maxSyncRecords) {
@@ -91,38 +97,98 @@ public class SyncStrategyFile {
 		if (server != null) {
 			List<SyncRecord> changeset = null;
 			List<SyncRecord> filteredChangeset = new ArrayList<SyncRecord>();
+			SyncService syncService = Context.getService(SyncService.class);
 			
-			//get changeset for sourceA
-			changeset = this.getStateBasedChangeset(source, server, maxSyncRecords);
+			// look up the first stopped record once for the whole transmission; everything at or
+			// after it in the journal is held back, so each record below is checked in memory
+			SyncRecordPosition firstBlockingRecord = syncService.getFirstSyncRecordPositionInState(server,
+			    EnumSet.of(SyncRecordState.FAILED_AND_STOPPED));
 			
-			// need to check each SyncRecord to see if it's eligible for sync'ing
-			if (changeset != null) {
+			// unless only the records that depend on a stopped one are to be held back
+			SyncDependencyTracker stopped = null;
+			int stoppedCount = 0;
+			if (firstBlockingRecord != null && syncService.getSyncSettings().isSkipStoppedRecords()) {
+				stopped = syncService.getStoppedSyncRecordTracker(server);
+				stoppedCount = stopped.getHeldBackCount();
+			}
+			
+			// held back records would otherwise take up the batch, so while some are skipped and the
+			// batch isn't full the journal is read again with a window twice as large
+			int max = maxSyncRecords == null ? Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT)
+			        : maxSyncRecords;
+			Integer window = maxSyncRecords;
+			int skipped = 0;
+			Set<Integer> seen = new HashSet<Integer>();
+			ServerClassFilter classFilter = server.getClassFilter();
+			boolean lookFurther = true;
+			while (lookFurther) {
+				//get changeset for sourceA
+				changeset = this.getStateBasedChangeset(source, server, window);
+				if (changeset == null)
+					break;
+				
+				// need to check each SyncRecord to see if it's eligible for sync'ing
+				boolean seenNew = false;
 				for (SyncRecord record : changeset) {
-					if (record.getState() == SyncRecordState.FAILED_AND_STOPPED) {
+					if (max > 0 && filteredChangeset.size() >= max)
+						break;
+					if (!seen.add(record.getRecordId()))
+						continue;
+					seenNew = true;
+					
+					if (stopped != null) {
+						if (stopped.isHeldBack(record.getUuid())) {
+							skipped++;
+							continue;
+						}
+						if (stopped.dependsOnHeldBack(record)) {
+							stopped.holdBack(record);
+							skipped++;
+							continue;
+						}
+					} else if (record.getState() == SyncRecordState.FAILED_AND_STOPPED
+					        || (firstBlockingRecord != null && firstBlockingRecord.isAtOrBefore(record))) {
 						isMaxRetryReached = true;
 						
-						SyncUtil.sendSyncErrorMessage(record, server, new SyncException("Reached maximum retry count"));
+						SyncRecord blockingRecord = record;
+						if (firstBlockingRecord != null && !firstBlockingRecord.getRecordId().equals(record.getRecordId()))
+							blockingRecord = syncService.getSyncRecord(firstBlockingRecord.getRecordId());
+						
+						SyncUtil.sendSyncErrorMessage(blockingRecord, server, new SyncException("Reached maximum retry count"));
 						
 						break;
 					}
 					Set<String> containedClasses = record.getContainedClassSet();
-					if (server.shouldBeSentSyncRecord(record)) {
+					if (classFilter.isSent(record)) {
 						filteredChangeset.add(record);
 					} else {
 						if (server.getServerType().equals(RemoteServerType.PARENT)) {
 							record.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
-							Context.getService(SyncService.class).updateSyncRecord(record);
+							syncService.updateSyncRecord(record);
 						} else {
+							// a child keeping a cursor may not have a row for the record yet
+							record.addServerRecord(server);
 							SyncServerRecord serverRecord = record.getServerRecord(server);
 							if (serverRecord != null) {
 								serverRecord.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
-								Context.getService(SyncService.class).updateSyncRecord(record);
+								syncService.updateSyncRecord(record);
 							}
 						}
 						log.warn("NOT ADDING RECORD TO TRANSMISSION, SERVER IS NOT SET TO SEND ALL OF " + containedClasses
 						        + " TO SERVER " + server.getNickname());
 					}
 				}
+				
+				lookFurther = stopped != null && skipped > 0 && seenNew && max > 0 && filteredChangeset.size() < max;
+				if (lookFurther)
+					window = Math.max(max + skipped, (window == null ? max : window) * 2);
+			}
+			
+			if (stopped != null) {
+				log.warn((stopped.getHeldBackCount() - stoppedCount) + " records for " + server.getNickname()
+				        + " are held back because they depend on records that reached the max retry count");
+				SyncUtil.sendSyncErrorMessage(syncService.getSyncRecord(firstBlockingRecord.getRecordId()), server,
+				    new SyncException("Reached maximum retry count"));
 			}
 			
 			//pack it into transmission
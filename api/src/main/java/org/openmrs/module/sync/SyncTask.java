@@ -17,7 +17,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.bundle.TransmissionArchive;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.scheduler.SyncLaneScheduler;
+import org.openmrs.module.sync.scheduler.SyncPushTrigger;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.scheduler.TaskDefinition;
 import org.openmrs.scheduler.tasks.AbstractTask;
@@ -34,7 +37,15 @@ public class SyncTask extends AbstractTask {
 	// Instance of configuration information for task
 	private Integer serverId = 0;
 	
-	private static Boolean isExecuting = false; // allow only one running
+	/**
+	 * Runs this task when changes are pushed to its server
+	 */
+	private final Runnable push = new Runnable() {
+		
+		public void run() {
+			execute();
+		}
+	};
 	
 	/**
 	 * Default Constructor (Uses SchedulerConstants.username and SchedulerConstants.password
@@ -49,16 +60,13 @@ public class SyncTask extends AbstractTask {
 	 * <p>
 	 * NOTE: Any exception (outside of session open/close) is caught and reported in the error log
 	 * thus creating retry behavior based on the scheduled frequency.
+	 * <p>
+	 * Tasks for different servers run side by side, see {@link SyncLaneScheduler}. Besides on its
+	 * schedule, the task also runs when changes are pushed to its server, see
+	 * {@link SyncPushTrigger}.
 	 */
 	public void execute() {
 		Context.openSession();
-		synchronized (isExecuting) {
-			if (isExecuting) {
-				log.warn("SyncTask processor aborting (another SyncTask already running)");
-				return;
-			}
-			isExecuting = true;
-		}
 		try {
 			log.debug("Synchronizing data to a server.");
 			if (Context.isAuthenticated() == false && serverId > 0)
@@ -66,14 +74,23 @@ public class SyncTask extends AbstractTask {
 			
 			RemoteServer server = Context.getService(SyncService.class).getRemoteServer(serverId);
 			if (server != null) {
+				SyncSettings settings = Context.getService(SyncService.class).getSyncSettings();
+				SyncPushTrigger.getInstance().configure(settings);
+				TransmissionArchive.getInstance().configure(settings);
+				
 				//auto syncing is only via web, so apply the web limit for sync records to send
-				SyncTransmissionResponse response = SyncUtilTransmission.doFullSynchronize(server, null,
-				    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB));
+				SyncTransmissionResponse response = SyncLaneScheduler.getInstance().synchronize(server, null,
+				    settings.getMaxRecordsWeb(), true);
+				if (response == null) {
+					log.warn("SyncTask processor aborting (a sync with " + server.getNickname() + " is already running)");
+					return;
+				}
+				SyncPushTrigger.getInstance().setLinkUp(serverId, response.getState() != SyncTransmissionState.FAILED);
 				try {
-					response.createFile(false, SyncConstants.DIR_JOURNAL);
+					response.createFile(true, SyncConstants.DIR_JOURNAL);
 				}
 				catch (Exception e) {
-					log.error("Unable to create file to store SyncTransmissionResponse: " + response.getFileName(), e);
+					log.error("Unable to archive SyncTransmissionResponse: " + response.getFileName(), e);
 				}
 			}
 		}
@@ -81,7 +98,6 @@ public class SyncTask extends AbstractTask {
 			log.error("Scheduler error while trying to synchronize data. Will retry per schedule.", e);
 		}
 		finally {
-			isExecuting = false;
 			Context.closeSession();
 			log.debug("Synchronization complete.");
 		}
@@ -106,16 +122,30 @@ public class SyncTask extends AbstractTask {
 			this.serverId = 0;
 			log.error("Could not find serverId for this sync scheduled task.", e);
 		}
+		if (serverId > 0)
+			SyncPushTrigger.getInstance().register(serverId, push);
+	}
+	
+	/**
+	 * Stops changes from being pushed to the server when the task is stopped
+	 * 
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		SyncPushTrigger.getInstance().unregister(serverId, push);
+		super.shutdown();
 	}
 	
 	/**
 	 * Checks if the sync task is running.
 	 * 
-	 * @return true if running, else false.
+	 * @return true if a sync with any server is running, else false.
+	 * @deprecated syncs with different servers can run at the same time, use
+	 *             {@link SyncLaneScheduler#isRunning(Integer)}
 	 */
+	@Deprecated
 	public static Boolean getIsExecuting() {
-		synchronized (isExecuting) {
-			return isExecuting;
-		}
+		return SyncLaneScheduler.getInstance().isAnyRunning();
 	}
 }
@@ -13,7 +13,6 @@
  */
 package org.openmrs.module.sync;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
@@ -21,12 +20,12 @@ import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.bundle.TransmissionArchive;
 import org.openmrs.module.sync.serialization.FilePackage;
 import org.openmrs.module.sync.serialization.IItem;
 import org.openmrs.module.sync.serialization.Item;
 import org.openmrs.module.sync.serialization.Record;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
-import org.openmrs.util.OpenmrsUtil;
 
 /**
  * SyncTransmission a collection of sync records to be sent to the parent.
@@ -142,11 +141,11 @@ public class SyncTransmission implements IItem {
 
     /** Creates a new transmission from records: use org.openmrs.serial to make a file
      *  also, give option to write to a file or not.
-     *  <p> When writeFile is true, files are created in 'record' dir under Application Data 
-     *  (see openmrs documentation for more information about setting Application Data).
-     *  Files are created using the following mask: sync_tx_yyyy_MM_dd_HH_mm_ss_S_request.xml
+     *  <p> When writeFile is true, the transmission is kept in the {@link TransmissionArchive}
+     *  under its file name, sync_tx_yyyy_MM_dd_HH_mm_ss_S_request; it is written there in the
+     *  background.
      *  
-     *  @param writeFile if true, local file for this transmission will be created.  
+     *  @param writeFile if true, this transmission is archived.  
      */
     public void create(boolean writeFile) {
 
@@ -161,10 +160,11 @@ public class SyncTransmission implements IItem {
             //serialize
             this.save(xml,root);
 
-            //now dump to file if needed
-            File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory("sync");
-            File record = new File(dir, "recrd");
-            fileOutput = pkg.savePackage(new File(record, fileName), writeFile);
+            fileOutput = pkg.savePackage(null, false);
+            
+            //now archive if needed
+            if (writeFile)
+            	TransmissionArchive.getInstance().archive(SyncConstants.DIR_RECORD, uuid, fileName, fileOutput);
 
         } catch (Exception e) {
             log.error("Cannot create sync transmission.",e);
@@ -196,9 +196,14 @@ public class SyncTransmission implements IItem {
         
         if (syncRecords != null) {
             me.setAttribute("itemCount", Integer.toString(syncRecords.size()));
+            //records going to several children are only serialized for the first one
+            SyncRecordFragmentCache cache = SyncRecordFragmentCache.getInstance();
             Iterator<SyncRecord> iterator = syncRecords.iterator();
             while (iterator.hasNext()) {
-                iterator.next().save(xml, itemsCollection);
+                if (cache.isEnabled())
+                    xml.createFragment(itemsCollection, cache.getFragment(iterator.next()));
+                else
+                    iterator.next().save(xml, itemsCollection);
             }
         };
 
@@ -269,4 +274,4 @@ public class SyncTransmission implements IItem {
         this.syncTargetUuid = syncTargetUuid;
     }
     
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -13,11 +13,8 @@
  */
 package org.openmrs.module.sync;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,13 +37,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 import java.util.Vector;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
-import java.util.zip.CheckedOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Concept;
@@ -89,6 +80,8 @@ import org.openmrs.module.sync.serialization.Normalizer;
 import org.openmrs.module.sync.serialization.PropertiesNormalizer;
 import org.openmrs.module.sync.serialization.Record;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
+import org.openmrs.module.sync.server.ConnectionRequest;
+import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.notification.Alert;
 import org.openmrs.notification.Message;
@@ -990,26 +983,20 @@ public class SyncUtil {
 		return contents.toString();
 	}
 	
+	/**
+	 * @param content a transmission
+	 * @return the transmission gzip compressed, as {@link ConnectionRequest} sends it
+	 */
 	public static byte[] compress(String content) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		CheckedOutputStream cos = new CheckedOutputStream(baos, new CRC32());
-		GZIPOutputStream zos = new GZIPOutputStream(new BufferedOutputStream(cos));
-		IOUtils.copy(new ByteArrayInputStream(content.getBytes()), zos);
-		return baos.toByteArray();
+		return new ConnectionRequest(content, true).getBytes();
 	}
 	
+	/**
+	 * @param data a gzip compressed transmission
+	 * @return the transmission, as {@link ConnectionResponse} reads it
+	 */
 	public static String decompress(byte[] data) throws IOException {
-		ByteArrayInputStream bais2 = new ByteArrayInputStream(data);
-		CheckedInputStream cis = new CheckedInputStream(bais2, new CRC32());
-		GZIPInputStream zis = new GZIPInputStream(new BufferedInputStream(cis));
-		InputStreamReader reader = new InputStreamReader(zis);
-		BufferedReader br = new BufferedReader(reader);
-		StringBuffer buffer = new StringBuffer();
-		String line = "";
-		while ((line = br.readLine()) != null) {
-			buffer.append(line);
-		}
-		return buffer.toString();
+		return new ConnectionResponse(new ByteArrayInputStream(data), true).getResponsePayload();
 	}
 	
 	/**
@@ -1241,6 +1228,21 @@ public class SyncUtil {
 		}
 	}
 	
+	/**
+	 * Gets the value of the given global property through {@link SyncService#getGlobalProperty(String)}
+	 * so that sync settings read on every transmission are served from the configuration cache
+	 * 
+	 * @param globalPropertyName the global property name
+	 * @param defaultValue the value to return if the global property is not set
+	 * @return the global property value, or defaultValue if there is none
+	 */
+	public static String getGlobalProperty(String globalPropertyName, String defaultValue) {
+		String value = Context.getService(SyncService.class).getGlobalProperty(globalPropertyName);
+		if (value == null)
+			return defaultValue;
+		return value;
+	}
+	
 	/**
 	 * Gets the global property value as an integer for the specified global property name
 	 * 
@@ -1249,7 +1251,7 @@ public class SyncUtil {
 	 */
 	public static Integer getGlobalPropetyValueAsInteger(String globalPropertyName) {
 		Integer intValue = null;
-		String stringValue = Context.getAdministrationService().getGlobalProperty(globalPropertyName);
+		String stringValue = getGlobalProperty(globalPropertyName, null);
 		try {
 			intValue = Integer.valueOf(stringValue);
 		}
@@ -13,9 +13,11 @@
  */
 package org.openmrs.module.sync;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,14 +25,21 @@ import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.api.SyncIngestService;
 import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.bundle.SyncBundle;
+import org.openmrs.module.sync.bundle.SyncBundleReader;
+import org.openmrs.module.sync.bundle.SyncBundleWriter;
+import org.openmrs.module.sync.ingest.SyncDeserializer;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.ingest.SyncIngestException;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.scheduler.SyncLaneScheduler;
+import org.openmrs.module.sync.serialization.Record;
+import org.openmrs.module.sync.server.AdaptiveBatchController;
 import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
 import org.openmrs.module.sync.server.ServerConnection;
-import org.openmrs.module.sync.server.SyncServerRecord;
+import org.openmrs.module.sync.server.ServerConnectionState;
 
 /**
  *
@@ -84,38 +93,32 @@ public class SyncUtilTransmission {
 				exceptionThrown = e; // save the exception so we can check if one happened in the finally block
 				
 				log.error("Error while creating state based sync", e);
-				// difference is that this time we'll do this without trying to create a file (just getting the output)
-				// if it works, that probably means that there was a problem writing file to disk
+				// difference is that this time we'll do this without archiving the transmission (just getting the output)
+				// if it works, that probably means that there was a problem handing it to the archive
 				tx = strategy.createStateBasedSyncTransmission(source, false, server, requestResponseWithTransmission,
 				    maxSyncRecords);
 			}
 			finally {
 				boolean incrementRetryCount = true;
+				SyncSettings settings = Context.getService(SyncService.class).getSyncSettings();
+				
+				// check to see if this exception should be ignored and so NOT increment the retry count
+				if (settings.isIgnoredException(exceptionThrown))
+					incrementRetryCount = false;
 				
-				if (exceptionThrown != null) {
-					
-					// check to see if this exception should be ignored and so NOT increment the retry count
-					String ignoredExceptionClassNames = Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_NAME_IGNORED_JAVA_EXCEPTIONS, "");
-					String[] exceptionNames = ignoredExceptionClassNames.split(",");
-					for (String exname : exceptionNames) {
-						if (exname.trim().equals(exceptionThrown.getClass().getName())) {
-							incrementRetryCount = false;
-							break;
-						}
-					}
-					
-				}
 				if (incrementRetryCount && tx != null) {
 						
 						if (server != null) {
 							tx.setSyncTargetUuid(server.getUuid());
 						}
 						// let's update SyncRecords to reflect the fact that we now have tried to sync them, by setting state to SENT or SENT_AGAIN
-						maxRetryCount = Long.parseLong(Context.getAdministrationService().getGlobalProperty(
-						    SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT, SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT));
+						maxRetryCount = settings.getMaxRetryCount();
 						
 						log.info("Max retry count: " + maxRetryCount);
 						if (tx.getSyncRecords() != null) {
+							List<SyncRecord> sentRecords = new ArrayList<SyncRecord>(tx.getSyncRecords().size());
+							List<SyncRecord> keptRecords = new ArrayList<SyncRecord>(tx.getSyncRecords().size());
+							SyncDependencyTracker stopped = new SyncDependencyTracker();
 							for (SyncRecord record : tx.getSyncRecords()) {
 								//if max re-try was reached stop now: 
 								//a) mark the record as failed save it to DB, 
@@ -130,34 +133,35 @@ public class SyncUtilTransmission {
 									Context.getService(SyncService.class).updateSyncRecord(record);
 									maxRetryCountReached = true;
 									SyncUtil.sendSyncErrorMessage(record, server, new SyncException("Max retry count reached"));
+									stopped.holdBack(record);
+									continue;
+								}
+								// records that depend on one that just stopped are held back with it
+								if (settings.isSkipStoppedRecords() && stopped.dependsOnHeldBack(record)) {
+									stopped.holdBack(record);
 									continue;
 								}
+								keptRecords.add(record);
 								if (record.getServerRecords() != null && !server.getServerType().equals(RemoteServerType.PARENT)) {
 									//parent -> child: this Tx is part of exchange where parent is sending its changes down to child
 									//mark row in the synchronization_server_record table as being sent, 
-									for (SyncServerRecord serverRecord : record.getServerRecords()) {
-										if (serverRecord.getSyncServer().equals(server)) {
-											serverRecord.incrementRetryCount();
-											if (serverRecord.getState().equals(SyncRecordState.NEW))
-												serverRecord.setState(SyncRecordState.SENT);
-											else
-												serverRecord.setState(SyncRecordState.SENT_AGAIN);
-										}
-									}
-									Context.getService(SyncService.class).updateSyncRecord(record);
+									sentRecords.add(record);
 								} else if (server.getServerType().equals(RemoteServerType.PARENT)) {
 									//child -> parent scenario: we are about to send data from child to parent
-									record.incrementRetryCount();
-									if (record.getState().equals(SyncRecordState.NEW))
-										record.setState(SyncRecordState.SENT);
-									else
-										record.setState(SyncRecordState.SENT_AGAIN);
-									Context.getService(SyncService.class).updateSyncRecord(record);
+									sentRecords.add(record);
 								} else {
 									log.error("Odd state: trying to get syncRecords for a non-parent server with no corresponding server-records");
 								}
 							}
-							if (tx.getIsMaxRetryReached() || maxRetryCountReached) {
+							// carry on with the records that don't depend on the ones that stopped
+							if (maxRetryCountReached && settings.isSkipStoppedRecords() && !tx.getIsMaxRetryReached()) {
+								log.warn(stopped.getHeldBackCount() + " records are held back because they are or depend on records that reached the max retry count");
+								tx.setSyncRecords(keptRecords);
+								tx.create(false);
+							}
+							// move them all on to SENT or SENT_AGAIN in bulk rather than saving each one
+							Context.getService(SyncService.class).updateSyncRecordsToSent(sentRecords, server);
+							if (tx.getIsMaxRetryReached() || (maxRetryCountReached && !settings.isSkipStoppedRecords())) {
 								tx.setSyncRecords(null);
 							}
 						}
@@ -172,6 +176,50 @@ public class SyncUtilTransmission {
 		return tx;
 	}
 	
+	/**
+	 * Leaves the records the server has committed already out of a transmission that sends some
+	 * records again, after a transmission that failed halfway through, see
+	 * {@link org.openmrs.module.sync.server.CommittedRecords}. Those records are marked as committed
+	 * as if the server had answered ALREADY_COMMITTED for them. If the server can't tell, the
+	 * transmission is left as it is.
+	 * 
+	 * @param server the server the transmission goes to
+	 * @param tx the transmission, as created by
+	 *            {@link #createSyncTransmission(RemoteServer, boolean, Integer)}
+	 */
+	private static void leaveOutCommittedRecords(RemoteServer server, SyncTransmission tx) {
+		if (tx == null || tx.getSyncRecords() == null || tx.getIsMaxRetryReached())
+			return;
+		
+		// only the records that were sent before can have been committed over there
+		List<String> uuids = new ArrayList<String>();
+		for (SyncRecord record : tx.getSyncRecords()) {
+			if (SyncRecordState.SENT_AGAIN.equals(record.getState()))
+				uuids.add(record.getOriginalUuid());
+		}
+		if (uuids.isEmpty())
+			return;
+		
+		Set<String> committed = ServerConnection.getCommittedRecords(server, uuids);
+		if (committed == null || committed.isEmpty())
+			return;
+		log.info("Leaving out " + committed.size() + " records that " + server.getNickname() + " has committed already");
+		
+		List<SyncRecord> remaining = new ArrayList<SyncRecord>(tx.getSyncRecords().size());
+		for (SyncRecord record : tx.getSyncRecords()) {
+			if (committed.contains(record.getOriginalUuid())) {
+				SyncImportRecord importRecord = new SyncImportRecord();
+				importRecord.setUuid(record.getOriginalUuid());
+				importRecord.setState(SyncRecordState.ALREADY_COMMITTED);
+				Context.getService(SyncIngestService.class).processSyncImportRecord(importRecord, server);
+			} else {
+				remaining.add(record);
+			}
+		}
+		tx.setSyncRecords(remaining);
+		tx.create(false);
+	}
+	
 	public static SyncTransmissionResponse sendSyncTranssmission(RemoteServer server, SyncTransmission transmission) {
 		return SyncUtilTransmission.sendSyncTransmission(server, transmission, null);
 	}
@@ -217,6 +265,9 @@ public class SyncUtilTransmission {
 					} else {
 						ConnectionResponse connResponse = null;
 						boolean isResponse = responseInstead != null;
+						SyncTransmission sent = isResponse ? responseInstead.getSyncTransmission() : transmission;
+						int recordCount = (sent == null || sent.getSyncRecords() == null) ? 0 : sent.getSyncRecords().size();
+						long started = System.currentTimeMillis();
 						
 						try {
 							connResponse = ServerConnection.sendExportedData(server, toTransmit, isResponse);
@@ -225,10 +276,18 @@ public class SyncUtilTransmission {
 							log.error("Unable to get send exported data over connection to: " + server, e);
 							// no need to change state or error message - it's already set properly; just update last sync state
 							server.setLastSyncState(SyncTransmissionState.FAILED);
+							AdaptiveBatchController.transmissionFailed(server, recordCount);
 							syncService.saveRemoteServer(server);
 						}
 						
 						if (connResponse != null) {
+							// let the batch size and timeout follow what the link managed
+							if (connResponse.getState() == ServerConnectionState.OK)
+								AdaptiveBatchController.transmissionSucceeded(server, recordCount, connResponse.getBytesSent(),
+								    System.currentTimeMillis() - started);
+							else if (connResponse.getState() == ServerConnectionState.CONNECTION_FAILED)
+								AdaptiveBatchController.transmissionFailed(server, recordCount);
+							
 							// constructor for SyncTransmissionResponse is null-safe
 							response = new SyncTransmissionResponse(connResponse);
 							
@@ -259,6 +318,8 @@ public class SyncUtilTransmission {
 								if (allOK == false) {
 									server.setLastSyncState(SyncTransmissionState.FAILED_RECORDS);
 								}
+								
+								syncService.advanceChildCursor(server);
 							}
 							//update lastSyncState
 							syncService.saveRemoteServer(server);
@@ -308,6 +369,9 @@ public class SyncUtilTransmission {
 		try {
 			if (parent != null) {
 				Integer parentId = parent.getServerId();
+				// send no more than the link to the parent has coped with so far
+				maxSyncRecords = AdaptiveBatchController.getBatchSize(parent, maxSyncRecords);
+				
 				//set the date
 				parent.setLastSync(new Date());
 				
@@ -354,6 +418,7 @@ public class SyncUtilTransmission {
 						// now get local changes destined for parent, and package those inside
 						parent = syncService.getRemoteServer(parentId);
 						SyncTransmission st = SyncUtilTransmission.createSyncTransmission(parent, false, maxSyncRecords);
+						leaveOutCommittedRecords(parent, st);
 						if (str != null) {
 							if (str.getState() != SyncTransmissionState.CANNOT_FIND_SERVER_WITH_UUID) {
 								log.info("Received updates from parent, so replying and sending updates of our own: "
@@ -553,6 +618,154 @@ public class SyncUtilTransmission {
 		return str;
 	}
 	
+	/**
+	 * Writes a transmission to a {@link SyncBundle}, for a server that can only be reached by disk,
+	 * a record at a time.
+	 * 
+	 * @param tx the transmission, as created by
+	 *            {@link #createSyncTransmission(RemoteServer, boolean, Integer)}
+	 * @param importRecords the import records of what this server got from the other side, to
+	 *            confirm them
+	 * @param file the bundle to write
+	 */
+	public static void writeSyncBundle(SyncTransmission tx, List<SyncImportRecord> importRecords, File file)
+	        throws Exception {
+		SyncSettings settings = Context.getService(SyncService.class).getSyncSettings();
+		SyncBundleWriter writer = new SyncBundleWriter(file, tx.getUuid(), tx.getSyncSourceUuid(), settings
+		        .getCompressionLevel());
+		try {
+			// the target/source are seen from the other side, as they are for any response
+			SyncTransmissionResponse str = new SyncTransmissionResponse();
+			str.setState(SyncTransmissionState.OK);
+			str.setSyncImportRecords(importRecords);
+			str.setSyncSourceUuid(tx.getSyncTargetUuid());
+			str.setSyncTargetUuid(tx.getSyncSourceUuid());
+			str.setTimestamp(tx.getTimestamp());
+			str.setUuid(tx.getUuid());
+			str.setFileName("");
+			str.createFile(false);
+			writer.append(SyncBundle.ENTRY_RESPONSE, str.getFileOutput().getBytes(SyncConstants.UTF8));
+			
+			if (tx.getSyncRecords() != null) {
+				SyncRecordFragmentCache cache = SyncRecordFragmentCache.getInstance();
+				for (SyncRecord record : tx.getSyncRecords()) {
+					writer.append(SyncBundle.ENTRY_RECORD, cache.getFragment(record).getBytes(SyncConstants.UTF8));
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Imports a {@link SyncBundle}, a few records at a time so that a bundle of any size can be
+	 * imported. How far the import got is written down as it goes, and an import of a bundle that
+	 * stopped halfway through carries on where it stopped. The import stops at the first record
+	 * that fails, like that of a transmission does.
+	 * 
+	 * @param file the bundle
+	 * @param maxSyncRecords the maximum number of sync records to send back once the bundle is
+	 *            imported
+	 * @return the confirmation status of the records imported, with the records of this server for
+	 *         the other side
+	 */
+	public static SyncTransmissionResponse processSyncBundle(File file, Integer maxSyncRecords) throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+		SyncBundleReader reader = new SyncBundleReader(file);
+		try {
+			String bundleUuid = reader.getBundleUuid();
+			SyncTransmission envelope = new SyncTransmission(reader.getSourceUuid(), (List<SyncRecord>) null);
+			envelope.setUuid(bundleUuid);
+			envelope.setFileName("sync_bundle_" + bundleUuid);
+			SyncTransmissionResponse str = new SyncTransmissionResponse(envelope);
+			str.setSyncTargetUuid(syncService.getServerUuid());
+			str.setTimestamp(new Date());
+			
+			RemoteServer origin = syncService.getRemoteServer(reader.getSourceUuid());
+			if (origin == null) {
+				str.setState(SyncTransmissionState.CANNOT_FIND_SERVER_WITH_UUID);
+				return str;
+			}
+			if (!reader.isComplete())
+				log.warn("Bundle " + bundleUuid + " was cut short, importing the " + reader.getEntryCount()
+				        + " entries that are whole");
+			
+			int from = SyncBundle.getImportedCount(bundleUuid);
+			log.info("Importing bundle " + bundleUuid + " from " + origin.getNickname() + ", entries " + from + " to "
+			        + reader.getEntryCount());
+			List<SyncImportRecord> importRecords = new ArrayList<SyncImportRecord>();
+			List<SyncRecord> batch = new ArrayList<SyncRecord>(SyncBundle.IMPORT_BATCH_SIZE);
+			int batchStart = from;
+			for (int i = from; i <= reader.getEntryCount(); i++) {
+				boolean last = i == reader.getEntryCount();
+				boolean response = !last && reader.getEntryType(i) == SyncBundle.ENTRY_RESPONSE;
+				
+				// apply the records read so far before anything that has to come after them
+				if (!batch.isEmpty() && (last || response || batch.size() == SyncBundle.IMPORT_BATCH_SIZE)) {
+					SyncTransmission st = new SyncTransmission(reader.getSourceUuid(), batch, str.getSyncTargetUuid());
+					st.setUuid(bundleUuid);
+					st.setIsRequestingTransmission(false);
+					List<SyncImportRecord> batchImportRecords = processSyncTransmission(st, maxSyncRecords)
+					        .getSyncImportRecords();
+					int applied = 0;
+					if (batchImportRecords != null) {
+						importRecords.addAll(batchImportRecords);
+						for (SyncImportRecord importRecord : batchImportRecords) {
+							if (importRecord.getState() != SyncRecordState.COMMITTED
+							        && importRecord.getState() != SyncRecordState.ALREADY_COMMITTED
+							        && importRecord.getState() != SyncRecordState.NOT_SUPPOSED_TO_SYNC)
+								break;
+							applied++;
+						}
+					}
+					SyncBundle.setImportedCount(bundleUuid, batchStart + applied);
+					if (applied < batch.size()) {
+						log.warn("Stopped importing bundle " + bundleUuid + " at entry " + (batchStart + applied));
+						str.setSyncImportRecords(importRecords);
+						str.setState(SyncTransmissionState.FAILED_RECORDS);
+						return str;
+					}
+					batch.clear();
+				}
+				if (last)
+					break;
+				
+				String entry = new String(reader.readEntry(i), SyncConstants.UTF8);
+				if (response) {
+					// confirmations of the records this server sent the other way
+					origin = syncService.getRemoteServer(origin.getServerId());
+					SyncTransmissionResponse priorResponse = SyncDeserializer.xmlToSyncTransmissionResponse(entry);
+					if (priorResponse != null && priorResponse.getSyncImportRecords() != null) {
+						for (SyncImportRecord importRecord : priorResponse.getSyncImportRecords()) {
+							Context.getService(SyncIngestService.class).processSyncImportRecord(importRecord, origin);
+						}
+						syncService.advanceChildCursor(origin);
+					}
+					SyncBundle.setImportedCount(bundleUuid, i + 1);
+					batchStart = i + 1;
+				} else {
+					Record xml = Record.create(entry);
+					SyncRecord record = new SyncRecord();
+					record.load(xml, xml.getRootItem());
+					if (batch.isEmpty())
+						batchStart = i;
+					batch.add(record);
+				}
+			}
+			
+			// all of it is in, answer with what this server has for the other side
+			str.setSyncImportRecords(importRecords.isEmpty() ? null : importRecords);
+			origin = syncService.getRemoteServer(origin.getServerId());
+			if (!origin.getDisabled())
+				str.setSyncTransmission(createSyncTransmission(origin, false, maxSyncRecords));
+			return str;
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
 	public static class ReceivingSize {
 		
 		private Integer size;
@@ -581,17 +794,18 @@ public class SyncUtilTransmission {
 		RemoteServer parent = Context.getService(SyncService.class).getParentServer();
 		
 		if (parent != null) {
-			if (parent.getSyncInProgress() || SyncTask.getIsExecuting()) {
-				SyncTransmissionResponse response = new SyncTransmissionResponse();
+			// runs in the parent's lane, so it can't overlap with the scheduled sync to the parent
+			SyncTransmissionResponse response = SyncLaneScheduler.getInstance().synchronize(parent, size,
+			    maxSyncRecords, false);
+			if (response == null) {
+				response = new SyncTransmissionResponse();
 				response.setErrorMessage(SyncConstants.ERROR_CANNOT_RUN_PARALLEL.toString());
 				response.setFileName(SyncConstants.FILENAME_NOT_CREATED);
 				response.setUuid(SyncConstants.UUID_UNKNOWN);
 				response.setState(SyncTransmissionState.ERROR_CANNOT_RUN_PARALLEL);
-				
-				return response;
 			}
 			
-			return SyncUtilTransmission.doFullSynchronize(parent, size, maxSyncRecords);
+			return response;
 		} else {
 			SyncTransmissionResponse response = new SyncTransmissionResponse();
 			response.setErrorMessage(SyncConstants.ERROR_NO_PARENT_DEFINED.toString());
@@ -16,11 +16,13 @@ package org.openmrs.module.sync.api;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
@@ -29,15 +31,22 @@ import org.openmrs.annotation.Logging;
 import org.openmrs.api.APIException;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.module.sync.SyncClass;
+import org.openmrs.module.sync.SyncCloneSnapshot;
 import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncDependencyTracker;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncPayloadStorageReport;
+import org.openmrs.module.sync.SyncRecordPosition;
 import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncSettings;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.SyncServerRecord;
+import org.openmrs.module.sync.server.compression.CompressionDictionaries;
+import org.openmrs.module.sync.server.compression.CompressionDictionary;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -47,10 +56,14 @@ import org.springframework.transaction.annotation.Transactional;
 public interface SyncService {
 	
 	/**
-	 * Create a new SyncRecord
+	 * Create a new SyncRecord. Unless the record already has its server records, one is created
+	 * for each child server, marked as not supposed to sync for the children that are not sent
+	 * any of the classes in the record.
 	 * 
 	 * @param SyncRecord The SyncRecord to create
 	 * @throws APIException
+	 * @should create a server record for each child server
+	 * @should mark the record as not supposed to sync for children not sent its classes
 	 */
 	//@Authorized({"Manage Synchronization Records"})
 	public void createSyncRecord(SyncRecord record) throws APIException;
@@ -72,6 +85,22 @@ public interface SyncService {
 	//@Authorized({"Manage Synchronization Records"})
 	public void updateSyncRecord(SyncRecord record) throws APIException;
 	
+	/**
+	 * Marks the given records as sent to the given server once they are in a transmission: NEW
+	 * records go to SENT, all others to SENT_AGAIN, and their retry count is incremented. For the
+	 * parent server this applies to the records themselves, for a child server to their server
+	 * records for that child. The database is updated in bulk without writing the payloads; the
+	 * given instances are detached from the session and updated to match.
+	 * 
+	 * @param records the records in the transmission
+	 * @param server the server the transmission is for
+	 * @throws APIException
+	 * @should mark new records as sent and others as sent again when sending to the parent
+	 * @should update the server records of the given child server instead of the records
+	 */
+	//@Authorized({"Manage Synchronization Records"})
+	public void updateSyncRecordsToSent(Collection<SyncRecord> records, RemoteServer server) throws APIException;
+	
 	/**
 	 * Delete a SyncRecord
 	 * 
@@ -82,10 +111,15 @@ public interface SyncService {
 	public void deleteSyncRecord(SyncRecord record) throws APIException;
 	
 	/**
+	 * Finds the records with the given original uuid, or with search terms starting with each word
+	 * of the keyword (see {@link SyncRecord#getSearchTerms()}). Records journaled before the terms
+	 * were kept are found once the RecodeSyncPayloadsTask has gone over them.
+	 * 
 	 * @param keyword the search string to match
 	 * @return a list of sync records or an empty list if none
 	 * @throws APIException
 	 * @should find a record given a string in its payload
+	 * @should find a compressed record by the words of its values
 	 */
 	//@Authorized({"View Synchronization Records"})
 	@Transactional(readOnly = true)
@@ -128,6 +162,101 @@ public interface SyncService {
 	 */
 	public SyncRecord getEarliestRecord(Date afterDate) throws APIException;
 	
+	/**
+	 * Same as {@link #getLatestRecord()} but only reads the record id, the payload is not loaded
+	 * 
+	 * @return the record id of the latest SyncRecord or null if not found
+	 * @throws APIException
+	 * @should return the highest record id
+	 */
+	@Transactional(readOnly = true)
+	public Integer getLatestRecordId() throws APIException;
+	
+	/**
+	 * Same as {@link #getEarliestRecord(Date)} but only reads the record id, the payload is not
+	 * loaded
+	 * 
+	 * @param afterDate Optional. If specified, will get the earliest record after the given date
+	 * @return the record id of the earliest SyncRecord or null if not found
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	public Integer getEarliestRecordId(Date afterDate) throws APIException;
+	
+	/**
+	 * Gets the position (record id and timestamp) of the first record in the journal that is in
+	 * one of the given states for the given server. Used when building a transmission to find the
+	 * first record that blocks everything after it (i.e. FAILED_AND_STOPPED) with a single query.
+	 * 
+	 * @param server the server the records are destined for (nullable)
+	 * @param states the states to look for
+	 * @return the position of the first record in one of the states or null if none found
+	 * @throws APIException
+	 * @should return null if no records are in the given states
+	 * @should return the earliest record in the given states
+	 */
+	@Transactional(readOnly = true)
+	public SyncRecordPosition getFirstSyncRecordPositionInState(RemoteServer server, EnumSet<SyncRecordState> states)
+	                                                                                                                throws APIException;
+	
+	/**
+	 * Gets the records waiting to be sent to the given server that are held back because they
+	 * depend on a record that reached the max retry count (see
+	 * {@link org.openmrs.module.sync.SyncDependencyTracker}). The stopped records themselves are not
+	 * included.
+	 * 
+	 * @param server the server the records are destined for
+	 * @param maxSyncRecords the number of waiting records to look through, -1 for all
+	 * @return the held back records in journal order, empty if nothing is stopped
+	 * @throws APIException
+	 * @should return the records that depend on a stopped record
+	 * @should return an empty list if no record is stopped
+	 */
+	@Transactional(readOnly = true)
+	public List<SyncRecord> getHeldBackSyncRecords(RemoteServer server, Integer maxSyncRecords) throws APIException;
+	
+	/**
+	 * Gets a tracker that holds back the records to the given server that reached the max retry
+	 * count, so that the records depending on them can be held back too. Only the uuids of the
+	 * stopped records are queried; a stopped record is loaded only the first time it is seen (see
+	 * {@link org.openmrs.module.sync.SyncDependencyTracker#getFootprint(SyncRecord)}).
+	 * 
+	 * @param server the server the records are destined for
+	 * @return the tracker, holding back nothing if no record is stopped
+	 * @throws APIException
+	 * @should hold back the stopped records
+	 */
+	@Transactional(readOnly = true)
+	public SyncDependencyTracker getStoppedSyncRecordTracker(RemoteServer server) throws APIException;
+	
+	/**
+	 * Switches the given child over to an acknowledged cursor if that is what is configured (see
+	 * {@link SyncConstants#PROPERTY_CHILD_CURSORS}) and it hasn't been done yet. This is done when a
+	 * transmission to the child is put together, not while records are journaled, and only once
+	 * the journal is settled far enough to know where to put it (see
+	 * {@link org.openmrs.module.sync.JournalWatermark}).
+	 * 
+	 * @param server a child server
+	 * @return true if the server has a cursor
+	 * @throws APIException
+	 * @should put the cursor before the records still to be sent
+	 */
+	public boolean initializeChildCursor(RemoteServer server) throws APIException;
+	
+	/**
+	 * Moves the acknowledged cursor of the given child past the records it has committed, once its
+	 * responses have been processed, but not past a record that a transaction still open could be
+	 * committing a record before (see {@link org.openmrs.module.sync.JournalWatermark}). Does
+	 * nothing for the parent and for children that have a row per record (see
+	 * {@link SyncConstants#PROPERTY_CHILD_CURSORS}).
+	 * 
+	 * @param server the server the responses came from
+	 * @throws APIException
+	 * @should move the cursor past committed records
+	 * @should not move the cursor past a record still to be sent
+	 */
+	public void advanceChildCursor(RemoteServer server) throws APIException;
+	
 	/**
 	 * Returns a sync record which is older than the given sync record and is in one of the given
 	 * states.
@@ -141,6 +270,19 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public SyncRecord getOlderSyncRecordInState(SyncRecord syncRecord, EnumSet<SyncRecordState> states) throws APIException;
 	
+	/**
+	 * Same as {@link #getOlderSyncRecordInState(SyncRecord, EnumSet)} but only reads the record id
+	 * of the older record, the payload is not loaded
+	 * 
+	 * @param syncRecord
+	 * @param states
+	 * @return the record id of the older sync record or null if not found
+	 * @throws APIException
+	 */
+	@Authorized({ SyncConstants.PRIV_VIEW_SYNC_RECORDS })
+	@Transactional(readOnly = true)
+	public Integer getOlderSyncRecordIdInState(SyncRecord syncRecord, EnumSet<SyncRecordState> states) throws APIException;
+	
 	/**
 	 * Create a new SyncImportRecord
 	 * 
@@ -196,6 +338,22 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public List<SyncImportRecord> getSyncImportRecords(SyncRecordState... state) throws APIException;
 	
+	/**
+	 * Finds which of the given records this server has committed already, so that a sender
+	 * retrying a transmission can leave them out of it (see
+	 * {@link org.openmrs.module.sync.server.CommittedRecords})
+	 * 
+	 * @param uuids the original uuids of sync records
+	 * @return the uuids that have a COMMITTED, ALREADY_COMMITTED or COMMITTED_AND_CONFIRMATION_SENT
+	 *         SyncImportRecord
+	 * @throws APIException
+	 * @should return the uuids of committed import records only
+	 * @should not return the uuids of failed import records
+	 */
+	//@Authorized({"View Synchronization Records"})
+	@Transactional(readOnly = true)
+	public Set<String> getCommittedSyncImportUuids(Collection<String> uuids) throws APIException;
+	
 	/**
 	 * Returns the first SyncRecord in either the PENDING SEND or the NEW state
 	 * 
@@ -351,15 +509,77 @@ public interface SyncService {
 	public Integer deleteSyncRecords(SyncRecordState[] states, Date to) throws APIException;
 	
 	/**
-	 * Retrieve value of given global property using synchronization data access mechanisms.
+	 * Re-encodes the stored payload of the next batch of sync records in the current storage format
+	 * (see {@link SyncConstants#PROPERTY_COMPRESS_PAYLOADS} and
+	 * {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY}). Each call is its own transaction so a
+	 * large journal can be converted a little at a time.
+	 * 
+	 * @param afterRecordId the {@link SyncPayloadStorageReport#getLastRecordId()} of the previous
+	 *            batch, or null to start at the beginning of the journal
+	 * @param batchSize the maximum number of records to convert
+	 * @return a report of the space used before and after, with no records scanned when done
+	 * @throws APIException
+	 * @should compress payloads that are stored uncompressed
+	 * @should keep compressed records readable and searchable
+	 * @should recompress payloads when the dictionary changes
+	 */
+	public SyncPayloadStorageReport recodeSyncRecordPayloads(Integer afterRecordId, Integer batchSize)
+	        throws APIException;
+	
+	/**
+	 * Deletes the rows of the shared payload table (see {@link SyncConstants#PROPERTY_SHARE_PAYLOADS})
+	 * that are no longer referred to by any sync record. Payloads that were used after the given
+	 * date are kept even if unreferenced because the record using them may not be committed yet.
+	 * 
+	 * @param referencedBefore only delete payloads last used before this date
+	 * @return the number of payloads deleted
+	 * @throws APIException
+	 * @should delete shared payloads that are no longer referenced
+	 * @should not delete shared payloads that are still referenced
+	 * @should delete unreferenced payloads in batches until none are left
+	 */
+	public Integer deleteUnreferencedSyncPayloads(Date referencedBefore) throws APIException;
+	
+	/**
+	 * Trains a compression dictionary on the payloads of the most recent sync records and saves it
+	 * with the other {@link CompressionDictionaries}. It is only used once it is made current with
+	 * {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY}.
+	 * 
+	 * @param sampleSize the number of records to train on
+	 * @param dictionarySize the size of the dictionary, at most
+	 *            {@link CompressionDictionaries#MAX_DICTIONARY_SIZE}
+	 * @return the new dictionary
+	 * @throws APIException if there are too few records to train on
+	 * @should train a dictionary that compresses the payloads better than the built in one
+	 */
+	@Transactional(readOnly = true)
+	public CompressionDictionary trainCompressionDictionary(Integer sampleSize, Integer dictionarySize)
+	        throws APIException;
+	
+	/**
+	 * Retrieve value of given global property using synchronization data access mechanisms. Values
+	 * of sync.* properties are served from the configuration cache once the module has started.
 	 * 
 	 * @param propertyName
 	 * @return
+	 * @should return the new value of a cached global property after it is set
 	 */
 	//@Authorized({"View Synchronization Records"})
 	@Transactional(readOnly = true)
 	public String getGlobalProperty(String propertyName) throws APIException;
 	
+	/**
+	 * Gets the sync global properties that are needed for every transmission, already parsed. The
+	 * returned snapshot doesn't change, ask for it again to see changes to the global properties.
+	 * 
+	 * @return the current sync settings
+	 * @throws APIException
+	 * @should return settings with the new value after a global property is set
+	 * @should parse the ignored exception class names
+	 */
+	@Transactional(readOnly = true)
+	public SyncSettings getSyncSettings() throws APIException;
+	
 	/**
 	 * Set global property related to synchronization; notably bypasses any changeset recording
 	 * mechanisms.
@@ -428,6 +648,7 @@ public interface SyncService {
 	 * @return RemoteServer The RemoteServer defined as the parent to this current server or null if
 	 *         this server is the root of all other servers
 	 * @throws APIException
+	 * @should find a server that was made the parent while the configuration is cached
 	 */
 	//@Authorized({"View Synchronization Servers"})
 	@Transactional(readOnly = true)
@@ -495,6 +716,7 @@ public interface SyncService {
 	 * 
 	 * @param SyncClass The SyncClass to update
 	 * @throws APIException
+	 * @should filter the records fanned out to each server by the new class name
 	 */
 	//@Authorized({"Manage Synchronization"})
 	public void saveSyncClass(SyncClass syncClass) throws APIException;
@@ -602,12 +824,12 @@ public interface SyncService {
 	
 	/**
 	 * Dumps the entire database, much like what you'd get from the mysqldump command, and adds a
-	 * few insert lines to set the child's UUID, and delete sync history. This is slightly slower
-	 * than the {@link #generateDataFile()} method but not specific to mysql.
+	 * few insert lines to set the child's UUID, and delete sync history. The tables are streamed
+	 * several at a time from one consistent snapshot, see {@link SyncConstants#PROPERTY_EXPORT_THREADS}.
 	 * 
 	 * @param uuidForChild if not null, use this as the uuid for the child server, otherwise
 	 *            autogenerate one
-	 * @param out where to write the sql
+	 * @param out where to write the gzip compressed sql, not closed
 	 * @throws APIException
 	 */
 	// @Authorized({"Backup Entire Database"})
@@ -615,7 +837,52 @@ public interface SyncService {
 	public void exportChildDB(String uuidForChild, OutputStream os) throws APIException;
 	
 	/**
-	 * imports a synchronization database backup from the parent
+	 * Exports the database to a new clone snapshot, tagged with the last journal record it
+	 * includes, and makes it the current one. The dump of the previous snapshot is deleted.
+	 * 
+	 * @return the new snapshot
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	public SyncCloneSnapshot createCloneSnapshot() throws APIException;
+	
+	/**
+	 * @return the current clone snapshot, or null if there is none younger than
+	 *         {@link SyncConstants#PROPERTY_CLONE_SNAPSHOT_MAX_AGE}
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	public SyncCloneSnapshot getCloneSnapshot() throws APIException;
+	
+	/**
+	 * Puts the acknowledged cursor of the given child at the last record in the given snapshot, so
+	 * that the child, once restored from the snapshot, is sent everything journaled after it was
+	 * taken when it next synchronizes. A child without a uuid is given one.
+	 * 
+	 * @param server the child the snapshot is sent to
+	 * @param snapshot the snapshot
+	 * @throws APIException
+	 * @should send the child only the records after the snapshot
+	 */
+	// @Authorized({"Backup Entire Database"})
+	public void seedChildFromSnapshot(RemoteServer server, SyncCloneSnapshot snapshot) throws APIException;
+	
+	/**
+	 * The sql that marks a clone snapshot as the database of the given child, as a gzip member to
+	 * append to the dump. It is the same every time for the same child, so a download of the
+	 * snapshot with it can be resumed.
+	 * 
+	 * @param server a child seeded with {@link #seedChildFromSnapshot(RemoteServer, SyncCloneSnapshot)}
+	 * @return the gzip compressed sql
+	 * @throws APIException
+	 * @should mark the database as the given child
+	 */
+	@Transactional(readOnly = true)
+	public byte[] getCloneSnapshotTrailer(RemoteServer server) throws APIException;
+	
+	/**
+	 * imports a synchronization database backup from the parent. The backup is loaded over
+	 * {@link SyncConstants#PROPERTY_IMPORT_THREADS} connections and may be gzip compressed.
 	 * 
 	 * @throws DAOException
 	 */
@@ -629,9 +896,20 @@ public interface SyncService {
 	@Transactional(readOnly = true)
 	public File generateDataFile() throws APIException;
 	
+	/**
+	 * Dumps the entire database with the mysqldump command to a stream, without a file in between.
+	 * 
+	 * @param out where the database dump is written
+	 * @throws APIException if mysqldump fails
+	 */
+	@Transactional(readOnly = true)
+	public void generateDataFile(OutputStream out) throws APIException;
+	
 	/**
 	 * Executes a sql file on the database. <br/>
-	 * The sync global properties and sync records are cleared out after importing the sql.
+	 * The sync global properties and sync records are cleared out after importing the sql. <br/>
+	 * The file is loaded over {@link SyncConstants#PROPERTY_IMPORT_THREADS} connections; an
+	 * interrupted load of the same file continues where it stopped.
 	 * 
 	 * @param fileToExec the file to run
 	 * @throws APIException
@@ -16,11 +16,13 @@ package org.openmrs.module.sync.api.db;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.APIException;
@@ -29,6 +31,8 @@ import org.openmrs.module.sync.SyncClass;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncPayloadStorageReport;
+import org.openmrs.module.sync.SyncRecordPosition;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.api.SyncService;
@@ -48,6 +52,18 @@ public interface SyncDAO {
 	 */
 	public void createSyncRecord(SyncRecord record) throws DAOException;
 	
+	/**
+	 * Creates the rows that keep track of the given record for each child server, all in a few
+	 * statements rather than one per child. The record has to be saved first. The rows are not added
+	 * to its {@link SyncRecord#getServerRecords()}, instead the record is evicted from the session so
+	 * that it is read back with them.
+	 * 
+	 * @param record the saved record
+	 * @param states the state to start the record at for each child, by server id
+	 * @throws DAOException
+	 */
+	public void createSyncServerRecords(SyncRecord record, Map<Integer, SyncRecordState> states) throws DAOException;
+	
 	/**
 	 * Update a SyncRecord
 	 * 
@@ -64,6 +80,11 @@ public interface SyncDAO {
 	 */
 	public void deleteSyncRecord(SyncRecord record) throws DAOException;
 	
+	/**
+	 * @param query an original uuid, or words the search terms of the records start with
+	 * @return the matching records, newest first
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncRecords(String)
+	 */
 	public List<SyncRecord> getSyncRecords(String query) throws DAOException;
 	
 	public SyncRecord getSyncRecord(Integer recordId) throws DAOException;
@@ -89,6 +110,23 @@ public interface SyncDAO {
 	 */
 	public SyncRecord getEarliestRecord(Date afterDate) throws DAOException;
 	
+	/**
+	 * Index-only version of {@link #getLatestRecord()}: does not load the record payload
+	 * 
+	 * @return the highest record id in the journal or null if the journal is empty
+	 * @throws DAOException
+	 */
+	public Integer getLatestRecordId() throws DAOException;
+	
+	/**
+	 * Index-only version of {@link #getEarliestRecord(Date)}: does not load the record payload
+	 * 
+	 * @param afterDate (nullable) only look at records with a timestamp on or after this date
+	 * @return the lowest record id matching or null if none found
+	 * @throws DAOException
+	 */
+	public Integer getEarliestRecordId(Date afterDate) throws DAOException;
+	
 	/**
 	 * Create a new SyncImportRecord
 	 * 
@@ -138,6 +176,16 @@ public interface SyncDAO {
 	 */
 	public List<SyncImportRecord> getSyncImportRecords(SyncRecordState... state) throws DAOException;
 	
+	/**
+	 * Finds which of the given uuids belong to records this server has committed, whether just now
+	 * or before (COMMITTED, ALREADY_COMMITTED or COMMITTED_AND_CONFIRMATION_SENT)
+	 * 
+	 * @param uuids the original uuids of sync records
+	 * @return the uuids that have a committed SyncImportRecord
+	 * @throws DAOException
+	 */
+	public Set<String> getCommittedSyncImportUuids(Collection<String> uuids) throws DAOException;
+	
 	/**
 	 * Returns the first SyncRecord in either the PENDING SEND or the NEW state
 	 * 
@@ -146,6 +194,28 @@ public interface SyncDAO {
 	 */
 	public SyncRecord getFirstSyncRecordInQueue() throws DAOException;
 	
+	/**
+	 * Index-only version of {@link #getFirstSyncRecordInQueue()}
+	 * 
+	 * @return the record id of the first SyncRecord in the queue, or null if none matches
+	 * @throws DAOException
+	 */
+	public Integer getFirstSyncRecordIdInQueue() throws DAOException;
+	
+	/**
+	 * Finds the earliest record in the journal (in timestamp, recordId order) that is in one of the
+	 * given states. Only the record id and timestamp are read.
+	 * 
+	 * @param server (nullable) if given and not the parent, only records with a sync_server_record
+	 *            row for this server are looked at, and the states are matched against either that
+	 *            row or the sync_record row
+	 * @param states the states to look for
+	 * @return the position of the first matching record or null if none found
+	 * @throws DAOException
+	 */
+	public SyncRecordPosition getFirstSyncRecordPositionInState(RemoteServer server, EnumSet<SyncRecordState> states)
+	                                                                                                                throws DAOException;
+	
 	/**
 	 * Get all SyncRecords
 	 * 
@@ -177,6 +247,16 @@ public interface SyncDAO {
 	public List<SyncRecord> getSyncRecords(SyncRecordState[] states, boolean inverse, Integer maxSyncRecords,
 	                                       RemoteServer server, Integer firstRecordId) throws DAOException;
 	
+	/**
+	 * Get the uuids of all SyncRecords in specific SyncRecordStates, without loading the records
+	 * 
+	 * @param states SyncRecordStates for the SyncRecords to be returned
+	 * @param server if not null, will restrict records to only those for the given server (optional)
+	 * @return the uuids of the records in journal order
+	 * @throws DAOException
+	 */
+	public List<String> getSyncRecordUuids(SyncRecordState[] states, RemoteServer server) throws DAOException;
+	
 	/**
 	 * Deletes all sync records that have the given state and are before the given date
 	 * 
@@ -187,6 +267,103 @@ public interface SyncDAO {
 	 */
 	public Integer deleteSyncRecords(SyncRecordState[] states, Date to) throws DAOException;
 	
+	/**
+	 * Rewrites the payload of a batch of sync records in the current storage format (compressed or
+	 * not, see
+	 * {@link org.openmrs.module.sync.api.db.hibernate.usertype.SyncItemListSerializingUserType#isCompressionEnabled()},
+	 * with the current compression dictionary) and fills in missing search terms. Rows already in the right format are left alone, as are
+	 * references to shared payloads.
+	 * 
+	 * @param afterRecordId only look at records with a larger id than this, or null to start at
+	 *            the beginning
+	 * @param batchSize the maximum number of records to look at
+	 * @return the sizes before and after, the report is empty when there are no more records
+	 * @throws DAOException
+	 */
+	public SyncPayloadStorageReport recodeSyncRecordPayloads(Integer afterRecordId, int batchSize) throws DAOException;
+	
+	/**
+	 * Reads the payloads of the most recent sync records, shared ones included, without
+	 * deserializing them
+	 * 
+	 * @param sampleSize the maximum number of payloads
+	 * @return the xml of the payloads, newest first
+	 * @throws DAOException
+	 */
+	public List<String> getSyncRecordPayloadSample(int sampleSize) throws DAOException;
+	
+	/**
+	 * Deletes the shared payloads that no sync record refers to anymore
+	 * 
+	 * @param referencedBefore only delete payloads that were last used before this date
+	 * @return the number of payloads deleted
+	 * @throws DAOException
+	 */
+	public Integer deleteUnreferencedSyncPayloads(Date referencedBefore) throws DAOException;
+	
+	/**
+	 * Records that the given records have been put in a transmission to the given server: the
+	 * state goes to SENT if it was NEW and to SENT_AGAIN otherwise, and the retry count goes up by
+	 * one. This is done with one update per target state on the record ids, on sync_record when
+	 * sending to the parent and on the sync_server_record rows of the given server otherwise. The
+	 * records are detached from the session and then given the same values in memory, so their
+	 * payloads are neither dirty checked nor written.
+	 * 
+	 * @param records the records that were put in the transmission
+	 * @param server the server the transmission is for
+	 * @throws DAOException
+	 */
+	public void updateSyncRecordsToSent(Collection<SyncRecord> records, RemoteServer server) throws DAOException;
+	
+	/**
+	 * Works out how far the sync journal is settled, see {@link org.openmrs.module.sync.JournalWatermark}.
+	 * On MySQL the open transactions are listed from information_schema.innodb_trx, which takes the
+	 * PROCESS privilege; without it the journal is taken to be settled no further than it was. On
+	 * other databases nothing is taken to be open.
+	 * 
+	 * @return the highest record id that no record with a lower id can still be committed after,
+	 *         or null if none is known to be yet
+	 * @throws DAOException
+	 */
+	public Integer getSettledRecordId() throws DAOException;
+	
+	/**
+	 * Switches the given child server over to an acknowledged cursor (see
+	 * {@link RemoteServer#getAcknowledgedRecordId()}). The cursor is put just before the first
+	 * record the child still has to get, but not past the given settled record, its existing rows
+	 * are kept as they are.
+	 * 
+	 * @param server the child server
+	 * @param settledRecordId see {@link #getSettledRecordId()}, nothing is done if null
+	 * @return the new cursor, or null if there is none yet
+	 * @throws DAOException
+	 */
+	public Integer initializeChildCursor(RemoteServer server, Integer settledRecordId) throws DAOException;
+	
+	/**
+	 * Moves the acknowledged cursor of the given child server past the records it has committed or
+	 * that are kept track of as exceptions (filtered out, rejected or stopped), but never past the
+	 * given settled record. The rows of the committed records it moves past are deleted.
+	 * 
+	 * @param server the child server, with a cursor
+	 * @param settledRecordId see {@link #getSettledRecordId()}, the cursor stays where it is if null
+	 * @return the new cursor
+	 * @throws DAOException
+	 * @should not move the cursor past a record that is not settled
+	 */
+	public Integer advanceChildCursor(RemoteServer server, Integer settledRecordId) throws DAOException;
+	
+	/**
+	 * Puts the acknowledged cursor of the given child server at the given record, for a child that
+	 * is restored from a copy of the database that has everything up to it. Its rows for records
+	 * up to there that are still to be sent are deleted.
+	 * 
+	 * @param server the child server
+	 * @param recordId the last record the child has
+	 * @throws DAOException
+	 */
+	public void seedChildCursor(RemoteServer server, Integer recordId) throws DAOException;
+	
 	/**
 	 * Get all SyncRecords between two timestamps, including the to-timestamp. <br/>
 	 * If firstRecordId is not null, that is the earliest record returned, only that record and
@@ -400,11 +577,31 @@ public interface SyncDAO {
 	 * 
 	 * @param guidForChild if not null, use this as the guid for the child server, otherwise
 	 *            autogenerate one
-	 * @param out write the sql here
+	 * @param out write the gzip compressed sql here
 	 * @throws DAOException
 	 */
 	public void exportChildDB(String guidForChild, OutputStream os) throws DAOException;
 	
+	/**
+	 * Exports the database without marking it as a child, for seeding new children from later on
+	 * 
+	 * @param os write the gzip compressed sql here
+	 * @return the last journal record the export includes that every record before it is in the
+	 *         export too, see {@link #getSettledRecordId()}
+	 * @throws DAOException
+	 */
+	public SyncRecordPosition exportCloneSnapshot(OutputStream os) throws DAOException;
+	
+	/**
+	 * Writes the lines that mark an export written by {@link #exportCloneSnapshot(OutputStream)} as
+	 * a child, as a gzip member to append to it
+	 * 
+	 * @param guidForChild the guid for the child server
+	 * @param os write the gzip compressed sql here
+	 * @throws DAOException
+	 */
+	public void exportChildDBTrailer(String guidForChild, OutputStream os) throws DAOException;
+	
 	/**
 	 * imports a synchronization database backup from the parent
 	 * 
@@ -414,6 +611,15 @@ public interface SyncDAO {
 	
 	public void generateDataFile(File outFile, String[] ignoreTables);
 	
+	/**
+	 * Dumps the database with mysqldump, writing what it prints as it prints it
+	 * 
+	 * @param out where the dump is written
+	 * @param ignoreTables the tables to leave out
+	 * @throws DAOException if mysqldump fails
+	 */
+	public void generateDataFile(OutputStream out, String[] ignoreTables) throws DAOException;
+	
 	public void execGeneratedFile(File generatedDataFile);
 	
 	/**
@@ -438,4 +644,14 @@ public interface SyncDAO {
 	 */
 	public SyncRecord getOlderSyncRecordInState(SyncRecord syncRecord, EnumSet<SyncRecordState> states);
 	
+	/**
+	 * Index-only version of {@link #getOlderSyncRecordInState(SyncRecord, EnumSet)}
+	 * 
+	 * @param recordId the record id to start looking before
+	 * @param timestamp the timestamp of the record to start looking before
+	 * @param states the states to look for
+	 * @return the record id of the closest older record in the given states or null if none found
+	 */
+	public Integer getOlderSyncRecordIdInState(Integer recordId, Date timestamp, EnumSet<SyncRecordState> states);
+	
 }
@@ -0,0 +1,362 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.connection.ConnectionProvider;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+
+/**
+ * Dumps mysql tables to a gzip compressed sql script, several tables at a time.
+ * <p>
+ * Every worker gets its own connection and starts a consistent snapshot transaction on it while
+ * the tables are locked with FLUSH TABLES WITH READ LOCK, so all of them see the database as it
+ * was at the same moment. If the database user isn't allowed to take that lock the snapshots are
+ * started one after the other without it, which is only consistent if nothing is written
+ * meanwhile. <br/>
+ * Rows are streamed with forward only result sets (fetch size {@link Integer#MIN_VALUE}, so the
+ * mysql driver doesn't buffer whole tables) and written by a {@link SqlDumpWriter}. Each table goes
+ * into a temporary gzip file of its own, and the finished files are appended to the output as
+ * they come in: a series of gzip members is itself a valid gzip stream, so nothing is compressed
+ * twice.
+ */
+public class ChildDatabaseExporter {
+	
+	private static final Log log = LogFactory.getLog(ChildDatabaseExporter.class);
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final ConnectionProvider connectionProvider;
+	
+	private final int threads;
+	
+	private final File tempDir;
+	
+	private String positionQuery;
+	
+	private Object[] position;
+	
+	/**
+	 * @param connectionProvider gives the connections the tables are read with
+	 * @param threads the number of tables dumped at the same time
+	 * @param tempDir where the tables are dumped to before they are added to the output
+	 */
+	public ChildDatabaseExporter(ConnectionProvider connectionProvider, int threads, File tempDir) {
+		this.connectionProvider = connectionProvider;
+		this.threads = Math.max(1, threads);
+		this.tempDir = tempDir;
+	}
+	
+	/**
+	 * Sets a query to run in the snapshot before the tables are read, for finding out what the dump
+	 * includes (see {@link #getPosition()})
+	 * 
+	 * @param positionQuery the sql to run
+	 */
+	public void setPositionQuery(String positionQuery) {
+		this.positionQuery = positionQuery;
+	}
+	
+	/**
+	 * @return the first row the position query returned in the snapshot of the last export, null if
+	 *         it returned none
+	 */
+	public Object[] getPosition() {
+		return position;
+	}
+	
+	/**
+	 * Writes the dump of the given tables, compressed, to the output stream. The header and footer
+	 * are written before and after the tables.
+	 * 
+	 * @param out where the gzip stream is written, not closed
+	 * @param tables the tables to dump, biggest first works best
+	 * @param header sql to write before the tables
+	 * @param footer sql to write after the tables
+	 * @throws SyncException if the export fails
+	 */
+	public void export(OutputStream out, List<String> tables, String header, String footer) {
+		long start = System.currentTimeMillis();
+		int workers = Math.min(threads, Math.max(1, tables.size()));
+		List<Connection> connections = new ArrayList<Connection>();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		BlockingQueue<File> dumped = new LinkedBlockingQueue<File>();
+		try {
+			for (int i = 0; i < workers; i++) {
+				connections.add(connectionProvider.getConnection());
+			}
+			startSnapshots(connections);
+			if (positionQuery != null)
+				position = readPosition(connections.get(0));
+			
+			writeMember(out, header);
+			
+			BlockingQueue<String> tablesLeft = new LinkedBlockingQueue<String>(tables);
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (Connection connection : connections) {
+				results.add(executor.submit(new TableDumper(connection, tablesLeft, dumped)));
+			}
+			
+			// append the tables in the order they are finished
+			int appended = 0;
+			while (appended < tables.size()) {
+				File file = dumped.poll(1, TimeUnit.SECONDS);
+				if (file == null) {
+					for (Future<Integer> result : results) {
+						if (result.isDone())
+							result.get(); // throws if the worker failed
+					}
+					continue;
+				}
+				appendMember(out, file);
+				file.delete();
+				appended++;
+			}
+			
+			writeMember(out, footer);
+			out.flush();
+			log.info("Exported " + tables.size() + " tables with " + workers + " connections in "
+			        + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (ExecutionException e) {
+			throw new SyncException("Unable to export the database", e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SyncException("Interrupted while exporting the database", e);
+		}
+		catch (Exception e) {
+			throw new SyncException("Unable to export the database", e);
+		}
+		finally {
+			executor.shutdownNow();
+			for (Connection connection : connections) {
+				try {
+					connection.rollback();
+					connection.setAutoCommit(true);
+					connectionProvider.closeConnection(connection);
+				}
+				catch (SQLException e) {
+					log.warn("Unable to close export connection", e);
+				}
+			}
+			for (File file : dumped) {
+				file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Starts a snapshot on every connection, holding a global read lock while doing so if allowed
+	 */
+	private void startSnapshots(List<Connection> connections) throws SQLException {
+		Connection first = connections.get(0);
+		boolean locked = false;
+		Statement lock = first.createStatement();
+		try {
+			lock.execute("FLUSH TABLES WITH READ LOCK");
+			locked = true;
+		}
+		catch (SQLException e) {
+			log.warn("Unable to lock the tables (" + e.getMessage()
+			        + "), the export is only consistent if nothing is written while it starts");
+		}
+		try {
+			for (Connection connection : connections) {
+				connection.setAutoCommit(false);
+				connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				Statement st = connection.createStatement();
+				try {
+					st.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+				}
+				finally {
+					st.close();
+				}
+			}
+		}
+		finally {
+			if (locked)
+				lock.execute("UNLOCK TABLES");
+			lock.close();
+		}
+	}
+	
+	/**
+	 * Runs the position query on a connection that is in the snapshot
+	 */
+	private Object[] readPosition(Connection connection) throws SQLException {
+		Statement st = connection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(positionQuery);
+			if (!rs.next())
+				return null;
+			Object[] row = new Object[rs.getMetaData().getColumnCount()];
+			for (int i = 0; i < row.length; i++) {
+				row[i] = rs.getObject(i + 1);
+			}
+			rs.close();
+			return row;
+		}
+		finally {
+			st.close();
+		}
+	}
+	
+	/**
+	 * Dumps the structure and rows of one table to a temporary gzip file
+	 * 
+	 * @return the file
+	 */
+	private File dumpTable(Connection connection, String tableName) throws SQLException, IOException {
+		long start = System.currentTimeMillis();
+		File file = File.createTempFile("sync_export_", ".sql.gz", tempDir);
+		file.deleteOnExit();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file),
+		        BUFFER_SIZE), SyncConstants.UTF8), BUFFER_SIZE);
+		boolean done = false;
+		try {
+			SqlDumpWriter sql = new SqlDumpWriter(writer);
+			sql.println("");
+			sql.println("--");
+			sql.println("-- Table structure for table `" + tableName + "`");
+			sql.println("--");
+			sql.println("DROP TABLE IF EXISTS `" + tableName + "`;");
+			sql.println("SET @saved_cs_client     = @@character_set_client;");
+			sql.println("SET character_set_client = utf8;");
+			Statement st = connection.createStatement();
+			try {
+				ResultSet rs = st.executeQuery("SHOW CREATE TABLE `" + tableName + "`");
+				while (rs.next()) {
+					sql.println(rs.getString("Create Table") + ";");
+				}
+				rs.close();
+			}
+			finally {
+				st.close();
+			}
+			sql.println("SET character_set_client = @saved_cs_client;");
+			sql.println("");
+			
+			sql.println("-- Dumping data for table `" + tableName + "`");
+			sql.println("LOCK TABLES `" + tableName + "` WRITE;");
+			sql.println("/*!40000 ALTER TABLE `" + tableName + "` DISABLE KEYS */;");
+			
+			// forward only and a fetch size of MIN_VALUE makes the mysql driver stream the rows
+			Statement stream = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				stream.setFetchSize(Integer.MIN_VALUE);
+				ResultSet rows = stream.executeQuery("SELECT * FROM `" + tableName + "`");
+				sql.writeRows(tableName, rows);
+				rows.close();
+			}
+			finally {
+				stream.close();
+			}
+			
+			sql.println("/*!40000 ALTER TABLE `" + tableName + "` ENABLE KEYS */;");
+			sql.println("UNLOCK TABLES;");
+			done = true;
+			
+			if (log.isDebugEnabled())
+				log.debug("Dumped " + sql.getRows() + " rows of " + tableName + " in "
+				        + (System.currentTimeMillis() - start) + " ms");
+		}
+		finally {
+			writer.close();
+			if (!done)
+				file.delete();
+		}
+		return file;
+	}
+	
+	/**
+	 * Writes the given text as a gzip member of its own
+	 */
+	static void writeMember(OutputStream out, String text) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+		Writer writer = new OutputStreamWriter(gzip, SyncConstants.UTF8);
+		writer.write(text);
+		writer.flush();
+		gzip.finish();
+	}
+	
+	private static void appendMember(OutputStream out, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			IOUtils.copyLarge(in, out);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Dumps tables off the queue on one connection until there are none left
+	 */
+	private class TableDumper implements Callable<Integer> {
+		
+		private final Connection connection;
+		
+		private final BlockingQueue<String> tablesLeft;
+		
+		private final BlockingQueue<File> dumped;
+		
+		public TableDumper(Connection connection, BlockingQueue<String> tablesLeft, BlockingQueue<File> dumped) {
+			this.connection = connection;
+			this.tablesLeft = tablesLeft;
+			this.dumped = dumped;
+		}
+		
+		/**
+		 * @return the number of tables dumped
+		 */
+		public Integer call() throws Exception {
+			int count = 0;
+			String tableName;
+			while ((tableName = tablesLeft.poll()) != null) {
+				dumped.put(dumpTable(connection, tableName));
+				count++;
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,777 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.connection.ConnectionProvider;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+
+/**
+ * Loads a mysql dump (plain or gzip compressed, like the one written by
+ * {@link ChildDatabaseExporter} or mysqldump) into the database over several connections.
+ * <p>
+ * The dump is read once, front to back, by a {@link SqlStatementReader}. INSERT statements are
+ * grouped into batches and handed to the worker connections, which each run a batch in a
+ * transaction of its own, so rows of different tables (and of the same table) are loaded side by
+ * side. Other statements run on the main connection, in dump order: table definitions right away,
+ * anything else only once the rows before it are in. <br/>
+ * Tables are created without their secondary indexes and foreign keys, and all connections run
+ * with foreign key and unique checks off; the session variables the load changes are put back
+ * before a connection goes back to the pool. The indexes and keys are added back at the end, a table
+ * per connection at a time; unlike the other statements, a failure to add them fails the load and
+ * they are added again when it is resumed. LOCK TABLES and DISABLE KEYS statements in the dump are skipped: they
+ * only serialize the load.
+ * <p>
+ * Progress is logged and kept in a checkpoint file next to the dump. If the load is interrupted,
+ * loading the same dump again continues from the last point everything before was committed at.
+ * Batches after that point that did get committed are loaded again with INSERT IGNORE.
+ */
+public class ChildDatabaseLoader {
+	
+	private static final Log log = LogFactory.getLog(ChildDatabaseLoader.class);
+	
+	/**
+	 * Rough number of characters of INSERT statements sent to a worker at once
+	 */
+	public static final int BATCH_CHARS = 4 * 1024 * 1024;
+	
+	/**
+	 * Milliseconds between checkpoint writes
+	 */
+	private static final long CHECKPOINT_INTERVAL = 5000;
+	
+	private static final Pattern INSERT = Pattern.compile("^INSERT\\s+INTO\\s+`?([^`\\s(]+)`?", Pattern.CASE_INSENSITIVE);
+	
+	private static final Pattern CREATE_TABLE = Pattern.compile("^CREATE\\s+TABLE\\s+`?([^`\\s(]+)`?",
+	    Pattern.CASE_INSENSITIVE);
+	
+	private static final Pattern DEFERRED_DEFINITION = Pattern.compile(
+	    "^\\s*((UNIQUE\\s+|FULLTEXT\\s+)?KEY\\s|CONSTRAINT\\s)", Pattern.CASE_INSENSITIVE);
+	
+	private static final Pattern SKIPPED = Pattern.compile(
+	    "^(LOCK\\s+TABLES|UNLOCK\\s+TABLES|/\\*!\\d+\\s+ALTER\\s+TABLE\\s+\\S+\\s+(DISABLE|ENABLE)\\s+KEYS)",
+	    Pattern.CASE_INSENSITIVE);
+	
+	private static final Pattern SESSION = Pattern.compile("^(/\\*!\\d+\\s+)?SET\\s", Pattern.CASE_INSENSITIVE);
+	
+	/**
+	 * The session variables the load and the dump header (of mysqldump too) change
+	 */
+	private static final String[] SESSION_VARIABLES = { "character_set_client", "character_set_connection",
+	        "character_set_results", "collation_connection", "time_zone", "sql_mode", "sql_notes", "foreign_key_checks",
+	        "unique_checks", "sql_log_bin" };
+	
+	private final ConnectionProvider connectionProvider;
+	
+	private final int threads;
+	
+	private final File checkpointFile;
+	
+	private Properties checkpoint;
+	
+	private long safePosition = 0;
+	
+	private long replayUntil = 0;
+	
+	private long lastCheckpoint = 0;
+	
+	private long nextSequence = 0;
+	
+	private long completedSequence = -1;
+	
+	private final TreeMap<Long, Long> completed = new TreeMap<Long, Long>();
+	
+	private long highestCompleted = 0;
+	
+	private volatile int percentDone = 0;
+	
+	private final Map<Connection, Object[]> savedSessions = new IdentityHashMap<Connection, Object[]>();
+	
+	/**
+	 * @param connectionProvider gives the connections the dump is loaded with
+	 * @param threads the number of worker connections
+	 * @param checkpointFile where progress is kept to resume from
+	 */
+	public ChildDatabaseLoader(ConnectionProvider connectionProvider, int threads, File checkpointFile) {
+		this.connectionProvider = connectionProvider;
+		this.threads = Math.max(1, threads);
+		this.checkpointFile = checkpointFile;
+	}
+	
+	/**
+	 * @return how far the load is, in percent of the dump file read
+	 */
+	public int getPercentDone() {
+		return percentDone;
+	}
+	
+	/**
+	 * Loads the given dump, continuing where a previous load of the same dump stopped
+	 * 
+	 * @param dump the dump file, plain or gzip compressed
+	 * @throws SyncException if the dump can't be read or loaded
+	 */
+	public void load(File dump) {
+		long start = System.currentTimeMillis();
+		String dumpId = identify(dump);
+		readCheckpoint(dumpId);
+		
+		List<Connection> workerConnections = new ArrayList<Connection>();
+		Connection main = null;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			main = openConnection();
+			for (int i = 0; i < threads; i++) {
+				workerConnections.add(openConnection());
+			}
+			
+			if (safePosition > 0)
+				log.info("Resuming the load of " + dump.getName() + " at character " + safePosition);
+			
+			loadStatements(dump, main, workerConnections, executor);
+			buildIndexes(workerConnections, executor);
+			
+			checkpointFile.delete();
+			percentDone = 100;
+			log.info("Loaded " + dump.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (ExecutionException e) {
+			writeCheckpoint();
+			throw new SyncException("Unable to load " + dump.getName(), e.getCause());
+		}
+		catch (InterruptedException e) {
+			writeCheckpoint();
+			Thread.currentThread().interrupt();
+			throw new SyncException("Interrupted while loading " + dump.getName(), e);
+		}
+		catch (Exception e) {
+			writeCheckpoint();
+			throw new SyncException("Unable to load " + dump.getName(), e);
+		}
+		finally {
+			executor.shutdownNow();
+			if (main != null)
+				closeConnection(main);
+			for (Connection connection : workerConnections) {
+				closeConnection(connection);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the dump, running the statements on the main connection or handing them to the workers
+	 */
+	private void loadStatements(File dump, Connection main, List<Connection> workerConnections, ExecutorService executor)
+	        throws Exception {
+		CountingInputStream counter = new CountingInputStream(new FileInputStream(dump));
+		SqlStatementReader reader = new SqlStatementReader(new InputStreamReader(uncompressed(counter),
+		        SyncConstants.UTF8));
+		BlockingQueue<Batch> batches = new ArrayBlockingQueue<Batch>(threads * 2);
+		List<Future<Object>> workers = new ArrayList<Future<Object>>();
+		try {
+			reader.skipTo(safePosition);
+			for (Connection connection : workerConnections) {
+				workers.add(executor.submit(new Worker(connection, batches)));
+			}
+			
+			Batch batch = null;
+			boolean inTables = false;
+			String sql;
+			while ((sql = reader.next()) != null) {
+				long position = reader.getPosition();
+				Matcher insert = INSERT.matcher(sql);
+				if (insert.find()) {
+					if (position <= replayUntil)
+						sql = "INSERT IGNORE" + sql.substring(6);
+					if (batch == null)
+						batch = new Batch();
+					batch.add(sql, position);
+					if (batch.chars >= BATCH_CHARS) {
+						dispatch(batch, batches, workers);
+						batch = null;
+					}
+					continue;
+				}
+				
+				// everything else runs in order, after the rows gathered so far are handed out
+				if (batch != null) {
+					dispatch(batch, batches, workers);
+					batch = null;
+				}
+				
+				if (SKIPPED.matcher(sql).find()) {
+					markDone(position);
+				} else if (SESSION.matcher(sql).find()) {
+					if (!inTables) {
+						// part of the header: every connection needs it
+						execute(main, sql);
+						waitForWorkers(batches, workers);
+						for (Connection connection : workerConnections) {
+							execute(connection, sql);
+						}
+					} else {
+						execute(main, sql);
+					}
+					markDone(position);
+				} else if (CREATE_TABLE.matcher(sql).find()) {
+					inTables = true;
+					execute(main, deferIndexes(sql));
+					markDone(position);
+				} else if (sql.toUpperCase().startsWith("DROP TABLE")) {
+					inTables = true;
+					execute(main, sql);
+					markDone(position);
+				} else {
+					waitForWorkers(batches, workers);
+					execute(main, sql);
+					markDone(position);
+				}
+				
+				updateProgress(counter.getCount(), dump.length());
+			}
+			if (batch != null)
+				dispatch(batch, batches, workers);
+			waitForWorkers(batches, workers);
+			
+			for (int i = 0; i < workers.size(); i++) {
+				batches.put(Batch.END);
+			}
+			for (Future<Object> worker : workers) {
+				worker.get();
+			}
+			writeCheckpoint();
+		}
+		finally {
+			counter.close();
+		}
+	}
+	
+	/**
+	 * Adds back the indexes and keys left out of the table definitions, a table per connection at a
+	 * time
+	 */
+	private void buildIndexes(List<Connection> workerConnections, ExecutorService executor) throws Exception {
+		final BlockingQueue<String> tables = new ArrayBlockingQueue<String>(Math.max(1, checkpoint.size()));
+		for (String key : checkpoint.stringPropertyNames()) {
+			if (key.startsWith("index."))
+				tables.add(key.substring(6));
+		}
+		if (tables.isEmpty())
+			return;
+		
+		log.info("Adding the indexes and keys back to " + tables.size() + " tables");
+		List<Future<Object>> builders = new ArrayList<Future<Object>>();
+		for (final Connection connection : workerConnections) {
+			builders.add(executor.submit(new Callable<Object>() {
+				
+				public Object call() throws Exception {
+					String table;
+					while ((table = tables.poll()) != null) {
+						long start = System.currentTimeMillis();
+						try {
+							run(connection, checkpoint.getProperty("index." + table));
+						}
+						catch (SQLException e) {
+							// the checkpoint keeps them, so a resumed load tries again
+							throw new SyncException("Unable to add the indexes and keys back to " + table, e);
+						}
+						indexBuilt(table);
+						if (log.isDebugEnabled())
+							log.debug("Indexed " + table + " in " + (System.currentTimeMillis() - start) + " ms");
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> builder : builders) {
+			builder.get();
+		}
+	}
+	
+	/**
+	 * Takes the secondary indexes and constraints out of a CREATE TABLE statement, keeping them in
+	 * the checkpoint to be added back once the rows are in
+	 * 
+	 * @param sql the CREATE TABLE statement
+	 * @return the statement without them
+	 */
+	String deferIndexes(String sql) {
+		Matcher create = CREATE_TABLE.matcher(sql);
+		create.find();
+		String table = create.group(1);
+		
+		int open = sql.indexOf('(');
+		int close = sql.lastIndexOf(')');
+		if (open < 0 || close < open)
+			return sql;
+		
+		List<String> kept = new ArrayList<String>();
+		List<String> deferred = new ArrayList<String>();
+		for (String line : sql.substring(open + 1, close).split("\n")) {
+			String definition = line.trim();
+			if (definition.endsWith(","))
+				definition = definition.substring(0, definition.length() - 1);
+			if (definition.length() == 0)
+				continue;
+			if (DEFERRED_DEFINITION.matcher(definition).find())
+				deferred.add(definition);
+			else
+				kept.add(definition);
+		}
+		if (deferred.isEmpty() || kept.isEmpty())
+			return sql;
+		
+		StringBuilder alter = new StringBuilder("ALTER TABLE `").append(table).append("` ");
+		for (int i = 0; i < deferred.size(); i++) {
+			alter.append(i == 0 ? "ADD " : ", ADD ").append(deferred.get(i));
+		}
+		synchronized (this) {
+			checkpoint.setProperty("index." + table, alter.toString());
+		}
+		
+		StringBuilder create2 = new StringBuilder(sql.substring(0, open + 1)).append('\n');
+		for (int i = 0; i < kept.size(); i++) {
+			create2.append("  ").append(kept.get(i)).append(i < kept.size() - 1 ? ",\n" : "\n");
+		}
+		return create2.append(sql.substring(close)).toString();
+	}
+	
+	private void dispatch(Batch batch, BlockingQueue<Batch> batches, List<Future<Object>> workers) throws Exception {
+		synchronized (this) {
+			batch.sequence = nextSequence++;
+		}
+		while (!batches.offer(batch, 1, TimeUnit.SECONDS)) {
+			checkWorkers(workers);
+		}
+	}
+	
+	/**
+	 * Waits until the workers are done with every batch handed out so far
+	 */
+	private void waitForWorkers(BlockingQueue<Batch> batches, List<Future<Object>> workers) throws Exception {
+		while (true) {
+			synchronized (this) {
+				if (completedSequence == nextSequence - 1)
+					return;
+				wait(1000);
+			}
+			checkWorkers(workers);
+		}
+	}
+	
+	private void checkWorkers(List<Future<Object>> workers) throws Exception {
+		for (Future<Object> worker : workers) {
+			if (worker.isDone())
+				worker.get(); // throws if the worker failed
+		}
+	}
+	
+	/**
+	 * Marks a statement run on the main connection as done
+	 */
+	private synchronized void markDone(long position) {
+		long sequence = nextSequence++;
+		batchDone(sequence, position);
+	}
+	
+	/**
+	 * Records that everything up to the given position of the given batch is committed, moving the
+	 * safe position along once all batches before it are too
+	 */
+	private synchronized void batchDone(long sequence, long position) {
+		completed.put(sequence, position);
+		highestCompleted = Math.max(highestCompleted, position);
+		while (!completed.isEmpty() && completed.firstKey() == completedSequence + 1) {
+			Map.Entry<Long, Long> first = completed.pollFirstEntry();
+			completedSequence = first.getKey();
+			safePosition = first.getValue();
+		}
+		notifyAll();
+		
+		if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL)
+			writeCheckpoint();
+	}
+	
+	private synchronized void indexBuilt(String table) {
+		checkpoint.remove("index." + table);
+		writeCheckpoint();
+	}
+	
+	private void updateProgress(long read, long total) {
+		int percent = total > 0 ? (int) (read * 100 / total) : 0;
+		if (percent > percentDone) {
+			percentDone = Math.min(99, percent);
+			if (percent % 5 == 0)
+				log.info("Loaded " + percent + "% of the dump");
+		}
+	}
+	
+	/**
+	 * Works out an id for the dump from its size and the checksum of its beginning, so that a new
+	 * upload of the same dump finds the checkpoint too
+	 */
+	private static String identify(File dump) {
+		CRC32 crc = new CRC32();
+		try {
+			InputStream in = new FileInputStream(dump);
+			try {
+				byte[] head = new byte[64 * 1024];
+				int read = in.read(head);
+				if (read > 0)
+					crc.update(head, 0, read);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new SyncException("Unable to read " + dump.getName(), e);
+		}
+		return dump.length() + "-" + Long.toHexString(crc.getValue());
+	}
+	
+	private synchronized void readCheckpoint(String dumpId) {
+		checkpoint = new Properties();
+		if (checkpointFile.exists()) {
+			try {
+				InputStream in = new FileInputStream(checkpointFile);
+				try {
+					checkpoint.load(in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				log.warn("Unable to read " + checkpointFile + ", loading from the start", e);
+				checkpoint.clear();
+			}
+			if (!dumpId.equals(checkpoint.getProperty("dump"))) {
+				log.info("The checkpoint in " + checkpointFile + " is for another dump, loading from the start");
+				checkpoint.clear();
+			}
+		}
+		checkpoint.setProperty("dump", dumpId);
+		safePosition = Long.parseLong(checkpoint.getProperty("position", "0"));
+		replayUntil = Long.parseLong(checkpoint.getProperty("highest", "0"));
+		highestCompleted = replayUntil;
+	}
+	
+	private synchronized void writeCheckpoint() {
+		if (checkpoint == null)
+			return;
+		checkpoint.setProperty("position", Long.toString(safePosition));
+		checkpoint.setProperty("highest", Long.toString(highestCompleted));
+		File temp = new File(checkpointFile.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				checkpoint.store(out, "Progress of the database load, delete to start over");
+			}
+			finally {
+				out.close();
+			}
+			checkpointFile.delete();
+			if (!temp.renameTo(checkpointFile))
+				log.warn("Unable to write " + checkpointFile);
+		}
+		catch (IOException e) {
+			log.warn("Unable to write " + checkpointFile, e);
+		}
+		lastCheckpoint = System.currentTimeMillis();
+	}
+	
+	private Connection openConnection() throws SQLException {
+		Connection connection = connectionProvider.getConnection();
+		try {
+			savedSessions.put(connection, readSession(connection));
+		}
+		catch (SQLException e) {
+			connectionProvider.closeConnection(connection);
+			throw e;
+		}
+		connection.setAutoCommit(true);
+		// the dump header sets these too, but a resumed load skips the header
+		execute(connection, "SET NAMES utf8");
+		execute(connection, "SET TIME_ZONE='+00:00'");
+		execute(connection, "SET SQL_MODE='NO_AUTO_VALUE_ON_ZERO'");
+		execute(connection, "SET FOREIGN_KEY_CHECKS=0");
+		execute(connection, "SET UNIQUE_CHECKS=0");
+		return connection;
+	}
+	
+	private void closeConnection(Connection connection) {
+		try {
+			Object[] saved = savedSessions.remove(connection);
+			if (saved != null)
+				restoreSession(connection, saved);
+			connection.setAutoCommit(true);
+		}
+		catch (SQLException e) {
+			log.warn("Unable to restore the session of a load connection", e);
+		}
+		
+		try {
+			connectionProvider.closeConnection(connection);
+		}
+		catch (SQLException e) {
+			log.warn("Unable to close load connection", e);
+		}
+	}
+	
+	/**
+	 * @return the values of the {@link #SESSION_VARIABLES} of the given connection
+	 */
+	private static Object[] readSession(Connection connection) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < SESSION_VARIABLES.length; i++) {
+			sql.append(i == 0 ? "" : ", ").append("@@SESSION.").append(SESSION_VARIABLES[i]);
+		}
+		
+		Statement st = connection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(sql.toString());
+			Object[] values = new Object[SESSION_VARIABLES.length];
+			if (rs.next()) {
+				for (int i = 0; i < values.length; i++) {
+					values[i] = rs.getObject(i + 1);
+				}
+			}
+			rs.close();
+			return values;
+		}
+		finally {
+			st.close();
+		}
+	}
+	
+	/**
+	 * Puts back the {@link #SESSION_VARIABLES} read by {@link #readSession(Connection)} that have
+	 * changed since, only those so that no privilege is needed for the others
+	 */
+	private static void restoreSession(Connection connection, Object[] saved) throws SQLException {
+		Object[] current = readSession(connection);
+		List<Integer> changed = new ArrayList<Integer>();
+		StringBuilder sql = new StringBuilder("SET SESSION ");
+		for (int i = 0; i < SESSION_VARIABLES.length; i++) {
+			if (saved[i] == null ? current[i] != null : !saved[i].equals(current[i])) {
+				sql.append(changed.isEmpty() ? "" : ", ").append(SESSION_VARIABLES[i]).append(" = ?");
+				changed.add(i);
+			}
+		}
+		if (changed.isEmpty())
+			return;
+		
+		PreparedStatement st = connection.prepareStatement(sql.toString());
+		try {
+			for (int i = 0; i < changed.size(); i++) {
+				Object value = saved[changed.get(i)];
+				if (value == null)
+					st.setNull(i + 1, Types.VARCHAR);
+				else
+					st.setObject(i + 1, value);
+			}
+			st.execute();
+		}
+		finally {
+			st.close();
+		}
+	}
+	
+	/**
+	 * Runs a statement, logging rather than failing if it is refused, the way mysql -f does
+	 */
+	private static void execute(Connection connection, String sql) throws SQLException {
+		try {
+			run(connection, sql);
+		}
+		catch (SQLException e) {
+			log.warn("Statement failed: " + e.getMessage() + " (" + abbreviate(sql) + ")");
+		}
+	}
+	
+	/**
+	 * Runs a statement, failing if it is refused
+	 */
+	private static void run(Connection connection, String sql) throws SQLException {
+		Statement st = connection.createStatement();
+		try {
+			st.execute(sql);
+		}
+		finally {
+			st.close();
+		}
+	}
+	
+	private static String abbreviate(String sql) {
+		return sql.length() > 200 ? sql.substring(0, 200) + "..." : sql;
+	}
+	
+	private static InputStream uncompressed(InputStream in) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+		buffered.mark(2);
+		int first = buffered.read();
+		int second = buffered.read();
+		buffered.reset();
+		if (first == 0x1f && second == 0x8b)
+			return new GZIPInputStream(buffered, 64 * 1024);
+		return buffered;
+	}
+	
+	/**
+	 * INSERT statements run together in one transaction
+	 */
+	private static class Batch {
+		
+		static final Batch END = new Batch();
+		
+		final List<String> statements = new ArrayList<String>();
+		
+		long chars = 0;
+		
+		long position = 0;
+		
+		long sequence = -1;
+		
+		void add(String sql, long position) {
+			statements.add(sql);
+			chars += sql.length();
+			this.position = position;
+		}
+	}
+	
+	/**
+	 * Runs batches on one connection until it is handed the end marker
+	 */
+	private class Worker implements Callable<Object> {
+		
+		private final Connection connection;
+		
+		private final BlockingQueue<Batch> batches;
+		
+		public Worker(Connection connection, BlockingQueue<Batch> batches) {
+			this.connection = connection;
+			this.batches = batches;
+		}
+		
+		public Object call() throws Exception {
+			connection.setAutoCommit(false);
+			Statement st = connection.createStatement();
+			try {
+				while (true) {
+					Batch batch = batches.take();
+					if (batch == Batch.END)
+						return null;
+					
+					for (String sql : batch.statements) {
+						st.addBatch(sql);
+					}
+					try {
+						st.executeBatch();
+					}
+					catch (BatchUpdateException e) {
+						// run them one by one so that only the refused ones are lost, like mysql -f
+						st.clearBatch();
+						connection.rollback();
+						for (String sql : batch.statements) {
+							execute(connection, sql);
+						}
+					}
+					connection.commit();
+					batchDone(batch.sequence, batch.position);
+				}
+			}
+			finally {
+				st.close();
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+	
+	/**
+	 * Counts the bytes read from the dump file, for the progress
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		
+		private long count = 0;
+		
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count += read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -13,26 +13,27 @@
  */
 package org.openmrs.module.sync.api.db.hibernate;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -43,20 +44,27 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.CriteriaSpecification;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Expression;
-import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.MySQLDialect;
 import org.hibernate.engine.SessionFactoryImplementor;
 import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.impl.CriteriaImpl;
@@ -68,18 +76,23 @@ import org.openmrs.GlobalProperty;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.sync.JournalWatermark;
 import org.openmrs.module.sync.SyncClass;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncSubclassStub;
+import org.openmrs.module.sync.SyncPayloadStorageReport;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordPosition;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.api.db.SyncDAO;
+import org.openmrs.module.sync.api.db.hibernate.usertype.SyncItemListSerializingUserType;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.ingest.SyncIngestException;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.module.sync.server.SyncServerRecord;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.StringUtils;
@@ -90,6 +103,20 @@ public class HibernateSyncDAO implements SyncDAO {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * The number of server records written by each insert statement in
+	 * {@link #createSyncServerRecords(SyncRecord, Map)}
+	 */
+	private static final int SERVER_RECORDS_PER_INSERT = 100;
+	
+	/**
+	 * The states of the server records a child cursor can move past: the committed ones, and the
+	 * exceptions that are kept in sync_server_record instead of being sent
+	 */
+	private static final List<String> CURSOR_PASSABLE_STATES = Arrays.asList(SyncRecordState.COMMITTED.name(),
+	    SyncRecordState.ALREADY_COMMITTED.name(), SyncRecordState.NOT_SUPPOSED_TO_SYNC.name(), SyncRecordState.REJECTED
+	            .name(), SyncRecordState.FAILED_AND_STOPPED.name());
+	
 	/**
 	 * Hibernate session factory
 	 */
@@ -134,6 +161,46 @@ public class HibernateSyncDAO implements SyncDAO {
 		}
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#createSyncServerRecords(org.openmrs.module.sync.SyncRecord,
+	 *      java.util.Map)
+	 */
+	public void createSyncServerRecords(SyncRecord record, Map<Integer, SyncRecordState> states) throws DAOException {
+		if (states == null || states.isEmpty())
+			return;
+		if (record.getRecordId() == null)
+			throw new DAOException("SyncRecord must be saved before its server records");
+		
+		Session session = sessionFactory.getCurrentSession();
+		List<Map.Entry<Integer, SyncRecordState>> rows = new ArrayList<Map.Entry<Integer, SyncRecordState>>(states
+		        .entrySet());
+		for (int from = 0; from < rows.size(); from += SERVER_RECORDS_PER_INSERT) {
+			List<Map.Entry<Integer, SyncRecordState>> chunk = rows.subList(from, Math.min(rows.size(), from
+			        + SERVER_RECORDS_PER_INSERT));
+			
+			StringBuilder sql = new StringBuilder(
+			        "insert into sync_server_record (server_id, record_id, state, retry_count) values ");
+			for (int i = 0; i < chunk.size(); i++) {
+				sql.append(i == 0 ? "" : ", ").append("(:server").append(i).append(", :recordId, :state").append(i)
+				        .append(", 0)");
+			}
+			
+			// synchronized with sync_record too, so that the record itself is flushed first if it is still pending
+			SQLQuery insert = session.createSQLQuery(sql.toString());
+			insert.addSynchronizedEntityClass(SyncRecord.class);
+			insert.addSynchronizedEntityClass(SyncServerRecord.class);
+			insert.setInteger("recordId", record.getRecordId());
+			for (int i = 0; i < chunk.size(); i++) {
+				insert.setInteger("server" + i, chunk.get(i).getKey());
+				insert.setString("state" + i, chunk.get(i).getValue().name());
+			}
+			insert.executeUpdate();
+		}
+		
+		// whoever looks the record up again in this session has to see the rows written above
+		session.evict(record);
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#updateSyncRecord(org.openmrs.module.sync.SyncRecord)
 	 */
@@ -189,11 +256,24 @@ public class HibernateSyncDAO implements SyncDAO {
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getNextSyncRecord()
 	 */
-	@SuppressWarnings("unchecked")
 	public SyncRecord getFirstSyncRecordInQueue() throws DAOException {
-		List<SyncRecord> result = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
+		Integer recordId = getFirstSyncRecordIdInQueue();
+		
+		if (recordId == null)
+			return null;
+		
+		return getSyncRecord(recordId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getFirstSyncRecordIdInQueue()
+	 */
+	@SuppressWarnings("unchecked")
+	public Integer getFirstSyncRecordIdInQueue() throws DAOException {
+		List<Integer> result = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
 		        .add(Restrictions.in("state", new SyncRecordState[] { SyncRecordState.NEW, SyncRecordState.PENDING_SEND }))
-		        .addOrder(Order.asc("timestamp")).addOrder(Order.asc("recordId")).setFetchSize(1).list();
+		        .setProjection(Projections.property("recordId")).addOrder(Order.asc("timestamp"))
+		        .addOrder(Order.asc("recordId")).setMaxResults(1).list();
 		
 		if (result.size() < 1) {
 			return null;
@@ -203,23 +283,84 @@ public class HibernateSyncDAO implements SyncDAO {
 	}
 	
 	/**
-	 * @see org.openmrs.module.sync.api.db.SyncDAO#getNextSyncRecord()
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getFirstSyncRecordPositionInState(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.EnumSet)
 	 */
 	@SuppressWarnings("unchecked")
+	public SyncRecordPosition getFirstSyncRecordPositionInState(RemoteServer server, EnumSet<SyncRecordState> states)
+	                                                                                                                throws DAOException {
+		if (states == null || states.isEmpty())
+			return null;
+		
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class, "s");
+		
+		if (server != null && !RemoteServerType.PARENT.equals(server.getServerType())) {
+			// a record can be stopped either globally or just for this one child
+			criteria.createAlias("s.serverRecords", "sr");
+			criteria.add(Restrictions.eq("sr.syncServer", server));
+			criteria.add(Restrictions.or(Restrictions.in("s.state", states), Restrictions.in("sr.state", states)));
+		} else {
+			criteria.add(Restrictions.in("s.state", states));
+		}
+		
+		criteria.setProjection(Projections.projectionList().add(Projections.property("s.recordId")).add(
+		    Projections.property("s.timestamp")));
+		criteria.addOrder(Order.asc("s.timestamp"));
+		criteria.addOrder(Order.asc("s.recordId"));
+		criteria.setMaxResults(1);
+		
+		List<Object[]> rows = criteria.list();
+		if (rows.size() < 1)
+			return null;
+		
+		Object[] row = rows.get(0);
+		return new SyncRecordPosition((Integer) row[0], (Date) row[1]);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getLatestRecord()
+	 */
 	public SyncRecord getLatestRecord() throws DAOException {
+		Integer maxRecordId = getLatestRecordId();
+		
+		if (maxRecordId == null)
+			return null;
+		
+		return getSyncRecord(maxRecordId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getLatestRecordId()
+	 */
+	@SuppressWarnings("unchecked")
+	public Integer getLatestRecordId() throws DAOException {
 		List<Integer> result = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
 		        .setProjection(Projections.max("recordId")).list();
 		
 		if (result.size() < 1) {
 			return null;
 		} else {
-			Integer maxRecordId = result.get(0);
-			return getSyncRecord(maxRecordId);
+			return result.get(0);
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getEarliestRecord(java.util.Date)
+	 */
 	public SyncRecord getEarliestRecord(Date afterDate) throws DAOException {
+		Integer minRecordId = getEarliestRecordId(afterDate);
+		
+		if (minRecordId == null)
+			return null;
+		
+		return getSyncRecord(minRecordId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getEarliestRecordId(java.util.Date)
+	 */
+	@SuppressWarnings("unchecked")
+	public Integer getEarliestRecordId(Date afterDate) throws DAOException {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class)
 		        .setProjection(Projections.min("recordId"));
 		
@@ -231,20 +372,36 @@ public class HibernateSyncDAO implements SyncDAO {
 		if (result.size() < 1) {
 			return null;
 		} else {
-			Integer minRecordId = result.get(0);
-			return getSyncRecord(minRecordId);
+			return result.get(0);
 		}
 	}
 	
 	@SuppressWarnings("unchecked")
 	public List<SyncRecord> getSyncRecords(String query) throws DAOException {
-		return sessionFactory
-		        .getCurrentSession()
-		        .createCriteria(SyncRecord.class)
-		        .add(
-		            Expression.or(Restrictions.like("items", query, MatchMode.ANYWHERE),
-		                Restrictions.eq("originalUuid", query))).addOrder(Order.desc("timestamp")).setMaxResults(250) // max number of records returned
-		        .list();
+		int maxResults = 250; // max number of records returned
+		Session session = sessionFactory.getCurrentSession();
+		
+		// records that have a term starting with each word of the query, through the index on the term
+		List<Integer> recordIds = new ArrayList<Integer>();
+		List<String> terms = SyncRecord.getSearchTermsOf(query);
+		if (!terms.isEmpty()) {
+			StringBuilder sql = new StringBuilder("select distinct t0.record_id from sync_record_term t0");
+			for (int i = 1; i < terms.size(); i++)
+				sql.append(" join sync_record_term t" + i + " on t" + i + ".record_id = t0.record_id and t" + i
+				        + ".term like :term" + i);
+			sql.append(" where t0.term like :term0 order by t0.record_id desc");
+			SQLQuery select = session.createSQLQuery(sql.toString());
+			select.addScalar("record_id", Hibernate.INTEGER);
+			for (int i = 0; i < terms.size(); i++)
+				select.setString("term" + i, terms.get(i) + "%");
+			select.setMaxResults(maxResults);
+			recordIds = select.list();
+		}
+		
+		Criterion originalUuid = Restrictions.eq("originalUuid", query);
+		return session.createCriteria(SyncRecord.class)
+		        .add(recordIds.isEmpty() ? originalUuid : Restrictions.or(Restrictions.in("recordId", recordIds),
+		            originalUuid)).addOrder(Order.desc("timestamp")).setMaxResults(maxResults).list();
 	}
 	
 	public SyncRecord getSyncRecord(Integer recordId) throws DAOException {
@@ -283,6 +440,23 @@ public class HibernateSyncDAO implements SyncDAO {
 		        .list();
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getCommittedSyncImportUuids(java.util.Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> getCommittedSyncImportUuids(Collection<String> uuids) throws DAOException {
+		Set<String> committed = new HashSet<String>();
+		List<String> all = new ArrayList<String>(uuids);
+		for (int i = 0; i < all.size(); i += 500) {
+			committed.addAll(sessionFactory.getCurrentSession().createCriteria(SyncImportRecord.class)
+			        .add(Restrictions.in("uuid", all.subList(i, Math.min(i + 500, all.size()))))
+			        .add(Restrictions.in("state", new SyncRecordState[] { SyncRecordState.COMMITTED,
+			                SyncRecordState.ALREADY_COMMITTED, SyncRecordState.COMMITTED_AND_CONFIRMATION_SENT }))
+			        .setProjection(Projections.property("uuid")).list());
+		}
+		return committed;
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecords()
 	 */
@@ -312,32 +486,69 @@ public class HibernateSyncDAO implements SyncDAO {
 			maxSyncRecords = Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT);
 		}
 		
+		Criteria criteria = createSyncRecordCriteria(states, inverse, server, firstRecordId);
+		
+		// if the user sets -1 as the max records, don't restrict the number of records downloaded/transferred
+		if (maxSyncRecords > 0)
+			criteria.setMaxResults(maxSyncRecords);
+		
+		return criteria.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecordUuids(org.openmrs.module.sync.SyncRecordState[],
+	 *      org.openmrs.module.sync.server.RemoteServer)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> getSyncRecordUuids(SyncRecordState[] states, RemoteServer server) throws DAOException {
+		Criteria criteria = createSyncRecordCriteria(states, false, server, null);
+		criteria.setProjection(Projections.property("s.uuid"));
+		return criteria.list();
+	}
+	
+	/**
+	 * Builds the criteria shared by {@link #getSyncRecords(SyncRecordState[], boolean, Integer, RemoteServer, Integer)}
+	 * and {@link #getSyncRecordUuids(SyncRecordState[], RemoteServer)}, ordered like the journal
+	 */
+	private Criteria createSyncRecordCriteria(SyncRecordState[] states, boolean inverse, RemoteServer server,
+	                                          Integer firstRecordId) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class, "s");
+		Criteria root = criteria;
 		
 		String column = "s.state";
 		
-		if (server != null) {
-			criteria = criteria.createCriteria("serverRecords", "sr");
-			criteria.add(Restrictions.eq("sr.syncServer", server));
-			column = "sr.state";
+		if (server != null && server.getAcknowledgedRecordId() != null) {
+			// records after the cursor without a row of their own are NEW for this child
+			criteria.createAlias("serverRecords", "sr", CriteriaSpecification.LEFT_JOIN, Restrictions.eq("sr.syncServer",
+			    server));
+			Criterion explicit = inverse ? Restrictions.not(Restrictions.in("sr.state", states)) : Restrictions.in(
+			    "sr.state", states);
+			if (Arrays.asList(states).contains(SyncRecordState.NEW) != inverse) {
+				criteria.add(Restrictions.or(explicit, Restrictions.and(Restrictions.isNull("sr.serverRecordId"),
+				    Restrictions.gt("s.recordId", server.getAcknowledgedRecordId()))));
+			} else {
+				criteria.add(explicit);
+			}
+		} else {
+			if (server != null) {
+				criteria = criteria.createCriteria("serverRecords", "sr");
+				criteria.add(Restrictions.eq("sr.syncServer", server));
+				column = "sr.state";
+			}
+			
+			if (inverse)
+				criteria.add(Restrictions.not(Restrictions.in(column, states)));
+			else
+				criteria.add(Restrictions.in(column, states));
 		}
 		
-		if (inverse)
-			criteria.add(Restrictions.not(Restrictions.in(column, states)));
-		else
-			criteria.add(Restrictions.in(column, states));
-		
 		if (firstRecordId != null)
 			criteria.add(Restrictions.ge("s.recordId", firstRecordId));
 		
 		criteria.addOrder(Order.asc("s.timestamp"));
 		criteria.addOrder(Order.asc("s.recordId"));
 		
-		// if the user sets -1 as the max records, don't restrict the number of records downloaded/transferred
-		if (maxSyncRecords > 0)
-			criteria.setMaxResults(maxSyncRecords);
-		
-		return criteria.list();
+		return root;
 	}
 	
 	/**
@@ -365,18 +576,388 @@ public class HibernateSyncDAO implements SyncDAO {
 		Integer quantityDeleted = deleteSSRQuery.executeUpdate(); // this quantity isn't really used
 		
 		// if a sync_record now has zero sync_record_server rows, then that means all
-		// the rows were deleted in the previous query and so the sync_record can also be deleted
-		Query deleteQuery = sessionFactory
-		        .getCurrentSession()
-		        .createSQLQuery(
-		            "delete from sync_record where (select count(*) from sync_server_record ssr where ssr.record_id = sync_record.record_id) = 0 and sync_record.timestamp <= :to and sync_record.state in (:states)");
+		// the rows were deleted in the previous query and so the sync_record can also be deleted,
+		// unless a child keeping a cursor hasn't got that far yet (it has no rows for what it is still to get)
+		Integer lowestCursor = (Integer) sessionFactory.getCurrentSession().createQuery(
+		    "select min(acknowledgedRecordId) from RemoteServer where acknowledgedRecordId is not null").uniqueResult();
+		String deletable = "(select count(*) from sync_server_record ssr where ssr.record_id = sync_record.record_id) = 0 and sync_record.timestamp <= :to and sync_record.state in (:states)"
+		        + (lowestCursor == null ? "" : " and sync_record.record_id <= :lowestCursor");
+		
+		// the search terms go first, they refer to the records
+		Query deleteTermsQuery = sessionFactory.getCurrentSession().createSQLQuery(
+		    "delete from sync_record_term where record_id in (select record_id from sync_record where " + deletable + ")");
+		deleteTermsQuery.setDate("to", to);
+		deleteTermsQuery.setParameterList("states", stateStrings);
+		if (lowestCursor != null)
+			deleteTermsQuery.setInteger("lowestCursor", lowestCursor);
+		deleteTermsQuery.executeUpdate();
+		
+		Query deleteQuery = sessionFactory.getCurrentSession().createSQLQuery("delete from sync_record where " + deletable);
 		deleteQuery.setDate("to", to);
 		deleteQuery.setParameterList("states", stateStrings);
+		if (lowestCursor != null)
+			deleteQuery.setInteger("lowestCursor", lowestCursor);
 		quantityDeleted = deleteQuery.executeUpdate();
 		
 		return quantityDeleted;
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#recodeSyncRecordPayloads(java.lang.Integer, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public SyncPayloadStorageReport recodeSyncRecordPayloads(Integer afterRecordId, int batchSize) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		
+		// make sure nothing pending in the session overwrites the rows after we have rewritten them
+		session.flush();
+		
+		SQLQuery select = session
+		        .createSQLQuery("select record_id, payload, search_terms from sync_record where record_id > :after order by record_id");
+		select.addScalar("record_id", Hibernate.INTEGER);
+		select.addScalar("payload", Hibernate.TEXT);
+		select.addScalar("search_terms", Hibernate.TEXT);
+		select.setInteger("after", afterRecordId == null ? 0 : afterRecordId);
+		select.setMaxResults(batchSize);
+		
+		Query update = session
+		        .createSQLQuery("update sync_record set payload = :payload, search_terms = :searchTerms where record_id = :recordId");
+		Query deleteTerms = session.createSQLQuery("delete from sync_record_term where record_id = :recordId");
+		Query insertTerm = session.createSQLQuery("insert into sync_record_term (record_id, term) values (:recordId, :term)");
+		
+		SyncPayloadStorageReport report = new SyncPayloadStorageReport();
+		for (Object[] row : (List<Object[]>) select.list()) {
+			Integer recordId = (Integer) row[0];
+			String stored = (String) row[1];
+			String searchTerms = (String) row[2];
+			
+			if (stored == null) {
+				report.addRecord(recordId, 0, 0, false);
+				continue;
+			}
+			
+			// shared payloads are kept in sync_payload, the reference itself is left as it is
+			boolean shared = SyncItemListSerializingUserType.isSharedReference(stored);
+			if (shared && searchTerms != null) {
+				report.addRecord(recordId, utf8Length(stored), utf8Length(stored), false);
+				continue;
+			}
+			
+			String recoded = stored;
+			boolean indexed = searchTerms == null;
+			if (indexed) {
+				try {
+					String xml = SyncItemListSerializingUserType.toXml(session.connection(), stored);
+					if (!shared)
+						recoded = SyncItemListSerializingUserType.encodePayload(xml);
+					searchTerms = SyncRecord.buildSearchTerms(SyncItemListSerializingUserType.deserializeItems(xml));
+				}
+				catch (Exception e) {
+					log.warn("Unable to read the items of sync record " + recordId + ", leaving it as it is", e);
+					report.addRecord(recordId, utf8Length(stored), utf8Length(stored), false);
+					continue;
+				}
+			}
+			else {
+				recoded = SyncItemListSerializingUserType.encodePayload(SyncItemListSerializingUserType
+				        .decodePayload(stored));
+				if (recoded.equals(stored)) {
+					report.addRecord(recordId, utf8Length(stored), utf8Length(stored), false);
+					continue;
+				}
+			}
+			
+			update.setString("payload", recoded);
+			update.setString("searchTerms", searchTerms);
+			update.setInteger("recordId", recordId);
+			update.executeUpdate();
+			
+			if (indexed) {
+				deleteTerms.setInteger("recordId", recordId);
+				deleteTerms.executeUpdate();
+				for (String term : SyncRecord.splitSearchTerms(searchTerms)) {
+					insertTerm.setInteger("recordId", recordId);
+					insertTerm.setString("term", term);
+					insertTerm.executeUpdate();
+				}
+			}
+			
+			report.addRecord(recordId, utf8Length(stored), utf8Length(recoded), true);
+		}
+		
+		return report;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecordPayloadSample(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> getSyncRecordPayloadSample(int sampleSize) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		SQLQuery select = session
+		        .createSQLQuery("select payload from sync_record where payload is not null order by record_id desc");
+		select.addScalar("payload", Hibernate.TEXT);
+		select.setMaxResults(sampleSize);
+		
+		List<String> sample = new ArrayList<String>();
+		for (String stored : (List<String>) select.list()) {
+			try {
+				sample.add(SyncItemListSerializingUserType.toXml(session.connection(), stored));
+			}
+			catch (Exception e) {
+				log.warn("Unable to read a sync record payload, leaving it out of the sample", e);
+			}
+		}
+		return sample;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#deleteUnreferencedSyncPayloads(java.util.Date)
+	 */
+	@SuppressWarnings("unchecked")
+	public Integer deleteUnreferencedSyncPayloads(Date referencedBefore) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		
+		// payloads used recently are left alone, a record that reuses one may not have been committed yet;
+		// the references are found through the index on sync_record.payload_hash, a batch at a time
+		int batchSize = 500;
+		SQLQuery unreferenced = session
+		        .createSQLQuery("select hash from sync_payload where last_referenced < :referencedBefore and not exists (select 1 from sync_record r where r.payload_hash = sync_payload.hash)");
+		unreferenced.addScalar("hash", Hibernate.STRING);
+		unreferenced.setTimestamp("referencedBefore", referencedBefore);
+		unreferenced.setMaxResults(batchSize);
+		Query delete = session
+		        .createSQLQuery("delete from sync_payload where hash in (:hashes) and last_referenced < :referencedBefore and not exists (select 1 from sync_record r where r.payload_hash = sync_payload.hash)");
+		delete.setTimestamp("referencedBefore", referencedBefore);
+		
+		int quantityDeleted = 0;
+		List<String> hashes;
+		do {
+			hashes = unreferenced.list();
+			if (!hashes.isEmpty())
+				quantityDeleted += delete.setParameterList("hashes", hashes).executeUpdate();
+		} while (hashes.size() == batchSize);
+		
+		return quantityDeleted;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#updateSyncRecordsToSent(java.util.Collection,
+	 *      org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public void updateSyncRecordsToSent(Collection<SyncRecord> records, RemoteServer server) throws DAOException {
+		if (records == null || records.isEmpty())
+			return;
+		
+		boolean toParent = RemoteServerType.PARENT.equals(server.getServerType());
+		Session session = sessionFactory.getCurrentSession();
+		
+		// detach the records first, the updates below would otherwise flush them (and their payloads)
+		List<Integer> recordIds = new ArrayList<Integer>(records.size());
+		for (SyncRecord record : records) {
+			recordIds.add(record.getRecordId());
+			session.evict(record);
+		}
+		
+		// SENT_AGAIN goes first so that the rows moved on to SENT aren't matched by it again
+		String table = toParent ? "sync_record" : "sync_server_record";
+		String where = " where record_id in (:recordIds)" + (toParent ? "" : " and server_id = :serverId");
+		SQLQuery sentAgain = session.createSQLQuery("update " + table
+		        + " set retry_count = retry_count + 1, state = :state" + where + " and state <> :fromState");
+		SQLQuery sent = session.createSQLQuery("update " + table + " set retry_count = retry_count + 1, state = :state"
+		        + where + " and state = :fromState");
+		for (SQLQuery update : new SQLQuery[] { sentAgain, sent }) {
+			update.addSynchronizedEntityClass(toParent ? SyncRecord.class : SyncServerRecord.class);
+			update.setParameterList("recordIds", recordIds);
+			if (!toParent)
+				update.setInteger("serverId", server.getServerId());
+			update.setString("fromState", SyncRecordState.NEW.name());
+		}
+		sentAgain.setString("state", SyncRecordState.SENT_AGAIN.name()).executeUpdate();
+		sent.setString("state", SyncRecordState.SENT.name()).executeUpdate();
+		
+		// a child keeping a cursor has no rows yet for the records after it: they start out as SENT
+		if (!toParent && server.getAcknowledgedRecordId() != null) {
+			SQLQuery insert = session.createSQLQuery("insert into sync_server_record (server_id, record_id, state, retry_count)"
+			        + " select :serverId, r.record_id, :state, 1 from sync_record r where r.record_id in (:recordIds)"
+			        + " and not exists (select 1 from sync_server_record sr"
+			        + " where sr.record_id = r.record_id and sr.server_id = :serverId)");
+			insert.addSynchronizedEntityClass(SyncServerRecord.class);
+			insert.setParameterList("recordIds", recordIds);
+			insert.setInteger("serverId", server.getServerId());
+			insert.setString("state", SyncRecordState.SENT.name());
+			insert.executeUpdate();
+		}
+		
+		// keep the detached copies in line with the database for whoever still holds on to them
+		for (SyncRecord record : records) {
+			if (toParent) {
+				record.incrementRetryCount();
+				record.setState(SyncRecordState.NEW.equals(record.getState()) ? SyncRecordState.SENT
+				        : SyncRecordState.SENT_AGAIN);
+			} else if (record.getServerRecords() != null && Hibernate.isInitialized(record.getServerRecords())) {
+				for (SyncServerRecord serverRecord : record.getServerRecords()) {
+					if (serverRecord.getSyncServer().equals(server)) {
+						serverRecord.incrementRetryCount();
+						serverRecord.setState(SyncRecordState.NEW.equals(serverRecord.getState()) ? SyncRecordState.SENT
+						        : SyncRecordState.SENT_AGAIN);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSettledRecordId()
+	 */
+	public Integer getSettledRecordId() throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		
+		// the next record id has to be known before the transactions that could be holding one below it
+		SQLQuery latest = session.createSQLQuery("select max(record_id) from sync_record");
+		latest.addSynchronizedEntityClass(SyncRecord.class);
+		Number recordId = (Number) latest.uniqueResult();
+		int next = recordId == null ? 1 : recordId.intValue() + 1;
+		
+		Set<String> open = new HashSet<String>();
+		if (((SessionFactoryImplementor) sessionFactory).getDialect() instanceof MySQLDialect) {
+			try {
+				SQLQuery transactions = session
+				        .createSQLQuery("select trx_id from information_schema.innodb_trx where trx_mysql_thread_id <> connection_id()");
+				for (Object trx : transactions.list())
+					open.add(String.valueOf(trx));
+			}
+			catch (HibernateException e) {
+				// without knowing what is open nothing more can be taken as settled
+				log.warn("Unable to list the open transactions, the PROCESS privilege is needed for that: "
+				        + e.getMessage());
+				return JournalWatermark.getInstance().getSettled();
+			}
+		}
+		
+		return JournalWatermark.getInstance().observe(next, open);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#initializeChildCursor(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.lang.Integer)
+	 */
+	public Integer initializeChildCursor(RemoteServer server, Integer settledRecordId) throws DAOException {
+		if (settledRecordId == null)
+			return null;
+		
+		Session session = sessionFactory.getCurrentSession();
+		
+		SQLQuery firstOpen = session
+		        .createSQLQuery("select min(record_id) from sync_server_record where server_id = :serverId and state not in (:passable)");
+		firstOpen.addSynchronizedEntityClass(SyncServerRecord.class);
+		firstOpen.setInteger("serverId", server.getServerId());
+		firstOpen.setParameterList("passable", CURSOR_PASSABLE_STATES);
+		Number recordId = (Number) firstOpen.uniqueResult();
+		
+		// if nothing is waiting for this child it only gets what is journaled from now on, but never
+		// skips a record that is still being committed and so can't be seen to have a row or not
+		Integer cursor = settledRecordId;
+		if (recordId != null)
+			cursor = Math.min(cursor, recordId.intValue() - 1);
+		
+		setChildCursor(server, cursor);
+		return cursor;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#advanceChildCursor(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.lang.Integer)
+	 */
+	public Integer advanceChildCursor(RemoteServer server, Integer settledRecordId) throws DAOException {
+		Integer cursor = server.getAcknowledgedRecordId();
+		if (cursor == null || settledRecordId == null)
+			return cursor;
+		
+		Session session = sessionFactory.getCurrentSession();
+		
+		// the first record after the cursor the child is still to get, or is getting
+		SQLQuery firstOpen = session.createSQLQuery("select min(r.record_id) from sync_record r where r.record_id > :cursor"
+		        + " and not exists (select 1 from sync_server_record sr where sr.record_id = r.record_id"
+		        + " and sr.server_id = :serverId and sr.state in (:passable))");
+		firstOpen.addSynchronizedEntityClass(SyncRecord.class);
+		firstOpen.addSynchronizedEntityClass(SyncServerRecord.class);
+		firstOpen.setInteger("cursor", cursor);
+		firstOpen.setInteger("serverId", server.getServerId());
+		firstOpen.setParameterList("passable", CURSOR_PASSABLE_STATES);
+		Number open = (Number) firstOpen.uniqueResult();
+		
+		// the last record that nothing before it can still be on its way into the journal
+		SQLQuery lastSettled = session
+		        .createSQLQuery("select max(record_id) from sync_record where record_id > :cursor and record_id <= :settled");
+		lastSettled.addSynchronizedEntityClass(SyncRecord.class);
+		lastSettled.setInteger("cursor", cursor);
+		lastSettled.setInteger("settled", settledRecordId);
+		Number settled = (Number) lastSettled.uniqueResult();
+		
+		if (settled == null)
+			return cursor;
+		int next = settled.intValue();
+		if (open != null)
+			next = Math.min(next, open.intValue() - 1);
+		if (next <= cursor)
+			return cursor;
+		
+		setChildCursor(server, next);
+		
+		// the rows of committed records are not needed any longer, the exceptions are kept
+		SQLQuery delete = session.createSQLQuery("delete from sync_server_record where server_id = :serverId"
+		        + " and record_id <= :cursor and state in (:committed)");
+		delete.addSynchronizedEntityClass(SyncServerRecord.class);
+		delete.setInteger("serverId", server.getServerId());
+		delete.setInteger("cursor", next);
+		delete.setParameterList("committed", new String[] { SyncRecordState.COMMITTED.name(),
+		        SyncRecordState.ALREADY_COMMITTED.name() });
+		delete.executeUpdate();
+		
+		return next;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#seedChildCursor(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.lang.Integer)
+	 */
+	public void seedChildCursor(RemoteServer server, Integer recordId) throws DAOException {
+		setChildCursor(server, recordId);
+		
+		// the child has these in its copy of the database already
+		SQLQuery delete = sessionFactory.getCurrentSession().createSQLQuery(
+		    "delete from sync_server_record where server_id = :serverId and record_id <= :cursor and state = :new");
+		delete.addSynchronizedEntityClass(SyncServerRecord.class);
+		delete.setInteger("serverId", server.getServerId());
+		delete.setInteger("cursor", recordId);
+		delete.setString("new", SyncRecordState.NEW.name());
+		delete.executeUpdate();
+	}
+	
+	private void setChildCursor(RemoteServer server, Integer cursor) {
+		SQLQuery update = sessionFactory.getCurrentSession().createSQLQuery(
+		    "update sync_server set acknowledged_record_id = :cursor where server_id = :serverId");
+		update.addSynchronizedEntityClass(RemoteServer.class);
+		update.setInteger("cursor", cursor);
+		update.setInteger("serverId", server.getServerId());
+		update.executeUpdate();
+		server.setAcknowledgedRecordId(cursor);
+	}
+	
+	/**
+	 * @return the number of bytes the given string takes up when stored as UTF-8
+	 */
+	private static long utf8Length(String s) {
+		try {
+			return s.getBytes(SyncConstants.UTF8).length;
+		}
+		catch (UnsupportedEncodingException e) {
+			return s.length();
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.db.SyncDAO#getSyncRecords(java.util.Date, java.util.Date,
 	 *      Integer, Integer)
@@ -648,12 +1229,32 @@ public class HibernateSyncDAO implements SyncDAO {
 				Query q = sessionFactory.getCurrentSession().createQuery(hqlChild);
 				q.setParameter("server_id", r.getServerId());
 				List<Object[]> rows = q.list();
+				
+				// with a cursor, the records after it without a row are still NEW for the child
+				long implicitNew = 0;
+				if (r.getAcknowledgedRecordId() != null) {
+					SQLQuery pending = sessionFactory.getCurrentSession().createSQLQuery(
+					    "select count(*) from sync_record s where s.record_id > :cursor and not exists"
+					            + " (select 1 from sync_server_record sr where sr.record_id = s.record_id and sr.server_id = :serverId)");
+					pending.setInteger("cursor", r.getAcknowledgedRecordId());
+					pending.setInteger("serverId", r.getServerId());
+					implicitNew = ((Number) pending.uniqueResult()).longValue();
+				}
+				
 				LinkedHashSet<SyncStatistic> props = new LinkedHashSet<SyncStatistic>();
 				for (Object[] row : rows) {
+					Object count = row[2];
+					if (implicitNew > 0 && SyncRecordState.NEW.toString().equals(row[1].toString())) {
+						count = ((Number) count).longValue() + implicitNew;
+						implicitNew = 0;
+					}
 					SyncStatistic stat = new SyncStatistic(SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE, row[1].toString(),
-					        row[2]); //state/count
+					        count); //state/count
 					props.add(stat);
 				}
+				if (implicitNew > 0)
+					props.add(new SyncStatistic(SyncStatistic.Type.SYNC_RECORD_COUNT_BY_STATE, SyncRecordState.NEW.toString(),
+					        implicitNew));
 				map.put(r, props);
 			} else {
 				//for parent servers, get the number of records in sync record
@@ -672,24 +1273,38 @@ public class HibernateSyncDAO implements SyncDAO {
 	
 	/*
 	 * called at Openmrs sync parent server: exports the openmrs database to a
-	 * DDL output stream for sending it back to a new child node being created
+	 * gzip compressed DDL output stream for sending it back to a new child node being created
 	 */
 	public void exportChildDB(String uuidForChild, OutputStream os) throws DAOException {
-		PrintStream out = new PrintStream(os);
-		Set<String> tablesToSkip = new HashSet<String>();
+		if (uuidForChild == null)
+			uuidForChild = SyncUtil.generateUuid();
+		exportDatabase(os, uuidForChild, null);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#exportCloneSnapshot(java.io.OutputStream)
+	 */
+	public SyncRecordPosition exportCloneSnapshot(OutputStream os) throws DAOException {
+		// everything up to the settled record was committed before the snapshot is taken, so it is in there
+		Integer settledRecordId = getSettledRecordId();
+		Object[] last = exportDatabase(os, null, "select record_id, timestamp from sync_record where record_id <= "
+		        + (settledRecordId == null ? 0 : settledRecordId) + " order by record_id desc limit 1");
+		if (last == null)
+			return new SyncRecordPosition(0, null);
+		return new SyncRecordPosition(((Number) last[0]).intValue(), (Date) last[1]);
+	}
+	
+	/**
+	 * Exports the database in a snapshot
+	 * 
+	 * @param os where the gzip compressed sql is written
+	 * @param uuidForChild the server uuid the dump sets, or null to leave it as it is
+	 * @param positionQuery sql to run in the snapshot, or null
+	 * @return the first row returned by the position query
+	 */
+	private Object[] exportDatabase(OutputStream os, String uuidForChild, String positionQuery) {
+		Set<String> tablesToSkip = new HashSet<String>(Arrays.asList(SyncConstants.CLONE_IGNORED_TABLES));
 		{
-			tablesToSkip.add("hl7_in_archive");
-			tablesToSkip.add("hl7_in_queue");
-			tablesToSkip.add("hl7_in_error");
-			tablesToSkip.add("formentry_archive");
-			tablesToSkip.add("formentry_queue");
-			tablesToSkip.add("formentry_error");
-			tablesToSkip.add("sync_class");
-			tablesToSkip.add("sync_import");
-			tablesToSkip.add("sync_record");
-			tablesToSkip.add("sync_server");
-			tablesToSkip.add("sync_server_class");
-			tablesToSkip.add("sync_server_record");
 			// TODO: figure out which other tables to skip
 			// tablesToSkip.add("obs");
 			// tablesToSkip.add("concept");
@@ -698,220 +1313,125 @@ public class HibernateSyncDAO implements SyncDAO {
 		List<String> tablesToDump = new ArrayList<String>();
 		Session session = sessionFactory.getCurrentSession();
 		String schema = (String) session.createSQLQuery("SELECT schema()").uniqueResult();
-		log.warn("schema: " + schema);
-		// Get all tables that we'll need to dump
+		// Get all tables that we'll need to dump, biggest first so that they don't hold up the end of the export
 		{
 			Query query = session
-			        .createSQLQuery("SELECT tabs.table_name FROM INFORMATION_SCHEMA.TABLES tabs WHERE tabs.table_schema = '"
-			                + schema + "'");
+			        .createSQLQuery("SELECT tabs.table_name FROM INFORMATION_SCHEMA.TABLES tabs WHERE tabs.table_schema = :schema"
+			                + " AND tabs.table_type = 'BASE TABLE' ORDER BY tabs.data_length DESC");
+			query.setString("schema", schema);
 			for (Object tn : query.list()) {
 				String tableName = (String) tn;
 				if (!tablesToSkip.contains(tableName.toLowerCase()))
 					tablesToDump.add(tableName);
 			}
 		}
-		log.warn("tables to dump: " + tablesToDump);
+		log.info("tables to dump from " + schema + ": " + tablesToDump);
 		
 		String thisServerGuid = getGlobalProperty(SyncConstants.PROPERTY_SERVER_UUID);
 		
 		// Write the DDL Header as mysqldump does
+		StringBuilder header = new StringBuilder();
 		{
-			out.println("-- ------------------------------------------------------");
-			out.println("-- Database dump to create an openmrs child server");
-			out.println("-- Schema: " + schema);
-			out.println("-- Parent GUID: " + thisServerGuid);
-			out.println("-- Parent version: " + OpenmrsConstants.OPENMRS_VERSION);
-			out.println("-- ------------------------------------------------------");
-			out.println("");
-			out.println("/*!40101 SET CHARACTER_SET_CLIENT=utf8 */;");
-			out.println("/*!40101 SET NAMES utf8 */;");
-			out.println("/*!40103 SET TIME_ZONE='+00:00' */;");
-			out.println("/*!40101 SET @OLD_CHARACTER_SET_CLIENT=@@CHARACTER_SET_CLIENT */;");
-			out.println("/*!40101 SET @OLD_CHARACTER_SET_RESULTS=@@CHARACTER_SET_RESULTS */;");
-			out.println("/*!40101 SET @OLD_COLLATION_CONNECTION=@@COLLATION_CONNECTION */;");
-			out.println("/*!40103 SET @OLD_TIME_ZONE=@@TIME_ZONE */;");
-			out.println("/*!40014 SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0 */;");
-			out.println("/*!40014 SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0 */;");
-			out.println("/*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;");
-			out.println("/*!40111 SET @OLD_SQL_NOTES=@@SQL_NOTES, SQL_NOTES=0 */;");
-			out.println("");
+			header.append("-- ------------------------------------------------------\n");
+			header.append("-- Database dump to create an openmrs child server\n");
+			header.append("-- Schema: " + schema + "\n");
+			header.append("-- Parent GUID: " + thisServerGuid + "\n");
+			header.append("-- Parent version: " + OpenmrsConstants.OPENMRS_VERSION + "\n");
+			header.append("-- ------------------------------------------------------\n");
+			header.append("\n");
+			header.append("/*!40101 SET CHARACTER_SET_CLIENT=utf8 */;\n");
+			header.append("/*!40101 SET NAMES utf8 */;\n");
+			header.append("/*!40103 SET TIME_ZONE='+00:00' */;\n");
+			header.append("/*!40101 SET @OLD_CHARACTER_SET_CLIENT=@@CHARACTER_SET_CLIENT */;\n");
+			header.append("/*!40101 SET @OLD_CHARACTER_SET_RESULTS=@@CHARACTER_SET_RESULTS */;\n");
+			header.append("/*!40101 SET @OLD_COLLATION_CONNECTION=@@COLLATION_CONNECTION */;\n");
+			header.append("/*!40103 SET @OLD_TIME_ZONE=@@TIME_ZONE */;\n");
+			header.append("/*!40014 SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0 */;\n");
+			header.append("/*!40014 SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0 */;\n");
+			header.append("/*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;\n");
+			header.append("/*!40111 SET @OLD_SQL_NOTES=@@SQL_NOTES, SQL_NOTES=0 */;\n");
 		}
-		try {
-			// JDBC way of doing this
-			// Connection conn =
-			// DriverManager.getConnection("jdbc:mysql://localhost/" + schema,
-			// "test", "test");
-			Connection conn = sessionFactory.getCurrentSession().connection();
-			try {
-				Statement st = conn.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-				
-				// Get the create database statement
-				ResultSet rs = st.executeQuery("SHOW CREATE DATABASE " + schema);
-				for (String tableName : tablesToDump) {
-					out.println();
-					out.println("--");
-					out.println("-- Table structure for table `" + tableName + "`");
-					out.println("--");
-					out.println("DROP TABLE IF EXISTS `" + tableName + "`;");
-					out.println("SET @saved_cs_client     = @@character_set_client;");
-					out.println("SET character_set_client = utf8;");
-					rs = st.executeQuery("SHOW CREATE TABLE " + tableName);
-					while (rs.next()) {
-						out.println(rs.getString("Create Table") + ";");
-					}
-					out.println("SET character_set_client = @saved_cs_client;");
-					out.println();
-					
-					{
-						out.println("-- Dumping data for table `" + tableName + "`");
-						out.println("LOCK TABLES `" + tableName + "` WRITE;");
-						out.println("/*!40000 ALTER TABLE `" + tableName + "` DISABLE KEYS */;");
-						boolean first = true;
-						
-						rs = st.executeQuery("select * from " + tableName);
-						ResultSetMetaData md = rs.getMetaData();
-						int numColumns = md.getColumnCount();
-						int rowNum = 0;
-						boolean insert = false;
-						
-						while (rs.next()) {
-							if (rowNum == 0) {
-								insert = true;
-								out.print("INSERT INTO `" + tableName + "` VALUES ");
-							}
-							++rowNum;
-							if (first) {
-								first = false;
-							} else {
-								out.print(", ");
-							}
-							if (rowNum % 20 == 0) {
-								out.println();
-							}
-							out.print("(");
-							for (int i = 1; i <= numColumns; ++i) {
-								if (i != 1) {
-									out.print(",");
-								}
-								if (rs.getObject(i) == null) {
-									out.print("NULL");
-								} else {
-									switch (md.getColumnType(i)) {
-										case Types.VARCHAR:
-										case Types.CHAR:
-										case Types.LONGVARCHAR:
-											out.print("'");
-											out.print(rs.getString(i).replaceAll("\n", "\\\\n").replaceAll("'", "\\\\'"));
-											out.print("'");
-											break;
-										case Types.BIGINT:
-										case Types.DECIMAL:
-										case Types.NUMERIC:
-											out.print(rs.getBigDecimal(i));
-											break;
-										case Types.BIT:
-											out.print(rs.getBoolean(i));
-											break;
-										case Types.INTEGER:
-										case Types.SMALLINT:
-										case Types.TINYINT:
-											out.print(rs.getInt(i));
-											break;
-										case Types.REAL:
-										case Types.FLOAT:
-										case Types.DOUBLE:
-											out.print(rs.getDouble(i));
-											break;
-										case Types.BLOB:
-										case Types.VARBINARY:
-										case Types.LONGVARBINARY:
-											Blob blob = rs.getBlob(i);
-											out.print("'");
-											InputStream in = blob.getBinaryStream();
-											while (true) {
-												int b = in.read();
-												if (b < 0) {
-													break;
-												}
-												char c = (char) b;
-												if (c == '\'') {
-													out.print("\'");
-												} else {
-													out.print(c);
-												}
-											}
-											out.print("'");
-											break;
-										case Types.CLOB:
-											out.print("'");
-											out.print(rs.getString(i).replaceAll("\n", "\\\\n").replaceAll("'", "\\\\'"));
-											out.print("'");
-											break;
-										case Types.DATE:
-											out.print("'" + rs.getDate(i) + "'");
-											break;
-										case Types.TIMESTAMP:
-											out.print("'" + rs.getTimestamp(i) + "'");
-											break;
-										default:
-											throw new RuntimeException("TODO: handle type code " + md.getColumnType(i)
-											        + " (name " + md.getColumnTypeName(i) + ")");
-									}
-								}
-							}
-							out.print(")");
-						}
-						if (insert) {
-							out.println(";");
-							insert = false;
-						}
-						
-						out.println("/*!40000 ALTER TABLE `" + tableName + "` ENABLE KEYS */;");
-						out.println("UNLOCK TABLES;");
-						out.println();
-					}
-				}
-			}
-			finally {
-				conn.close();
-			}
-			
+		
+		StringBuilder footer = new StringBuilder();
+		{
 			// Now we mark this as a child
-			out.println("-- Now mark this as a child database");
-			if (uuidForChild == null)
-				uuidForChild = SyncUtil.generateUuid();
-			out.println("update global_property set property_value = '" + uuidForChild + "' where property = '"
-			        + SyncConstants.PROPERTY_SERVER_UUID + "';");
+			if (uuidForChild != null)
+				footer.append(getMarkAsChildSql(uuidForChild));
 			
 			// Write the footer of the DDL script
-			{
-				out.println("/*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;");
-				out.println("/*!40101 SET SQL_MODE=@OLD_SQL_MODE */;");
-				out.println("/*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;");
-				out.println("/*!40014 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS */;");
-				out.println("/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;");
-				out.println("/*!40101 SET CHARACTER_SET_RESULTS=@OLD_CHARACTER_SET_RESULTS */;");
-				out.println("/*!40101 SET COLLATION_CONNECTION=@OLD_COLLATION_CONNECTION */;");
-				out.println("/*!40111 SET SQL_NOTES=@OLD_SQL_NOTES */;");
-			}
-			out.flush();
-			out.close();
+			footer.append("/*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;\n");
+			footer.append("/*!40101 SET SQL_MODE=@OLD_SQL_MODE */;\n");
+			footer.append("/*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;\n");
+			footer.append("/*!40014 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS */;\n");
+			footer.append("/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;\n");
+			footer.append("/*!40101 SET CHARACTER_SET_RESULTS=@OLD_CHARACTER_SET_RESULTS */;\n");
+			footer.append("/*!40101 SET COLLATION_CONNECTION=@OLD_COLLATION_CONNECTION */;\n");
+			footer.append("/*!40111 SET SQL_NOTES=@OLD_SQL_NOTES */;\n");
 		}
-		catch (IOException ex) {
-			log.error("IOException", ex);
-			
+		
+		int threads = getIntegerGlobalProperty(SyncConstants.PROPERTY_EXPORT_THREADS,
+		    SyncConstants.PROPERTY_EXPORT_THREADS_DEFAULT);
+		
+		// the tables are read on connections of their own, in a snapshot shared between them
+		ChildDatabaseExporter exporter = new ChildDatabaseExporter(((SessionFactoryImplementor) sessionFactory)
+		        .getConnectionProvider(), threads, SyncUtil.getSyncApplicationDir());
+		exporter.setPositionQuery(positionQuery);
+		exporter.export(os, tablesToDump, header.toString(), footer.toString());
+		return exporter.getPosition();
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#exportChildDBTrailer(java.lang.String,
+	 *      java.io.OutputStream)
+	 */
+	public void exportChildDBTrailer(String uuidForChild, OutputStream os) throws DAOException {
+		try {
+			// one more gzip member, after the footer of the snapshot
+			ChildDatabaseExporter.writeMember(os, getMarkAsChildSql(uuidForChild));
+			os.flush();
 		}
-		catch (SQLException ex) {
-			log.error("SQLException", ex);
+		catch (IOException e) {
+			throw new DAOException("Unable to export the child trailer", e);
 		}
 	}
 	
+	private String getMarkAsChildSql(String uuidForChild) {
+		return "\n-- Now mark this as a child database\n" + "update global_property set property_value = '" + uuidForChild
+		        + "' where property = '" + SyncConstants.PROPERTY_SERVER_UUID + "';\n";
+	}
+	
 	/*
 	 * Called at Openmrs sync child: imports the DDL backup of the parent server
 	 * from an input stream generated from the parent DB @Impl: Reads the DDL
 	 * statement line by line and updates the child DB
 	 */
 	public void importParentDB(InputStream in) {
+		int threads = getIntegerGlobalProperty(SyncConstants.PROPERTY_IMPORT_THREADS,
+		    SyncConstants.PROPERTY_IMPORT_THREADS_DEFAULT);
+		if (threads > 0) {
+			// the loader reads the dump from a file, so that an interrupted load can be resumed
+			File dump = new File(SyncUtil.getSyncApplicationDir(), SyncConstants.CLONE_IMPORT_FILE_NAME
+			        + SyncConstants.SYNC_FILENAME_MASK.format(new Date()) + ".sql");
+			try {
+				OutputStream out = new FileOutputStream(dump);
+				try {
+					IOUtils.copy(in, out);
+				}
+				finally {
+					out.close();
+					in.close();
+				}
+				getChildDatabaseLoader(threads).load(dump);
+			}
+			catch (IOException ex) {
+				log.warn("Unable to save the parent database dump", ex);
+			}
+			finally {
+				dump.delete();
+			}
+			return;
+		}
+		
 		try {
 			Connection conn = sessionFactory.getCurrentSession().connection();
 			Statement statement = conn.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
@@ -966,6 +1486,91 @@ public class HibernateSyncDAO implements SyncDAO {
 			log.warn(io.toString());
 		}
 		
+		List<String> commands = getDataFileCommand(username, password, database, outFile, ignoreTables);
+		
+		String output;
+		if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
+			output = execCmd(outFile.getParentFile(), commands.toArray(new String[] {}));
+		else
+			output = execCmd(null, commands.toArray(new String[] {}));
+		
+		if (output != null && output.length() > 0) {
+			log.debug("Exec called: " + Arrays.asList(commands));
+			log.debug("Output of exec: " + output);
+		}
+		
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#generateDataFile(java.io.OutputStream, java.lang.String[])
+	 */
+	public void generateDataFile(OutputStream out, String[] ignoreTables) throws DAOException {
+		String[] props = getConnectionProperties();
+		List<String> commands = getDataFileCommand(props[0], props[1], props[2], null, ignoreTables);
+		log.debug("executing command: " + commands);
+		
+		final Process p;
+		try {
+			p = new ProcessBuilder(commands).start();
+		}
+		catch (IOException e) {
+			throw new DAOException("Unable to run mysqldump", e);
+		}
+		
+		// drain what mysqldump complains about, so it can't block on a full pipe
+		final StringBuffer errors = new StringBuffer();
+		Thread errorReader = new Thread("mysqldump-stderr") {
+			
+			@Override
+			public void run() {
+				try {
+					errors.append(IOUtils.toString(p.getErrorStream()));
+				}
+				catch (IOException e) {
+					log.debug("Unable to read the errors of mysqldump", e);
+				}
+			}
+		};
+		errorReader.start();
+		
+		try {
+			InputStream in = p.getInputStream();
+			try {
+				IOUtils.copyLarge(in, out);
+			}
+			finally {
+				in.close();
+			}
+			int exitValue = p.waitFor();
+			errorReader.join();
+			if (exitValue != 0)
+				throw new DAOException("mysqldump failed with exit value " + exitValue + ": " + errors);
+		}
+		catch (IOException e) {
+			p.destroy();
+			throw new DAOException("Unable to write what mysqldump exported", e);
+		}
+		catch (InterruptedException e) {
+			p.destroy();
+			Thread.currentThread().interrupt();
+			throw new DAOException("Interrupted while waiting for mysqldump", e);
+		}
+	}
+	
+	/**
+	 * Builds the mysqldump command line that {@link #generateDataFile(File, String[])} runs
+	 * 
+	 * @param username the database user
+	 * @param password the database password
+	 * @param database the schema to dump
+	 * @param outFile the file to write to, or null to write to standard output
+	 * @param ignoreTables the tables to leave out
+	 * @return the command and its arguments
+	 * @should leave the sync journal tables out of the data file
+	 * @should write to standard output without a file
+	 */
+	static List<String> getDataFileCommand(String username, String password, String database, File outFile,
+	                                       String[] ignoreTables) {
 		List<String> commands = new ArrayList<String>();
 		commands.add("mysqldump");
 		commands.add("-u" + username);
@@ -973,8 +1578,10 @@ public class HibernateSyncDAO implements SyncDAO {
 		commands.add("-q");
 		commands.add("-e");
 		commands.add("--single-transaction");
-		commands.add("-r");
-		commands.add(outFile.getAbsolutePath());
+		if (outFile != null) {
+			commands.add("-r");
+			commands.add(outFile.getAbsolutePath());
+		}
 		commands.add(database);
 		
 		// mark the tables to ignore
@@ -985,18 +1592,7 @@ public class HibernateSyncDAO implements SyncDAO {
 				commands.add(database + "." + table);
 			}
 		}
-		
-		String output;
-		if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
-			output = execCmd(outFile.getParentFile(), commands.toArray(new String[] {}));
-		else
-			output = execCmd(null, commands.toArray(new String[] {}));
-		
-		if (output != null && output.length() > 0) {
-			log.debug("Exec called: " + Arrays.asList(commands));
-			log.debug("Output of exec: " + output);
-		}
-		
+		return commands;
 	}
 	
 	/**
@@ -1084,9 +1680,37 @@ public class HibernateSyncDAO implements SyncDAO {
 	}
 	
 	public void execGeneratedFile(File generatedDataFile) {
+		int threads = getIntegerGlobalProperty(SyncConstants.PROPERTY_IMPORT_THREADS,
+		    SyncConstants.PROPERTY_IMPORT_THREADS_DEFAULT);
+		if (threads > 0) {
+			getChildDatabaseLoader(threads).load(generatedDataFile);
+			return;
+		}
+		
 		// TODO this depends on mysql being on the path
 		// TODO fix this so that queries are parsed out and run linebyline?
 		
+		// the mysql client only reads plain sql, the file may have been uploaded compressed
+		File plainFile;
+		try {
+			plainFile = uncompressed(generatedDataFile);
+		}
+		catch (IOException e) {
+			throw new DAOException("Unable to unzip " + generatedDataFile, e);
+		}
+		try {
+			execWithMysqlClient(plainFile);
+		}
+		finally {
+			if (plainFile != generatedDataFile)
+				plainFile.delete();
+		}
+	}
+	
+	/**
+	 * Runs a plain sql file with the mysql client
+	 */
+	private void execWithMysqlClient(File generatedDataFile) {
 		String[] props = getConnectionProperties();
 		String username = props[0];
 		String password = props[1];
@@ -1110,6 +1734,60 @@ public class HibernateSyncDAO implements SyncDAO {
 		}
 	}
 	
+	/**
+	 * @param file a sql file, maybe gzip compressed
+	 * @return the file itself if it is plain sql, else a new file next to it with the sql unzipped
+	 */
+	private File uncompressed(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			in.mark(2);
+			if (in.read() != 0x1f || in.read() != 0x8b)
+				return file;
+			in.reset();
+			
+			File plain = new File(file.getPath() + ".unzipped.sql");
+			OutputStream out = new FileOutputStream(plain);
+			try {
+				IOUtils.copyLarge(new GZIPInputStream(in), out);
+			}
+			finally {
+				out.close();
+			}
+			return plain;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @param threads the number of connections to load with
+	 * @return a loader for parent database dumps, keeping its checkpoint in the sync directory
+	 */
+	private ChildDatabaseLoader getChildDatabaseLoader(int threads) {
+		return new ChildDatabaseLoader(((SessionFactoryImplementor) sessionFactory).getConnectionProvider(), threads,
+		        new File(SyncUtil.getSyncApplicationDir(), SyncConstants.CLONE_IMPORT_CHECKPOINT_FILE_NAME));
+	}
+	
+	/**
+	 * @param name the global property to read
+	 * @param defaultValue the value to use if it is not set or not a number
+	 * @return the value of the global property as a number
+	 */
+	private int getIntegerGlobalProperty(String name, String defaultValue) {
+		String value = getGlobalProperty(name);
+		if (StringUtils.hasText(value)) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Only Integers are allowed as values for the global property '" + name + "'");
+			}
+		}
+		return Integer.parseInt(defaultValue);
+	}
+	
 	public <T extends OpenmrsObject> T getOpenmrsObjectByUuid(Class<T> clazz, String uuid) {
 		Criteria crit = sessionFactory.getCurrentSession().createCriteria(clazz);
 		crit.add(Restrictions.eq("uuid", uuid));
@@ -1565,17 +2243,37 @@ public class HibernateSyncDAO implements SyncDAO {
 	 *      java.util.EnumSet)
 	 */
 	public SyncRecord getOlderSyncRecordInState(SyncRecord syncRecord, EnumSet<SyncRecordState> states) {
+		Integer recordId = getOlderSyncRecordIdInState(syncRecord.getRecordId(), syncRecord.getTimestamp(), states);
+		
+		if (recordId == null)
+			return null;
+		
+		return getSyncRecord(recordId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.db.SyncDAO#getOlderSyncRecordIdInState(java.lang.Integer,
+	 *      java.util.Date, java.util.EnumSet)
+	 */
+	@SuppressWarnings("unchecked")
+	public Integer getOlderSyncRecordIdInState(Integer recordId, Date timestamp, EnumSet<SyncRecordState> states) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(SyncRecord.class);
 		criteria.createAlias("serverRecords", "serverRecord", Criteria.LEFT_JOIN);
-		criteria.add(Restrictions.le("timestamp", syncRecord.getTimestamp()));
+		criteria.add(Restrictions.le("timestamp", timestamp));
 		// We need to look for a lower recordId since some may have the same timestamp.
-		criteria.add(Restrictions.lt("recordId", syncRecord.getRecordId()));
+		criteria.add(Restrictions.lt("recordId", recordId));
 		// We need to look for errors in both SyncRecord and SyncRecordServer.
 		criteria.add(Restrictions.or(Restrictions.in("state", states), Restrictions.in("serverRecord.state", states)));
+		criteria.setProjection(Projections.property("recordId"));
 		criteria.addOrder(Order.desc("timestamp"));
 		criteria.addOrder(Order.desc("recordId"));
 		criteria.setMaxResults(1);
-		return (SyncRecord) criteria.uniqueResult();
+		
+		List<Integer> result = criteria.list();
+		if (result.size() < 1)
+			return null;
+		
+		return result.get(0);
 	}
 	
 }
@@ -59,8 +59,10 @@ import org.openmrs.module.sync.SyncItemState;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
 import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncSettings;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.scheduler.SyncPushTrigger;
 import org.openmrs.module.sync.serialization.Item;
 import org.openmrs.module.sync.serialization.Normalizer;
 import org.openmrs.module.sync.serialization.Package;
@@ -240,6 +242,9 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 					
 					//at this point, the tx is already committed, so we need to manually recall commit()
 					tx.commit();
+					
+					// let the servers with a scheduled sync have the change without waiting for the schedule
+					SyncPushTrigger.getInstance().journalCommitted();
 				} else {
 					// note: this will happen all the time with read-only
 					// transactions
@@ -1312,6 +1317,10 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 	 * collection) or update (item was added to the collection) <br/>
 	 * -uuid: entry's uuid <br/>
 	 * -type: class name
+	 * <p>
+	 * In delta mode (see {@link SyncSettings#isCollectionDelta()}) an update only lists the entries
+	 * that are not in the stored snapshot of the set, instead of every entry. Receivers only add
+	 * 'update' entries that are missing, so both forms are applied the same way.
 	 * 
 	 * @param set Instance of Hibernate PersistentSet to process.
 	 * @param key key of owner for the set.
@@ -1330,11 +1339,22 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 		entriesHolder = new LinkedHashMap<String, OpenmrsObject>();
 		try {
 			
+			// in delta mode, entries that were in the set already are left out of updates
+			org.hibernate.persister.collection.CollectionPersister deltaPersister = null;
+			if ("update".equals(action) && set.getRole() != null && set.getStoredSnapshot() != null
+			        && getSyncService().getSyncSettings().isCollectionDelta()) {
+				deltaPersister = ((org.hibernate.engine.SessionFactoryImplementor) factory).getCollectionPersister(set
+				        .getRole());
+			}
+			
 			// find out what entries need to be serialized
 			for (Object entry : set) {
 				if (entry instanceof OpenmrsObject) {
 					OpenmrsObject obj = (OpenmrsObject) entry;
 					
+					if (deltaPersister != null && !isAddedToSet(set, entry, deltaPersister))
+						continue;
+					
 					// attempt to retrieve entry uuid
 					String entryUuid = obj.getUuid();
 					if (entryUuid == null) {
@@ -1413,6 +1433,11 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 				}
 			}
 			
+			if (deltaPersister != null && entriesHolder.isEmpty()) {
+				log.debug("set processing, no entries were added or removed");
+				return;
+			}
+			
 			/*
 			 * Create SyncItem and store change in SyncRecord kept in
 			 * ThreadLocal. note: when making SyncItemKey, make it a composite
@@ -1472,6 +1497,25 @@ public class HibernateSyncInterceptor extends EmptyInterceptor implements Applic
 		}
 	}
 	
+	/**
+	 * Checks the entry against the stored snapshot of the set, the same way hibernate decides which
+	 * rows to insert when it flushes the set.
+	 * 
+	 * @param set the set being flushed
+	 * @param entry an entry of the set
+	 * @param persister the persister of the set
+	 * @return true if the entry was not in the set when it was loaded
+	 */
+	private boolean isAddedToSet(PersistentSet set, Object entry, org.hibernate.persister.collection.CollectionPersister persister) {
+		try {
+			return set.needsInserting(entry, 0, persister.getElementType());
+		}
+		catch (NullPointerException ex) {
+			// same hibernate bug as with the snapshot above (HHH-2937), send the entry to be safe
+			return true;
+		}
+	}
+	
 	/**
 	 * Returns string representation of type for given object. The main idea is to strip off the
 	 * hibernate proxy info, if it happens to be present.
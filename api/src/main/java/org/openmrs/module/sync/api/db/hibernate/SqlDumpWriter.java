@@ -0,0 +1,291 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes the rows of a result set out as mysql extended INSERT statements, the way mysqldump does.
+ * Values are escaped character by character straight into the writer, so dumping a row doesn't
+ * create any garbage beyond what the JDBC driver hands out. A new INSERT statement is started once
+ * the current one gets longer than {@link #MAX_STATEMENT_LENGTH}, so that it stays well under the
+ * max_allowed_packet of the server loading it.
+ */
+public class SqlDumpWriter {
+	
+	/**
+	 * Characters after which the current INSERT is closed and a new one started
+	 */
+	public static final int MAX_STATEMENT_LENGTH = 1024 * 1024;
+	
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	
+	private final Writer out;
+	
+	private final byte[] buffer = new byte[8192];
+	
+	private String tableName = null;
+	
+	private long statementLength = 0;
+	
+	private long rows = 0;
+	
+	/**
+	 * @param out where the statements are written, should be buffered
+	 */
+	public SqlDumpWriter(Writer out) {
+		this.out = out;
+	}
+	
+	/**
+	 * Writes a line as is
+	 * 
+	 * @param line the sql or comment to write
+	 * @throws IOException
+	 */
+	public void println(String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+	}
+	
+	/**
+	 * Writes every row of the result set as part of an INSERT into the given table. The result set
+	 * is only read forward, so it can be streamed.
+	 * 
+	 * @param tableName the table the rows go into
+	 * @param rs the rows
+	 * @return the number of rows written
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public long writeRows(String tableName, ResultSet rs) throws SQLException, IOException {
+		ResultSetMetaData md = rs.getMetaData();
+		int numColumns = md.getColumnCount();
+		int[] types = new int[numColumns + 1];
+		for (int i = 1; i <= numColumns; ++i) {
+			types[i] = md.getColumnType(i);
+		}
+		
+		this.tableName = tableName;
+		long written = 0;
+		while (rs.next()) {
+			startRow();
+			for (int i = 1; i <= numColumns; ++i) {
+				if (i != 1)
+					write(',');
+				writeValue(rs, i, types[i], md);
+			}
+			write(')');
+			written++;
+		}
+		endStatement();
+		rows += written;
+		return written;
+	}
+	
+	/**
+	 * @return the number of rows written so far
+	 */
+	public long getRows() {
+		return rows;
+	}
+	
+	/**
+	 * Closes the INSERT statement being written, if any
+	 * 
+	 * @throws IOException
+	 */
+	public void endStatement() throws IOException {
+		if (statementLength > 0) {
+			out.write(";\n");
+			statementLength = 0;
+		}
+	}
+	
+	/**
+	 * Writes a string as a quoted mysql literal
+	 * 
+	 * @param value the string to write
+	 * @throws IOException
+	 */
+	public void writeString(String value) throws IOException {
+		write('\'');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case 0:
+					write('\\');
+					write('0');
+					break;
+				case '\n':
+					write('\\');
+					write('n');
+					break;
+				case '\r':
+					write('\\');
+					write('r');
+					break;
+				case '\t':
+					write('\\');
+					write('t');
+					break;
+				case '\b':
+					write('\\');
+					write('b');
+					break;
+				case 26:
+					write('\\');
+					write('Z');
+					break;
+				case '\'':
+				case '"':
+				case '\\':
+					write('\\');
+					write(c);
+					break;
+				default:
+					write(c);
+			}
+		}
+		write('\'');
+	}
+	
+	/**
+	 * Writes binary data as a hex literal
+	 * 
+	 * @param in the data to write, read to the end but not closed
+	 * @throws IOException
+	 */
+	public void writeBytes(InputStream in) throws IOException {
+		boolean empty = true;
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			if (empty) {
+				write('0');
+				write('x');
+				empty = false;
+			}
+			for (int i = 0; i < read; i++) {
+				write(HEX[(buffer[i] >> 4) & 0x0F]);
+				write(HEX[buffer[i] & 0x0F]);
+			}
+		}
+		if (empty) {
+			write('\'');
+			write('\'');
+		}
+	}
+	
+	private void writeValue(ResultSet rs, int i, int type, ResultSetMetaData md) throws SQLException, IOException {
+		switch (type) {
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB:
+				InputStream in = rs.getBinaryStream(i);
+				if (in == null) {
+					writeNull();
+				} else {
+					try {
+						writeBytes(in);
+					}
+					finally {
+						in.close();
+					}
+				}
+				break;
+			case Types.BIT:
+			case Types.BOOLEAN:
+				boolean bool = rs.getBoolean(i);
+				if (rs.wasNull())
+					writeNull();
+				else
+					write(bool ? '1' : '0');
+				break;
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				writeRaw(rs.getString(i));
+				break;
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+			case Types.CLOB:
+			case Types.DATE:
+			case Types.TIME:
+			case Types.TIMESTAMP:
+				// dates are dumped as the text the server gives, so zero dates and time zones survive
+				String value = rs.getString(i);
+				if (value == null)
+					writeNull();
+				else
+					writeString(value);
+				break;
+			default:
+				throw new SQLException("Can't dump column " + md.getColumnName(i) + " of " + tableName + ", type "
+				        + md.getColumnTypeName(i) + " (" + type + ") isn't handled");
+		}
+	}
+	
+	private void startRow() throws IOException {
+		if (statementLength > MAX_STATEMENT_LENGTH)
+			endStatement();
+		
+		if (statementLength == 0) {
+			out.write("INSERT INTO `");
+			out.write(tableName);
+			out.write("` VALUES ");
+			statementLength = tableName.length() + 22;
+			write('(');
+		} else {
+			write(',');
+			write('\n');
+			write('(');
+		}
+	}
+	
+	private void writeNull() throws IOException {
+		writeRaw("NULL");
+	}
+	
+	private void writeRaw(String value) throws IOException {
+		if (value == null) {
+			writeNull();
+		} else {
+			out.write(value);
+			statementLength += value.length();
+		}
+	}
+	
+	private void write(char c) throws IOException {
+		out.write(c);
+		statementLength++;
+	}
+}
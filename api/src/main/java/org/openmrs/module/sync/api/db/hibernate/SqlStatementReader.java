@@ -0,0 +1,147 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a sql script, like a mysqldump file, into statements. Statements end with a semicolon
+ * outside of quotes and may span lines. Lines starting with -- or # between statements are
+ * comments and skipped. Quoted text is copied as is, escapes included.
+ */
+public class SqlStatementReader {
+	
+	private final Reader in;
+	
+	private final char[] buffer = new char[64 * 1024];
+	
+	private int length = 0;
+	
+	private int index = 0;
+	
+	private long position = 0;
+	
+	private final StringBuilder statement = new StringBuilder(1024);
+	
+	/**
+	 * @param in the script
+	 */
+	public SqlStatementReader(Reader in) {
+		this.in = in;
+	}
+	
+	/**
+	 * @return the number of characters read up to the end of the last statement returned
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * Skips the given number of characters, for starting over where a previous read stopped
+	 * 
+	 * @param chars the position to continue from
+	 * @throws IOException
+	 * @should continue with the statement after the given position
+	 */
+	public void skipTo(long chars) throws IOException {
+		while (position < chars) {
+			if (index == length && !fill())
+				return;
+			int skipped = (int) Math.min(length - index, chars - position);
+			index += skipped;
+			position += skipped;
+		}
+	}
+	
+	/**
+	 * @return the next statement without its semicolon, or null at the end of the script
+	 * @throws IOException
+	 * @should split statements spanning lines
+	 * @should not split on semicolons in quotes
+	 * @should skip comment lines
+	 */
+	public String next() throws IOException {
+		statement.setLength(0);
+		char quote = 0;
+		boolean escape = false;
+		while (true) {
+			if (index == length && !fill())
+				break;
+			char c = buffer[index++];
+			position++;
+			
+			if (quote != 0) {
+				statement.append(c);
+				if (escape)
+					escape = false;
+				else if (c == '\\' && quote != '`')
+					escape = true;
+				else if (c == quote)
+					quote = 0;
+			} else if (statement.length() == 0) {
+				// between statements: skip white space and comment lines
+				if (Character.isWhitespace(c))
+					continue;
+				if (c == '#' || (c == '-' && peek() == '-')) {
+					skipLine();
+					continue;
+				}
+				if (c == ';')
+					continue;
+				statement.append(c);
+				if (c == '\'' || c == '"' || c == '`')
+					quote = c;
+			} else if (c == ';') {
+				return statement.toString();
+			} else {
+				statement.append(c);
+				if (c == '\'' || c == '"' || c == '`')
+					quote = c;
+			}
+		}
+		
+		// a last statement without a semicolon
+		String rest = statement.toString().trim();
+		return rest.length() > 0 ? rest : null;
+	}
+	
+	private int peek() throws IOException {
+		if (index == length && !fill())
+			return -1;
+		return buffer[index];
+	}
+	
+	private void skipLine() throws IOException {
+		while (true) {
+			if (index == length && !fill())
+				return;
+			char c = buffer[index++];
+			position++;
+			if (c == '\n')
+				return;
+		}
+	}
+	
+	private boolean fill() throws IOException {
+		length = in.read(buffer, 0, buffer.length);
+		index = 0;
+		if (length < 0) {
+			length = 0;
+			return false;
+		}
+		return true;
+	}
+}
@@ -14,33 +14,343 @@
 package org.openmrs.module.sync.api.db.hibernate.usertype;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.sql.Clob;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.HibernateException;
 import org.hibernate.usertype.UserType;
+import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncItem;
 import org.openmrs.module.sync.serialization.Item;
 import org.openmrs.module.sync.serialization.Package;
 import org.openmrs.module.sync.serialization.Record;
+import org.openmrs.module.sync.server.compression.CompressionDictionaries;
+import org.openmrs.module.sync.server.compression.DeflateDictionaryCodec;
 import org.xml.sax.SAXParseException;
 
+/**
+ * Stores the collection of {@link SyncItem}s of a sync record as an xml document in a single text
+ * column. <br/>
+ * When {@link #setCompressionEnabled(boolean)} is on, the xml is deflated with the current
+ * {@link CompressionDictionaries compression dictionary} and base64 encoded before being written and
+ * is prefixed with {@link #DICTIONARY_PAYLOAD_MARKER}. Rows are decoded based on that marker, so
+ * compressed and plain rows, and rows compressed with different dictionaries, can live side by side
+ * in the same table. <br/>
+ * When {@link #setSharingEnabled(boolean)} is on, the (possibly compressed) payload is stored once
+ * in the sync_payload table under the SHA-1 of its xml and the column only holds
+ * {@link #SHARED_PAYLOAD_MARKER} followed by that hash, so records with identical payloads share one
+ * copy.
+ */
 public class SyncItemListSerializingUserType implements UserType {
 
-    private static final int[] SQL_TYPES = {Types.CLOB};
+    /**
+     * The payload, and the hash of the shared payload it refers to (null for a payload stored in
+     * the row itself) so that the references to a shared payload can be looked up by an index
+     */
+    private static final int[] SQL_TYPES = {Types.CLOB, Types.VARCHAR};
+    
+    /**
+     * Prefix of a payload stored in the compressed format. The trailing version number allows the
+     * format to change later on without having to guess at the contents of old rows
+     */
+    public static final String COMPRESSED_PAYLOAD_MARKER = "SYNCZ1:";
+    
+    /**
+     * Prefix of a payload compressed with a dictionary. The compressed data starts with the id of
+     * the dictionary, see {@link DeflateDictionaryCodec}.
+     */
+    public static final String DICTIONARY_PAYLOAD_MARKER = "SYNCZ2:";
+    
+    /**
+     * Whether newly written payloads are compressed, see
+     * {@link SyncConstants#PROPERTY_COMPRESS_PAYLOADS}. This is kept here instead of being looked up
+     * on every write because writes happen during a hibernate flush.
+     */
+    private static volatile boolean compressionEnabled = false;
+    
+    /**
+     * Prefix of a payload column value that refers to a row in sync_payload
+     */
+    public static final String SHARED_PAYLOAD_MARKER = "SYNCREF1:";
+    
+    /**
+     * Whether newly written payloads go to the shared sync_payload table, see
+     * {@link SyncConstants#PROPERTY_SHARE_PAYLOADS}
+     */
+    private static volatile boolean sharingEnabled = false;
     
     /** Logger for this class and subclasses */
     protected final Log log = LogFactory.getLog(getClass());
+    
+    public static boolean isCompressionEnabled() {
+    	return compressionEnabled;
+    }
+    
+    public static void setCompressionEnabled(boolean enabled) {
+    	compressionEnabled = enabled;
+    }
+    
+    public static boolean isSharingEnabled() {
+    	return sharingEnabled;
+    }
+    
+    public static void setSharingEnabled(boolean enabled) {
+    	sharingEnabled = enabled;
+    }
+    
+    /**
+     * @param stored the raw value of the payload column
+     * @return true if the given value is a reference to a row in sync_payload
+     */
+    public static boolean isSharedReference(String stored) {
+    	return stored != null && stored.startsWith(SHARED_PAYLOAD_MARKER);
+    }
+    
+    /**
+     * @param stored the raw value of the payload column
+     * @return the hash of the shared payload it refers to, null if it isn't a reference
+     */
+    public static String getSharedPayloadHash(String stored) {
+    	return isSharedReference(stored) ? stored.substring(SHARED_PAYLOAD_MARKER.length()).trim() : null;
+    }
+    
+    /**
+     * Converts the serialized xml of a record into the value for the payload column, storing the
+     * payload in sync_payload first if sharing is enabled
+     * 
+     * @param connection the connection of the current transaction
+     * @param xml the serialized items
+     * @return the value to put in the payload column
+     * @throws SQLException
+     * @should store a payload another transaction is storing at the same time only once
+     */
+    public static String toStoredValue(Connection connection, String xml) throws SQLException {
+    	if (xml == null || !sharingEnabled)
+    		return encodePayload(xml);
+    	
+    	String hash = DigestUtils.shaHex(xml);
+    	Timestamp now = new Timestamp(System.currentTimeMillis());
+    	
+    	// touch the row if it is there already so the cleanup task leaves it alone for a while
+    	if (touchSharedPayload(connection, hash, now))
+    		return SHARED_PAYLOAD_MARKER + hash;
+    	
+    	// on mysql the insert waits for another transaction storing the same payload and then touches its row
+    	boolean mysql = connection.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+    	PreparedStatement insert = connection
+    	        .prepareStatement("insert into sync_payload (hash, payload, last_referenced) values (?, ?, ?)"
+    	                + (mysql ? " on duplicate key update last_referenced = values(last_referenced)" : ""));
+    	try {
+    		insert.setString(1, hash);
+    		insert.setString(2, encodePayload(xml));
+    		insert.setTimestamp(3, now);
+    		insert.executeUpdate();
+    	}
+    	catch (SQLException e) {
+    		// another transaction stored the same payload in the meantime, which a select would not see
+    		// in the snapshot of this one; an update reads the row as it is committed
+    		if (!touchSharedPayload(connection, hash, now))
+    			throw e;
+    	}
+    	finally {
+    		insert.close();
+    	}
+    	
+    	return SHARED_PAYLOAD_MARKER + hash;
+    }
+    
+    /**
+     * @return true if there is a shared payload with the given hash, which is now marked as used at
+     *         the given time
+     */
+    private static boolean touchSharedPayload(Connection connection, String hash, Timestamp now) throws SQLException {
+    	PreparedStatement update = connection.prepareStatement("update sync_payload set last_referenced = ? where hash = ?");
+    	try {
+    		update.setTimestamp(1, now);
+    		update.setString(2, hash);
+    		return update.executeUpdate() > 0;
+    	}
+    	finally {
+    		update.close();
+    	}
+    }
+    
+    /**
+     * Reverses {@link #toStoredValue(Connection, String)}, following a shared reference if needed
+     * 
+     * @param connection the connection of the current transaction
+     * @param stored the raw value of the payload column
+     * @return the serialized xml of the items
+     * @throws SQLException
+     */
+    public static String toXml(Connection connection, String stored) throws SQLException {
+    	if (isSharedReference(stored)) {
+    		String hash = getSharedPayloadHash(stored);
+    		stored = loadSharedPayload(connection, hash);
+    		if (stored == null)
+    			throw new HibernateException("The shared sync payload with hash " + hash + " does not exist");
+    	}
+    	
+    	return decodePayload(stored);
+    }
+    
+    /**
+     * @return the stored (possibly compressed) payload with the given hash, or null if there isn't one
+     */
+    private static String loadSharedPayload(Connection connection, String hash) throws SQLException {
+    	PreparedStatement select = connection.prepareStatement("select payload from sync_payload where hash = ?");
+    	try {
+    		select.setString(1, hash);
+    		ResultSet rs = select.executeQuery();
+    		try {
+    			return rs.next() ? rs.getString(1) : null;
+    		}
+    		finally {
+    			rs.close();
+    		}
+    	}
+    	finally {
+    		select.close();
+    	}
+    }
+    
+    /**
+     * @param stored the raw value of the payload column
+     * @return true if the given value was written in the compressed format
+     */
+    public static boolean isCompressed(String stored) {
+    	return stored != null
+    	        && (stored.startsWith(DICTIONARY_PAYLOAD_MARKER) || stored.startsWith(COMPRESSED_PAYLOAD_MARKER));
+    }
+    
+    /**
+     * Converts the serialized xml of a record into the value that is written to the payload column,
+     * compressing it if compression is currently enabled
+     * 
+     * @param xml the serialized items
+     * @return the value to store
+     */
+    public static String encodePayload(String xml) {
+    	if (xml == null || !compressionEnabled)
+    		return xml;
+    	
+    	try {
+    		byte[] input = xml.getBytes(SyncConstants.UTF8);
+    		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+    		OutputStream compressed = new DeflateDictionaryCodec(CompressionDictionaries.getCurrent()).compress(out,
+    		    Deflater.BEST_SPEED);
+    		compressed.write(input);
+    		compressed.close();
+    		// not Base64.encodeBase64String: that chunks the output into 76 character lines
+    		return DICTIONARY_PAYLOAD_MARKER + new String(Base64.encodeBase64(out.toByteArray()), "US-ASCII");
+    	}
+    	catch (IOException e) {
+    		throw new HibernateException("Could not compress sync record payload", e);
+    	}
+    }
+    
+    /**
+     * Reverses {@link #encodePayload(String)}. Values without the compressed marker are returned
+     * untouched so rows written before compression was turned on are still readable, as are rows
+     * compressed before dictionaries were used.
+     * 
+     * @param stored the raw value of the payload column
+     * @return the serialized xml of the items
+     */
+    public static String decodePayload(String stored) {
+    	if (!isCompressed(stored))
+    		return stored;
+    	
+    	if (stored.startsWith(DICTIONARY_PAYLOAD_MARKER)) {
+    		try {
+    			byte[] input = Base64.decodeBase64(stored.substring(DICTIONARY_PAYLOAD_MARKER.length()).getBytes("US-ASCII"));
+    			InputStream in = new DeflateDictionaryCodec().decompress(new ByteArrayInputStream(input));
+    			try {
+    				return new String(IOUtils.toByteArray(in), SyncConstants.UTF8);
+    			}
+    			finally {
+    				in.close();
+    			}
+    		}
+    		catch (EOFException e) {
+    			throw new HibernateException("Compressed sync record payload is truncated", e);
+    		}
+    		catch (IOException e) {
+    			throw new HibernateException("Could not decompress sync record payload", e);
+    		}
+    	}
+    	
+    	Inflater inflater = new Inflater();
+    	try {
+    		byte[] input = Base64.decodeBase64(stored.substring(COMPRESSED_PAYLOAD_MARKER.length()).getBytes("US-ASCII"));
+    		inflater.setInput(input);
+    		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+    		byte[] buffer = new byte[8192];
+    		while (!inflater.finished()) {
+    			int length = inflater.inflate(buffer);
+    			if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+    				throw new HibernateException("Compressed sync record payload is truncated");
+    			out.write(buffer, 0, length);
+    		}
+    		return new String(out.toByteArray(), SyncConstants.UTF8);
+    	}
+    	catch (IOException e) {
+    		throw new HibernateException("Could not decompress sync record payload", e);
+    	}
+    	catch (DataFormatException e) {
+    		throw new HibernateException("Could not decompress sync record payload", e);
+    	}
+    	finally {
+    		inflater.end();
+    	}
+    }
+    
+    /**
+     * Turns the (already decoded) xml of a payload back into sync items
+     * 
+     * @param content the serialized xml of the items
+     * @return the items
+     * @throws Exception if the xml can't be parsed
+     */
+    public static Collection<SyncItem> deserializeItems(String content) throws Exception {
+    	Collection<SyncItem> items = new LinkedList<SyncItem>();
+    	
+    	Package pkg = new Package();
+    	Record record = pkg.createRecordFromString(content);
+    	Item root = record.getRootItem();
+    	List<Item> itemsToDeSerialize = record.getItems(root);
+    	
+    	for (Item i : itemsToDeSerialize) {
+    		SyncItem syncItem = new SyncItem();
+    		syncItem.load(record, i);
+    		items.add(syncItem);
+    	}
+    	
+    	return items;
+    }
 
     /**
      * @see org.hibernate.usertype.UserType#assemble(java.io.Serializable, java.lang.Object)
@@ -116,23 +426,15 @@ public class SyncItemListSerializingUserType implements UserType {
                 }
                 // End workaround
                 
-                Collection<SyncItem> items = new LinkedList<SyncItem>();
+                String xml = toXml(rs.getStatement().getConnection(), content.toString());
                 
-                Package pkg = new Package();
+                Collection<SyncItem> items;
                 try {
-                    Record record = pkg.createRecordFromString(content.toString());
-                    Item root = record.getRootItem();
-                    List<Item> itemsToDeSerialize = record.getItems(root);
-                    
-                    for(Item i : itemsToDeSerialize) {
-                        SyncItem syncItem = new SyncItem();
-                        syncItem.load(record, i);
-                        items.add(syncItem);
-                    }
+                    items = deserializeItems(xml);
                 } catch (SAXParseException e) {
                 	log.error("Error processing XML at column " + e.getColumnNumber() + ", and line number " + e.getLineNumber()
                 	          + "; public ID of entity causing error: " + e.getPublicId() + "; system id of entity causing error: " + e.getSystemId()
-                	          + "; contents: " + content.toString());
+                	          + "; contents: " + xml);
                     throw new HibernateException("Error processing XML while deserializing object from storage", e);
                 } catch (Exception e) {
                     throw new HibernateException("Could not deserialize object from storage", e);
@@ -151,9 +453,11 @@ public class SyncItemListSerializingUserType implements UserType {
             throws HibernateException, SQLException {
         if (value == null) {
             ps.setNull(index, Types.CLOB);
+            ps.setNull(index + 1, Types.VARCHAR);
         } else if (value instanceof String) {
         	// if the user is doing a search of the payload items
         	ps.setString(index, (String)value);
+        	ps.setNull(index + 1, Types.VARCHAR);
         }
         else {
             Collection<SyncItem> items = (Collection<SyncItem>) value;
@@ -176,7 +480,9 @@ public class SyncItemListSerializingUserType implements UserType {
             //02/09/2008: replaced setClob() with setString() to deal with encoding issues: mysql Clob inexplicably truncates if
             // it encounters non-ASCII character
             //ps.setClob(index, Hibernate.createClob(record.toStringAsDocumentFragement()));            
-            ps.setString(index, newRecord);
+            String stored = toStoredValue(ps.getConnection(), newRecord);
+            ps.setString(index, stored);
+            ps.setString(index + 1, getSharedPayloadHash(stored));
         }
     }
 
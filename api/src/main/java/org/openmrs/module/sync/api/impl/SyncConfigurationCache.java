@@ -0,0 +1,316 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.module.sync.SyncClass;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.module.sync.server.ServerClassFilter;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Read-through cache of the sync configuration used by {@link SyncServiceImpl}: which remote servers
+ * and sync classes exist (by id, so the entities themselves come out of the hibernate session and
+ * second level cache), the {@link ServerClassFilter} of each server, the values of the sync global
+ * properties and the {@link SyncSettings} parsed from them. <br/>
+ * Everything here is invalidated by the {@link org.openmrs.module.sync.api.SyncService} methods that
+ * change the configuration, both right away and again when their transaction completes so that
+ * other threads don't pick up a value that ends up being rolled back. Changes to global properties
+ * made elsewhere are picked up through a global property listener, see
+ * {@link org.openmrs.module.sync.SyncModuleActivator}, which is also what turns the cache on. Only
+ * global properties starting with {@link #GLOBAL_PROPERTY_PREFIX} are cached because the listener
+ * only watches those.
+ */
+public class SyncConfigurationCache {
+	
+	/**
+	 * Stand-in for a global property that doesn't exist, so that misses are cached too
+	 */
+	private static final String NO_VALUE = new String("<no value>");
+	
+	public static final String GLOBAL_PROPERTY_PREFIX = "sync.";
+	
+	private static volatile boolean enabled = false;
+	
+	private static final Map<String, String> globalProperties = new ConcurrentHashMap<String, String>();
+	
+	private static volatile ServerIndex serverIndex = null;
+	
+	private static volatile List<Integer> syncClassIds = null;
+	
+	private static volatile SyncSettings settings = null;
+	
+	private static final Map<Integer, ServerClassFilter> classFilters = new ConcurrentHashMap<Integer, ServerClassFilter>();
+	
+	private SyncConfigurationCache() {
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Turns the cache on or off. It is off until the module has started so that nothing is cached
+	 * without the listeners that keep it coherent being in place.
+	 * 
+	 * @param enabled whether to cache
+	 */
+	public static void setEnabled(boolean enabled) {
+		clear();
+		SyncConfigurationCache.enabled = enabled;
+	}
+	
+	/**
+	 * @param propertyName the global property to look up
+	 * @return true if the value of the given property is cached (even if the property doesn't exist)
+	 */
+	public static boolean containsGlobalProperty(String propertyName) {
+		return enabled && propertyName != null && globalProperties.containsKey(propertyName);
+	}
+	
+	/**
+	 * @param propertyName the global property to look up
+	 * @return the cached value, or null if it is not cached or doesn't exist
+	 * @see #containsGlobalProperty(String)
+	 */
+	public static String getGlobalProperty(String propertyName) {
+		String value = globalProperties.get(propertyName);
+		return value == NO_VALUE ? null : value;
+	}
+	
+	public static void putGlobalProperty(String propertyName, String value) {
+		if (enabled && propertyName != null && propertyName.startsWith(GLOBAL_PROPERTY_PREFIX))
+			globalProperties.put(propertyName, value == null ? NO_VALUE : value);
+	}
+	
+	public static void invalidateGlobalProperty(final String propertyName) {
+		if (propertyName == null)
+			return;
+		
+		globalProperties.remove(propertyName);
+		settings = null;
+		afterTransaction(new Runnable() {
+			
+			public void run() {
+				globalProperties.remove(propertyName);
+				settings = null;
+			}
+		});
+	}
+	
+	/**
+	 * @return the cached settings, or null if they have to be read
+	 */
+	public static SyncSettings getSettings() {
+		return enabled ? settings : null;
+	}
+	
+	public static void putSettings(SyncSettings syncSettings) {
+		if (enabled)
+			settings = syncSettings;
+	}
+	
+	/**
+	 * @return the cached server index, or null if it has to be loaded
+	 */
+	public static ServerIndex getServerIndex() {
+		return enabled ? serverIndex : null;
+	}
+	
+	/**
+	 * Builds and caches the index for the given servers
+	 * 
+	 * @param servers all remote servers
+	 * @return the new index
+	 */
+	public static ServerIndex putServers(List<RemoteServer> servers) {
+		ServerIndex index = new ServerIndex(servers);
+		if (enabled)
+			serverIndex = index;
+		return index;
+	}
+	
+	public static void invalidateServers() {
+		serverIndex = null;
+		afterTransaction(new Runnable() {
+			
+			public void run() {
+				serverIndex = null;
+			}
+		});
+	}
+	
+	/**
+	 * @return the ids of all sync classes, or null if they have to be loaded
+	 */
+	public static List<Integer> getSyncClassIds() {
+		return enabled ? syncClassIds : null;
+	}
+	
+	public static void putSyncClasses(List<SyncClass> syncClasses) {
+		if (!enabled)
+			return;
+		
+		List<Integer> ids = new ArrayList<Integer>(syncClasses.size());
+		for (SyncClass syncClass : syncClasses) {
+			ids.add(syncClass.getSyncClassId());
+		}
+		syncClassIds = Collections.unmodifiableList(ids);
+	}
+	
+	/**
+	 * Drops the list of sync classes. The class filters copy the class names, so whoever renames or
+	 * deletes a class has to drop them too, see {@link #invalidateClassFilters()}
+	 */
+	public static void invalidateSyncClasses() {
+		syncClassIds = null;
+		afterTransaction(new Runnable() {
+			
+			public void run() {
+				syncClassIds = null;
+			}
+		});
+	}
+	
+	/**
+	 * @param serverId the server to look up
+	 * @return the cached class filter of the given server, or null if it has to be built
+	 */
+	public static ServerClassFilter getClassFilter(Integer serverId) {
+		return enabled && serverId != null ? classFilters.get(serverId) : null;
+	}
+	
+	public static void putClassFilter(Integer serverId, ServerClassFilter filter) {
+		if (enabled && serverId != null)
+			classFilters.put(serverId, filter);
+	}
+	
+	/**
+	 * Drops the class filters of all servers, to be called whenever the classes set up for a server
+	 * may have changed
+	 */
+	public static void invalidateClassFilters() {
+		classFilters.clear();
+		afterTransaction(new Runnable() {
+			
+			public void run() {
+				classFilters.clear();
+			}
+		});
+	}
+	
+	/**
+	 * Drops everything in the cache
+	 */
+	public static void clear() {
+		globalProperties.clear();
+		serverIndex = null;
+		syncClassIds = null;
+		settings = null;
+		classFilters.clear();
+	}
+	
+	/**
+	 * Runs the given invalidation again once the current transaction (if any) has completed
+	 */
+	private static void afterTransaction(final Runnable invalidation) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCompletion(int status) {
+					invalidation.run();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Immutable lookup tables from the different ways a remote server is looked up to its id
+	 */
+	public static class ServerIndex {
+		
+		private final List<Integer> serverIds;
+		
+		private final Map<String, Integer> byUuid;
+		
+		private final Map<String, Integer> byChildUsername;
+		
+		private final Integer parentServerId;
+		
+		private ServerIndex(List<RemoteServer> servers) {
+			List<Integer> ids = new ArrayList<Integer>(servers.size());
+			Map<String, Integer> uuids = new HashMap<String, Integer>();
+			Map<String, Integer> usernames = new HashMap<String, Integer>();
+			Integer parentId = null;
+			for (RemoteServer server : servers) {
+				ids.add(server.getServerId());
+				if (server.getUuid() != null)
+					uuids.put(server.getUuid(), server.getServerId());
+				if (server.getChildUsername() != null)
+					usernames.put(server.getChildUsername(), server.getServerId());
+				if (RemoteServerType.PARENT.equals(server.getServerType()))
+					parentId = server.getServerId();
+			}
+			this.serverIds = Collections.unmodifiableList(ids);
+			this.byUuid = uuids;
+			this.byChildUsername = usernames;
+			this.parentServerId = parentId;
+		}
+		
+		public List<Integer> getServerIds() {
+			return serverIds;
+		}
+		
+		public Integer getServerId(String uuid) {
+			return byUuid.get(uuid);
+		}
+		
+		public Integer getServerIdByChildUsername(String username) {
+			return byChildUsername.get(username);
+		}
+		
+		/**
+		 * @return the id of the parent server, or null if this server has no parent
+		 */
+		public Integer getParentServerId() {
+			return parentServerId;
+		}
+		
+		/**
+		 * @param server a saved server
+		 * @return true if this index still finds the given server the same way
+		 */
+		public boolean isIndexed(RemoteServer server) {
+			Integer serverId = server.getServerId();
+			if (serverId == null || !serverIds.contains(serverId))
+				return false;
+			if (server.getUuid() == null ? byUuid.containsValue(serverId) : !serverId.equals(byUuid.get(server.getUuid())))
+				return false;
+			if (server.getChildUsername() == null ? byChildUsername.containsValue(serverId) : !serverId
+			        .equals(byChildUsername.get(server.getChildUsername())))
+				return false;
+			return RemoteServerType.PARENT.equals(server.getServerType()) == serverId.equals(parentServerId);
+		}
+	}
+}
@@ -16,8 +16,10 @@ package org.openmrs.module.sync.api.impl;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -83,7 +85,8 @@ public class SyncIngestServiceImpl implements SyncIngestService {
                     } else if ( importRecord.getState().equals(SyncRecordState.NOT_SUPPOSED_TO_SYNC) ) record.setState(SyncRecordState.REJECTED);
                     else record.setState(importRecord.getState());
                 } else {
-                    // with non-parents we set state in the server-record
+                    // with non-parents we set state in the server-record (a child keeping a cursor may not have one yet)
+                    record.addServerRecord(server);
                     SyncServerRecord serverRecord = record.getServerRecord(server);
                     if ( importRecord.getState().equals(SyncRecordState.ALREADY_COMMITTED) ) serverRecord.setState(SyncRecordState.COMMITTED);
                     else if ( importRecord.getState().equals(SyncRecordState.REJECTED) ) {
@@ -339,7 +342,7 @@ public class SyncIngestServiceImpl implements SyncIngestService {
 	 * <br/>- call to formentry module and attempt to rebuild XSN, 
 	 * <br/>- HashMap object will contain instance of Form object to be rebuilt
 	 * <br/>UPDATE CONCEPT WORDS 
-	 * <br/>- call to concept service to update concept words for given concept 
+	 * <br/>- call to concept service to update concept words for given concept, once per concept
 	 * <br/>- HashMap object will contain instance of Concept object which concept words are to be rebuilt
 	 * 
 	 * @param preCommitRecordActions actions to be applied
@@ -370,17 +373,23 @@ public class SyncIngestServiceImpl implements SyncIngestService {
 			
 		}
 		
-		// fix concept words for all names found
+		// fix concept words for all names found, once per concept however many of its names came through
 		List<SyncProcessedObject> names = processedObjects.get("org.openmrs.ConceptName");
 		if (names != null) {
+			Set<Integer> conceptIds = new LinkedHashSet<Integer>();
 			for (SyncProcessedObject o : names) {
 				// we only want to update the concept words if this is NOT a delete action
 				if (o.getState() != SyncItemState.DELETED) {
-                    // we need to reload the concept here because the session has been cleared earlier
-					Concept c = Context.getConceptService().getConcept(((ConceptName) o.getObject()).getConcept().getId());
-					Context.getConceptService().updateConceptWord(c);
+					conceptIds.add(((ConceptName) o.getObject()).getConcept().getId());
 				}
 			}
+			for (Integer conceptId : conceptIds) {
+                // we need to reload the concept here because the session has been cleared earlier
+				Concept c = Context.getConceptService().getConcept(conceptId);
+				Context.getConceptService().updateConceptWord(c);
+			}
+			if (log.isDebugEnabled())
+				log.debug("Updated concept words of " + conceptIds.size() + " concepts for " + names.size() + " names");
 		}
 	}
     
@@ -13,15 +13,22 @@
  */
 package org.openmrs.module.sync.api.impl;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -39,12 +46,19 @@ import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.api.db.SerializedObjectDAO;
+import org.openmrs.module.sync.SegmentChecksums;
 import org.openmrs.module.sync.SyncClass;
+import org.openmrs.module.sync.SyncCloneSnapshot;
 import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncDependencyTracker;
 import org.openmrs.module.sync.SyncSubclassStub;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordFragmentCache;
+import org.openmrs.module.sync.SyncPayloadStorageReport;
+import org.openmrs.module.sync.SyncRecordPosition;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.SyncServerClass;
+import org.openmrs.module.sync.SyncSettings;
 import org.openmrs.module.sync.SyncStatistic;
 import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.api.SyncService;
@@ -53,8 +67,13 @@ import org.openmrs.module.sync.api.db.hibernate.HibernateSyncInterceptor;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.module.sync.server.ServerClassFilter;
 import org.openmrs.module.sync.server.SyncServerRecord;
+import org.openmrs.module.sync.server.compression.CompressionDictionaries;
+import org.openmrs.module.sync.server.compression.CompressionDictionary;
+import org.openmrs.module.sync.server.compression.DictionaryTrainer;
 import org.openmrs.util.OpenmrsConstants;
+import org.springframework.util.StringUtils;
 
 /**
  * Default implementation of the {@link SyncService}
@@ -129,32 +148,82 @@ public class SyncServiceImpl implements SyncService {
 				}
 			}
 			
-			// before creation, we need to make sure that we create matching entries for each server (server-record relationship)
-			Set<SyncServerRecord> serverRecords = record.getServerRecords();
-			if (serverRecords == null) {
-				log.debug("IN createSyncRecord(), SERVERRECORDS ARE NULL, SO SETTING DEFAULTS");
-				serverRecords = new HashSet<SyncServerRecord>();
-				List<RemoteServer> servers = this.getRemoteServers();
-				if (servers != null) {
-					for (RemoteServer server : servers) {
-						// we only need to create extra server-records for servers that are NOT the parent - the parent state is kept in the actual sync record
-						if (!server.getServerType().equals(RemoteServerType.PARENT)) {
-							SyncServerRecord serverRecord = new SyncServerRecord(server, record);
-							// can't compare with .equals because of so many variables in it. SYNC-227
-							if (server != null && origin != null && server.getServerId().equals(origin.getServerId())) {
-								log.info("this record came from server " + origin.getNickname()
-								        + ", so we will set its status to commmitted");
-								serverRecord.setState(SyncRecordState.COMMITTED);
-							}
-							serverRecords.add(serverRecord);
-						}
+			// we need to make sure that we create matching entries for each server (server-record relationship)
+			if (record.getServerRecords() != null) {
+				getSynchronizationDAO().createSyncRecord(record);
+				return;
+			}
+			
+			// fan out: work out the state of the record for every child up front, then write them all at once
+			Map<Integer, SyncRecordState> states = new LinkedHashMap<Integer, SyncRecordState>();
+			List<RemoteServer> servers = this.getRemoteServers();
+			if (servers != null) {
+				for (RemoteServer server : servers) {
+					// we only need to create extra server-records for servers that are NOT the parent - the parent state is kept in the actual sync record
+					if (server.getServerType().equals(RemoteServerType.PARENT))
+						continue;
+					
+					// a child keeping a cursor only needs a row if it isn't simply to be sent the record
+					boolean cursor = server.getAcknowledgedRecordId() != null;
+					
+					// can't compare with .equals because of so many variables in it. SYNC-227
+					if (origin != null && server.getServerId().equals(origin.getServerId())) {
+						log.info("this record came from server " + origin.getNickname()
+						        + ", so we will set its status to commmitted");
+						states.put(server.getServerId(), SyncRecordState.COMMITTED);
+					} else if (!getClassFilter(server).isSent(record)) {
+						states.put(server.getServerId(), SyncRecordState.NOT_SUPPOSED_TO_SYNC);
+					} else if (!cursor) {
+						states.put(server.getServerId(), SyncRecordState.NEW);
 					}
 				}
-				record.setServerRecords(serverRecords);
 			}
 			
+			record.setServerRecords(new HashSet<SyncServerRecord>());
 			getSynchronizationDAO().createSyncRecord(record);
+			getSynchronizationDAO().createSyncServerRecords(record, states);
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#initializeChildCursor(org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public boolean initializeChildCursor(RemoteServer server) throws APIException {
+		if (server.getAcknowledgedRecordId() == null && getSyncSettings().isChildCursors()) {
+			Integer cursor = getSynchronizationDAO().initializeChildCursor(server,
+			    getSynchronizationDAO().getSettledRecordId());
+			if (cursor != null)
+				log.info("Keeping the progress of " + server.getNickname() + " as a cursor, starting after record "
+				        + cursor);
 		}
+		return server.getAcknowledgedRecordId() != null;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#advanceChildCursor(org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public void advanceChildCursor(RemoteServer server) throws APIException {
+		if (server == null || RemoteServerType.PARENT.equals(server.getServerType())
+		        || server.getAcknowledgedRecordId() == null)
+			return;
+		
+		Integer cursor = getSynchronizationDAO().advanceChildCursor(server,
+		    getSynchronizationDAO().getSettledRecordId());
+		if (log.isDebugEnabled())
+			log.debug("Acknowledged cursor of " + server.getNickname() + " is at record " + cursor);
+	}
+	
+	/**
+	 * @param server the server to get the filter for
+	 * @return the (cached) filter for the classes set up for the given server
+	 */
+	private ServerClassFilter getClassFilter(RemoteServer server) {
+		ServerClassFilter filter = SyncConfigurationCache.getClassFilter(server.getServerId());
+		if (filter == null) {
+			filter = server.getClassFilter();
+			SyncConfigurationCache.putClassFilter(server.getServerId(), filter);
+		}
+		return filter;
 	}
 	
 	/**
@@ -210,6 +279,74 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getEarliestRecord(afterDate);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getLatestRecordId()
+	 */
+	public Integer getLatestRecordId() throws APIException {
+		return getSynchronizationDAO().getLatestRecordId();
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getEarliestRecordId(java.util.Date)
+	 */
+	public Integer getEarliestRecordId(Date afterDate) throws APIException {
+		return getSynchronizationDAO().getEarliestRecordId(afterDate);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getFirstSyncRecordPositionInState(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.util.EnumSet)
+	 */
+	public SyncRecordPosition getFirstSyncRecordPositionInState(RemoteServer server, EnumSet<SyncRecordState> states)
+	                                                                                                                throws APIException {
+		return getSynchronizationDAO().getFirstSyncRecordPositionInState(server, states);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getHeldBackSyncRecords(org.openmrs.module.sync.server.RemoteServer,
+	 *      java.lang.Integer)
+	 */
+	public List<SyncRecord> getHeldBackSyncRecords(RemoteServer server, Integer maxSyncRecords) throws APIException {
+		List<SyncRecord> heldBack = new ArrayList<SyncRecord>();
+		
+		SyncDependencyTracker tracker = getStoppedSyncRecordTracker(server);
+		if (tracker.getHeldBackCount() == 0)
+			return heldBack;
+		
+		// records for the parent keep their state on the record itself
+		RemoteServer target = RemoteServerType.PARENT.equals(server.getServerType()) ? null : server;
+		for (SyncRecord record : getSynchronizationDAO().getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, false,
+		    maxSyncRecords, target, null)) {
+			if (!tracker.isHeldBack(record.getUuid()) && tracker.dependsOnHeldBack(record)) {
+				tracker.holdBack(record);
+				heldBack.add(record);
+			}
+		}
+		return heldBack;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getStoppedSyncRecordTracker(org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public SyncDependencyTracker getStoppedSyncRecordTracker(RemoteServer server) throws APIException {
+		SyncDependencyTracker tracker = new SyncDependencyTracker();
+		
+		// records for the parent keep their state on the record itself
+		RemoteServer target = RemoteServerType.PARENT.equals(server.getServerType()) ? null : server;
+		for (String uuid : getSynchronizationDAO().getSyncRecordUuids(
+		    new SyncRecordState[] { SyncRecordState.FAILED_AND_STOPPED }, target)) {
+			SyncDependencyTracker.Footprint footprint = SyncDependencyTracker.getCachedFootprint(uuid);
+			if (footprint == null) {
+				SyncRecord record = getSynchronizationDAO().getSyncRecord(uuid);
+				if (record == null)
+					continue;
+				footprint = SyncDependencyTracker.getFootprint(record);
+			}
+			tracker.holdBack(uuid, footprint);
+		}
+		return tracker;
+	}
+	
 	/**
 	 * @see org.openmrs.api.SyncService#getSyncRecord(java.lang.String)
 	 */
@@ -225,6 +362,15 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getOlderSyncRecordInState(syncRecord, states);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getOlderSyncRecordIdInState(org.openmrs.module.sync.SyncRecord,
+	 *      java.util.EnumSet)
+	 */
+	public Integer getOlderSyncRecordIdInState(SyncRecord syncRecord, EnumSet<SyncRecordState> states) throws APIException {
+		return getSynchronizationDAO().getOlderSyncRecordIdInState(syncRecord.getRecordId(), syncRecord.getTimestamp(),
+		    states);
+	}
+	
 	/**
 	 * @see org.openmrs.api.SyncService#getSyncImportRecords(org.openmrs.module.sync.engine.SyncRecordState)
 	 */
@@ -232,6 +378,15 @@ public class SyncServiceImpl implements SyncService {
 		return getSynchronizationDAO().getSyncImportRecords(state);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getCommittedSyncImportUuids(java.util.Collection)
+	 */
+	public Set<String> getCommittedSyncImportUuids(Collection<String> uuids) throws APIException {
+		if (uuids == null || uuids.isEmpty())
+			return new HashSet<String>();
+		return getSynchronizationDAO().getCommittedSyncImportUuids(uuids);
+	}
+	
 	/**
 	 * @see org.openmrs.api.SyncService#getSyncRecords()
 	 */
@@ -266,6 +421,7 @@ public class SyncServiceImpl implements SyncService {
 			if (server.getServerType().equals(RemoteServerType.PARENT)) {
 				ret = this.getSyncRecords(states, maxSyncRecords, firstRecordId);
 			} else {
+				initializeChildCursor(server);
 				ret = getSynchronizationDAO().getSyncRecords(states, false, maxSyncRecords, server, firstRecordId);
 			}
 		}
@@ -274,8 +430,9 @@ public class SyncServiceImpl implements SyncService {
 		// and update their status
 		if (ret != null) {
 			temp = new ArrayList<SyncRecord>();
+			ServerClassFilter filter = getClassFilter(server);
 			for (SyncRecord record : ret) {
-				if (server.shouldBeSentSyncRecord(record)) {
+				if (filter.isSent(record)) {
 					record.setForServer(server);
 					temp.add(record);
 					
@@ -286,6 +443,8 @@ public class SyncServiceImpl implements SyncService {
 						record.setState(SyncRecordState.NOT_SUPPOSED_TO_SYNC);
 					} else {
 						// if not the parent, we have to update the record for this specific server
+						// (a child keeping a cursor may not have a row for it yet)
+						record.addServerRecord(server);
 						Set<SyncServerRecord> records = record.getServerRecords();
 						for (SyncServerRecord serverRecord : records) {
 							if (serverRecord.getSyncServer().equals(server)) {
@@ -389,14 +548,109 @@ public class SyncServiceImpl implements SyncService {
 			}
 		}
 		
+		// keep what a child seeded from the clone snapshot would still have to be sent
+		SyncCloneSnapshot snapshot = getCloneSnapshot();
+		if (snapshot != null) {
+			Date taken = snapshot.getPosition().getTimestamp();
+			if (taken == null)
+				taken = snapshot.getDateCreated();
+			if (to != null && to.after(taken))
+				to = new Date(taken.getTime() - 1000);
+		}
+		
 		return getSynchronizationDAO().deleteSyncRecords(states, to);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#recodeSyncRecordPayloads(java.lang.Integer,
+	 *      java.lang.Integer)
+	 */
+	public SyncPayloadStorageReport recodeSyncRecordPayloads(Integer afterRecordId, Integer batchSize)
+	        throws APIException {
+		if (batchSize == null || batchSize < 1)
+			throw new APIException("batchSize must be a positive number");
+		
+		return getSynchronizationDAO().recodeSyncRecordPayloads(afterRecordId, batchSize);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#deleteUnreferencedSyncPayloads(java.util.Date)
+	 */
+	public Integer deleteUnreferencedSyncPayloads(Date referencedBefore) throws APIException {
+		return getSynchronizationDAO().deleteUnreferencedSyncPayloads(referencedBefore);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#trainCompressionDictionary(java.lang.Integer,
+	 *      java.lang.Integer)
+	 */
+	public CompressionDictionary trainCompressionDictionary(Integer sampleSize, Integer dictionarySize)
+	        throws APIException {
+		if (sampleSize == null || sampleSize < 1)
+			throw new APIException("sampleSize must be a positive number");
+		if (dictionarySize == null || dictionarySize < DictionaryTrainer.SEGMENT_LENGTH
+		        || dictionarySize > CompressionDictionaries.MAX_DICTIONARY_SIZE)
+			throw new APIException("dictionarySize must be between " + DictionaryTrainer.SEGMENT_LENGTH + " and "
+			        + CompressionDictionaries.MAX_DICTIONARY_SIZE);
+		
+		DictionaryTrainer trainer = new DictionaryTrainer();
+		try {
+			for (String xml : getSynchronizationDAO().getSyncRecordPayloadSample(sampleSize)) {
+				trainer.addSample(xml.getBytes(SyncConstants.UTF8));
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new APIException("Unable to read the sync record payloads", e);
+		}
+		
+		// anything learned from one or two records is only good for those records
+		if (trainer.getSampleCount() < 10)
+			throw new APIException("There are only " + trainer.getSampleCount()
+			        + " sync records to train a compression dictionary on, at least 10 are needed");
+		
+		byte[] dictionary = trainer.train(dictionarySize);
+		if (dictionary.length == 0)
+			throw new APIException("The sync records have nothing in common to put in a compression dictionary");
+		
+		CompressionDictionary saved = CompressionDictionaries.save(dictionary);
+		log.info("Trained compression dictionary " + saved + " on " + trainer.getSampleCount() + " sync records");
+		return saved;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#updateSyncRecordsToSent(java.util.Collection,
+	 *      org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public void updateSyncRecordsToSent(Collection<SyncRecord> records, RemoteServer server) throws APIException {
+		if (server == null)
+			throw new APIException("The server the records were sent to is required");
+		
+		getSynchronizationDAO().updateSyncRecordsToSent(records, server);
+	}
+	
 	/**
 	 * @see org.openmrs.api.SyncService#getGlobalProperty(java.lang.String)
 	 */
 	public String getGlobalProperty(String propertyName) throws APIException {
-		return getSynchronizationDAO().getGlobalProperty(propertyName);
+		if (SyncConfigurationCache.containsGlobalProperty(propertyName))
+			return SyncConfigurationCache.getGlobalProperty(propertyName);
+		
+		String value = getSynchronizationDAO().getGlobalProperty(propertyName);
+		SyncConfigurationCache.putGlobalProperty(propertyName, value);
+		return value;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getSyncSettings()
+	 */
+	public SyncSettings getSyncSettings() throws APIException {
+		SyncSettings settings = SyncConfigurationCache.getSettings();
+		if (settings == null) {
+			settings = SyncSettings.read(this);
+			SyncConfigurationCache.putSettings(settings);
+			SyncRecordFragmentCache.getInstance().setMaxSize(settings.getSerializedRecordCacheSize());
+		}
+		return settings;
 	}
 	
 	/**
@@ -404,6 +658,7 @@ public class SyncServiceImpl implements SyncService {
 	 */
 	public void setGlobalProperty(String propertyName, String propertyValue) throws APIException {
 		getSynchronizationDAO().setGlobalProperty(propertyName, propertyValue);
+		SyncConfigurationCache.invalidateGlobalProperty(propertyName);
 	}
 	
 	/**
@@ -426,6 +681,13 @@ public class SyncServiceImpl implements SyncService {
 			}
 			
 			getSynchronizationDAO().saveRemoteServer(server);
+			SyncConfigurationCache.invalidateClassFilters();
+			
+			// saving the last sync date after each transmission doesn't change how servers are looked up
+			SyncConfigurationCache.ServerIndex index = SyncConfigurationCache.getServerIndex();
+			if (index == null || !index.isIndexed(server))
+				SyncConfigurationCache.invalidateServers();
+			
 			refreshServerClassesCollection();
 		}
 	}
@@ -435,6 +697,8 @@ public class SyncServiceImpl implements SyncService {
 	 */
 	public void deleteRemoteServer(RemoteServer server) throws APIException {
 		getSynchronizationDAO().deleteRemoteServer(server);
+		SyncConfigurationCache.invalidateServers();
+		SyncConfigurationCache.invalidateClassFilters();
 	}
 	
 	public RemoteServer getRemoteServer(Integer serverId) throws APIException {
@@ -442,19 +706,90 @@ public class SyncServiceImpl implements SyncService {
 	}
 	
 	public RemoteServer getRemoteServer(String uuid) throws APIException {
-		return getSynchronizationDAO().getRemoteServer(uuid);
+		SyncConfigurationCache.ServerIndex index = getServerIndex();
+		if (index == null)
+			return getSynchronizationDAO().getRemoteServer(uuid);
+		
+		Integer serverId = index.getServerId(uuid);
+		if (serverId != null) {
+			RemoteServer server = getSynchronizationDAO().getRemoteServer(serverId);
+			if (server != null && uuid.equals(server.getUuid()))
+				return server;
+		}
+		
+		// not known to the cache: look it up and make sure the cache is rebuilt if it was just stale
+		RemoteServer server = getSynchronizationDAO().getRemoteServer(uuid);
+		if (server != null)
+			SyncConfigurationCache.invalidateServers();
+		return server;
 	}
 	
 	public RemoteServer getRemoteServerByUsername(String username) throws APIException {
-		return getSynchronizationDAO().getRemoteServerByUsername(username);
+		SyncConfigurationCache.ServerIndex index = getServerIndex();
+		if (index == null)
+			return getSynchronizationDAO().getRemoteServerByUsername(username);
+		
+		Integer serverId = index.getServerIdByChildUsername(username);
+		if (serverId != null) {
+			RemoteServer server = getSynchronizationDAO().getRemoteServer(serverId);
+			if (server != null && username.equals(server.getChildUsername()))
+				return server;
+		}
+		
+		RemoteServer server = getSynchronizationDAO().getRemoteServerByUsername(username);
+		if (server != null)
+			SyncConfigurationCache.invalidateServers();
+		return server;
 	}
 	
 	public List<RemoteServer> getRemoteServers() throws APIException {
-		return getSynchronizationDAO().getRemoteServers();
+		SyncConfigurationCache.ServerIndex index = SyncConfigurationCache.getServerIndex();
+		if (index != null) {
+			List<RemoteServer> servers = new ArrayList<RemoteServer>(index.getServerIds().size());
+			for (Integer serverId : index.getServerIds()) {
+				RemoteServer server = getSynchronizationDAO().getRemoteServer(serverId);
+				if (server == null)
+					break; // deleted without going through this service
+				servers.add(server);
+			}
+			if (servers.size() == index.getServerIds().size())
+				return servers;
+		}
+		
+		List<RemoteServer> servers = getSynchronizationDAO().getRemoteServers();
+		SyncConfigurationCache.putServers(servers);
+		return servers;
 	}
 	
 	public RemoteServer getParentServer() throws APIException {
-		return getSynchronizationDAO().getParentServer();
+		SyncConfigurationCache.ServerIndex index = getServerIndex();
+		if (index == null)
+			return getSynchronizationDAO().getParentServer();
+		
+		Integer parentServerId = index.getParentServerId();
+		if (parentServerId == null)
+			return null;
+		
+		RemoteServer parent = getSynchronizationDAO().getRemoteServer(parentServerId);
+		if (parent == null) {
+			SyncConfigurationCache.invalidateServers();
+			return getSynchronizationDAO().getParentServer();
+		}
+		return parent;
+	}
+	
+	/**
+	 * @return the cached lookup tables for the remote servers, loading them first if needed, or
+	 *         null if the configuration cache is disabled
+	 */
+	private SyncConfigurationCache.ServerIndex getServerIndex() {
+		if (!SyncConfigurationCache.isEnabled())
+			return null;
+		
+		SyncConfigurationCache.ServerIndex index = SyncConfigurationCache.getServerIndex();
+		if (index == null)
+			index = SyncConfigurationCache.putServers(getSynchronizationDAO().getRemoteServers());
+		return index;
 	}
 	
 	/**
@@ -462,7 +797,7 @@ public class SyncServiceImpl implements SyncService {
 	 * server in all data exchanges with other servers.
 	 */
 	public String getServerUuid() throws APIException {
-		return Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_SERVER_UUID);
+		return getGlobalProperty(SyncConstants.PROPERTY_SERVER_UUID);
 	}
 	
 	/**
@@ -478,7 +813,7 @@ public class SyncServiceImpl implements SyncService {
 	 * are otherwise unique only locally (such as integer primary keys).
 	 */
 	public String getServerName() throws APIException {
-		return Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_SERVER_NAME);
+		return getGlobalProperty(SyncConstants.PROPERTY_SERVER_NAME);
 	}
 	
 	/**
@@ -501,6 +836,8 @@ public class SyncServiceImpl implements SyncService {
 	 */
 	public void saveSyncClass(SyncClass syncClass) throws APIException {
 		getSynchronizationDAO().saveSyncClass(syncClass);
+		SyncConfigurationCache.invalidateSyncClasses();
+		SyncConfigurationCache.invalidateClassFilters();
 		refreshServerClassesCollection();
 	}
 	
@@ -509,6 +846,8 @@ public class SyncServiceImpl implements SyncService {
 	 */
 	public void deleteSyncClass(SyncClass syncClass) throws APIException {
 		getSynchronizationDAO().deleteSyncClass(syncClass);
+		SyncConfigurationCache.invalidateSyncClasses();
+		SyncConfigurationCache.invalidateClassFilters();
 		refreshServerClassesCollection();
 	}
 	
@@ -517,7 +856,22 @@ public class SyncServiceImpl implements SyncService {
 	}
 	
 	public List<SyncClass> getSyncClasses() throws APIException {
-		return getSynchronizationDAO().getSyncClasses();
+		List<Integer> syncClassIds = SyncConfigurationCache.getSyncClassIds();
+		if (syncClassIds != null) {
+			List<SyncClass> syncClasses = new ArrayList<SyncClass>(syncClassIds.size());
+			for (Integer syncClassId : syncClassIds) {
+				SyncClass syncClass = getSynchronizationDAO().getSyncClass(syncClassId);
+				if (syncClass == null)
+					break; // deleted without going through this service
+				syncClasses.add(syncClass);
+			}
+			if (syncClasses.size() == syncClassIds.size())
+				return syncClasses;
+		}
+		
+		List<SyncClass> syncClasses = getSynchronizationDAO().getSyncClasses();
+		SyncConfigurationCache.putSyncClasses(syncClasses);
+		return syncClasses;
 	}
 	
 	public SyncClass getSyncClassByName(String className) throws APIException {
@@ -529,6 +883,9 @@ public class SyncServiceImpl implements SyncService {
 	 */
 	public void deleteOpenmrsObject(OpenmrsObject o) throws APIException {
 		getSynchronizationDAO().deleteOpenmrsObject(o);
+		
+		if (o instanceof GlobalProperty)
+			SyncConfigurationCache.invalidateGlobalProperty(((GlobalProperty) o).getProperty());
 	}
 	
 	/**
@@ -572,6 +929,10 @@ public class SyncServiceImpl implements SyncService {
 	//@Authorized({"Manage Synchronization Records"})
 	public void saveOrUpdate(OpenmrsObject object) throws APIException {
 		getSynchronizationDAO().saveOrUpdate(object);
+		
+		// global properties coming in from another server don't go through the admin service listeners
+		if (object instanceof GlobalProperty)
+			SyncConfigurationCache.invalidateGlobalProperty(((GlobalProperty) object).getProperty());
 	}
 	
 	/**
@@ -655,6 +1016,88 @@ public class SyncServiceImpl implements SyncService {
 		getSynchronizationDAO().exportChildDB(guidForChild, os);
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#createCloneSnapshot()
+	 */
+	public SyncCloneSnapshot createCloneSnapshot() throws APIException {
+		long start = System.currentTimeMillis();
+		Date created = new Date(start);
+		String fileName = SyncConstants.CLONE_SNAPSHOT_FILE_NAME + SyncConstants.SYNC_FILENAME_MASK.format(created)
+		        + ".sql.gz";
+		File file = new File(SyncUtil.getSyncApplicationDir(), fileName);
+		
+		SyncRecordPosition position;
+		SegmentChecksums checksums = new SegmentChecksums();
+		boolean done = false;
+		try {
+			OutputStream out = checksums.checksumming(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				position = getSynchronizationDAO().exportCloneSnapshot(out);
+			}
+			finally {
+				out.close();
+			}
+			// kept for checking resumed downloads of the snapshot
+			checksums.save(file);
+			done = true;
+		}
+		catch (IOException e) {
+			throw new APIException("Unable to write " + file, e);
+		}
+		finally {
+			if (!done)
+				file.delete();
+		}
+		
+		SyncCloneSnapshot snapshot = new SyncCloneSnapshot(fileName, position, created);
+		snapshot.makeCurrent();
+		log.info("Created " + snapshot + " in " + (System.currentTimeMillis() - start) + " ms");
+		return snapshot;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getCloneSnapshot()
+	 */
+	public SyncCloneSnapshot getCloneSnapshot() throws APIException {
+		SyncCloneSnapshot snapshot = SyncCloneSnapshot.getCurrent();
+		if (snapshot == null
+		        || System.currentTimeMillis() - snapshot.getDateCreated().getTime() > getSyncSettings()
+		                .getCloneSnapshotMaxAge())
+			return null;
+		return snapshot;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#seedChildFromSnapshot(org.openmrs.module.sync.server.RemoteServer,
+	 *      org.openmrs.module.sync.SyncCloneSnapshot)
+	 */
+	public void seedChildFromSnapshot(RemoteServer server, SyncCloneSnapshot snapshot) throws APIException {
+		if (server == null || !RemoteServerType.CHILD.equals(server.getServerType()))
+			throw new APIException("A clone snapshot can only be sent to a child server");
+		
+		// the snapshot is marked with the uuid of the child, it has to be the same when a download is resumed
+		if (!StringUtils.hasText(server.getUuid())) {
+			server.setUuid(SyncUtil.generateUuid());
+			saveRemoteServer(server);
+		}
+		
+		// the child has everything up to the snapshot, and is sent everything after it
+		getSynchronizationDAO().seedChildCursor(server, snapshot.getPosition().getRecordId());
+		log.info("Seeding " + server.getNickname() + " from " + snapshot);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#getCloneSnapshotTrailer(org.openmrs.module.sync.server.RemoteServer)
+	 */
+	public byte[] getCloneSnapshotTrailer(RemoteServer server) throws APIException {
+		if (server == null || !StringUtils.hasText(server.getUuid()))
+			throw new APIException("The child has to be seeded from the snapshot first");
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		getSynchronizationDAO().exportChildDBTrailer(server.getUuid(), out);
+		return out.toByteArray();
+	}
+	
 	/**
 	 * @see org.openmrs.api.SynchronizationService#importParentDB(java.io.InputStream)
 	 */
@@ -673,15 +1116,18 @@ public class SyncServiceImpl implements SyncService {
 		File dir = SyncUtil.getSyncApplicationDir();
 		String fileName = SyncConstants.CLONE_IMPORT_FILE_NAME + SyncConstants.SYNC_FILENAME_MASK.format(new Date())
 		        + ".sql";
-		String[] ignoreTables = { "hl7_in_archive", "hl7_in_queue", "hl7_in_error", "formentry_archive", "formentry_queue",
-		        "formentry_error", "sync_class", "sync_import", "sync_record", "sync_server", "sync_server_class",
-		        "sync_server_record" };
-		
 		File outputFile = new File(dir, fileName);
-		getSynchronizationDAO().generateDataFile(outputFile, ignoreTables);
+		getSynchronizationDAO().generateDataFile(outputFile, SyncConstants.CLONE_IGNORED_TABLES);
 		return outputFile;
 	}
 	
+	/**
+	 * @see org.openmrs.module.sync.api.SyncService#generateDataFile(java.io.OutputStream)
+	 */
+	public void generateDataFile(OutputStream out) throws APIException {
+		getSynchronizationDAO().generateDataFile(out, SyncConstants.CLONE_IGNORED_TABLES);
+	}
+	
 	/**
 	 * @see org.openmrs.module.sync.api.SyncService#execGeneratedFile(java.io.File)
 	 */
@@ -693,6 +1139,9 @@ public class SyncServiceImpl implements SyncService {
 		
 		getSynchronizationDAO().execGeneratedFile(file);
 		
+		// everything was just replaced with the contents of the parent database
+		SyncConfigurationCache.clear();
+		
 		// save those GPs again
 		for (GlobalProperty gp : syncGPs) {
 			adminService.saveGlobalProperty(gp);
@@ -914,22 +1363,23 @@ public class SyncServiceImpl implements SyncService {
 	
 	public Integer backportSyncRecords(RemoteServer server, Date date) {
 		int count = 0;
-		SyncRecord firstRecord = getEarliestRecord(date);
-		SyncRecord latestRecord = getLatestRecord();
+		Integer earliestRecordId = getEarliestRecordId(date);
+		Integer latestRecordId = getLatestRecordId();
 		
 		// we have no sync records, quit early
-		if (firstRecord == null)
+		if (earliestRecordId == null)
 			return 0;
 		
 		// not sure how this would happen without the previous one, but just in case.
-		if (latestRecord == null)
+		if (latestRecordId == null)
 			return 0;
 		
 		Integer firstRecordId = 0;
-		Integer latestRecordId = latestRecord.getRecordId();
 		
-		System.out.println("first record id: " + firstRecord.getRecordId());
-		System.out.println("latest record id: " + latestRecord.getRecordId());
+		if (log.isDebugEnabled()) {
+			log.debug("first record id: " + earliestRecordId);
+			log.debug("latest record id: " + latestRecordId);
+		}
 		
 		boolean recordsFound = false;
 		
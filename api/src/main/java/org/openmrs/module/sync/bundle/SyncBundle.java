@@ -0,0 +1,173 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncUtil;
+
+/**
+ * The file a child and its parent exchange on a disk when there is no network between them: the
+ * records of a transmission, each compressed on its own, followed by an index of where each one
+ * starts. A bundle is written from start to end and never changed after, so that it can be
+ * carried around with months of records and read a record at a time (see {@link SyncBundleReader}
+ * and {@link SyncBundleWriter}).
+ * <p>
+ * A bundle is laid out as
+ * <ul>
+ * <li>the header: {@value #MAGIC}, the version, the uuid of the bundle and the uuid of the server
+ * that wrote it</li>
+ * <li>the entries: each the type of entry, its length compressed and not, the CRC-32C of the
+ * compressed bytes and the bytes, deflated</li>
+ * <li>the index: {@value #INDEX_MAGIC}, the number of entries and the type and offset of each</li>
+ * <li>the trailer: the offset and CRC-32C of the index and {@value #TRAILER_MAGIC}</li>
+ * </ul>
+ * The entries carry their own length and checksum, so the entries of a bundle that was cut short,
+ * before its index was written, can still be found by reading it from the start.
+ * <p>
+ * How far the import of a bundle got is kept in the {@value #DIRECTORY_NAME} directory of the sync
+ * application directory, so an import that stopped halfway through carries on where it stopped
+ * when the same bundle is imported again.
+ */
+public class SyncBundle {
+	
+	public static final String MAGIC = "SYNCBNDL";
+	
+	public static final String INDEX_MAGIC = "SYNCIDX1";
+	
+	public static final String TRAILER_MAGIC = "SYNCEND1";
+	
+	public static final int VERSION = 1;
+	
+	/**
+	 * An entry with a SyncTransmissionResponse, without the transmission: the import records of
+	 * the records the server that wrote the bundle got from the other side
+	 */
+	public static final byte ENTRY_RESPONSE = 1;
+	
+	/**
+	 * An entry with a SyncRecord
+	 */
+	public static final byte ENTRY_RECORD = 2;
+	
+	/**
+	 * An entry with a transmission or response as it was sent or received, in a segment of the
+	 * {@link TransmissionArchive}
+	 */
+	public static final byte ENTRY_TRANSMISSION = 3;
+	
+	/**
+	 * The type, the two lengths and the checksum in front of each entry
+	 */
+	public static final int ENTRY_HEADER_LENGTH = 1 + 4 + 4 + 4;
+	
+	/**
+	 * The largest entry a bundle holds, uncompressed; a header giving more is taken to be damaged
+	 */
+	public static final int MAX_ENTRY_LENGTH = 256 * 1024 * 1024;
+	
+	/**
+	 * The offset and checksum of the index, and {@link #TRAILER_MAGIC}
+	 */
+	public static final int TRAILER_LENGTH = 8 + 4 + 8;
+	
+	/**
+	 * The number of records imported together, and held in memory while they are
+	 */
+	public static final int IMPORT_BATCH_SIZE = 100;
+	
+	public static final String DIRECTORY_NAME = "bundles";
+	
+	public static final String FILE_SUFFIX = ".bundle";
+	
+	private static final String PROGRESS_SUFFIX = ".progress";
+	
+	/**
+	 * @param bundleUuid the uuid of a bundle
+	 * @return the number of its entries that were imported, 0 if none were
+	 * @should return what was set
+	 */
+	public static int getImportedCount(String bundleUuid) {
+		File file = new File(getDirectory(), bundleUuid + PROGRESS_SUFFIX);
+		if (!file.exists())
+			return 0;
+		try {
+			return Integer.parseInt(FileUtils.readFileToString(file, "US-ASCII").trim());
+		}
+		catch (Exception e) {
+			// start over, records that were imported already are recognized as such
+			return 0;
+		}
+	}
+	
+	/**
+	 * Remembers that the first entries of a bundle were imported
+	 * 
+	 * @param bundleUuid the uuid of a bundle
+	 * @param count the number of its entries that were imported
+	 * @throws SyncException if it can't be written down
+	 */
+	public static void setImportedCount(String bundleUuid, int count) throws SyncException {
+		File file = new File(getDirectory(), bundleUuid + PROGRESS_SUFFIX);
+		File part = new File(getDirectory(), file.getName() + ".part");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(part);
+			out.write(String.valueOf(count).getBytes("US-ASCII"));
+			out.close();
+			out = null;
+			if (file.exists())
+				file.delete();
+			if (!part.renameTo(file))
+				throw new IOException("Unable to rename " + part + " to " + file);
+		}
+		catch (IOException e) {
+			part.delete();
+			throw new SyncException("Unable to note the progress of importing bundle " + bundleUuid, e);
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+	
+	/**
+	 * @return the directory with the bundles being imported and how far they got
+	 */
+	public static File getDirectory() {
+		File dir = new File(SyncUtil.getSyncApplicationDir(), DIRECTORY_NAME);
+		if (!dir.exists())
+			dir.mkdirs();
+		return dir;
+	}
+	
+	/**
+	 * @param bytes the first bytes of a file
+	 * @return whether the file is a bundle
+	 */
+	public static boolean isBundle(byte[] bytes) {
+		if (bytes == null || bytes.length < MAGIC.length())
+			return false;
+		for (int i = 0; i < MAGIC.length(); i++) {
+			if (bytes[i] != MAGIC.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
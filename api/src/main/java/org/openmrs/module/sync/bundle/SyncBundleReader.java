@@ -0,0 +1,325 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.server.Crc32c;
+
+/**
+ * Reads the entries of a {@link SyncBundle} one at a time. The file is memory mapped a window at a
+ * time rather than read in, so a bundle of gigabytes takes no more heap than its largest entry.
+ * <p>
+ * A bundle whose index is missing or damaged, because writing it was cut short, is read from the
+ * start instead, up to the last entry that is whole; {@link #isComplete()} tells which it was.
+ */
+public class SyncBundleReader {
+	
+	private static final Log log = LogFactory.getLog(SyncBundleReader.class);
+	
+	/**
+	 * How much of the bundle is mapped at a time
+	 */
+	public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	private final RandomAccessFile file;
+	
+	private final FileChannel channel;
+	
+	private final long size;
+	
+	private final String bundleUuid;
+	
+	private final String sourceUuid;
+	
+	private final long entriesOffset;
+	
+	private byte[] types;
+	
+	private long[] offsets;
+	
+	/**
+	 * Where the last entry ends
+	 */
+	private long entriesEnd;
+	
+	private boolean complete;
+	
+	private ByteBuffer window;
+	
+	private long windowStart;
+	
+	private final Inflater inflater = new Inflater();
+	
+	/**
+	 * Opens a bundle and reads its header and index
+	 * 
+	 * @throws SyncException if the file isn't a bundle
+	 * @should read the entries of a complete bundle
+	 * @should read the whole entries of a bundle that was cut short
+	 * @should fail for a file that is not a bundle
+	 */
+	public SyncBundleReader(File bundle) throws IOException, SyncException {
+		this(bundle, true);
+	}
+	
+	/**
+	 * @param indexExpected false if the bundle may still be being written, and so need not have an
+	 *            index yet
+	 */
+	SyncBundleReader(File bundle, boolean indexExpected) throws IOException, SyncException {
+		this.file = new RandomAccessFile(bundle, "r");
+		this.channel = file.getChannel();
+		this.size = channel.size();
+		try {
+			byte[] magic = new byte[SyncBundle.MAGIC.length()];
+			if (size < magic.length + 4)
+				throw new SyncException(bundle + " is not a sync bundle");
+			file.readFully(magic);
+			if (!SyncBundle.isBundle(magic))
+				throw new SyncException(bundle + " is not a sync bundle");
+			int version = file.readInt();
+			if (version != SyncBundle.VERSION)
+				throw new SyncException(bundle + " is a version " + version + " sync bundle, this server reads version "
+				        + SyncBundle.VERSION);
+			this.bundleUuid = file.readUTF();
+			this.sourceUuid = file.readUTF();
+			this.entriesOffset = file.getFilePointer();
+			
+			if (!readIndex()) {
+				if (indexExpected)
+					log.warn("The index of bundle " + bundle + " is missing or damaged, reading the bundle from the start");
+				scan();
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw new SyncException(bundle + " is not a sync bundle", e);
+		}
+		catch (SyncException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the uuid of the bundle
+	 */
+	public String getBundleUuid() {
+		return bundleUuid;
+	}
+	
+	/**
+	 * @return the uuid of the server that wrote the bundle
+	 */
+	public String getSourceUuid() {
+		return sourceUuid;
+	}
+	
+	/**
+	 * @return the number of entries
+	 */
+	public int getEntryCount() {
+		return offsets.length;
+	}
+	
+	/**
+	 * @return false if the bundle was cut short, and only the entries up to where it was cut can be
+	 *         read
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * @param index the number of an entry
+	 * @return its type, {@link SyncBundle#ENTRY_RESPONSE} or {@link SyncBundle#ENTRY_RECORD}
+	 */
+	public byte getEntryType(int index) {
+		return types[index];
+	}
+	
+	/**
+	 * @param index the number of an entry
+	 * @return the entry, uncompressed
+	 * @throws SyncException if the entry is damaged
+	 * @should fail for an entry whose header gives lengths that don't fit
+	 */
+	public byte[] readEntry(int index) throws IOException, SyncException {
+		ByteBuffer header = map(offsets[index], SyncBundle.ENTRY_HEADER_LENGTH);
+		header.get();
+		int compressedLength = header.getInt();
+		int length = header.getInt();
+		int checksum = header.getInt();
+		
+		// the lengths are checked before anything is allocated for them, the checksum only comes after
+		long start = offsets[index] + SyncBundle.ENTRY_HEADER_LENGTH;
+		long end = index + 1 < offsets.length ? offsets[index + 1] : entriesEnd;
+		if (compressedLength != end - start || length < 0 || length > SyncBundle.MAX_ENTRY_LENGTH)
+			throw new SyncException("Entry " + index + " of bundle " + bundleUuid
+			        + " is damaged, the lengths in its header don't fit");
+		
+		byte[] compressed = new byte[compressedLength];
+		map(offsets[index] + SyncBundle.ENTRY_HEADER_LENGTH, compressedLength).get(compressed);
+		if ((int) Crc32c.checksum(compressed, 0, compressedLength) != checksum)
+			throw new SyncException("Entry " + index + " of bundle " + bundleUuid + " is damaged");
+		
+		byte[] bytes = new byte[length];
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			if (length > 0 && (inflater.inflate(bytes) != length || !inflater.finished()))
+				throw new SyncException("Entry " + index + " of bundle " + bundleUuid + " has the wrong length");
+		}
+		catch (DataFormatException e) {
+			throw new SyncException("Entry " + index + " of bundle " + bundleUuid + " is damaged", e);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Closes the bundle
+	 */
+	public void close() {
+		inflater.end();
+		window = null;
+		try {
+			file.close();
+		}
+		catch (IOException e) {
+			log.warn("Unable to close bundle " + bundleUuid, e);
+		}
+	}
+	
+	/**
+	 * Reads the index the trailer points to
+	 * 
+	 * @return false if there is no index, or it is damaged
+	 */
+	private boolean readIndex() throws IOException {
+		if (size < entriesOffset + SyncBundle.TRAILER_LENGTH)
+			return false;
+		ByteBuffer trailer = map(size - SyncBundle.TRAILER_LENGTH, SyncBundle.TRAILER_LENGTH);
+		long indexOffset = trailer.getLong();
+		int checksum = trailer.getInt();
+		if (!hasMagic(trailer, SyncBundle.TRAILER_MAGIC) || indexOffset < entriesOffset
+		        || indexOffset > size - SyncBundle.TRAILER_LENGTH - SyncBundle.INDEX_MAGIC.length() - 4)
+			return false;
+		
+		int indexLength = (int) (size - SyncBundle.TRAILER_LENGTH - indexOffset);
+		byte[] index = new byte[indexLength];
+		map(indexOffset, indexLength).get(index);
+		if ((int) Crc32c.checksum(index, 0, indexLength) != checksum)
+			return false;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(index);
+		if (!hasMagic(buffer, SyncBundle.INDEX_MAGIC))
+			return false;
+		int count = buffer.getInt();
+		if (count < 0 || buffer.remaining() != count * 9)
+			return false;
+		types = new byte[count];
+		offsets = new long[count];
+		for (int i = 0; i < count; i++) {
+			types[i] = buffer.get();
+			offsets[i] = buffer.getLong();
+			if (offsets[i] < (i == 0 ? entriesOffset : offsets[i - 1] + SyncBundle.ENTRY_HEADER_LENGTH)
+			        || offsets[i] + SyncBundle.ENTRY_HEADER_LENGTH > indexOffset)
+				return false;
+		}
+		entriesEnd = indexOffset;
+		complete = true;
+		return true;
+	}
+	
+	/**
+	 * Finds the entries by reading them one after the other, up to the first one that isn't whole
+	 */
+	private void scan() throws IOException {
+		int count = 0;
+		types = new byte[64];
+		offsets = new long[64];
+		long offset = entriesOffset;
+		while (offset + SyncBundle.ENTRY_HEADER_LENGTH <= size) {
+			ByteBuffer header = map(offset, SyncBundle.ENTRY_HEADER_LENGTH);
+			byte type = header.get();
+			int compressedLength = header.getInt();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (type < SyncBundle.ENTRY_RESPONSE || type > SyncBundle.ENTRY_TRANSMISSION || compressedLength < 0
+			        || offset + SyncBundle.ENTRY_HEADER_LENGTH + compressedLength > size || length < 0
+			        || length > SyncBundle.MAX_ENTRY_LENGTH)
+				break;
+			byte[] compressed = new byte[compressedLength];
+			map(offset + SyncBundle.ENTRY_HEADER_LENGTH, compressedLength).get(compressed);
+			if ((int) Crc32c.checksum(compressed, 0, compressedLength) != checksum)
+				break;
+			
+			if (count == offsets.length) {
+				long[] moreOffsets = new long[count * 2];
+				System.arraycopy(offsets, 0, moreOffsets, 0, count);
+				offsets = moreOffsets;
+				byte[] moreTypes = new byte[count * 2];
+				System.arraycopy(types, 0, moreTypes, 0, count);
+				types = moreTypes;
+			}
+			types[count] = type;
+			offsets[count] = offset;
+			count++;
+			offset += SyncBundle.ENTRY_HEADER_LENGTH + compressedLength;
+		}
+		
+		byte[] foundTypes = new byte[count];
+		System.arraycopy(types, 0, foundTypes, 0, count);
+		types = foundTypes;
+		long[] foundOffsets = new long[count];
+		System.arraycopy(offsets, 0, foundOffsets, 0, count);
+		offsets = foundOffsets;
+		entriesEnd = offset;
+		complete = false;
+	}
+	
+	/**
+	 * @return a buffer with the given part of the bundle, from the current window if it is in it,
+	 *         else from a new window starting there
+	 */
+	private ByteBuffer map(long offset, int length) throws IOException {
+		if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+			windowStart = offset;
+			long windowLength = Math.max(length, Math.min(WINDOW_SIZE, size - offset));
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, windowLength);
+		}
+		ByteBuffer buffer = window.duplicate();
+		buffer.position((int) (offset - windowStart));
+		buffer.limit((int) (offset - windowStart) + length);
+		return buffer.slice();
+	}
+	
+	private boolean hasMagic(ByteBuffer buffer, String magic) {
+		for (int i = 0; i < magic.length(); i++) {
+			if (buffer.get() != magic.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
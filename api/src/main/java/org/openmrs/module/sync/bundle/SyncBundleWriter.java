@@ -0,0 +1,165 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.server.Crc32c;
+
+/**
+ * Writes a {@link SyncBundle}, entry by entry, so that only one entry at a time is held in memory.
+ * The bundle is complete once it is closed; a bundle that wasn't closed can still be read up to the
+ * last entry that was written whole.
+ */
+public class SyncBundleWriter {
+	
+	private final FileOutputStream file;
+	
+	private final DataOutputStream out;
+	
+	private final Deflater deflater;
+	
+	private long position;
+	
+	private byte[] types = new byte[64];
+	
+	private long[] offsets = new long[64];
+	
+	private int count = 0;
+	
+	/**
+	 * Starts a new bundle, replacing the file if there is one
+	 * 
+	 * @param bundleUuid the uuid of the bundle
+	 * @param sourceUuid the uuid of the server writing it
+	 * @param compressionLevel the deflate level of the entries
+	 */
+	public SyncBundleWriter(File bundle, String bundleUuid, String sourceUuid, int compressionLevel) throws IOException {
+		this.file = new FileOutputStream(bundle);
+		this.out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+		this.deflater = new Deflater(compressionLevel);
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeBytes(SyncBundle.MAGIC);
+		headerOut.writeInt(SyncBundle.VERSION);
+		headerOut.writeUTF(bundleUuid);
+		headerOut.writeUTF(sourceUuid == null ? "" : sourceUuid);
+		write(header.toByteArray());
+	}
+	
+	/**
+	 * Adds an entry to the end of the bundle
+	 * 
+	 * @param type {@link SyncBundle#ENTRY_RESPONSE}, {@link SyncBundle#ENTRY_RECORD} or
+	 *            {@link SyncBundle#ENTRY_TRANSMISSION}
+	 * @param bytes the entry, uncompressed, at most {@link SyncBundle#MAX_ENTRY_LENGTH} bytes
+	 */
+	public void append(byte type, byte[] bytes) throws IOException {
+		if (bytes.length > SyncBundle.MAX_ENTRY_LENGTH)
+			throw new SyncException("An entry of " + bytes.length + " bytes is larger than a bundle holds");
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int length = deflater.deflate(buffer);
+			compressed.write(buffer, 0, length);
+		}
+		byte[] data = compressed.toByteArray();
+		
+		if (count == offsets.length) {
+			long[] moreOffsets = new long[count * 2];
+			System.arraycopy(offsets, 0, moreOffsets, 0, count);
+			offsets = moreOffsets;
+			byte[] moreTypes = new byte[count * 2];
+			System.arraycopy(types, 0, moreTypes, 0, count);
+			types = moreTypes;
+		}
+		types[count] = type;
+		offsets[count] = position;
+		count++;
+		
+		out.writeByte(type);
+		out.writeInt(data.length);
+		out.writeInt(bytes.length);
+		out.writeInt((int) Crc32c.checksum(data, 0, data.length));
+		position += SyncBundle.ENTRY_HEADER_LENGTH;
+		write(data);
+	}
+	
+	/**
+	 * @return the number of entries written so far
+	 */
+	public int getEntryCount() {
+		return count;
+	}
+	
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getLength() {
+		return position;
+	}
+	
+	/**
+	 * Hands the entries written so far to the file, so that they can be read before the bundle is
+	 * closed
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+	
+	/**
+	 * Writes the index and closes the bundle
+	 */
+	public void close() throws IOException {
+		try {
+			ByteArrayOutputStream index = new ByteArrayOutputStream(16 + count * 9);
+			DataOutputStream indexOut = new DataOutputStream(index);
+			indexOut.writeBytes(SyncBundle.INDEX_MAGIC);
+			indexOut.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				indexOut.writeByte(types[i]);
+				indexOut.writeLong(offsets[i]);
+			}
+			byte[] indexBytes = index.toByteArray();
+			long indexOffset = position;
+			write(indexBytes);
+			
+			out.writeLong(indexOffset);
+			out.writeInt((int) Crc32c.checksum(indexBytes, 0, indexBytes.length));
+			out.writeBytes(SyncBundle.TRAILER_MAGIC);
+			out.flush();
+			file.getFD().sync();
+		}
+		finally {
+			deflater.end();
+			out.close();
+		}
+	}
+	
+	private void write(byte[] bytes) throws IOException {
+		out.write(bytes);
+		position += bytes.length;
+	}
+}
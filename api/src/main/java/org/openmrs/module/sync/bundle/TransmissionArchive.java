@@ -0,0 +1,491 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.SyncUtil;
+
+/**
+ * Keeps the transmissions this server sends and the responses it gets back, in place of the file
+ * per transmission that used to be written to the recrd, journal and import directories.
+ * <p>
+ * Transmissions are handed over as they are serialized and written by a background thread, so
+ * the sync doesn't wait for the disk; when that thread falls behind by more than
+ * {@value #QUEUE_CAPACITY} transmissions the next ones are left out of the archive. They are
+ * appended, each compressed, to segments in the {@value #DIRECTORY_NAME} directory of the sync
+ * application directory. A segment is a {@link SyncBundle} of
+ * {@link SyncBundle#ENTRY_TRANSMISSION} entries; it is closed once it has grown past the segment
+ * size and a new one started. Whole segments are removed, oldest first, to keep the archive under
+ * its maximum size and age.<br/>
+ * The index file holds the segment and entry each transmission went to, by uuid and file name, so
+ * that one transmission is read back without going through the others.
+ * 
+ * @see SyncConstants#PROPERTY_ARCHIVE_ENABLED
+ * @see SyncConstants#PROPERTY_ARCHIVE_SEGMENT_SIZE
+ * @see SyncConstants#PROPERTY_ARCHIVE_MAX_SIZE
+ * @see SyncConstants#PROPERTY_ARCHIVE_MAX_AGE
+ */
+public class TransmissionArchive {
+	
+	private static final Log log = LogFactory.getLog(TransmissionArchive.class);
+	
+	public static final String DIRECTORY_NAME = "archive";
+	
+	private static final String SEGMENT_PREFIX = "segment-";
+	
+	private static final String INDEX_FILE_NAME = "index.txt";
+	
+	/**
+	 * The most transmissions waiting to be written
+	 */
+	public static final int QUEUE_CAPACITY = 200;
+	
+	private static final TransmissionArchive instance = new TransmissionArchive(null);
+	
+	private final File configuredDirectory;
+	
+	private volatile boolean enabled = Boolean.parseBoolean(SyncConstants.PROPERTY_ARCHIVE_ENABLED_DEFAULT);
+	
+	private volatile long segmentSize = Long.parseLong(SyncConstants.PROPERTY_ARCHIVE_SEGMENT_SIZE_DEFAULT) * 1024L * 1024L;
+	
+	private volatile long maxSize = Long.parseLong(SyncConstants.PROPERTY_ARCHIVE_MAX_SIZE_DEFAULT) * 1024L * 1024L;
+	
+	private volatile long maxAge = Long.parseLong(SyncConstants.PROPERTY_ARCHIVE_MAX_AGE_DEFAULT) * 24L * 60 * 60 * 1000;
+	
+	private ExecutorService writer;
+	
+	private File directory;
+	
+	private final TreeMap<Integer, File> segments = new TreeMap<Integer, File>();
+	
+	private final List<Location> locations = new LinkedList<Location>();
+	
+	private final Map<String, List<Location>> locationsByKey = new HashMap<String, List<Location>>();
+	
+	private Writer index;
+	
+	private SyncBundleWriter current;
+	
+	private int currentNumber = 0;
+	
+	public static TransmissionArchive getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * @param directory the directory to keep the archive in, null for the one in the sync
+	 *            application directory
+	 */
+	TransmissionArchive(File directory) {
+		this.configuredDirectory = directory;
+	}
+	
+	/**
+	 * Takes over the archive settings; called whenever a scheduled sync runs so that changed
+	 * settings apply from then on
+	 * 
+	 * @param settings the current sync settings
+	 */
+	public void configure(SyncSettings settings) {
+		configure(settings.isArchiveEnabled(), settings.getArchiveSegmentSize(), settings.getArchiveMaxSize(), settings
+		        .getArchiveMaxAge());
+	}
+	
+	void configure(boolean enabled, long segmentSize, long maxSize, long maxAge) {
+		this.enabled = enabled;
+		this.segmentSize = segmentSize;
+		this.maxSize = Math.max(segmentSize, maxSize);
+		this.maxAge = maxAge;
+	}
+	
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Hands a transmission over to be archived. Returns right away, the transmission is written by
+	 * the archive's own thread.
+	 * 
+	 * @param kind what the transmission is, the name of the directory it used to be written to
+	 * @param uuid the uuid of the transmission
+	 * @param fileName the file name of the transmission
+	 * @param xml the transmission, serialized
+	 */
+	public void archive(final String kind, final String uuid, final String fileName, final String xml) {
+		if (!enabled || xml == null || xml.length() == 0)
+			return;
+		
+		final long timestamp = System.currentTimeMillis();
+		try {
+			getWriter().execute(new Runnable() {
+				
+				public void run() {
+					try {
+						append(kind, uuid, fileName, timestamp, xml);
+					}
+					catch (Throwable t) {
+						log.warn("Unable to archive transmission " + fileName, t);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			log.warn("The transmission archive is falling behind, leaving transmission " + fileName + " out of it");
+		}
+	}
+	
+	/**
+	 * Reads back the archived transmissions with the given uuid or file name
+	 * 
+	 * @param key the uuid or file name of a transmission
+	 * @return the transmissions, serialized, oldest first; empty if none are archived
+	 * @should read a transmission by uuid or file name
+	 * @should read transmissions from closed and open segments
+	 * @should leave out transmissions of removed segments
+	 */
+	public synchronized List<String> read(String key) throws IOException, SyncException {
+		List<String> transmissions = new ArrayList<String>();
+		if (key == null || key.trim().length() == 0)
+			return transmissions;
+		open();
+		
+		List<Location> found = locationsByKey.get(key.trim());
+		if (found == null)
+			return transmissions;
+		for (Location location : found) {
+			File segment = segments.get(location.segment);
+			if (segment == null)
+				continue;
+			boolean open = current != null && location.segment == currentNumber;
+			SyncBundleReader reader = new SyncBundleReader(segment, !open);
+			try {
+				if (location.entry < reader.getEntryCount())
+					transmissions.add(new String(reader.readEntry(location.entry), SyncConstants.UTF8));
+			}
+			finally {
+				reader.close();
+			}
+		}
+		return transmissions;
+	}
+	
+	/**
+	 * Writes the transmissions that are waiting and closes the archive
+	 */
+	public void shutdown() {
+		ExecutorService stopping;
+		synchronized (this) {
+			stopping = writer;
+			writer = null;
+		}
+		if (stopping != null) {
+			stopping.shutdown();
+			try {
+				if (!stopping.awaitTermination(30, TimeUnit.SECONDS))
+					log.warn("Gave up waiting for the transmission archive to write the transmissions it was handed");
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		close();
+	}
+	
+	/**
+	 * Adds a transmission to the current segment, starting a new one if it is full
+	 */
+	synchronized void append(String kind, String uuid, String fileName, long timestamp, String xml) throws IOException {
+		open();
+		if (current != null && current.getLength() >= segmentSize) {
+			current.close();
+			current = null;
+		}
+		if (current == null) {
+			removeOldSegments(segmentSize);
+			currentNumber++;
+			File segment = new File(directory, SEGMENT_PREFIX + currentNumber + SyncBundle.FILE_SUFFIX);
+			current = new SyncBundleWriter(segment, SyncUtil.generateUuid(), null, 6);
+			segments.put(currentNumber, segment);
+		}
+		
+		Location location = new Location(currentNumber, current.getEntryCount(), kind, uuid, fileName, timestamp);
+		current.append(SyncBundle.ENTRY_TRANSMISSION, xml.getBytes(SyncConstants.UTF8));
+		current.flush();
+		add(location);
+		index.write(location.toString());
+		index.flush();
+	}
+	
+	/**
+	 * Closes the current segment and the index; the archive is opened again when it is next used
+	 */
+	synchronized void close() {
+		try {
+			if (current != null)
+				current.close();
+		}
+		catch (IOException e) {
+			log.warn("Unable to close segment " + currentNumber + " of the transmission archive", e);
+		}
+		IOUtils.closeQuietly(index);
+		current = null;
+		index = null;
+		directory = null;
+		segments.clear();
+		locations.clear();
+		locationsByKey.clear();
+	}
+	
+	/**
+	 * Finds the segments and reads the index, unless that was done already
+	 */
+	private void open() throws IOException {
+		if (directory != null)
+			return;
+		
+		File dir = configuredDirectory != null ? configuredDirectory : new File(SyncUtil.getSyncApplicationDir(),
+		        DIRECTORY_NAME);
+		if (!dir.exists())
+			dir.mkdirs();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SyncBundle.FILE_SUFFIX)) {
+					try {
+						segments.put(Integer.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length()
+						        - SyncBundle.FILE_SUFFIX.length())), file);
+					}
+					catch (NumberFormatException e) {
+						log.debug("Ignoring " + file + " in the transmission archive");
+					}
+				}
+			}
+		}
+		// a segment left open by the last shutdown is read as far as it got, and not written to again
+		currentNumber = segments.isEmpty() ? 0 : segments.lastKey();
+		
+		File indexFile = new File(dir, INDEX_FILE_NAME);
+		if (indexFile.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+			        SyncConstants.UTF8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					Location location = Location.parse(line);
+					if (location != null && segments.containsKey(location.segment))
+						add(location);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		index = new OutputStreamWriter(new FileOutputStream(indexFile, true), SyncConstants.UTF8);
+		directory = dir;
+		removeOldSegments(0);
+	}
+	
+	/**
+	 * Removes the oldest closed segments while the archive is too big, and the ones that are too
+	 * old, then writes the index again without them
+	 * 
+	 * @param room the bytes to leave for a segment about to be started
+	 */
+	private void removeOldSegments(long room) throws IOException {
+		long total = room;
+		for (File segment : segments.values()) {
+			total += segment.length();
+		}
+		
+		long oldest = maxAge > 0 ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+		boolean removed = false;
+		for (Iterator<Map.Entry<Integer, File>> i = segments.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Integer, File> segment = i.next();
+			if (current != null && segment.getKey() == currentNumber)
+				break;
+			File file = segment.getValue();
+			if (total <= maxSize && file.lastModified() >= oldest)
+				continue;
+			
+			long length = file.length();
+			if (!file.delete() && file.exists()) {
+				log.warn("Unable to remove " + file + " from the transmission archive");
+				continue;
+			}
+			total -= length;
+			i.remove();
+			removed = true;
+		}
+		
+		if (removed) {
+			for (Iterator<Location> i = locations.iterator(); i.hasNext();) {
+				Location location = i.next();
+				if (!segments.containsKey(location.segment)) {
+					i.remove();
+					remove(location.uuid, location);
+					remove(location.fileName, location);
+				}
+			}
+			rewriteIndex();
+		}
+	}
+	
+	/**
+	 * Replaces the index file by one with the transmissions of the remaining segments
+	 */
+	private void rewriteIndex() throws IOException {
+		IOUtils.closeQuietly(index);
+		File indexFile = new File(directory, INDEX_FILE_NAME);
+		File part = new File(directory, INDEX_FILE_NAME + ".part");
+		Writer out = new OutputStreamWriter(new FileOutputStream(part), SyncConstants.UTF8);
+		try {
+			for (Location location : locations) {
+				out.write(location.toString());
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (indexFile.exists())
+			indexFile.delete();
+		if (!part.renameTo(indexFile))
+			throw new IOException("Unable to rename " + part + " to " + indexFile);
+		index = new OutputStreamWriter(new FileOutputStream(indexFile, true), SyncConstants.UTF8);
+	}
+	
+	private void add(Location location) {
+		locations.add(location);
+		// responses to transmissions that weren't understood have no uuid
+		if (location.uuid.length() > 0)
+			put(location.uuid, location);
+		if (location.fileName.length() > 0 && !location.fileName.equals(location.uuid))
+			put(location.fileName, location);
+	}
+	
+	private void put(String key, Location location) {
+		List<Location> list = locationsByKey.get(key);
+		if (list == null) {
+			list = new ArrayList<Location>(2);
+			locationsByKey.put(key, list);
+		}
+		list.add(location);
+	}
+	
+	private void remove(String key, Location location) {
+		List<Location> list = locationsByKey.get(key);
+		if (list != null) {
+			list.remove(location);
+			if (list.isEmpty())
+				locationsByKey.remove(key);
+		}
+	}
+	
+	private synchronized ExecutorService getWriter() {
+		if (writer == null)
+			writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+			        QUEUE_CAPACITY), new ThreadFactory() {
+				
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SyncTransmissionArchive");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return writer;
+	}
+	
+	/**
+	 * Where a transmission was archived: a line of the index file
+	 */
+	private static class Location {
+		
+		private final int segment;
+		
+		private final int entry;
+		
+		private final String kind;
+		
+		private final String uuid;
+		
+		private final String fileName;
+		
+		private final long timestamp;
+		
+		private Location(int segment, int entry, String kind, String uuid, String fileName, long timestamp) {
+			this.segment = segment;
+			this.entry = entry;
+			this.kind = clean(kind);
+			this.uuid = clean(uuid);
+			this.fileName = clean(fileName);
+			this.timestamp = timestamp;
+		}
+		
+		/**
+		 * @return the location on the given line of the index, null if the line is damaged
+		 */
+		private static Location parse(String line) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 6)
+				return null;
+			try {
+				return new Location(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), fields[2], fields[3],
+				        fields[4], Long.parseLong(fields[5]));
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		private static String clean(String value) {
+			return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		}
+		
+		@Override
+		public String toString() {
+			return segment + "\t" + entry + "\t" + kind + "\t" + uuid + "\t" + fileName + "\t" + timestamp + "\n";
+		}
+	}
+}
@@ -13,7 +13,6 @@
  */
 package org.openmrs.module.sync.ingest;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -24,6 +23,7 @@ import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncException;
 import org.openmrs.module.sync.SyncTransmission;
 import org.openmrs.module.sync.SyncTransmissionState;
+import org.openmrs.module.sync.bundle.TransmissionArchive;
 import org.openmrs.module.sync.serialization.FilePackage;
 import org.openmrs.module.sync.serialization.IItem;
 import org.openmrs.module.sync.serialization.Item;
@@ -31,7 +31,6 @@ import org.openmrs.module.sync.serialization.Record;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
 import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.ServerConnectionState;
-import org.openmrs.util.OpenmrsUtil;
 
 /**
  * SyncTransmission a collection of sync records to be sent to the parent.
@@ -208,6 +207,11 @@ public class SyncTransmissionResponse implements IItem {
     	
     /** Create a new transmission from records: use org.openmrs.serial to make a file
      *  also, give option to write to a file or not 
+     *  
+     *  @param writeFile if true, this response is kept in the {@link TransmissionArchive}, written
+     *  there in the background
+     *  @param path what the response is, such as {@link SyncConstants#DIR_JOURNAL} for the ones
+     *  received from the parent
      */
     public void createFile(boolean writeFile, String path) {
 
@@ -224,12 +228,11 @@ public class SyncTransmissionResponse implements IItem {
             //serialize
             this.save(xml,root);
 
-            //now dump to file
-            //TODO: use path!
-            File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory("sync");
-            File importdir = new File(dir, "import");
-            importdir.mkdir();
-            fileOutput = pkg.savePackage(new File(importdir, fileName), writeFile);
+            fileOutput = pkg.savePackage(null, false);
+            
+            //now archive if needed
+            if (writeFile)
+            	TransmissionArchive.getInstance().archive(path, uuid, fileName, fileOutput);
 
         } catch (Exception e) {
             log.error("Cannot create sync transmission.",e);
@@ -31,7 +31,8 @@ import org.springframework.util.StringUtils;
 
 /**
  * This task deletes rows in the sync_record and sync_server_record tables that are older and not
- * needed anymore. (Sync_import is not touched at this point)
+ * needed anymore, and then the shared payloads in sync_payload that no remaining record refers to.
+ * (Sync_import is not touched at this point)
  */
 public class CleanupSyncTablesTask extends AbstractTask {
 	
@@ -79,6 +80,13 @@ public class CleanupSyncTablesTask extends AbstractTask {
 			Integer quantityDeleted = syncService.deleteSyncRecords(statesToDelete, deleteTo);
 			
 			log.info("There were " + quantityDeleted + " sync records cleaned out");
+			
+			// a day of slack so that payloads being reused by records still in flight are kept
+			Calendar yesterday = Calendar.getInstance();
+			yesterday.add(Calendar.DATE, -1);
+			Integer payloadsDeleted = syncService.deleteUnreferencedSyncPayloads(yesterday.getTime());
+			
+			log.info("There were " + payloadsDeleted + " unused shared sync payloads cleaned out");
 		}
 		catch (Throwable t) {
 			log.error("Error while doing sync table cleanup", t);
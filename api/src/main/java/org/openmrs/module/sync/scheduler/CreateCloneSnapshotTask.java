@@ -0,0 +1,55 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncCloneSnapshot;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * This task exports the database to a new clone snapshot (see {@link SyncCloneSnapshot}), so that
+ * new children can be created from it instead of from an export of the live database. Schedule it
+ * outside of working hours, more often than {@link SyncConstants#PROPERTY_CLONE_SNAPSHOT_MAX_AGE}.
+ */
+public class CreateCloneSnapshotTask extends AbstractTask {
+	
+	private static Log log = LogFactory.getLog(CreateCloneSnapshotTask.class);
+	
+	/**
+	 * Do the actual exporting.
+	 */
+	public void execute() {
+		Context.openSession();
+		log.debug("Starting clone snapshot ... ");
+		try {
+			if (Context.isAuthenticated() == false)
+				authenticate();
+			
+			SyncCloneSnapshot snapshot = Context.getService(SyncService.class).createCloneSnapshot();
+			log.info("Clone snapshot finished, new children are sent the records after " + snapshot.getPosition());
+		}
+		catch (Throwable t) {
+			log.error("Error while creating a clone snapshot", t);
+			throw new APIException(t);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncPayloadStorageReport;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * This task converts the payloads already in the sync_record table to the storage format chosen with
+ * the {@link SyncConstants#PROPERTY_COMPRESS_PAYLOADS} and
+ * {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY} global properties and fills in their search
+ * terms. It works through the journal in batches, each in its own transaction, and logs how much
+ * space was saved. It is safe to stop and run again: rows already in the right format are skipped.
+ */
+public class RecodeSyncPayloadsTask extends AbstractTask {
+	
+	private static Log log = LogFactory.getLog(RecodeSyncPayloadsTask.class);
+	
+	protected static final String PROPERTY_BATCH_SIZE = "batch_size";
+	
+	private Integer DEFAULT_BATCH_SIZE = 500;
+	
+	/**
+	 * Do the actual converting of payloads.
+	 */
+	public void execute() {
+		Context.openSession();
+		log.debug("Starting sync payload conversion ... ");
+		try {
+			if (Context.isAuthenticated() == false)
+				authenticate();
+			
+			Map<String, String> props = null;
+			if (taskDefinition != null)
+				props = taskDefinition.getProperties();
+			
+			Integer batchSize = CleanupSyncTablesTask.getIntegerProperty(PROPERTY_BATCH_SIZE, props, DEFAULT_BATCH_SIZE);
+			
+			SyncService syncService = Context.getService(SyncService.class);
+			SyncPayloadStorageReport total = new SyncPayloadStorageReport();
+			SyncPayloadStorageReport batch;
+			do {
+				batch = syncService.recodeSyncRecordPayloads(total.getLastRecordId(), batchSize);
+				total.add(batch);
+				
+				// don't keep the converted batches around in the session
+				Context.clearSession();
+				
+				if (log.isDebugEnabled())
+					log.debug("Sync payload conversion up to record " + total.getLastRecordId() + ": " + total);
+			} while (batch.getRecordsScanned() > 0);
+			
+			log.info("Sync payload conversion finished, " + total);
+		}
+		catch (Throwable t) {
+			log.error("Error while converting sync payloads", t);
+			throw new APIException(t);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncTransmissionState;
+import org.openmrs.module.sync.SyncUtilTransmission;
+import org.openmrs.module.sync.SyncUtilTransmission.ReceivingSize;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.server.RemoteServer;
+
+/**
+ * Runs the synchronizations with the remote servers. Every server gets its own lane: only one sync
+ * with a given server runs at a time, but a sync with one server never waits for a sync with
+ * another one to finish, so a slow link only holds up its own lane. <br/>
+ * At most {@link org.openmrs.module.sync.SyncSettings#getMaxConcurrentTransmissions()} lanes
+ * transmit at the same time; lanes that become due while that many are busy are let through in the
+ * order they arrived. <br/>
+ * The time a sync started is also saved on the server (see {@link RemoteServer#getSyncStarted()})
+ * so that syncs cut short by a shutdown can be reported on the next start.
+ */
+public class SyncLaneScheduler {
+	
+	private static final Log log = LogFactory.getLog(SyncLaneScheduler.class);
+	
+	private static final SyncLaneScheduler instance = new SyncLaneScheduler();
+	
+	private static final ThreadLocal<Boolean> synchronizing = new ThreadLocal<Boolean>();
+	
+	private final ConcurrentMap<Integer, Lane> lanes = new ConcurrentHashMap<Integer, Lane>();
+	
+	private Semaphore permits = null;
+	
+	private int permitCount = 0;
+	
+	public static SyncLaneScheduler getInstance() {
+		return instance;
+	}
+	
+	private SyncLaneScheduler() {
+	}
+	
+	/**
+	 * Runs a full synchronization with the given server in its lane
+	 * 
+	 * @param server the server to synchronize with
+	 * @param size (nullable) updated mid-sync to be the number of objects coming from the server
+	 * @param maxSyncRecords the maximum number of sync records to send
+	 * @param waitForTurn if true, wait for a free transmission slot, otherwise give up right away
+	 *            when all slots are taken
+	 * @return the response, or null if a sync with this server is already running or (when not
+	 *         waiting) no slot was free
+	 * @see SyncUtilTransmission#doFullSynchronize(RemoteServer, ReceivingSize, Integer)
+	 */
+	public SyncTransmissionResponse synchronize(RemoteServer server, ReceivingSize size, Integer maxSyncRecords,
+	                                            boolean waitForTurn) {
+		Integer serverId = server.getServerId();
+		Lane lane = getLane(serverId);
+		if (!lane.running.compareAndSet(false, true)) {
+			log.warn("Not synchronizing with " + server.getNickname() + ", a sync with it is already running");
+			return null;
+		}
+		
+		try {
+			Semaphore slots = getPermits();
+			if (!acquire(lane, slots, waitForTurn)) {
+				log.info("Not synchronizing with " + server.getNickname() + ", no transmission slot is free");
+				return null;
+			}
+			
+			try {
+				return run(lane, server, size, maxSyncRecords);
+			}
+			finally {
+				slots.release();
+			}
+		}
+		finally {
+			lane.running.set(false);
+		}
+	}
+	
+	private SyncTransmissionResponse run(Lane lane, RemoteServer server, ReceivingSize size, Integer maxSyncRecords) {
+		SyncService syncService = Context.getService(SyncService.class);
+		Integer serverId = server.getServerId();
+		
+		lane.startedAt = new Date();
+		server.setSyncStarted(lane.startedAt);
+		syncService.saveRemoteServer(server);
+		
+		SyncTransmissionResponse response = null;
+		synchronizing.set(true);
+		try {
+			response = SyncUtilTransmission.doFullSynchronize(server, size, maxSyncRecords);
+			return response;
+		}
+		finally {
+			synchronizing.remove();
+			lane.finished(response);
+			
+			// the sync may have swapped the server instance for a fresh one
+			RemoteServer current = syncService.getRemoteServer(serverId);
+			if (current != null) {
+				current.setSyncStarted(null);
+				syncService.saveRemoteServer(current);
+			}
+		}
+	}
+	
+	private boolean acquire(Lane lane, Semaphore slots, boolean waitForTurn) {
+		if (!waitForTurn)
+			return slots.tryAcquire();
+		
+		lane.waitingSince = new Date();
+		try {
+			slots.acquire();
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally {
+			lane.waitingSince = null;
+		}
+	}
+	
+	/**
+	 * @return the transmission slots, replaced by a new set when the configured number changes
+	 *         (syncs holding a slot of the old set give it back there)
+	 */
+	private synchronized Semaphore getPermits() {
+		int wanted = Context.getService(SyncService.class).getSyncSettings().getMaxConcurrentTransmissions();
+		if (permits == null || permitCount != wanted) {
+			permits = new Semaphore(wanted, true);
+			permitCount = wanted;
+		}
+		return permits;
+	}
+	
+	private Lane getLane(Integer serverId) {
+		Lane lane = lanes.get(serverId);
+		if (lane == null) {
+			lanes.putIfAbsent(serverId, new Lane(serverId));
+			lane = lanes.get(serverId);
+		}
+		return lane;
+	}
+	
+	/**
+	 * @return true if the current thread is running a sync, so the changes it makes are ones
+	 *         received from a remote server
+	 */
+	public static boolean isSynchronizingOnThisThread() {
+		return synchronizing.get() != null;
+	}
+	
+	/**
+	 * @param serverId the server to check
+	 * @return true if a sync with the given server is running or waiting for a slot
+	 */
+	public boolean isRunning(Integer serverId) {
+		Lane lane = lanes.get(serverId);
+		return lane != null && lane.running.get();
+	}
+	
+	/**
+	 * @return true if a sync with any server is running or waiting for a slot
+	 */
+	public boolean isAnyRunning() {
+		for (Lane lane : lanes.values()) {
+			if (lane.running.get())
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the state and throughput of every lane that has been used since startup, ordered by
+	 *         server id
+	 */
+	public List<SyncLaneStatus> getLaneStatuses() {
+		List<SyncLaneStatus> statuses = new ArrayList<SyncLaneStatus>();
+		for (Lane lane : lanes.values()) {
+			statuses.add(lane.getStatus());
+		}
+		Collections.sort(statuses);
+		return statuses;
+	}
+	
+	/**
+	 * Clears the start time of syncs that were still marked as running when the server was last
+	 * stopped, logging which ones were cut short
+	 */
+	public void clearInterruptedSyncs() {
+		SyncService syncService = Context.getService(SyncService.class);
+		for (RemoteServer server : syncService.getRemoteServers()) {
+			if (server.getSyncStarted() != null && !isRunning(server.getServerId())) {
+				log.warn("The sync with " + server.getNickname() + " that started at " + server.getSyncStarted()
+				        + " was interrupted");
+				server.setSyncStarted(null);
+				syncService.saveRemoteServer(server);
+			}
+		}
+	}
+	
+	/**
+	 * The state of the syncs with one server
+	 */
+	private static class Lane {
+		
+		private final Integer serverId;
+		
+		private final AtomicBoolean running = new AtomicBoolean(false);
+		
+		private volatile Date waitingSince;
+		
+		private volatile Date startedAt;
+		
+		private int transmissions = 0;
+		
+		private int failures = 0;
+		
+		private long records = 0;
+		
+		private long totalMillis = 0;
+		
+		private long lastMillis = 0;
+		
+		private SyncTransmissionState lastState;
+		
+		private long confirmedRecords = 0;
+		
+		private long totalLagMillis = 0;
+		
+		private long lastLagMillis = 0;
+		
+		private Lane(Integer serverId) {
+			this.serverId = serverId;
+		}
+		
+		private synchronized void finished(SyncTransmissionResponse response) {
+			lastMillis = System.currentTimeMillis() - startedAt.getTime();
+			totalMillis += lastMillis;
+			transmissions++;
+			
+			lastState = response == null ? SyncTransmissionState.FAILED : response.getState();
+			if (lastState != SyncTransmissionState.OK && lastState != SyncTransmissionState.OK_NOTHING_TO_DO)
+				failures++;
+			if (response != null && response.getSyncImportRecords() != null) {
+				records += response.getSyncImportRecords().size();
+				measureReplicationLag(response);
+			}
+			
+			startedAt = null;
+		}
+		
+		/**
+		 * The records the server confirmed as committed carry the time they were journaled here,
+		 * the time since then is how far the server lagged behind
+		 */
+		private void measureReplicationLag(SyncTransmissionResponse response) {
+			long now = System.currentTimeMillis();
+			long maxLag = -1;
+			for (SyncImportRecord importRecord : response.getSyncImportRecords()) {
+				if (importRecord.getTimestamp() != null
+				        && (importRecord.getState() == SyncRecordState.COMMITTED || importRecord.getState() == SyncRecordState.ALREADY_COMMITTED)) {
+					long lag = Math.max(0, now - importRecord.getTimestamp().getTime());
+					confirmedRecords++;
+					totalLagMillis += lag;
+					maxLag = Math.max(maxLag, lag);
+				}
+			}
+			if (maxLag >= 0)
+				lastLagMillis = maxLag;
+		}
+		
+		private synchronized SyncLaneStatus getStatus() {
+			return new SyncLaneStatus(serverId, running.get(), waitingSince, startedAt, transmissions, failures,
+			        records, totalMillis, lastMillis, lastState, confirmedRecords, totalLagMillis, lastLagMillis);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.Date;
+
+import org.openmrs.module.sync.SyncTransmissionState;
+
+/**
+ * Snapshot of one lane of the {@link SyncLaneScheduler}: whether a sync with the server is running
+ * and how much has gone through the lane since startup
+ */
+public class SyncLaneStatus implements Comparable<SyncLaneStatus> {
+	
+	private final Integer serverId;
+	
+	private final boolean running;
+	
+	private final Date waitingSince;
+	
+	private final Date startedAt;
+	
+	private final int transmissions;
+	
+	private final int failures;
+	
+	private final long records;
+	
+	private final long totalMillis;
+	
+	private final long lastMillis;
+	
+	private final SyncTransmissionState lastState;
+	
+	private final long confirmedRecords;
+	
+	private final long totalLagMillis;
+	
+	private final long lastLagMillis;
+	
+	public SyncLaneStatus(Integer serverId, boolean running, Date waitingSince, Date startedAt, int transmissions,
+	    int failures, long records, long totalMillis, long lastMillis, SyncTransmissionState lastState,
+	    long confirmedRecords, long totalLagMillis, long lastLagMillis) {
+		this.serverId = serverId;
+		this.running = running;
+		this.waitingSince = waitingSince;
+		this.startedAt = startedAt;
+		this.transmissions = transmissions;
+		this.failures = failures;
+		this.records = records;
+		this.totalMillis = totalMillis;
+		this.lastMillis = lastMillis;
+		this.lastState = lastState;
+		this.confirmedRecords = confirmedRecords;
+		this.totalLagMillis = totalLagMillis;
+		this.lastLagMillis = lastLagMillis;
+	}
+	
+	public Integer getServerId() {
+		return serverId;
+	}
+	
+	/**
+	 * @return true if a sync is running or waiting for a transmission slot
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * @return since when the lane has been waiting for a transmission slot, null if it isn't
+	 */
+	public Date getWaitingSince() {
+		return waitingSince;
+	}
+	
+	/**
+	 * @return when the running sync started, null if none is running
+	 */
+	public Date getStartedAt() {
+		return startedAt;
+	}
+	
+	public int getTransmissions() {
+		return transmissions;
+	}
+	
+	public int getFailures() {
+		return failures;
+	}
+	
+	/**
+	 * @return the number of records sent and received
+	 */
+	public long getRecords() {
+		return records;
+	}
+	
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+	
+	public long getLastMillis() {
+		return lastMillis;
+	}
+	
+	public SyncTransmissionState getLastState() {
+		return lastState;
+	}
+	
+	/**
+	 * @return the records sent and received per minute of syncing
+	 */
+	public double getRecordsPerMinute() {
+		if (totalMillis == 0)
+			return 0;
+		return records * 60000.0 / totalMillis;
+	}
+	
+	/**
+	 * @return the number of records the server confirmed as committed
+	 */
+	public long getConfirmedRecords() {
+		return confirmedRecords;
+	}
+	
+	/**
+	 * @return the replication lag of the last sync that had records confirmed: the longest time
+	 *         between journaling one of them here and the server confirming it as committed, in
+	 *         milliseconds
+	 */
+	public long getLastReplicationLag() {
+		return lastLagMillis;
+	}
+	
+	/**
+	 * @return the average time between journaling a record here and the server confirming it as
+	 *         committed, in milliseconds
+	 */
+	public double getAverageReplicationLag() {
+		if (confirmedRecords == 0)
+			return 0;
+		return (double) totalLagMillis / confirmedRecords;
+	}
+	
+	public int compareTo(SyncLaneStatus other) {
+		return serverId.compareTo(other.serverId);
+	}
+}
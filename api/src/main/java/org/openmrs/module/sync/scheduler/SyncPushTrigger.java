@@ -0,0 +1,280 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncSettings;
+
+/**
+ * Pushes journaled changes to the servers that have a scheduled sync right away instead of leaving
+ * them until the schedule comes around.
+ * <p>
+ * Every scheduled sync registers a sender for its server. The interceptor signals
+ * {@link #journalCommitted()} after each sync record it saves, and each sender then waits until
+ * no new change has arrived for the quiet period, so that a burst of changes leaves in one
+ * transmission. A steady stream of changes is held up at most for the maximum delay after the
+ * first one. <br/>
+ * When a sync with a server fails its link is taken to be down and nothing is pushed to it until
+ * the schedule gets through again. Changes that come in while a sync with the server is running
+ * (such as the ones received from it) do not trigger another push.
+ * 
+ * @see SyncConstants#PROPERTY_PUSH_ENABLED
+ * @see SyncConstants#PROPERTY_PUSH_QUIET_PERIOD
+ * @see SyncConstants#PROPERTY_PUSH_MAX_DELAY
+ */
+public class SyncPushTrigger {
+	
+	private static final Log log = LogFactory.getLog(SyncPushTrigger.class);
+	
+	private static final SyncPushTrigger instance = new SyncPushTrigger();
+	
+	private final ConcurrentMap<Integer, Sender> senders = new ConcurrentHashMap<Integer, Sender>();
+	
+	private volatile boolean enabled = Boolean.parseBoolean(SyncConstants.PROPERTY_PUSH_ENABLED_DEFAULT);
+	
+	private volatile long quietPeriod = Long.parseLong(SyncConstants.PROPERTY_PUSH_QUIET_PERIOD_DEFAULT);
+	
+	private volatile long maxDelay = Long.parseLong(SyncConstants.PROPERTY_PUSH_MAX_DELAY_DEFAULT);
+	
+	private ScheduledExecutorService timer;
+	
+	private ExecutorService pushes;
+	
+	public static SyncPushTrigger getInstance() {
+		return instance;
+	}
+	
+	private SyncPushTrigger() {
+	}
+	
+	/**
+	 * Takes over the push settings; called whenever a scheduled sync runs so that changed settings
+	 * apply from the next push on
+	 * 
+	 * @param settings the current sync settings
+	 */
+	public void configure(SyncSettings settings) {
+		configure(settings.isPushEnabled(), settings.getPushQuietPeriod(), settings.getPushMaxDelay());
+	}
+	
+	void configure(boolean enabled, long quietPeriod, long maxDelay) {
+		this.enabled = enabled;
+		this.quietPeriod = quietPeriod;
+		this.maxDelay = Math.max(quietPeriod, maxDelay);
+	}
+	
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Lets changes be pushed to the given server by running the given sync
+	 * 
+	 * @param serverId the server the sync is with
+	 * @param sync runs a full sync with the server, in the calling thread
+	 */
+	public void register(Integer serverId, Runnable sync) {
+		senders.put(serverId, new Sender(serverId, sync));
+	}
+	
+	/**
+	 * Stops pushing changes to the given server, unless another sync was registered for it since
+	 * 
+	 * @param serverId the server the sync is with
+	 * @param sync the sync that was registered
+	 */
+	public void unregister(Integer serverId, Runnable sync) {
+		Sender sender = senders.get(serverId);
+		if (sender != null && sender.sync == sync)
+			senders.remove(serverId, sender);
+	}
+	
+	/**
+	 * Records whether the last sync with the given server got through. Nothing is pushed to a
+	 * server whose link is down; its schedule carries on as usual.
+	 * 
+	 * @param serverId the server the sync was with
+	 * @param up false if the sync failed
+	 */
+	public void setLinkUp(Integer serverId, boolean up) {
+		Sender sender = senders.get(serverId);
+		if (sender != null) {
+			if (sender.linkUp && !up)
+				log.info("Not pushing changes to server " + serverId + " until a scheduled sync gets through");
+			sender.linkUp = up;
+		}
+	}
+	
+	/**
+	 * Signals that a sync record was saved to the journal. Only schedules the pushes, so it is cheap
+	 * enough to call from the thread that made the change.
+	 */
+	public void journalCommitted() {
+		if (!enabled || senders.isEmpty() || SyncLaneScheduler.isSynchronizingOnThisThread())
+			return;
+		
+		for (Sender sender : senders.values()) {
+			sender.signal();
+		}
+	}
+	
+	/**
+	 * Cancels the pending pushes and stops the threads that send them
+	 */
+	public synchronized void shutdown() {
+		senders.clear();
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		if (pushes != null) {
+			pushes.shutdown();
+			pushes = null;
+		}
+	}
+	
+	private synchronized ScheduledExecutorService getTimer() {
+		if (timer == null)
+			timer = Executors.newSingleThreadScheduledExecutor(new PushThreadFactory("SyncPushTimer"));
+		return timer;
+	}
+	
+	private synchronized ExecutorService getPushes() {
+		if (pushes == null)
+			pushes = Executors.newCachedThreadPool(new PushThreadFactory("SyncPush"));
+		return pushes;
+	}
+	
+	/**
+	 * Debounces the changes for one server and runs its sync when they have settled
+	 */
+	private class Sender implements Runnable {
+		
+		private final Integer serverId;
+		
+		private final Runnable sync;
+		
+		private volatile boolean linkUp = true;
+		
+		private long firstSignal;
+		
+		private long lastSignal;
+		
+		private boolean due = false;
+		
+		private boolean sending = false;
+		
+		private boolean signalledWhileSending = false;
+		
+		private Sender(Integer serverId, Runnable sync) {
+			this.serverId = serverId;
+			this.sync = sync;
+		}
+		
+		private synchronized void signal() {
+			if (!linkUp)
+				return;
+			
+			lastSignal = System.currentTimeMillis();
+			if (sending) {
+				signalledWhileSending = true;
+			} else if (!due) {
+				firstSignal = lastSignal;
+				due = true;
+				getTimer().schedule(this, quietPeriod, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		/**
+		 * Runs on the timer: sends if the changes have settled or waited long enough, otherwise
+		 * checks again when they would have
+		 */
+		public synchronized void run() {
+			long now = System.currentTimeMillis();
+			long sendAt = Math.min(lastSignal + quietPeriod, firstSignal + maxDelay);
+			if (now < sendAt) {
+				getTimer().schedule(this, sendAt - now, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			due = false;
+			if (!enabled || !linkUp || senders.get(serverId) != this)
+				return;
+			
+			sending = true;
+			getPushes().execute(new Runnable() {
+				
+				public void run() {
+					send();
+				}
+			});
+		}
+		
+		private void send() {
+			if (log.isDebugEnabled())
+				log.debug("Pushing changes to server " + serverId + ", "
+				        + (System.currentTimeMillis() - firstSignal) + " ms after the first one was journaled");
+			try {
+				sync.run();
+			}
+			catch (Throwable t) {
+				log.error("Unable to push changes to server " + serverId, t);
+			}
+			finally {
+				synchronized (this) {
+					sending = false;
+					// changes made during the sync may have missed it
+					if (signalledWhileSending) {
+						signalledWhileSending = false;
+						firstSignal = lastSignal;
+						due = true;
+						getTimer().schedule(this, quietPeriod, TimeUnit.MILLISECONDS);
+					}
+				}
+			}
+		}
+	}
+	
+	private static class PushThreadFactory implements ThreadFactory {
+		
+		private final String name;
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		private PushThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.compression.CompressionDictionary;
+import org.openmrs.module.sync.server.compression.DictionaryTrainer;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * This task trains a compression dictionary on the most recent sync records of this server (see
+ * {@link SyncService#trainCompressionDictionary(Integer, Integer)}). If the "activate" property is
+ * true the new dictionary is made current through
+ * {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY}, otherwise its id is logged so that it can
+ * be compared with the built in one with
+ * {@link org.openmrs.module.sync.server.compression.CompressionBenchmark} first.
+ */
+public class TrainCompressionDictionaryTask extends AbstractTask {
+	
+	private static Log log = LogFactory.getLog(TrainCompressionDictionaryTask.class);
+	
+	protected static final String PROPERTY_SAMPLE_SIZE = "sample_size";
+	
+	protected static final String PROPERTY_DICTIONARY_SIZE = "dictionary_size";
+	
+	protected static final String PROPERTY_ACTIVATE = "activate";
+	
+	private Integer DEFAULT_SAMPLE_SIZE = 2000;
+	
+	/**
+	 * Do the actual training.
+	 */
+	public void execute() {
+		Context.openSession();
+		log.debug("Starting compression dictionary training ... ");
+		try {
+			if (Context.isAuthenticated() == false)
+				authenticate();
+			
+			Map<String, String> props = null;
+			if (taskDefinition != null)
+				props = taskDefinition.getProperties();
+			
+			Integer sampleSize = CleanupSyncTablesTask.getIntegerProperty(PROPERTY_SAMPLE_SIZE, props, DEFAULT_SAMPLE_SIZE);
+			Integer dictionarySize = CleanupSyncTablesTask.getIntegerProperty(PROPERTY_DICTIONARY_SIZE, props,
+			    DictionaryTrainer.DEFAULT_DICTIONARY_SIZE);
+			boolean activate = props != null && Boolean.parseBoolean(props.get(PROPERTY_ACTIVATE));
+			
+			CompressionDictionary dictionary = Context.getService(SyncService.class).trainCompressionDictionary(
+			    sampleSize, dictionarySize);
+			
+			if (activate) {
+				AdministrationService as = Context.getAdministrationService();
+				GlobalProperty gp = as.getGlobalPropertyObject(SyncConstants.PROPERTY_COMPRESSION_DICTIONARY);
+				if (gp == null)
+					gp = new GlobalProperty(SyncConstants.PROPERTY_COMPRESSION_DICTIONARY);
+				gp.setPropertyValue(dictionary.getIdString());
+				as.saveGlobalProperty(gp);
+				log.info("Compression dictionary " + dictionary + " is now used for new transmissions and payloads");
+			} else {
+				log.info("Trained compression dictionary " + dictionary + ", set "
+				        + SyncConstants.PROPERTY_COMPRESSION_DICTIONARY + " to " + dictionary.getIdString() + " to use it");
+			}
+		}
+		catch (Throwable t) {
+			log.error("Error while training a compression dictionary", t);
+			throw new APIException(t);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
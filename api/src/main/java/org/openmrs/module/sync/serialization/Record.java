@@ -18,7 +18,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.UUID;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -38,6 +41,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
 import org.w3c.dom.Text;
 import org.w3c.dom.CDATASection;
 
@@ -62,6 +66,7 @@ public class Record
 	public static final String YESSTR = "yes";
 	public static final String DELIM = ",";
 	public static final String NULLSTR = "";
+	public static final String FRAGMENT_TARGET = "sync-fragment";
 
 	private Document m_doc = null;
 	private Element m_first = null;
@@ -69,6 +74,10 @@ public class Record
 
     private Package m_package=null;
 
+    // already serialized fragments, spliced in when dumping
+    private Map<String, String> m_fragments = null;
+    private String m_fragmentPrefix = null;
+
     /** Package/record ownership
      */
     protected void setPackage(Package p) {m_package=p;}
@@ -140,8 +149,78 @@ public class Record
         transformer.setOutputProperty(OutputKeys.INDENT, YESSTR);
         transformer.setOutputProperty(OutputKeys.ENCODING, UTF8);
         transformer.setOutputProperty(OutputKeys.STANDALONE, YESSTR);
-        transformer.transform(source, res);
+
+        if (m_fragments == null)
+        {
+            transformer.transform(source, res);
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        transformer.transform(source, new StreamResult(buffer));
+        os.write(spliceFragments(new String(buffer.toByteArray(), UTF8)).getBytes(UTF8));
 	}    
+
+    /** Serialize a single item on its own, as text that can be stitched
+     * into other records with createFragment()
+     * @param item to serialize
+     * @return the xml of the item without a declaration
+     */
+    public static String toFragment(IItem item) throws Exception
+    {
+        Record xml = new Record();
+        item.save(xml, null);
+        String fragment = xml.toStringAsDocumentFragement();
+        if (fragment == null)
+        {
+            throw new Exception("Could not serialize " + item);
+        }
+        return fragment;
+    }
+
+    /** Stitch in an item that was serialized before by toFragment(); the
+     * text is only spliced in when this record is dumped, so it can not be
+     * read back from this record
+     * @param parent item
+     * @param fragment xml of a single element
+     * @return the item standing in for the fragment
+     */
+    public Item createFragment(Item parent, String fragment) throws Exception
+    {
+        if (m_fragments == null)
+        {
+            m_fragments = new HashMap<String, String>();
+            m_fragmentPrefix = UUID.randomUUID().toString() + "-";
+        }
+
+        String ref = m_fragmentPrefix + m_fragments.size();
+        m_fragments.put(ref, fragment);
+
+        ProcessingInstruction element = m_doc.createProcessingInstruction(FRAGMENT_TARGET, ref);
+        parent.getElement().appendChild(element);
+        return new Item(element);
+    }
+
+    /** Replace the processing instructions left by createFragment() with
+     * the fragments they stand for
+     */
+    private String spliceFragments(String text)
+    {
+        String marker = "<?" + FRAGMENT_TARGET + " ";
+        StringBuilder sb = new StringBuilder(text.length());
+        int from = 0;
+        int at = text.indexOf(marker + m_fragmentPrefix);
+        while (at >= 0)
+        {
+            int end = text.indexOf("?>", at);
+            sb.append(text, from, at);
+            sb.append(m_fragments.get(text.substring(at + marker.length(), end)));
+            from = end + 2;
+            at = text.indexOf(marker + m_fragmentPrefix, from);
+        }
+        sb.append(text, from, text.length());
+        return sb.toString();
+    }
     
 	/** Create an item and stitch it in
 	* @param parent Item
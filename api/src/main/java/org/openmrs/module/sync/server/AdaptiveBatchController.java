@@ -0,0 +1,174 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.api.SyncService;
+
+/**
+ * Adapts the number of records sent to a server at once, and the time we wait for its answer, to
+ * what the link to that server has managed so far.
+ * <p>
+ * The batch size follows the usual additive increase / multiplicative decrease scheme: every
+ * transmission that filled its batch and came back in time lets the next one carry
+ * {@link #BATCH_SIZE_INCREASE} more records, while a transmission that timed out or failed halves
+ * the batch. A server nothing was learned for yet gets {@link SyncSettings#getMaxRecordsWeb()}
+ * records, which is also where the growth starts from; the batch may then grow up to
+ * {@link SyncSettings#getMaxRecordsWebCeiling()}, but never beyond it.
+ * <p>
+ * Throughput is kept per server as an exponentially weighted average of records and bytes per
+ * second, and is stored on the {@link RemoteServer} together with the batch size so that it
+ * survives a restart. Callers are expected to save the server afterwards.
+ */
+public class AdaptiveBatchController {
+	
+	private static final Log log = LogFactory.getLog(AdaptiveBatchController.class);
+	
+	/**
+	 * Records added to the batch after each transmission that filled its batch
+	 */
+	public static final int BATCH_SIZE_INCREASE = 10;
+	
+	/**
+	 * The batch never shrinks below this many records
+	 */
+	public static final int MIN_BATCH_SIZE = 1;
+	
+	/**
+	 * Weight of the newest measurement in the throughput averages
+	 */
+	public static final double RATE_WEIGHT = 0.3;
+	
+	/**
+	 * Allowance in milliseconds for connecting, the handshake and the server's fixed costs, on top
+	 * of the time the records themselves are expected to take
+	 */
+	public static final double LATENCY_ALLOWANCE = 18000;
+	
+	/**
+	 * How many times the expected duration we wait before giving up on a transmission
+	 */
+	public static final double TIMEOUT_SAFETY_FACTOR = 3;
+	
+	public static final double MIN_TIMEOUT = 30000;
+	
+	public static final double MAX_TIMEOUT = 30 * 60 * 1000;
+	
+	/**
+	 * Gets the number of records to send to the given server in the next transmission.
+	 * 
+	 * @param server the server that is sent to
+	 * @param maxSyncRecords the number of records to start from, null for no limit
+	 * @return the batch size learned for the server, at most
+	 *         {@link SyncSettings#getMaxRecordsWebCeiling()}, or maxSyncRecords if nothing was learned
+	 *         yet
+	 * @should return the maximum when nothing was learned for the server yet
+	 * @should return the learned batch size even when it is larger than the starting size
+	 * @should not return more than the ceiling
+	 */
+	public static Integer getBatchSize(RemoteServer server, Integer maxSyncRecords) {
+		SyncSettings settings = getSettings();
+		if (server == null || server.getBatchSize() == null || !settings.isAdaptiveBatchSize())
+			return maxSyncRecords;
+		return Math.min(server.getBatchSize(), settings.getMaxRecordsWebCeiling());
+	}
+	
+	/**
+	 * Gets the time to wait for the given server to answer a transmission. A timeout set in the
+	 * sync.connection_timeout global property always wins; otherwise the timeout is worked out from
+	 * the records per second seen on the link and the current batch size, and only when nothing was
+	 * measured yet the default from {@link SyncSettings#getConnectionTimeout()} is used.
+	 * 
+	 * @param server the server that is sent to
+	 * @return the timeout in milliseconds
+	 * @should use the configured timeout when there is one
+	 * @should derive the timeout from the observed rate
+	 */
+	public static double getTimeout(RemoteServer server) {
+		SyncSettings settings = getSettings();
+		if (settings.isConnectionTimeoutConfigured() || server == null || server.getRecordsPerSecond() == null
+		        || server.getRecordsPerSecond() <= 0)
+			return settings.getConnectionTimeout();
+		
+		Integer batchSize = getBatchSize(server, settings.getMaxRecordsWeb());
+		if (batchSize == null)
+			return settings.getConnectionTimeout();
+		
+		double expected = batchSize * 1000 / server.getRecordsPerSecond();
+		double timeout = LATENCY_ALLOWANCE + TIMEOUT_SAFETY_FACTOR * expected;
+		return Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, timeout));
+	}
+	
+	/**
+	 * Records a transmission to the given server that came back in time: updates the throughput
+	 * averages and, if the batch was full, grows the batch up to
+	 * {@link SyncSettings#getMaxRecordsWebCeiling()}.
+	 * 
+	 * @param server the server that was sent to
+	 * @param records the number of records in the transmission
+	 * @param bytes the bytes sent on the wire for the transmission
+	 * @param millis how long it took to send the transmission and get the answer
+	 * @should grow the batch after a full transmission
+	 * @should start growing from the configured maximum when nothing was learned yet
+	 * @should not grow the batch beyond the ceiling
+	 */
+	public static void transmissionSucceeded(RemoteServer server, int records, long bytes, long millis) {
+		if (server == null || records <= 0)
+			return;
+		
+		double seconds = Math.max(millis, 1) / 1000.0;
+		server.setRecordsPerSecond(average(server.getRecordsPerSecond(), records / seconds));
+		server.setBytesPerSecond(average(server.getBytesPerSecond(), bytes / seconds));
+		
+		SyncSettings settings = getSettings();
+		Integer batchSize = server.getBatchSize() != null ? server.getBatchSize() : settings.getMaxRecordsWeb();
+		if (batchSize != null && records >= batchSize && settings.isAdaptiveBatchSize())
+			server.setBatchSize(Math.min(batchSize + BATCH_SIZE_INCREASE, settings.getMaxRecordsWebCeiling()));
+		
+		if (log.isDebugEnabled())
+			log.debug("Sent " + records + " records to " + server.getNickname() + " in " + millis + " ms, next batch: "
+			        + server.getBatchSize() + ", records per second: " + server.getRecordsPerSecond());
+	}
+	
+	/**
+	 * Records a transmission to the given server that timed out or failed to connect, and halves
+	 * the batch.
+	 * 
+	 * @param server the server that was sent to
+	 * @param records the number of records in the transmission
+	 * @should halve the batch after a failed transmission
+	 * @should not shrink the batch when no records were sent
+	 */
+	public static void transmissionFailed(RemoteServer server, int records) {
+		if (server == null || records <= 0 || !getSettings().isAdaptiveBatchSize())
+			return;
+		
+		server.setBatchSize(Math.max(MIN_BATCH_SIZE, records / 2));
+		log.info("Sending " + records + " records to " + server.getNickname() + " failed, the next batch will have at most "
+		        + server.getBatchSize() + " records");
+	}
+	
+	private static Double average(Double previous, double measured) {
+		if (previous == null)
+			return measured;
+		return RATE_WEIGHT * measured + (1 - RATE_WEIGHT) * previous;
+	}
+	
+	private static SyncSettings getSettings() {
+		return Context.getService(SyncService.class).getSyncSettings();
+	}
+}
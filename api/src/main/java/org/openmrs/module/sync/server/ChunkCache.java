@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps transmissions for a few minutes so that their damaged chunks can be put right (see
+ * {@link ChunkChecksums}): the answers this server sent, for the other side to fetch chunks of
+ * again, and requests that arrived damaged, waiting for the sender to post the damaged chunks
+ * again. The cache is bounded; what doesn't fit is simply not kept, and an exchange whose
+ * transmission is no longer here fails as it would have without chunk checksums.
+ */
+public class ChunkCache {
+	
+	/**
+	 * How long a transmission is kept
+	 */
+	public static final long TIME_TO_LIVE = 10 * 60 * 1000;
+	
+	/**
+	 * The answers this server sent
+	 */
+	private static final ChunkCache responses = new ChunkCache(64 * 1024 * 1024);
+	
+	/**
+	 * The requests that arrived damaged
+	 */
+	private static final ChunkCache uploads = new ChunkCache(64 * 1024 * 1024);
+	
+	private final long maxBytes;
+	
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	
+	private long bytes = 0;
+	
+	private static class Entry {
+		
+		private final byte[] bytes;
+		
+		private final long expires;
+		
+		Entry(byte[] bytes, long expires) {
+			this.bytes = bytes;
+			this.expires = expires;
+		}
+	}
+	
+	/**
+	 * @param maxBytes the most bytes kept at a time
+	 */
+	public ChunkCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @return the cache of the answers this server sent
+	 */
+	public static ChunkCache getResponses() {
+		return responses;
+	}
+	
+	/**
+	 * @return the cache of the requests that arrived damaged
+	 */
+	public static ChunkCache getUploads() {
+		return uploads;
+	}
+	
+	/**
+	 * Keeps a transmission, dropping the oldest ones if there is no room
+	 * 
+	 * @param id the id of the transmission
+	 * @param transmission the transmission
+	 * @return true if it was kept, false if it is too large
+	 */
+	public synchronized boolean put(String id, byte[] transmission) {
+		remove(id);
+		expire();
+		if (transmission.length > maxBytes / 2)
+			return false;
+		
+		Iterator<Entry> oldest = entries.values().iterator();
+		while (bytes + transmission.length > maxBytes && oldest.hasNext()) {
+			bytes -= oldest.next().bytes.length;
+			oldest.remove();
+		}
+		entries.put(id, new Entry(transmission, System.currentTimeMillis() + TIME_TO_LIVE));
+		bytes += transmission.length;
+		return true;
+	}
+	
+	/**
+	 * @param id the id of a transmission
+	 * @return the transmission, or null if it isn't kept (anymore)
+	 */
+	public synchronized byte[] get(String id) {
+		expire();
+		Entry entry = entries.get(id);
+		return entry == null ? null : entry.bytes;
+	}
+	
+	/**
+	 * @param id the id of a transmission
+	 * @return the transmission, which is no longer kept, or null if it wasn't
+	 */
+	public synchronized byte[] remove(String id) {
+		Entry entry = entries.remove(id);
+		if (entry == null)
+			return null;
+		bytes -= entry.bytes.length;
+		return entry.bytes;
+	}
+	
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.expires < now) {
+				bytes -= entry.bytes.length;
+				i.remove();
+			}
+		}
+	}
+}
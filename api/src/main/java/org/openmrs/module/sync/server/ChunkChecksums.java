@@ -0,0 +1,289 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openmrs.module.sync.SyncException;
+import org.springframework.util.StringUtils;
+
+/**
+ * The {@link Crc32c CRC-32C} of each chunk of a compressed transmission, sent along with it so the
+ * receiving server can check the transmission as it reads it and ask again for just the chunks
+ * that were damaged on the way, instead of failing the whole exchange.
+ * <p>
+ * An answer carries them in the {@value #CHECKSUMS_HEADER} header, and names in the
+ * {@value #SOURCE_HEADER} header where damaged chunks can be fetched again from (see
+ * {@link ChunkCache} and {@link ChunkVerifyingInputStream}). A request carries them in the
+ * {@value #CHECKSUMS_PARAMETER} part; if some of its chunks arrive damaged the answer lists them in
+ * the {@value #DAMAGED_HEADER} header and the sender posts only those chunks again, naming the
+ * transmission in {@value #REPAIR_OF_PARAMETER}. Servers that don't send chunk checksums are
+ * checked against the CRC-32 of the whole transmission as before.
+ * <p>
+ * They are written as the length of the transmission, the chunk size and the checksums of the
+ * chunks in hex, e.g. "150000 65536 1a2b3c4d,5e6f7a8b,9c0d1e2f".
+ */
+public class ChunkChecksums {
+	
+	public static final String CHECKSUMS_HEADER = "Chunk-Checksums";
+	
+	public static final String SOURCE_HEADER = "Chunk-Source";
+	
+	public static final String DAMAGED_HEADER = "Chunk-Damaged";
+	
+	public static final String CHECKSUMS_PARAMETER = "chunkChecksums";
+	
+	public static final String TRANSMISSION_ID_PARAMETER = "transmissionId";
+	
+	public static final String REPAIR_OF_PARAMETER = "repairOf";
+	
+	public static final String CHUNKS_PARAMETER = "chunks";
+	
+	public static final String CHUNK_OF_PARAMETER = "chunkOf";
+	
+	public static final String CHUNK_PARAMETER = "chunk";
+	
+	/**
+	 * The smallest chunk size; larger transmissions get larger chunks so there are never more than
+	 * {@link #MAX_CHUNKS} checksums to send
+	 */
+	public static final int MIN_CHUNK_SIZE = 64 * 1024;
+	
+	public static final int MAX_CHUNKS = 256;
+	
+	private final long length;
+	
+	private final int chunkSize;
+	
+	private final long[] checksums;
+	
+	private ChunkChecksums(long length, int chunkSize, long[] checksums) {
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.checksums = checksums;
+	}
+	
+	/**
+	 * @param bytes a compressed transmission
+	 * @return the checksums of its chunks
+	 */
+	public static ChunkChecksums of(byte[] bytes) {
+		return of(bytes, getChunkSize(bytes.length));
+	}
+	
+	/**
+	 * @param length the length of a transmission
+	 * @return the size of its chunks
+	 */
+	public static int getChunkSize(long length) {
+		return (int) Math.max(MIN_CHUNK_SIZE, (length + MAX_CHUNKS - 1) / MAX_CHUNKS);
+	}
+	
+	/**
+	 * @param bytes a compressed transmission
+	 * @param chunkSize the size of its chunks
+	 * @return the checksums of its chunks
+	 */
+	public static ChunkChecksums of(byte[] bytes, int chunkSize) {
+		int count = (int) ((bytes.length + (long) chunkSize - 1) / chunkSize);
+		long[] checksums = new long[count];
+		for (int i = 0; i < count; i++) {
+			int offset = i * chunkSize;
+			checksums[i] = Crc32c.checksum(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+		}
+		return new ChunkChecksums(bytes.length, chunkSize, checksums);
+	}
+	
+	/**
+	 * Works out the checksums of a transmission a chunk at a time, without it having to be in one
+	 * array
+	 * 
+	 * @param in a compressed transmission, not closed
+	 * @param length its length
+	 * @return the checksums of its chunks
+	 * @throws IOException if the transmission can't be read in full
+	 * @should work out the same checksums as from the bytes
+	 */
+	public static ChunkChecksums of(InputStream in, long length) throws IOException {
+		int chunkSize = getChunkSize(length);
+		int count = (int) ((length + chunkSize - 1) / chunkSize);
+		long[] checksums = new long[count];
+		byte[] chunk = new byte[count == 0 ? 0 : chunkSize];
+		for (int i = 0; i < count; i++) {
+			int chunkLength = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+			for (int read = 0; read < chunkLength;) {
+				int n = in.read(chunk, read, chunkLength - read);
+				if (n == -1)
+					throw new IOException("The transmission ends before its length of " + length + " bytes");
+				read += n;
+			}
+			checksums[i] = Crc32c.checksum(chunk, 0, chunkLength);
+		}
+		return new ChunkChecksums(length, chunkSize, checksums);
+	}
+	
+	/**
+	 * @param value the checksums as written by {@link #toString()}
+	 * @return the checksums
+	 * @throws SyncException if the value isn't a list of chunk checksums
+	 * @should read what it writes
+	 * @should fail for a value that does not match its length
+	 */
+	public static ChunkChecksums parse(String value) throws SyncException {
+		String[] fields = value.trim().split(" ", 3);
+		try {
+			long length = Long.parseLong(fields[0]);
+			int chunkSize = Integer.parseInt(fields[1]);
+			String[] hex = fields.length < 3 ? new String[0] : StringUtils.commaDelimitedListToStringArray(fields[2]);
+			if (chunkSize <= 0 || hex.length != (length + chunkSize - 1) / chunkSize)
+				throw new SyncException("The chunk checksums '" + value + "' don't add up to the length they give");
+			long[] checksums = new long[hex.length];
+			for (int i = 0; i < hex.length; i++)
+				checksums[i] = Long.parseLong(hex[i].trim(), 16);
+			return new ChunkChecksums(length, chunkSize, checksums);
+		}
+		catch (NumberFormatException e) {
+			throw new SyncException("Invalid chunk checksums '" + value + "'", e);
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			throw new SyncException("Invalid chunk checksums '" + value + "'", e);
+		}
+	}
+	
+	/**
+	 * @return the length of the transmission
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	public int getChunkCount() {
+		return checksums.length;
+	}
+	
+	/**
+	 * @param index the number of a chunk, from 0
+	 * @return where the chunk starts in the transmission
+	 */
+	public long getChunkOffset(int index) {
+		return (long) index * chunkSize;
+	}
+	
+	/**
+	 * @param index the number of a chunk, from 0
+	 * @return the length of the chunk, only the last one can be shorter than the chunk size
+	 */
+	public int getChunkLength(int index) {
+		return (int) Math.min(chunkSize, length - getChunkOffset(index));
+	}
+	
+	/**
+	 * @param index the number of a chunk, from 0
+	 * @param b a buffer with the chunk
+	 * @param off where the chunk starts in the buffer
+	 * @param len the length of the chunk in the buffer
+	 * @return true if the chunk is as it was sent
+	 */
+	public boolean verify(int index, byte[] b, int off, int len) {
+		return index >= 0 && index < checksums.length && len == getChunkLength(index)
+		        && Crc32c.checksum(b, off, len) == checksums[index];
+	}
+	
+	/**
+	 * @param bytes the transmission as received
+	 * @return the numbers of the chunks that are damaged or missing
+	 * @should find the damaged and the missing chunks
+	 */
+	public List<Integer> findDamaged(byte[] bytes) {
+		List<Integer> damaged = new ArrayList<Integer>();
+		for (int i = 0; i < checksums.length; i++) {
+			long offset = getChunkOffset(i);
+			int available = (int) Math.max(0, Math.min(getChunkLength(i), bytes.length - offset));
+			if (!verify(i, bytes, (int) Math.min(offset, bytes.length), available))
+				damaged.add(i);
+		}
+		return damaged;
+	}
+	
+	/**
+	 * Puts chunks that were sent again in place in the transmission
+	 * 
+	 * @param bytes the transmission as first received
+	 * @param chunks the numbers of the chunks that were sent again
+	 * @param repaired those chunks, one after the other
+	 * @return the transmission with the chunks replaced, as long as it should be
+	 * @throws SyncException if the repaired chunks don't have the right length
+	 */
+	public byte[] repair(byte[] bytes, List<Integer> chunks, byte[] repaired) throws SyncException {
+		byte[] result = new byte[(int) length];
+		System.arraycopy(bytes, 0, result, 0, (int) Math.min(bytes.length, length));
+		int position = 0;
+		for (Integer index : chunks) {
+			if (index < 0 || index >= checksums.length || position + getChunkLength(index) > repaired.length)
+				throw new SyncException("The chunks sent again don't match the chunks " + chunks);
+			System.arraycopy(repaired, position, result, (int) getChunkOffset(index), getChunkLength(index));
+			position += getChunkLength(index);
+		}
+		return result;
+	}
+	
+	/**
+	 * @param chunks numbers of chunks
+	 * @return the numbers, comma separated
+	 */
+	public static String formatChunks(List<Integer> chunks) {
+		return StringUtils.collectionToCommaDelimitedString(chunks);
+	}
+	
+	/**
+	 * @param value numbers of chunks as written by {@link #formatChunks(List)}
+	 * @return the numbers
+	 * @throws SyncException if the value isn't a list of numbers
+	 */
+	public static List<Integer> parseChunks(String value) throws SyncException {
+		List<Integer> chunks = new ArrayList<Integer>();
+		try {
+			for (String chunk : StringUtils.commaDelimitedListToStringArray(value)) {
+				if (StringUtils.hasText(chunk))
+					chunks.add(Integer.valueOf(chunk.trim()));
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new SyncException("Invalid chunk numbers '" + value + "'", e);
+		}
+		return chunks;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder value = new StringBuilder();
+		value.append(length).append(' ').append(chunkSize).append(' ');
+		for (int i = 0; i < checksums.length; i++) {
+			if (i > 0)
+				value.append(',');
+			value.append(Long.toHexString(checksums[i]));
+		}
+		return value.toString();
+	}
+}
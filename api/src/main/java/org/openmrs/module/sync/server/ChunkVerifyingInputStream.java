@@ -0,0 +1,193 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads a transmission a chunk at a time, checking each chunk against its {@link ChunkChecksums}
+ * before handing it on, so a damaged transmission is noticed while it is decompressed rather than
+ * after. A chunk that is damaged, or missing because the connection dropped, is fetched again from
+ * the {@link ChunkSource} on its own; only if that fails too does reading fail.
+ */
+public class ChunkVerifyingInputStream extends InputStream {
+	
+	private static final Log log = LogFactory.getLog(ChunkVerifyingInputStream.class);
+	
+	/**
+	 * How many times a damaged chunk is fetched again before giving up
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+	
+	/**
+	 * Where damaged chunks are fetched again from
+	 */
+	public interface ChunkSource {
+		
+		/**
+		 * @param index the number of the chunk, from 0
+		 * @return the chunk
+		 * @throws IOException if it can't be fetched
+		 */
+		public byte[] fetch(int index) throws IOException;
+	}
+	
+	private final InputStream in;
+	
+	private final ChunkChecksums checksums;
+	
+	private final ChunkSource source;
+	
+	private final byte[] chunk;
+	
+	private int index = -1;
+	
+	private int position = 0;
+	
+	private int limit = 0;
+	
+	private boolean inBroken = false;
+	
+	private int chunksFetched = 0;
+	
+	/**
+	 * @param in the transmission as it is received
+	 * @param checksums the checksums sent with it
+	 * @param source where to fetch damaged chunks from, null if they can't be
+	 */
+	public ChunkVerifyingInputStream(InputStream in, ChunkChecksums checksums, ChunkSource source) {
+		this.in = in;
+		this.checksums = checksums;
+		this.source = source;
+		this.chunk = new byte[checksums.getChunkCount() == 0 ? 0 : checksums.getChunkSize()];
+	}
+	
+	/**
+	 * @return how many chunks had to be fetched again
+	 */
+	public int getChunksFetched() {
+		return chunksFetched;
+	}
+	
+	/**
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+	
+	/**
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 * @should hand on the chunks as sent
+	 * @should fetch only the damaged chunks again
+	 * @should fetch the chunks missing from a truncated transmission
+	 * @should fail if a chunk is still damaged after fetching it again
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position == limit && !nextChunk())
+			return -1;
+		int n = Math.min(len, limit - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+	
+	/**
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		return limit - position;
+	}
+	
+	/**
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+	
+	/**
+	 * Reads, checks and if need be fetches again the next chunk
+	 * 
+	 * @return false at the end of the transmission
+	 */
+	private boolean nextChunk() throws IOException {
+		if (index + 1 >= checksums.getChunkCount())
+			return false;
+		index++;
+		position = 0;
+		limit = checksums.getChunkLength(index);
+		
+		int read = inBroken ? 0 : readFully(limit);
+		if (read == limit && checksums.verify(index, chunk, 0, limit))
+			return true;
+		
+		if (source == null)
+			throw new IOException("Chunk " + index + " of the transmission is damaged and can't be fetched again");
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			log.warn("Chunk " + index + " of the transmission is " + (read < limit ? "missing" : "damaged")
+			        + ", fetching it again (attempt " + attempt + ")");
+			byte[] fetched;
+			try {
+				fetched = source.fetch(index);
+			}
+			catch (IOException e) {
+				log.warn("Unable to fetch chunk " + index + " again", e);
+				continue;
+			}
+			if (fetched.length == limit && checksums.verify(index, fetched, 0, limit)) {
+				System.arraycopy(fetched, 0, chunk, 0, limit);
+				chunksFetched++;
+				return true;
+			}
+		}
+		throw new IOException("Chunk " + index + " of the transmission is still damaged after fetching it again "
+		        + MAX_ATTEMPTS + " times");
+	}
+	
+	/**
+	 * Reads up to the given number of bytes into the chunk buffer. Once the underlying stream
+	 * breaks, the rest of the chunks come from the chunk source.
+	 * 
+	 * @return the number of bytes read
+	 */
+	private int readFully(int length) {
+		int read = 0;
+		try {
+			while (read < length) {
+				int n = in.read(chunk, read, length - read);
+				if (n == -1)
+					break;
+				read += n;
+			}
+		}
+		catch (IOException e) {
+			log.warn("The transmission broke off at chunk " + index, e);
+		}
+		if (read < length)
+			inBroken = true;
+		return read;
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openmrs.module.sync.SyncException;
+import org.springframework.util.StringUtils;
+
+/**
+ * The handshake a server retrying a transmission starts with: it posts the uuids of the records
+ * it sent before in the {@value #PARAMETER} parameter, and the receiving server answers which of
+ * them it has committed already, so that only the others are sent again. A transmission that
+ * failed halfway through would otherwise be sent again in full every time.
+ * <p>
+ * The answer is a bitmap with a bit for each uuid asked about, in the order they were asked,
+ * written in hex, e.g. "a1" for eight uuids of which the first, third and eighth were committed.
+ * It is exact: a record is left out only if the receiver has it. The receiver marks its answer
+ * with the {@value #HEADER} header; servers that don't know the handshake answer without it, and
+ * then everything is sent as before.
+ */
+public class CommittedRecords {
+	
+	public static final String PARAMETER = "committedOf";
+	
+	public static final String HEADER = "Committed-Records";
+	
+	/**
+	 * @param uuids the original uuids of sync records
+	 * @return the uuids, comma separated
+	 */
+	public static String formatUuids(Collection<String> uuids) {
+		return StringUtils.collectionToCommaDelimitedString(uuids);
+	}
+	
+	/**
+	 * @param value uuids as written by {@link #formatUuids(Collection)}
+	 * @return the uuids, in the order they were written
+	 */
+	public static List<String> parseUuids(String value) {
+		List<String> uuids = new ArrayList<String>();
+		for (String uuid : StringUtils.commaDelimitedListToStringArray(value)) {
+			if (StringUtils.hasText(uuid))
+				uuids.add(uuid.trim());
+		}
+		return uuids;
+	}
+	
+	/**
+	 * @param asked the uuids asked about
+	 * @param committed those of them that were committed
+	 * @return the answer to send back
+	 * @should set the bits of the committed uuids only
+	 */
+	public static String formatAnswer(List<String> asked, Set<String> committed) {
+		byte[] bits = new byte[(asked.size() + 7) / 8];
+		for (int i = 0; i < asked.size(); i++) {
+			if (committed.contains(asked.get(i)))
+				bits[i / 8] |= 0x80 >>> (i % 8);
+		}
+		StringBuilder answer = new StringBuilder(bits.length * 2);
+		for (byte b : bits) {
+			answer.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return answer.toString();
+	}
+	
+	/**
+	 * @param asked the uuids that were asked about, in the same order
+	 * @param answer the answer as written by {@link #formatAnswer(List, Set)}
+	 * @return the uuids the other side has committed
+	 * @throws SyncException if the answer doesn't fit the question
+	 * @should read back the committed uuids
+	 * @should fail if the answer does not fit the question
+	 */
+	public static Set<String> parseAnswer(List<String> asked, String answer) throws SyncException {
+		String hex = answer == null ? "" : answer.trim();
+		if (hex.length() != (asked.size() + 7) / 8 * 2)
+			throw new SyncException("The answer '" + answer + "' doesn't fit the " + asked.size() + " records asked about");
+		Set<String> committed = new HashSet<String>();
+		for (int i = 0; i < asked.size(); i++) {
+			int digit = Character.digit(hex.charAt(i / 4), 16);
+			if (digit < 0)
+				throw new SyncException("Invalid answer '" + answer + "'");
+			if ((digit & (0x8 >>> (i % 4))) != 0)
+				committed.add(asked.get(i));
+		}
+		return committed;
+	}
+}
@@ -17,14 +17,18 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedOutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.server.compression.CompressionCodec;
+import org.openmrs.module.sync.server.compression.CompressionCodecs;
 
 /**
  *
@@ -34,10 +38,9 @@ public class ConnectionRequest {
 	private static final Log log = LogFactory.getLog(ConnectionRequest.class);
 
 	private long checksum;
-	private boolean useCompression;
-	private ByteArrayOutputStream baos; 
+	private CompressionCodec codec;
+	private Body baos; 
 	private CheckedOutputStream cos;             
-	private GZIPOutputStream zos;   			
 		
 	
 	/**
@@ -59,17 +62,31 @@ public class ConnectionRequest {
 	 * @throws SyncException
 	 */
 	public ConnectionRequest(String content, boolean useCompression) throws SyncException { 
+		this(content, CompressionCodecs.getCodec(useCompression), Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Public constructor that creates a request compressed with the given codec. The checksum is
+	 * that of the compressed bytes.
+	 * 
+	 * @param content
+	 * @param codec the codec of the link
+	 * @param level the compression level, for codecs that can be tuned
+	 * @throws SyncException
+	 */
+	public ConnectionRequest(String content, CompressionCodec codec, int level) throws SyncException { 
 		try {
-			this.useCompression = useCompression;
-			this.baos = new ByteArrayOutputStream();
+			this.codec = codec;
+			this.baos = new Body();
 			this.cos = new CheckedOutputStream(baos, new CRC32());			
 			
-			if (useCompression) { 
-				this.zos = new GZIPOutputStream(new BufferedOutputStream(cos));			
+			if (forceCompression()) { 
+				OutputStream zos = codec.compress(new BufferedOutputStream(cos), level);
 				IOUtils.copy(new ByteArrayInputStream(content.getBytes("UTF-8")), zos);
-				IOUtils.closeQuietly(zos);		
+				zos.close();
 			} 
 			else { 
+				// uncompressed content goes without a checksum, as the other side doesn't work one out
 				IOUtils.copy(new ByteArrayInputStream(content.getBytes("UTF-8")), baos);
 				IOUtils.closeQuietly(baos);
 			}
@@ -100,8 +117,51 @@ public class ConnectionRequest {
 	public byte[] getBytes() { 
 		return baos.toByteArray();
 	}
+	
+	/**
+	 * @return the compressed or uncompressed data, read from where it is kept rather than from a copy
+	 */
+	public InputStream getInputStream() {
+		return baos.getInputStream();
+	}
+	
+	/**
+	 * Writes part of the compressed or uncompressed data
+	 * 
+	 * @param out where to write it
+	 * @param offset where the part starts
+	 * @param length how long it is
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, long offset, int length) throws IOException {
+		baos.writeTo(out, (int) offset, length);
+	}
+	
 	public boolean forceCompression() {
-		return useCompression;
+		return !CompressionCodecs.NONE.equals(codec.getName());
+	}
+	
+	/**
+	 * @return the codec the content is compressed with
+	 */
+	public CompressionCodec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * The data, readable without copying it
+	 */
+	private static class Body extends ByteArrayOutputStream {
+		
+		public synchronized InputStream getInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+		
+		public synchronized void writeTo(OutputStream out, int offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > count)
+				throw new IndexOutOfBoundsException("No bytes " + offset + " to " + (offset + length) + " in " + count);
+			out.write(buf, offset, length);
+		}
 	}
 	
 }
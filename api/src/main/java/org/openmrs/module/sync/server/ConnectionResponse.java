@@ -13,17 +13,17 @@
  */
 package org.openmrs.module.sync.server;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.server.compression.CompressionCodec;
+import org.openmrs.module.sync.server.compression.CompressionCodecs;
 
 /**
  * 
@@ -37,7 +37,8 @@ public class ConnectionResponse {
 	private long checksum;
 	private String responsePayload;
 	private CheckedInputStream cis;
-	private boolean useCompression;
+	private CompressionCodec codec;
+	private long bytesSent;
 	
 	public ConnectionResponse() { 
 		this.setErrorMessage("");
@@ -51,12 +52,24 @@ public class ConnectionResponse {
 	 * @throws SyncException
 	 */
 	public ConnectionResponse(InputStream is, boolean useCompression) throws SyncException {
+		this(is, CompressionCodecs.getCodec(useCompression));
+	}
+	
+	/**
+	 * The payload is decompressed as it is read, so a {@link ChunkVerifyingInputStream} checks it
+	 * on the way without it being held twice.
+	 * 
+	 * @param is the compressed payload
+	 * @param codec the codec it is compressed with
+	 * @throws SyncException
+	 */
+	public ConnectionResponse(InputStream is, CompressionCodec codec) throws SyncException {
 		try { 
-			this.useCompression = useCompression;
+			this.codec = codec;
 			this.cis = new CheckedInputStream(is, new CRC32());
 
-			if (this.useCompression) { 
-		        GZIPInputStream zis = new GZIPInputStream(new BufferedInputStream(cis)); 	        
+			if (!CompressionCodecs.NONE.equals(codec.getName())) { 
+		        InputStream zis = codec.decompress(cis); 	        
 		        this.responsePayload = IOUtils.toString(zis,"UTF-8");
 		        IOUtils.closeQuietly(zis);
 				IOUtils.closeQuietly(cis);
@@ -67,7 +80,7 @@ public class ConnectionResponse {
 				this.responsePayload = IOUtils.toString(cis, "UTF-8");				
 			}
 			
-			log.info("Response compressed: " + useCompression);
+			log.info("Response compressed with: " + codec.getName());
 			//log.info("Response input: " + is.toString());
 			//log.info("Response data: " + this.responsePayload);
 			log.info("Response checksum: " + this.checksum);
@@ -77,6 +90,8 @@ public class ConnectionResponse {
 		} catch (IOException e) { 
 			//throw new SyncException(e);
 			log.error("An error occurred while unzipping response", e);
+			this.setErrorMessage(e.getMessage());
+			this.setState(ServerConnectionState.CONNECTION_FAILED);
 		}
 		
 	}
@@ -108,4 +123,15 @@ public class ConnectionResponse {
 	public void setState(ServerConnectionState state) {
     	this.state = state;
     }
+	
+	/**
+	 * @return the bytes of the request body that went on the wire, compressed, repairs included
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+	
+	public void setBytesSent(long bytesSent) {
+		this.bytesSent = bytesSent;
+	}
 }
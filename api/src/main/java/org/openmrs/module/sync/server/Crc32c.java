@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of the chunks of a transmission (see {@link ChunkChecksums}).
+ * It catches more of the errors a network makes than the CRC-32 of zip, and newer JVMs compute it
+ * with the CRC32 instruction of the processor; {@link #newChecksum()} uses theirs when there is one
+ * and this table driven implementation otherwise.
+ */
+public class Crc32c implements Checksum {
+	
+	/**
+	 * The reversed Castagnoli polynomial
+	 */
+	private static final int POLYNOMIAL = 0x82F63B78;
+	
+	private static final int[] TABLE = new int[256];
+	
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			TABLE[i] = crc;
+		}
+	}
+	
+	private static final Constructor<?> jdkCrc32c = findJdkCrc32c();
+	
+	private int crc = 0xFFFFFFFF;
+	
+	/**
+	 * @return a CRC-32C checksum, the JVM's own if it has one
+	 * @should compute the same checksum as the table driven implementation
+	 */
+	public static Checksum newChecksum() {
+		if (jdkCrc32c != null) {
+			try {
+				return (Checksum) jdkCrc32c.newInstance();
+			}
+			catch (Exception e) {
+				// fall through to ours
+			}
+		}
+		return new Crc32c();
+	}
+	
+	/**
+	 * @param b the bytes
+	 * @param off where they start
+	 * @param len how many there are
+	 * @return the CRC-32C of the given bytes
+	 */
+	public static long checksum(byte[] b, int off, int len) {
+		Checksum checksum = newChecksum();
+		checksum.update(b, off, len);
+		return checksum.getValue();
+	}
+	
+	/**
+	 * @see java.util.zip.Checksum#update(int)
+	 */
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+	}
+	
+	/**
+	 * @see java.util.zip.Checksum#update(byte[], int, int)
+	 * @should compute the checksum of the standard check string
+	 */
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		for (int i = off; i < off + len; i++)
+			c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+		crc = c;
+	}
+	
+	/**
+	 * @see java.util.zip.Checksum#getValue()
+	 */
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * @see java.util.zip.Checksum#reset()
+	 */
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+	
+	/**
+	 * @return the constructor of java.util.zip.CRC32C, which JVMs have from Java 9 on, or null
+	 */
+	private static Constructor<?> findJdkCrc32c() {
+		try {
+			return Class.forName("java.util.zip.CRC32C").getConstructor();
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -19,7 +19,6 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.openmrs.module.sync.SyncRecord;
 import org.openmrs.module.sync.SyncServerClass;
@@ -47,6 +46,18 @@ public class RemoteServer {
 	
 	private SyncTransmissionState lastSyncState;
 	
+	private Date syncStarted;
+	
+	private Integer batchSize;
+	
+	private Double recordsPerSecond;
+	
+	private Double bytesPerSecond;
+	
+	private Integer acknowledgedRecordId;
+	
+	private String compression;
+	
 	private Set<SyncServerClass> serverClasses;
 	
 	private Set<SyncServerRecord> serverRecords;
@@ -99,6 +110,85 @@ public class RemoteServer {
 		this.lastSyncState = value;
 	}
 	
+	/**
+	 * @return when the sync with this server that is still running (or that was interrupted by a
+	 *         shutdown) was started, null if there is none
+	 */
+	public Date getSyncStarted() {
+		return syncStarted;
+	}
+	
+	public void setSyncStarted(Date syncStarted) {
+		this.syncStarted = syncStarted;
+	}
+	
+	/**
+	 * @return the number of records the link to this server is currently trusted with in one
+	 *         transmission, null if the configured maximum applies
+	 * @see AdaptiveBatchController
+	 */
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+	
+	public void setBatchSize(Integer batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * @return the average number of records per second sent to this server, null if nothing was
+	 *         measured yet
+	 */
+	public Double getRecordsPerSecond() {
+		return recordsPerSecond;
+	}
+	
+	public void setRecordsPerSecond(Double recordsPerSecond) {
+		this.recordsPerSecond = recordsPerSecond;
+	}
+	
+	/**
+	 * @return the average number of bytes (uncompressed) per second sent to this server, null if
+	 *         nothing was measured yet
+	 */
+	public Double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+	
+	public void setBytesPerSecond(Double bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+	
+	/**
+	 * The acknowledged cursor of a child server: every record up to this id is either committed by
+	 * the child or kept track of in a {@link SyncServerRecord} (filtered out, stopped, ...). Records
+	 * after it without a server record are still to be sent. Only the DAO moves it, saving the
+	 * server doesn't.
+	 * 
+	 * @return the highest acknowledged record id, null if this server has a row per record instead
+	 */
+	public Integer getAcknowledgedRecordId() {
+		return acknowledgedRecordId;
+	}
+	
+	public void setAcknowledgedRecordId(Integer acknowledgedRecordId) {
+		this.acknowledgedRecordId = acknowledgedRecordId;
+	}
+	
+	/**
+	 * @return the name of the codec chosen for the link to this server, used if this server reads
+	 *         it; null to go by sync.compression_codecs alone
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodecs#forServer(RemoteServer,
+	 *      org.openmrs.module.sync.SyncSettings)
+	 */
+	public String getCompression() {
+		return compression;
+	}
+	
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+	
 	public String getAddress() {
 		return address;
 	}
@@ -190,37 +280,7 @@ public class RemoteServer {
 	 * @return
 	 */
 	public Boolean shouldBeSentSyncRecord(SyncRecord record) {
-		Boolean ret = true; //assume it is good less we find match
-		
-		if (record == null)
-			return false;
-		
-		StringBuffer recordTypesStrings = new StringBuffer();
-		Set<String> recordTypes = record.getContainedClassSet();
-		if (recordTypes == null)
-			return ret;
-		if (this.serverClasses == null)
-			return ret;
-		
-		//build up the search string of types
-		for (String type : recordTypes) {
-			recordTypesStrings.append("<");
-			recordTypesStrings.append(type);
-			recordTypesStrings.append(">");
-		}
-		
-		//now do the comparison, note these can have wild cards
-		for (SyncServerClass serverClass : this.serverClasses) {
-			if (serverClass.getSendTo() == false) {
-				String typeToTest = serverClass.getSyncClass().getName();
-				if (Pattern.matches(".*<" + typeToTest + ".*>*", recordTypesStrings)) {
-					ret = false;
-					break;
-				}
-			}
-		}
-		
-		return ret;
+		return getClassFilter().isSent(record);
 	}
 	
 	/**
@@ -232,37 +292,17 @@ public class RemoteServer {
 	 * @return
 	 */
 	public Boolean shouldReceiveSyncRecordFrom(SyncRecord record) {
-		Boolean ret = true; //assume it is good less we find match
-		
-		if (record == null)
-			return false;
-		
-		StringBuffer recordTypesStrings = new StringBuffer();
-		Set<String> recordTypes = record.getContainedClassSet();
-		if (recordTypes == null)
-			return ret;
-		if (this.serverClasses == null)
-			return ret;
-		
-		//build up the search string of types
-		for (String type : recordTypes) {
-			recordTypesStrings.append("<");
-			recordTypesStrings.append(type);
-			recordTypesStrings.append(">");
-		}
-		
-		//now do the comparison, note these can be package names too thus do the .* Pattern
-		for (SyncServerClass serverClass : this.serverClasses) {
-			if (serverClass.getReceiveFrom() == false) {
-				String typeToExclude = serverClass.getSyncClass().getName();
-				if (Pattern.matches(".*<" + typeToExclude + ".*>*", recordTypesStrings)) {
-					ret = false;
-					break;
-				}
-			}
-		}
-		
-		return ret;
+		return getClassFilter().isReceived(record);
+	}
+	
+	/**
+	 * Gets the filter for the classes currently set up for this server. Callers checking many
+	 * records should get it once and reuse it.
+	 * 
+	 * @return a new filter for the current server classes
+	 */
+	public ServerClassFilter getClassFilter() {
+		return new ServerClassFilter(serverClasses);
 	}
 	
 	@Override
@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncServerClass;
+
+/**
+ * The classes a server is not sent and doesn't accept, taken once from its
+ * {@link SyncServerClass}es so that many records can be checked against them. Like the sync
+ * classes themselves, each name matches every class whose name starts with it (a package or a
+ * class and its subclasses).
+ */
+public class ServerClassFilter {
+	
+	private final String[] notSentTo;
+	
+	private final String[] notReceivedFrom;
+	
+	/**
+	 * @param serverClasses the classes set up for the server, may be null
+	 */
+	public ServerClassFilter(Collection<SyncServerClass> serverClasses) {
+		List<String> notSent = new ArrayList<String>();
+		List<String> notReceived = new ArrayList<String>();
+		if (serverClasses != null) {
+			for (SyncServerClass serverClass : serverClasses) {
+				if (serverClass.getSyncClass() == null || serverClass.getSyncClass().getName() == null)
+					continue;
+				if (Boolean.FALSE.equals(serverClass.getSendTo()))
+					notSent.add(serverClass.getSyncClass().getName());
+				if (Boolean.FALSE.equals(serverClass.getReceiveFrom()))
+					notReceived.add(serverClass.getSyncClass().getName());
+			}
+		}
+		this.notSentTo = notSent.toArray(new String[notSent.size()]);
+		this.notReceivedFrom = notReceived.toArray(new String[notReceived.size()]);
+	}
+	
+	/**
+	 * @param record the record to check
+	 * @return true if none of the classes in the record are excluded from being sent to the server
+	 * @should return true if no class is excluded
+	 * @should return false if a contained class starts with an excluded name
+	 * @should return false for a null record
+	 */
+	public boolean isSent(SyncRecord record) {
+		return record != null && !containsAny(record.getContainedClassSet(), notSentTo);
+	}
+	
+	/**
+	 * @param record the record to check
+	 * @return true if none of the classes in the record are excluded from being received from the
+	 *         server
+	 */
+	public boolean isReceived(SyncRecord record) {
+		return record != null && !containsAny(record.getContainedClassSet(), notReceivedFrom);
+	}
+	
+	private static boolean containsAny(Set<String> containedClasses, String[] excluded) {
+		if (excluded.length == 0 || containedClasses == null)
+			return false;
+		for (String containedClass : containedClasses) {
+			for (String name : excluded) {
+				if (containedClass.startsWith(name))
+					return true;
+			}
+		}
+		return false;
+	}
+}
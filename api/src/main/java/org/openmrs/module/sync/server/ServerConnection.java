@@ -13,7 +13,13 @@
  */
 package org.openmrs.module.sync.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
@@ -23,12 +29,16 @@ import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncConstants;
-import org.springframework.util.StringUtils;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.compression.CompressionCodec;
+import org.openmrs.module.sync.server.compression.CompressionCodecs;
 
 /**
  * 
@@ -55,20 +65,19 @@ public class ServerConnection {
 
 	public static ConnectionResponse sendExportedData(RemoteServer server,
 			String message) {
-		return sendExportedData(server.getAddress(),
-		                        server.getUsername(),
-		                        server.getPassword(),
-		                        message,
-		                        false);
+		return sendExportedData(server, message, false);
 	}
 
 	public static ConnectionResponse sendExportedData(RemoteServer server,
 			String message, boolean isResponse) {
+		SyncSettings settings = Context.getService(SyncService.class).getSyncSettings();
 		return sendExportedData(server.getAddress(),
 		                        server.getUsername(),
 		                        server.getPassword(),
 		                        message,
-		                        isResponse);
+		                        isResponse,
+		                        AdaptiveBatchController.getTimeout(server),
+		                        CompressionCodecs.forServer(server, settings));
 	}
 
 	public static ConnectionResponse sendExportedData(String address,
@@ -77,10 +86,36 @@ public class ServerConnection {
 	}
 
 	public static ConnectionResponse sendExportedData(String url, String username, String password, String content, boolean isResponse) {
+		return sendExportedData(url, username, password, content, isResponse, getTimeout());
+	}
+
+	/**
+	 * Posts the given content to the sync servlet at the given address, gzip compressed if
+	 * compression is enabled.
+	 * 
+	 * @param timeout the connection and read timeout in milliseconds
+	 */
+	public static ConnectionResponse sendExportedData(String url, String username, String password, String content,
+	                                                  boolean isResponse, double timeout) {
+		boolean useCompression = Context.getService(SyncService.class).getSyncSettings().isCompressionEnabled();
+		return sendExportedData(url, username, password, content, isResponse, timeout,
+		    CompressionCodecs.getCodec(useCompression));
+	}
+	
+	/**
+	 * Posts the given content to the sync servlet at the given address.
+	 * 
+	 * @param timeout the connection and read timeout in milliseconds
+	 * @param codec the codec to compress the content with, which the other side answers with too
+	 */
+	public static ConnectionResponse sendExportedData(String url, String username, String password, String content,
+	                                                  boolean isResponse, double timeout, CompressionCodec codec) {
 
 		// Default response - default constructor instantiates contains error codes 
 		ConnectionResponse syncResponse = new ConnectionResponse();
+		long bytesSent = 0;
 		
+		String address = url;
 		url = url + SyncConstants.DATA_IMPORT_SERVLET;
 		log.info("POST multipart request to " + url);
 		
@@ -88,45 +123,81 @@ public class ServerConnection {
 		
 		try {
 			
-			boolean useCompression = 
-				Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_ENABLE_COMPRESSION, "true"));
+			boolean useCompression = !CompressionCodecs.NONE.equals(codec.getName());
 			
-			log.info("use compression: " + useCompression);
+			log.info("compression: " + codec.getName());
 			// Compress content
-			ConnectionRequest request = new ConnectionRequest(content, useCompression);
-
-			// Create up multipart request
-			Part[] parts = {
-					new FilePart("syncDataFile", new ByteArrayPartSource("syncDataFile", request.getBytes())),
-					new StringPart("username", username),				
-					new StringPart("password", password),				
-					new StringPart("compressed", String.valueOf(useCompression)),
-					new StringPart("isResponse", String.valueOf(isResponse)),
-					new StringPart("checksum", String.valueOf(request.getChecksum()))
-			};	
+			ConnectionRequest request = new ConnectionRequest(content, codec, Context.getService(SyncService.class)
+			        .getSyncSettings().getCompressionLevel());
+
+			// the body is checked and written to the connection a piece at a time, rather than copied first
+			ChunkChecksums chunkChecksums = ChunkChecksums.of(request.getInputStream(), request.getContentLength());
+			String transmissionId = UUID.randomUUID().toString();
 			
+			// Create up multipart request; servers that don't negotiate codecs only read 'compressed'
+			Part[] parts = createParts(new RequestPartSource(request), username, password, useCompression, codec,
+			    isResponse, request.getChecksum(), chunkChecksums, transmissionId);
 			method.setRequestEntity(new MultipartRequestEntity(parts, method.getParams()));
+			bytesSent = request.getContentLength();
 
 
 			// Open a connection to the server and post the data
 			HttpClient client = new HttpClient();
-			client.getHttpConnectionManager().getParams().setSoTimeout(ServerConnection.getTimeout().intValue());
-			client.getHttpConnectionManager().getParams().setConnectionTimeout(ServerConnection.getTimeout().intValue());
+			client.getHttpConnectionManager().getParams().setSoTimeout((int) timeout);
+			client.getHttpConnectionManager().getParams().setConnectionTimeout((int) timeout);
 			int status = client.executeMethod(method);	
 			
+			// the chunks of the request that arrived damaged are posted again, on their own
+			for (int attempt = 0; status == HttpStatus.SC_OK && attempt < ChunkVerifyingInputStream.MAX_ATTEMPTS; attempt++) {
+				Header damagedHeader = method.getResponseHeader(ChunkChecksums.DAMAGED_HEADER);
+				if (damagedHeader == null)
+					break;
+				List<Integer> damaged = ChunkChecksums.parseChunks(damagedHeader.getValue());
+				log.warn("Chunks " + damaged + " of the transmission arrived damaged, sending them again");
+				
+				ByteArrayOutputStream repaired = new ByteArrayOutputStream();
+				for (Integer index : damaged) {
+					request.writeTo(repaired, chunkChecksums.getChunkOffset(index), chunkChecksums.getChunkLength(index));
+				}
+				Part[] repairParts = createParts(new ByteArrayPartSource("syncDataFile", repaired.toByteArray()), username,
+				    password, useCompression, codec, isResponse, request.getChecksum(), chunkChecksums, transmissionId);
+				Part[] allParts = new Part[repairParts.length + 2];
+				System.arraycopy(repairParts, 0, allParts, 0, repairParts.length);
+				allParts[repairParts.length] = new StringPart(ChunkChecksums.REPAIR_OF_PARAMETER, transmissionId);
+				allParts[repairParts.length + 1] = new StringPart(ChunkChecksums.CHUNKS_PARAMETER, ChunkChecksums
+				        .formatChunks(damaged));
+				
+				method.releaseConnection();
+				method = new PostMethod(url);
+				method.setRequestEntity(new MultipartRequestEntity(allParts, method.getParams()));
+				bytesSent += repaired.size();
+				status = client.executeMethod(method);
+			}
+			
 			
 			// As long as the response is OK (200)
 			if (status == HttpStatus.SC_OK) {
 				// Decompress the response from the server
 				//log.info("Response from server:" + method.getResponseBodyAsString());
 	
-				// Check to see if the child/parent sent back a compressed response
-				Header compressionHeader = method.getResponseHeader("Enable-Compression");
-				useCompression = (compressionHeader!=null)?new Boolean(compressionHeader.getValue()):false;
-				log.info("Response header Enable-Compression: " + useCompression);
+				// Check to see if the child/parent sent back a compressed response, and what it reads next time
+				Header compressionHeader = method.getResponseHeader(CompressionCodecs.ENABLE_COMPRESSION_HEADER);
+				CompressionCodec responseCodec = CompressionCodecs.fromHeader(compressionHeader != null ? compressionHeader
+				        .getValue() : null);
+				log.info("Response header Enable-Compression: " + responseCodec.getName());
+				Header acceptHeader = method.getResponseHeader(CompressionCodecs.ACCEPT_COMPRESSION_HEADER);
+				CompressionCodecs.setAccepted(address, acceptHeader != null ? acceptHeader.getValue() : null);
 
-				// Decompress the data received (if compression is enabled)
-				syncResponse = new ConnectionResponse(method.getResponseBodyAsStream(), useCompression);
+				// Check the chunks as they come in, fetching damaged ones again, and decompress the data received
+				InputStream responseBody = method.getResponseBodyAsStream();
+				Header chunksHeader = method.getResponseHeader(ChunkChecksums.CHECKSUMS_HEADER);
+				if (chunksHeader != null) {
+					Header sourceHeader = method.getResponseHeader(ChunkChecksums.SOURCE_HEADER);
+					responseBody = new ChunkVerifyingInputStream(responseBody, ChunkChecksums.parse(chunksHeader
+					        .getValue()), sourceHeader == null ? null : new RemoteChunkSource(url, username, password,
+					        sourceHeader.getValue(), timeout));
+				}
+				syncResponse = new ConnectionResponse(responseBody, responseCodec);
 				
 				// Now we want to validate the checksum
 				Header checksumHeader = method.getResponseHeader("Content-Checksum");
@@ -137,9 +208,10 @@ public class ServerConnection {
 				log.info("checksum value received in response header: " + checksumReceived );
 	        	log.info("checksum of payload: " +  syncResponse.getChecksum());
 	
-	        	// TODO Need to figure out what to do with this response
+	        	// servers that send chunk checksums have had the damaged chunks fetched again by now
 				if (checksumReceived > 0 && (checksumReceived !=  syncResponse.getChecksum())) {
 		        	log.error("ERROR: FAILED CHECKSUM!");
+		        	syncResponse.setErrorMessage("The response was damaged on the way, its checksum doesn't match");
 		        	syncResponse.setState(ServerConnectionState.CONNECTION_FAILED);	// contains error message           
 	            }
 			} 
@@ -159,41 +231,141 @@ public class ServerConnection {
 		} finally { 			
 			method.releaseConnection();
 		}
+		syncResponse.setBytesSent(bytesSent);
 		return syncResponse;
 	}
 
 	
 	/**
-	 * Gets the sync server connection timeout.
+	 * Asks the server which of the given records it has committed already, see
+	 * {@link CommittedRecords}
 	 * 
-	 * @return the connection timeout in milliseconds.
-	 * 
-	 * @should not throw NPE when timeout global property is not set
+	 * @param uuids the original uuids of the records
+	 * @return the uuids of those the server has committed, or null if the server can't tell
 	 */
-	public static Double getTimeout() {
-		// let's figure out a suitable timeout
-		String timeoutGP = Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_CONNECTION_TIMEOUT);
+	public static Set<String> getCommittedRecords(RemoteServer server, List<String> uuids) {
+		String url = server.getAddress() + SyncConstants.DATA_IMPORT_SERVLET;
+		double timeout = AdaptiveBatchController.getTimeout(server);
+		PostMethod method = new PostMethod(url);
 		try {
-			if (StringUtils.hasText(timeoutGP))
-				return Double.valueOf(timeoutGP.trim());
+			method.addParameter("username", server.getUsername());
+			method.addParameter("password", server.getPassword());
+			method.addParameter(CommittedRecords.PARAMETER, CommittedRecords.formatUuids(uuids));
 			
-		} catch (Exception ex){
-			log.error("Could not convert " + timeoutGP + " to Double.  Please enter a valid number of miliseconds, or leave " + SyncConstants.PROPERTY_CONNECTION_TIMEOUT + " blank to use the default.");
+			HttpClient client = new HttpClient();
+			client.getHttpConnectionManager().getParams().setSoTimeout((int) timeout);
+			client.getHttpConnectionManager().getParams().setConnectionTimeout((int) timeout);
+			int status = client.executeMethod(method);
+			if (status != HttpStatus.SC_OK || method.getResponseHeader(CommittedRecords.HEADER) == null) {
+				log.info("The server at " + server.getAddress() + " doesn't say which records it has committed");
+				return null;
+			}
+			return CommittedRecords.parseAnswer(uuids, method.getResponseBodyAsString());
 		}
-		Double timeout = 300000.0; // let's just default at 5 min for now
-		try {
-			Integer maxRecords = new Integer(Context.getAdministrationService()
-			                                       .getGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB,
-			                                                           SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT));
-			timeout = (3 + (maxRecords * 0.1)) * 6000;	// formula we cooked
-														// up after running
-														// several tests:
-														// latency + 0.1N
-		} catch (NumberFormatException nfe) {
-			// it's ok if this fails (not sure how it could) = we'll just do 5 min timeout
+		catch (Exception e) {
+			log.warn("Unable to ask the server at " + server.getAddress() + " which records it has committed", e);
+			return null;
+		}
+		finally {
+			method.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Creates the parts of a request, with the transmission in syncDataFile
+	 */
+	private static Part[] createParts(PartSource body, String username, String password, boolean useCompression,
+	                                  CompressionCodec codec, boolean isResponse, long checksum,
+	                                  ChunkChecksums chunkChecksums, String transmissionId) {
+		return new Part[] { new FilePart("syncDataFile", body),
+		        new StringPart("username", username), new StringPart("password", password),
+		        new StringPart("compressed", String.valueOf(useCompression)),
+		        new StringPart("compression", codec.getName()), new StringPart("isResponse", String.valueOf(isResponse)),
+		        new StringPart("checksum", String.valueOf(checksum)),
+		        new StringPart(ChunkChecksums.CHECKSUMS_PARAMETER, chunkChecksums.toString()),
+		        new StringPart(ChunkChecksums.TRANSMISSION_ID_PARAMETER, transmissionId) };
+	}
+	
+	/**
+	 * The body of a request as the syncDataFile part, which the part writes to the connection a few
+	 * kilobytes at a time from where the request keeps it
+	 */
+	private static class RequestPartSource implements PartSource {
+		
+		private final ConnectionRequest request;
+		
+		RequestPartSource(ConnectionRequest request) {
+			this.request = request;
+		}
+		
+		public long getLength() {
+			return request.getContentLength();
+		}
+		
+		public String getFileName() {
+			return "syncDataFile";
+		}
+		
+		public InputStream createInputStream() {
+			return request.getInputStream();
+		}
+	}
+	
+	/**
+	 * Fetches chunks of an answer again from the server that sent it, which keeps its answers in
+	 * its {@link ChunkCache} for a while
+	 */
+	private static class RemoteChunkSource implements ChunkVerifyingInputStream.ChunkSource {
+		
+		private final String url;
+		
+		private final String username;
+		
+		private final String password;
+		
+		private final String id;
+		
+		private final double timeout;
+		
+		RemoteChunkSource(String url, String username, String password, String id, double timeout) {
+			this.url = url;
+			this.username = username;
+			this.password = password;
+			this.id = id;
+			this.timeout = timeout;
 		}
 		
-		return timeout;
+		public byte[] fetch(int index) throws IOException {
+			PostMethod method = new PostMethod(url);
+			try {
+				method.addParameter("username", username);
+				method.addParameter("password", password);
+				method.addParameter(ChunkChecksums.CHUNK_OF_PARAMETER, id);
+				method.addParameter(ChunkChecksums.CHUNK_PARAMETER, String.valueOf(index));
+				
+				HttpClient client = new HttpClient();
+				client.getHttpConnectionManager().getParams().setSoTimeout((int) timeout);
+				client.getHttpConnectionManager().getParams().setConnectionTimeout((int) timeout);
+				int status = client.executeMethod(method);
+				if (status != HttpStatus.SC_OK)
+					throw new IOException("HTTP " + status + " while fetching chunk " + index + " again");
+				return method.getResponseBody();
+			}
+			finally {
+				method.releaseConnection();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the sync server connection timeout.
+	 * 
+	 * @return the connection timeout in milliseconds.
+	 * 
+	 * @should not throw NPE when timeout global property is not set
+	 */
+	public static Double getTimeout() {
+		return Context.getService(SyncService.class).getSyncSettings().getConnectionTimeout();
 	}
 
 }
@@ -25,7 +25,9 @@ import org.openmrs.module.sync.ingest.SyncImportRecord;
  * One {@link SyncServerRecord} is kept for each child server for each {@link SyncRecord}. <br/>
  * <br/>
  * A {@link SyncServerRecord} is created for each known child server as soon as a {@link SyncRecord}
- * is created. <br/>
+ * is created. Children that keep an acknowledged cursor (see
+ * {@link RemoteServer#getAcknowledgedRecordId()}) only get one once the record is sent to them, or
+ * right away if it is filtered out, and lose it again once the cursor moves past it committed. <br/>
  * <br/>
  * A SyncServerRecord will be PENDING_SEND until a transaction is started. At which point the status
  * will be SENT until the remote server sends back a confirmation that it was successfully applied
@@ -0,0 +1,262 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Compresses recorded transmissions with each codec and reports the compression ratio and the CPU
+ * time taken, to choose the codec of a link (see {@link CompressionCodecs}). The transmissions the
+ * sync directory keeps under journal/ and import/ are the natural input, the ones of the link in
+ * question best of all.
+ * <p>
+ * Run it with the module and its dependencies on the class path:
+ * 
+ * <pre>
+ * java org.openmrs.module.sync.server.compression.CompressionBenchmark [-rounds n] [-level n] [-dictionary file]... file-or-dir...
+ * </pre>
+ * 
+ * Each -dictionary adds a run of {@link DeflateDictionaryCodec} with that dictionary, such as one
+ * trained with {@link DictionaryTrainer} and not yet in use.
+ */
+public class CompressionBenchmark {
+	
+	private final List<byte[]> transmissions = new ArrayList<byte[]>();
+	
+	private long totalBytes = 0;
+	
+	/**
+	 * The results of one codec
+	 */
+	public static class Result {
+		
+		private final String codec;
+		
+		private final long bytes;
+		
+		private final long compressedBytes;
+		
+		private final long compressNanos;
+		
+		private final long decompressNanos;
+		
+		public Result(String codec, long bytes, long compressedBytes, long compressNanos, long decompressNanos) {
+			this.codec = codec;
+			this.bytes = bytes;
+			this.compressedBytes = compressedBytes;
+			this.compressNanos = compressNanos;
+			this.decompressNanos = decompressNanos;
+		}
+		
+		public String getCodec() {
+			return codec;
+		}
+		
+		/**
+		 * @return the size of the transmissions before compression
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+		
+		/**
+		 * @return the size of the transmissions compressed
+		 */
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+		
+		/**
+		 * @return the uncompressed size divided by the compressed size
+		 */
+		public double getRatio() {
+			return compressedBytes == 0 ? 0 : (double) bytes / compressedBytes;
+		}
+		
+		/**
+		 * @return CPU nanoseconds spent compressing all transmissions once
+		 */
+		public long getCompressNanos() {
+			return compressNanos;
+		}
+		
+		/**
+		 * @return CPU nanoseconds spent decompressing all transmissions once
+		 */
+		public long getDecompressNanos() {
+			return decompressNanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%-24s %12d %12d %8.2f %12.1f %12.1f", codec, bytes, compressedBytes, getRatio(),
+			    compressNanos / 1e6, decompressNanos / 1e6);
+		}
+	}
+	
+	/**
+	 * Reads the given files, and the .xml files under the given directories
+	 * 
+	 * @param files files and directories
+	 * @throws IOException
+	 */
+	public void addFiles(Collection<File> files) throws IOException {
+		for (File file : files) {
+			if (file.isDirectory()) {
+				addFiles(FileUtils.listFiles(file, new String[] { "xml" }, true));
+			} else {
+				addTransmission(FileUtils.readFileToByteArray(file));
+			}
+		}
+	}
+	
+	/**
+	 * @param transmission a transmission, as it is sent uncompressed
+	 */
+	public void addTransmission(byte[] transmission) {
+		transmissions.add(transmission);
+		totalBytes += transmission.length;
+	}
+	
+	/**
+	 * Compresses and decompresses every transmission with the given codec, one at a time as they
+	 * would be sent, checking they come back unchanged
+	 * 
+	 * @param codec the codec
+	 * @param level the compression level
+	 * @param rounds how many times to repeat, the CPU time reported being that of the fastest round
+	 * @return the results
+	 * @throws IOException if the codec fails, or doesn't give back what it was given
+	 * @should report the size of the transmissions before and after compression
+	 */
+	public Result run(CompressionCodec codec, int level, int rounds) throws IOException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+		long bestCompress = Long.MAX_VALUE;
+		long bestDecompress = Long.MAX_VALUE;
+		long compressedBytes = 0;
+		byte[] buffer = new byte[64 * 1024];
+		
+		for (int round = 0; round < Math.max(1, rounds); round++) {
+			List<byte[]> compressed = new ArrayList<byte[]>(transmissions.size());
+			long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+			for (byte[] transmission : transmissions) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(transmission.length / 4 + 64);
+				OutputStream out = codec.compress(bytes, level);
+				out.write(transmission);
+				out.close();
+				compressed.add(bytes.toByteArray());
+			}
+			long compressTime = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+			
+			start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+			List<byte[]> decompressed = new ArrayList<byte[]>(transmissions.size());
+			for (byte[] bytes : compressed) {
+				InputStream in = codec.decompress(new ByteArrayInputStream(bytes));
+				ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4 + 64);
+				int read;
+				while ((read = in.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+				in.close();
+				decompressed.add(out.toByteArray());
+			}
+			long decompressTime = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+			
+			compressedBytes = 0;
+			for (int i = 0; i < transmissions.size(); i++) {
+				if (!Arrays.equals(transmissions.get(i), decompressed.get(i)))
+					throw new IOException(codec.getName() + " didn't give back transmission " + i + " unchanged");
+				compressedBytes += compressed.get(i).length;
+			}
+			bestCompress = Math.min(bestCompress, compressTime);
+			bestDecompress = Math.min(bestDecompress, decompressTime);
+		}
+		return new Result(codec.getName(), totalBytes, compressedBytes, bestCompress, bestDecompress);
+	}
+	
+	/**
+	 * Runs every codec of this server
+	 * 
+	 * @param level the compression level
+	 * @param rounds how many times to repeat each codec
+	 * @return the results, one per codec
+	 * @throws IOException
+	 */
+	public List<Result> runAll(int level, int rounds) throws IOException {
+		List<Result> results = new ArrayList<Result>();
+		for (CompressionCodec codec : CompressionCodecs.getCodecs().values()) {
+			results.add(run(codec, level, rounds));
+		}
+		return results;
+	}
+	
+	/**
+	 * Prints the results as a table
+	 * 
+	 * @param results the results
+	 * @param out where to print them
+	 */
+	public void report(List<Result> results, PrintStream out) {
+		out.println(transmissions.size() + " transmissions, " + totalBytes + " bytes");
+		out.println(String.format("%-24s %12s %12s %8s %12s %12s", "codec", "bytes", "compressed", "ratio",
+		    "compress ms", "expand ms"));
+		for (Result result : results) {
+			out.println(result);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		int rounds = 5;
+		int level = Deflater.DEFAULT_COMPRESSION;
+		List<File> files = new ArrayList<File>();
+		List<CompressionDictionary> dictionaries = new ArrayList<CompressionDictionary>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-rounds".equals(args[i]) && i + 1 < args.length)
+				rounds = Integer.parseInt(args[++i]);
+			else if ("-level".equals(args[i]) && i + 1 < args.length)
+				level = Integer.parseInt(args[++i]);
+			else if ("-dictionary".equals(args[i]) && i + 1 < args.length)
+				dictionaries.add(new CompressionDictionary(FileUtils.readFileToByteArray(new File(args[++i])), false));
+			else
+				files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: CompressionBenchmark [-rounds n] [-level n] [-dictionary file]... file-or-dir...");
+			System.exit(1);
+		}
+		
+		CompressionBenchmark benchmark = new CompressionBenchmark();
+		benchmark.addFiles(files);
+		List<Result> results = benchmark.runAll(level, rounds);
+		for (CompressionDictionary dictionary : dictionaries) {
+			results.add(benchmark.run(new DeflateDictionaryCodec(dictionary), level, rounds));
+		}
+		benchmark.report(results, System.out);
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way of compressing the transmissions sent between two servers. Codecs are known by their
+ * {@link #getName() name}, which is what servers exchange in the Enable-Compression and
+ * Accept-Compression headers to agree on the codec of a link (see {@link CompressionCodecs}).
+ * <p>
+ * Besides the built in codecs, other modules can add their own by listing their implementation in
+ * META-INF/services/org.openmrs.module.sync.server.compression.CompressionCodec. Both servers of a
+ * link need the codec for it to be used.
+ */
+public interface CompressionCodec {
+	
+	/**
+	 * @return the name the codec is known by on both ends of a link, in lower case
+	 */
+	public String getName();
+	
+	/**
+	 * @param out the stream the compressed bytes are written to
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest), for codecs that can be
+	 *            tuned; others ignore it
+	 * @return a stream that compresses what is written to it into the given stream, and finishes the
+	 *         compressed data when it is closed
+	 * @throws IOException
+	 */
+	public OutputStream compress(OutputStream out, int level) throws IOException;
+	
+	/**
+	 * @param in the compressed bytes
+	 * @return a stream reading the uncompressed bytes
+	 * @throws IOException
+	 */
+	public InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,248 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.springframework.util.StringUtils;
+
+/**
+ * The {@link CompressionCodec}s this server has, and the choice of the codec of each link.
+ * <p>
+ * The server that starts an exchange picks the codec. It sends its transmission with the codec
+ * named in the "compression" part of the request, next to the "compressed" part older servers
+ * read. The other side answers with the same codec, naming it in the Enable-Compression header,
+ * and lists the codecs it reads in the Accept-Compression header. Servers that don't negotiate send and expect "true" or "false" in
+ * Enable-Compression, meaning gzip or nothing, so until a server has told us what it reads it is
+ * sent gzip.
+ * <p>
+ * The codec of a link is the first one the other side reads out of the one chosen on the
+ * {@link RemoteServer} ({@link RemoteServer#getCompression()}), then those of
+ * {@link SyncSettings#getCompressionCodecs()}. Use {@link CompressionBenchmark} on recorded
+ * transmissions to see which codec suits a link.
+ * <p>
+ * {@value #DEFLATE_DICTIONARY} stands for the built in dictionary, which every server that has the
+ * codec has. Servers also list {@value #DEFLATE_DICTIONARY}:&lt;id&gt; for each trained dictionary
+ * they have (see {@link CompressionDictionaries}), and a link uses the current dictionary of the
+ * sending server only if the other side listed it.
+ */
+public class CompressionCodecs {
+	
+	private static final Log log = LogFactory.getLog(CompressionCodecs.class);
+	
+	public static final String NONE = "none";
+	
+	public static final String GZIP = "gzip";
+	
+	public static final String DEFLATE_DICTIONARY = "deflate-dict";
+	
+	public static final String LZF = "lzf";
+	
+	public static final String ENABLE_COMPRESSION_HEADER = "Enable-Compression";
+	
+	public static final String ACCEPT_COMPRESSION_HEADER = "Accept-Compression";
+	
+	private static Map<String, CompressionCodec> codecs;
+	
+	/**
+	 * The codecs each server reads, by address, as it said in its last answer
+	 */
+	private static final Map<String, List<String>> accepted = new ConcurrentHashMap<String, List<String>>();
+	
+	/**
+	 * @return the codecs of this server by name: the built in ones, then those other modules add
+	 * @should have codecs that give back what they compress
+	 */
+	public static synchronized Map<String, CompressionCodec> getCodecs() {
+		if (codecs == null) {
+			Map<String, CompressionCodec> found = new LinkedHashMap<String, CompressionCodec>();
+			for (CompressionCodec codec : new CompressionCodec[] { new NoCompressionCodec(), new GzipCodec(),
+			        new DeflateDictionaryCodec(), new LzfCodec() }) {
+				found.put(codec.getName(), codec);
+			}
+			Iterator<CompressionCodec> loaded = ServiceLoader.load(CompressionCodec.class,
+			    CompressionCodecs.class.getClassLoader()).iterator();
+			while (true) {
+				try {
+					if (!loaded.hasNext())
+						break;
+					CompressionCodec codec = loaded.next();
+					if (!found.containsKey(codec.getName()))
+						found.put(codec.getName(), codec);
+				}
+				catch (ServiceConfigurationError e) {
+					log.warn("Unable to load a compression codec", e);
+				}
+			}
+			codecs = Collections.unmodifiableMap(found);
+		}
+		return codecs;
+	}
+	
+	/**
+	 * @return the names of the codecs of this server
+	 */
+	public static List<String> getNames() {
+		return new ArrayList<String>(getCodecs().keySet());
+	}
+	
+	/**
+	 * @param name the name of a codec
+	 * @return the codec, or null if this server doesn't have it
+	 */
+	public static CompressionCodec getCodec(String name) {
+		if (name == null)
+			return null;
+		name = name.trim().toLowerCase();
+		if (name.startsWith(DEFLATE_DICTIONARY + ":")) {
+			CompressionDictionary dictionary;
+			try {
+				dictionary = CompressionDictionaries.get(CompressionDictionary.parseId(name.substring(DEFLATE_DICTIONARY
+				        .length() + 1)));
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+			return dictionary == null ? null : new DeflateDictionaryCodec(dictionary);
+		}
+		return getCodecs().get(name);
+	}
+	
+	/**
+	 * @param compressed the value of the compressed flag of servers that don't negotiate
+	 * @return gzip if compressed, otherwise no compression
+	 */
+	public static CompressionCodec getCodec(boolean compressed) {
+		return getCodec(compressed ? GZIP : NONE);
+	}
+	
+	/**
+	 * @param value the Enable-Compression header of an answer
+	 * @return the codec the answer is compressed with
+	 * @throws SyncException if this server doesn't have the codec
+	 * @should read the true and false of servers that do not negotiate
+	 * @should fail for a codec this server does not have
+	 */
+	public static CompressionCodec fromHeader(String value) throws SyncException {
+		if (!StringUtils.hasText(value) || "false".equalsIgnoreCase(value.trim()))
+			return getCodec(false);
+		if ("true".equalsIgnoreCase(value.trim()))
+			return getCodec(true);
+		CompressionCodec codec = getCodec(value);
+		if (codec == null)
+			throw new SyncException("The answer is compressed with " + value + ", which this server doesn't have");
+		return codec;
+	}
+	
+	/**
+	 * @return the names of the codecs of this server, followed by the trained dictionaries it has,
+	 *         as sent in the Accept-Compression header
+	 */
+	public static String getAcceptHeader() {
+		List<String> names = getNames();
+		if (names.contains(DEFLATE_DICTIONARY)) {
+			for (CompressionDictionary dictionary : CompressionDictionaries.getAll()) {
+				if (!dictionary.isBuiltIn())
+					names.add(DeflateDictionaryCodec.getName(dictionary));
+			}
+		}
+		return StringUtils.collectionToCommaDelimitedString(names);
+	}
+	
+	/**
+	 * Keeps the codecs the server at the given address reads
+	 * 
+	 * @param address the address of the server
+	 * @param header its Accept-Compression header, null if it doesn't negotiate
+	 */
+	public static void setAccepted(String address, String header) {
+		if (address == null)
+			return;
+		if (header == null) {
+			accepted.remove(address);
+			return;
+		}
+		List<String> names = new ArrayList<String>();
+		for (String name : header.split(",")) {
+			if (StringUtils.hasText(name))
+				names.add(name.trim().toLowerCase());
+		}
+		accepted.put(address, names);
+	}
+	
+	/**
+	 * Picks the codec to send to the given server with
+	 * 
+	 * @param server the server that is sent to
+	 * @param settings the current settings
+	 * @return the codec of the link
+	 * @should send gzip until the server said what it reads
+	 * @should send the codec chosen for the server if the server reads it
+	 * @should send nothing when compression is disabled
+	 * @should use the current dictionary only if the server has it
+	 */
+	public static CompressionCodec forServer(RemoteServer server, SyncSettings settings) {
+		if (!settings.isCompressionEnabled())
+			return getCodec(false);
+		List<String> peer = server.getAddress() == null ? null : accepted.get(server.getAddress());
+		if (peer == null)
+			return getCodec(true);
+		
+		List<String> preferred = new ArrayList<String>();
+		if (StringUtils.hasText(server.getCompression()))
+			preferred.add(server.getCompression().trim().toLowerCase());
+		preferred.addAll(settings.getCompressionCodecs());
+		for (String name : preferred) {
+			if (DEFLATE_DICTIONARY.equals(name)) {
+				// the current dictionary if the other side has it too, otherwise the built in one
+				String current = DeflateDictionaryCodec.getName(CompressionDictionaries.getCurrent());
+				if (peer.contains(current))
+					return getCodec(current);
+			}
+			if (peer.contains(name) && getCodec(name) != null)
+				return getCodec(name);
+		}
+		return getCodec(true);
+	}
+	
+	/**
+	 * Picks the codec to answer with
+	 * 
+	 * @param requested the codec the request was compressed with, null if the other side doesn't
+	 *            negotiate
+	 * @param settings the current settings
+	 * @return the requested codec if this server has it, otherwise gzip, or nothing if compression
+	 *         is disabled
+	 * @should answer with the codec of the request
+	 */
+	public static CompressionCodec forResponse(String requested, SyncSettings settings) {
+		if (!settings.isCompressionEnabled())
+			return getCodec(false);
+		CompressionCodec codec = getCodec(requested);
+		return codec == null ? getCodec(true) : codec;
+	}
+}
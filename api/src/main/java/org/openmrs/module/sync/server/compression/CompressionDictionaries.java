@@ -0,0 +1,270 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncUtil;
+import org.springframework.util.StringUtils;
+
+/**
+ * The compression dictionaries this server has: the one that comes with the module, and those
+ * trained on the sync records of a server (see {@link DictionaryTrainer}), which are kept in the
+ * {@value #DIRECTORY_NAME} directory of the sync application directory as &lt;id&gt;.dict.
+ * <p>
+ * New transmissions and payloads are compressed with the current dictionary, chosen with
+ * {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY}. Anything compressed with any of the
+ * dictionaries here can be read, so a dictionary file must be kept as long as payloads or other
+ * servers may still use it. Copying a dictionary file to the directory of another server lets the
+ * two use it between them; until then they fall back to the built in one (see
+ * {@link CompressionCodecs#forServer(org.openmrs.module.sync.server.RemoteServer, org.openmrs.module.sync.SyncSettings)}).
+ */
+public class CompressionDictionaries {
+	
+	private static final Log log = LogFactory.getLog(CompressionDictionaries.class);
+	
+	/**
+	 * The built in dictionary, next to this class
+	 */
+	public static final String BUILT_IN_RESOURCE = "transmission.dict";
+	
+	/**
+	 * The directory with the trained dictionaries, in the sync application directory
+	 */
+	public static final String DIRECTORY_NAME = "dictionaries";
+	
+	public static final String FILE_SUFFIX = ".dict";
+	
+	/**
+	 * The largest useful dictionary: deflate only looks back 32KB
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32768;
+	
+	/**
+	 * How long an id that isn't in the dictionary directory is taken to stay missing, before the
+	 * directory is read again to look for it
+	 */
+	public static final long RELOAD_INTERVAL = 60 * 1000;
+	
+	private static CompressionDictionary builtIn;
+	
+	/**
+	 * Never changed once published, so it is read without the lock
+	 */
+	private static volatile Map<Integer, CompressionDictionary> dictionaries;
+	
+	private static volatile long loaded;
+	
+	private static volatile Integer currentId;
+	
+	/**
+	 * @return the dictionary that comes with the module
+	 */
+	public static synchronized CompressionDictionary getBuiltIn() {
+		if (builtIn == null) {
+			InputStream in = CompressionDictionaries.class.getResourceAsStream(BUILT_IN_RESOURCE);
+			if (in == null)
+				throw new SyncException("Unable to find the compression dictionary " + BUILT_IN_RESOURCE);
+			try {
+				builtIn = new CompressionDictionary(IOUtils.toByteArray(in), true);
+			}
+			catch (IOException e) {
+				throw new SyncException("Unable to read the compression dictionary " + BUILT_IN_RESOURCE, e);
+			}
+			finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		return builtIn;
+	}
+	
+	/**
+	 * @return all dictionaries of this server, the built in one first
+	 */
+	public static List<CompressionDictionary> getAll() {
+		Map<Integer, CompressionDictionary> known = dictionaries;
+		if (known == null)
+			known = getLoaded();
+		return new ArrayList<CompressionDictionary>(known.values());
+	}
+	
+	/**
+	 * Looks for the dictionary with the given id. If it isn't known yet the dictionary directory is
+	 * read again, at most once every {@link #RELOAD_INTERVAL}, so that dictionaries copied there are
+	 * found without a restart.
+	 * 
+	 * @param id the id of a dictionary
+	 * @return the dictionary, or null if this server doesn't have it
+	 */
+	public static CompressionDictionary get(int id) {
+		Map<Integer, CompressionDictionary> known = dictionaries;
+		if (known != null) {
+			CompressionDictionary dictionary = known.get(id);
+			if (dictionary != null || System.currentTimeMillis() - loaded < RELOAD_INTERVAL)
+				return dictionary;
+		}
+		return reloadFor(id);
+	}
+	
+	private static synchronized CompressionDictionary reloadFor(int id) {
+		// another thread may have read the directory while this one waited
+		if (dictionaries == null
+		        || (!dictionaries.containsKey(id) && System.currentTimeMillis() - loaded >= RELOAD_INTERVAL))
+			load();
+		return dictionaries.get(id);
+	}
+	
+	private static synchronized Map<Integer, CompressionDictionary> getLoaded() {
+		if (dictionaries == null)
+			load();
+		return dictionaries;
+	}
+	
+	/**
+	 * @return the dictionary new transmissions and payloads are compressed with
+	 */
+	public static CompressionDictionary getCurrent() {
+		Integer id = currentId;
+		if (id != null) {
+			CompressionDictionary current = get(id);
+			if (current != null)
+				return current;
+			log.warn("The compression dictionary " + CompressionDictionary.toIdString(id)
+			        + " is not in the dictionary directory, using the built in one");
+			currentId = null;
+		}
+		return getBuiltIn();
+	}
+	
+	/**
+	 * Sets the dictionary to compress with, see {@link SyncConstants#PROPERTY_COMPRESSION_DICTIONARY}
+	 * 
+	 * @param idString the id of the dictionary, blank for the built in one
+	 */
+	public static void setCurrent(String idString) {
+		if (!StringUtils.hasText(idString)) {
+			currentId = null;
+			return;
+		}
+		try {
+			currentId = CompressionDictionary.parseId(idString);
+		}
+		catch (NumberFormatException e) {
+			log.warn("Ignoring the compression dictionary '" + idString + "', it is not a dictionary id");
+			currentId = null;
+		}
+	}
+	
+	/**
+	 * Writes a new dictionary to the dictionary directory. It can be read right away, and is used
+	 * to compress once it is made current.
+	 * 
+	 * @param bytes the contents of the dictionary
+	 * @return the saved dictionary
+	 * @throws SyncException if the dictionary can't be written
+	 */
+	public static synchronized CompressionDictionary save(byte[] bytes) throws SyncException {
+		if (bytes.length == 0 || bytes.length > MAX_DICTIONARY_SIZE)
+			throw new SyncException("A compression dictionary must have between 1 and " + MAX_DICTIONARY_SIZE + " bytes");
+		
+		CompressionDictionary dictionary = new CompressionDictionary(bytes, false);
+		File dir = getDirectory();
+		File file = new File(dir, dictionary.getIdString() + FILE_SUFFIX);
+		File part = new File(dir, file.getName() + ".part");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(part);
+			out.write(bytes);
+			out.close();
+			out = null;
+			if (file.exists())
+				file.delete();
+			if (!part.renameTo(file))
+				throw new IOException("Unable to rename " + part + " to " + file);
+		}
+		catch (IOException e) {
+			part.delete();
+			throw new SyncException("Unable to save the compression dictionary " + file, e);
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+		}
+		
+		Map<Integer, CompressionDictionary> known = new LinkedHashMap<Integer, CompressionDictionary>(getLoaded());
+		known.put(dictionary.getId(), dictionary);
+		dictionaries = Collections.unmodifiableMap(known);
+		return dictionary;
+	}
+	
+	/**
+	 * @return the directory with the trained dictionaries
+	 */
+	public static File getDirectory() {
+		File dir = new File(SyncUtil.getSyncApplicationDir(), DIRECTORY_NAME);
+		if (!dir.exists())
+			dir.mkdirs();
+		return dir;
+	}
+	
+	/**
+	 * Reads the built in dictionary and those in the dictionary directory
+	 */
+	private static void load() {
+		Map<Integer, CompressionDictionary> found = new LinkedHashMap<Integer, CompressionDictionary>();
+		found.put(getBuiltIn().getId(), getBuiltIn());
+		
+		File[] files = null;
+		try {
+			files = getDirectory().listFiles();
+		}
+		catch (Exception e) {
+			log.debug("Unable to open the compression dictionary directory, only the built in dictionary is available", e);
+		}
+		
+		if (files != null) {
+			for (File file : files) {
+				if (!file.isFile() || !file.getName().endsWith(FILE_SUFFIX))
+					continue;
+				try {
+					CompressionDictionary dictionary = new CompressionDictionary(FileUtils.readFileToByteArray(file), false);
+					if (!file.getName().equals(dictionary.getIdString() + FILE_SUFFIX))
+						log.warn("The compression dictionary " + file + " has id " + dictionary.getIdString()
+						        + ", it was changed after it was saved");
+					if (!found.containsKey(dictionary.getId()))
+						found.put(dictionary.getId(), dictionary);
+				}
+				catch (IOException e) {
+					log.warn("Unable to read the compression dictionary " + file, e);
+				}
+			}
+		}
+		dictionaries = Collections.unmodifiableMap(found);
+		loaded = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary for {@link DeflateDictionaryCodec}. A dictionary is known by the Adler-32 of
+ * its bytes, the same number deflate itself uses to check that the right dictionary was given, so
+ * two servers that have a dictionary with the same id have the same dictionary.
+ * 
+ * @see CompressionDictionaries
+ */
+public class CompressionDictionary {
+	
+	private final int id;
+	
+	private final byte[] bytes;
+	
+	private final boolean builtIn;
+	
+	/**
+	 * @param bytes the contents of the dictionary
+	 * @param builtIn whether this is the dictionary that comes with the module
+	 */
+	public CompressionDictionary(byte[] bytes, boolean builtIn) {
+		Adler32 adler = new Adler32();
+		adler.update(bytes);
+		this.id = (int) adler.getValue();
+		this.bytes = bytes;
+		this.builtIn = builtIn;
+	}
+	
+	/**
+	 * @return the Adler-32 of the dictionary
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * @return the id as 8 hex digits, as used in file names and in the Accept-Compression header
+	 */
+	public String getIdString() {
+		return toIdString(id);
+	}
+	
+	/**
+	 * @return the contents of the dictionary, not to be changed
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return true if this is the dictionary that comes with the module, which every server has
+	 */
+	public boolean isBuiltIn() {
+		return builtIn;
+	}
+	
+	/**
+	 * @param id the id of a dictionary
+	 * @return the id as 8 hex digits
+	 */
+	public static String toIdString(int id) {
+		String hex = Integer.toHexString(id);
+		return "00000000".substring(hex.length()) + hex;
+	}
+	
+	/**
+	 * @param idString the id as written by {@link #toIdString(int)}
+	 * @return the id
+	 * @throws NumberFormatException if the string is not a dictionary id
+	 */
+	public static int parseId(String idString) throws NumberFormatException {
+		String trimmed = idString.trim();
+		if (trimmed.length() == 0 || trimmed.length() > 8)
+			throw new NumberFormatException("Not a dictionary id: " + idString);
+		return (int) Long.parseLong(trimmed, 16);
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getIdString() + (builtIn ? " (built in, " : " (") + bytes.length + " bytes)";
+	}
+}
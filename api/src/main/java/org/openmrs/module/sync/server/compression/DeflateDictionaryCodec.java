@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate with a preset dictionary of the strings sync transmissions are made of: element and
+ * attribute names, the classes that are synchronized and the types of their properties. Small
+ * transmissions, which gzip can hardly compress because it starts from nothing, gain the most.
+ * <p>
+ * The compressed data starts with the id of the dictionary, and is read with whichever of the
+ * {@link CompressionDictionaries} has that id. A codec with the built in dictionary is named
+ * {@value CompressionCodecs#DEFLATE_DICTIONARY}, one with a trained dictionary
+ * {@value CompressionCodecs#DEFLATE_DICTIONARY}:&lt;id&gt;, so that servers list the dictionaries
+ * they have in the Accept-Compression header.
+ */
+public class DeflateDictionaryCodec implements CompressionCodec {
+	
+	private final CompressionDictionary dictionary;
+	
+	/**
+	 * A codec that compresses with the built in dictionary
+	 */
+	public DeflateDictionaryCodec() {
+		this(CompressionDictionaries.getBuiltIn());
+	}
+	
+	/**
+	 * @param dictionary the dictionary to compress with
+	 */
+	public DeflateDictionaryCodec(CompressionDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * @return the dictionary this codec compresses with
+	 */
+	public CompressionDictionary getDictionary() {
+		return dictionary;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#getName()
+	 */
+	public String getName() {
+		return getName(dictionary);
+	}
+	
+	/**
+	 * @param dictionary a dictionary
+	 * @return the name of the codec with that dictionary
+	 */
+	public static String getName(CompressionDictionary dictionary) {
+		if (dictionary.isBuiltIn())
+			return CompressionCodecs.DEFLATE_DICTIONARY;
+		return CompressionCodecs.DEFLATE_DICTIONARY + ":" + dictionary.getIdString();
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#compress(java.io.OutputStream, int)
+	 */
+	public OutputStream compress(OutputStream out, int level) throws IOException {
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(dictionary.getId());
+		header.flush();
+		
+		final Deflater deflater = new Deflater(level, true);
+		deflater.setDictionary(dictionary.getBytes());
+		return new DeflaterOutputStream(out, deflater, 8192) {
+			
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#decompress(java.io.InputStream)
+	 * @should read data compressed with any dictionary of this server
+	 * @should fail for a dictionary this server does not have
+	 */
+	public InputStream decompress(InputStream in) throws IOException {
+		in = new BufferedInputStream(in);
+		int id = new DataInputStream(in).readInt();
+		CompressionDictionary used = id == dictionary.getId() ? dictionary : CompressionDictionaries.get(id);
+		if (used == null)
+			throw new IOException("The data was compressed with the dictionary " + CompressionDictionary.toIdString(id)
+			        + ", which this server doesn't have");
+		
+		// raw deflate never asks for its dictionary, so it is given up front
+		final Inflater inflater = new Inflater(true);
+		inflater.setDictionary(used.getBytes());
+		return new InflaterInputStream(in, inflater, 8192) {
+			
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a compression dictionary out of sample payloads, the way the "cover" algorithm of zstd
+ * does: every run of {@link #GRAM_LENGTH} bytes is counted once for each sample it is in, the
+ * samples are cut into as many stretches as there is room for segments in the dictionary, and out
+ * of each stretch the segment whose runs are in the most samples is taken. The runs of a segment
+ * that was taken don't count anymore, so the dictionary doesn't repeat itself.
+ * <p>
+ * Deflate reaches back into the dictionary from its end, the cheapest matches being the closest,
+ * so the best segments are put last.
+ */
+public class DictionaryTrainer {
+	
+	/**
+	 * The length of the runs of bytes that are counted, about the shortest match worth having
+	 */
+	public static final int GRAM_LENGTH = 8;
+	
+	/**
+	 * The length of the segments the dictionary is made of
+	 */
+	public static final int SEGMENT_LENGTH = 64;
+	
+	/**
+	 * The size of the dictionaries trained by default
+	 */
+	public static final int DEFAULT_DICTIONARY_SIZE = 16384;
+	
+	private final List<byte[]> samples = new ArrayList<byte[]>();
+	
+	private long totalBytes = 0;
+	
+	/**
+	 * @param sample a payload like the ones that will be compressed
+	 */
+	public void addSample(byte[] sample) {
+		if (sample.length >= SEGMENT_LENGTH) {
+			samples.add(sample);
+			totalBytes += sample.length;
+		}
+	}
+	
+	/**
+	 * @return the number of samples that are long enough to be used
+	 */
+	public int getSampleCount() {
+		return samples.size();
+	}
+	
+	/**
+	 * @param dictionarySize the size of the dictionary, at most
+	 *            {@link CompressionDictionaries#MAX_DICTIONARY_SIZE}
+	 * @return the dictionary, shorter than asked for if the samples don't have that much in common
+	 * @should only keep what several samples have in common
+	 * @should not be longer than the given size
+	 */
+	public byte[] train(int dictionarySize) {
+		dictionarySize = Math.min(dictionarySize, CompressionDictionaries.MAX_DICTIONARY_SIZE);
+		Map<Gram, int[]> frequencies = countGrams();
+		
+		int segments = Math.max(1, dictionarySize / SEGMENT_LENGTH);
+		long epochLength = Math.max(SEGMENT_LENGTH, totalBytes / segments);
+		
+		List<Segment> chosen = new ArrayList<Segment>();
+		long epochStart = 0;
+		long offset = 0;
+		int sampleIndex = 0;
+		// the stretches run across samples; a segment is never taken across the end of one
+		while (sampleIndex < samples.size() && chosen.size() < segments) {
+			Segment best = null;
+			long epochEnd = epochStart + epochLength;
+			while (sampleIndex < samples.size() && offset < epochEnd) {
+				byte[] sample = samples.get(sampleIndex);
+				int from = (int) Math.max(0, epochStart - offset);
+				int to = (int) Math.min(sample.length, epochEnd - offset);
+				Segment candidate = bestSegment(sample, from, to, frequencies);
+				if (candidate != null && (best == null || candidate.score > best.score))
+					best = candidate;
+				if (offset + sample.length <= epochEnd) {
+					offset += sample.length;
+					sampleIndex++;
+				} else {
+					break;
+				}
+			}
+			epochStart = epochEnd;
+			
+			if (best != null) {
+				chosen.add(best);
+				for (int i = best.start; i + GRAM_LENGTH <= best.start + SEGMENT_LENGTH; i++) {
+					int[] count = frequencies.get(new Gram(best.sample, i));
+					if (count != null)
+						count[0] = 0;
+				}
+			}
+		}
+		
+		Collections.sort(chosen, new Comparator<Segment>() {
+			
+			public int compare(Segment s1, Segment s2) {
+				return s1.score < s2.score ? -1 : (s1.score == s2.score ? 0 : 1);
+			}
+		});
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(chosen.size() * SEGMENT_LENGTH);
+		for (Segment segment : chosen) {
+			dictionary.write(segment.sample, segment.start, SEGMENT_LENGTH);
+		}
+		return dictionary.toByteArray();
+	}
+	
+	/**
+	 * @return for each run of bytes, the number of samples it is in
+	 */
+	private Map<Gram, int[]> countGrams() {
+		Map<Gram, int[]> frequencies = new HashMap<Gram, int[]>();
+		Set<Gram> seen = new HashSet<Gram>();
+		for (byte[] sample : samples) {
+			seen.clear();
+			for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+				Gram gram = new Gram(sample, i);
+				if (!seen.add(gram))
+					continue;
+				int[] count = frequencies.get(gram);
+				if (count == null)
+					frequencies.put(gram, new int[] { 1 });
+				else
+					count[0]++;
+			}
+		}
+		return frequencies;
+	}
+	
+	/**
+	 * @return the segment starting between from and to whose runs are in the most other samples,
+	 *         or null if no run of that part of the sample is in another sample
+	 */
+	private Segment bestSegment(byte[] sample, int from, int to, Map<Gram, int[]> frequencies) {
+		int lastStart = Math.min(to, sample.length - SEGMENT_LENGTH);
+		if (lastStart < from)
+			return null;
+		
+		// the score of a run is the number of other samples it is in, summed over a sliding window
+		int runs = SEGMENT_LENGTH - GRAM_LENGTH + 1;
+		int[] scores = new int[lastStart + runs - from];
+		for (int i = 0; i < scores.length; i++) {
+			int[] count = frequencies.get(new Gram(sample, from + i));
+			scores[i] = count == null ? 0 : Math.max(0, count[0] - 1);
+		}
+		
+		long score = 0;
+		for (int i = 0; i < runs; i++)
+			score += scores[i];
+		Segment best = new Segment(sample, from, score);
+		for (int start = from + 1; start <= lastStart; start++) {
+			score += scores[start - from + runs - 1] - scores[start - from - 1];
+			if (score > best.score)
+				best = new Segment(sample, start, score);
+		}
+		return best.score > 0 ? best : null;
+	}
+	
+	/**
+	 * A run of {@link DictionaryTrainer#GRAM_LENGTH} bytes of a sample, compared by content
+	 */
+	private static class Gram {
+		
+		private final byte[] bytes;
+		
+		private final int start;
+		
+		private final int hash;
+		
+		Gram(byte[] bytes, int start) {
+			this.bytes = bytes;
+			this.start = start;
+			int h = 1;
+			for (int i = start; i < start + GRAM_LENGTH; i++)
+				h = 31 * h + bytes[i];
+			this.hash = h;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Gram))
+				return false;
+			Gram other = (Gram) obj;
+			if (other.hash != hash)
+				return false;
+			for (int i = 0; i < GRAM_LENGTH; i++) {
+				if (bytes[start + i] != other.bytes[other.start + i])
+					return false;
+			}
+			return true;
+		}
+	}
+	
+	private static class Segment {
+		
+		private final byte[] sample;
+		
+		private final int start;
+		
+		private final long score;
+		
+		Segment(byte[] sample, int start, long score) {
+			this.sample = sample;
+			this.start = start;
+			this.score = score;
+		}
+	}
+}
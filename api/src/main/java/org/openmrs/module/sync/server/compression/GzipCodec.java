@@ -0,0 +1,54 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip, at the given level. This is what servers without codec negotiation send when
+ * sync.enable_compression is on.
+ */
+public class GzipCodec implements CompressionCodec {
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#getName()
+	 */
+	public String getName() {
+		return CompressionCodecs.GZIP;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#compress(java.io.OutputStream, int)
+	 */
+	public OutputStream compress(OutputStream out, final int level) throws IOException {
+		return new GZIPOutputStream(out, 8192) {
+			
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#decompress(java.io.InputStream)
+	 */
+	public InputStream decompress(InputStream in) throws IOException {
+		return new GZIPInputStream(new BufferedInputStream(in));
+	}
+}
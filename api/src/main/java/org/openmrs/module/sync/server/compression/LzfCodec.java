@@ -0,0 +1,369 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * LZF, a pure Java LZ77 variant that trades compression ratio for speed: it compresses several
+ * times faster than gzip's fastest level, which pays off on fast links where gzip costs more time
+ * than it saves.
+ * <p>
+ * The data is written in chunks of at most 64k in the format of the compress-lzf library: "ZV",
+ * then 0, the length (2 bytes) and the bytes as they are, or 1, the compressed length (2 bytes),
+ * the uncompressed length (2 bytes) and the compressed bytes.
+ */
+public class LzfCodec implements CompressionCodec {
+	
+	static final int MAX_CHUNK_LENGTH = 0xFFFF;
+	
+	private static final int HASH_SIZE = 1 << 14;
+	
+	private static final int MAX_LITERAL = 1 << 5;
+	
+	private static final int MAX_OFF = 1 << 13;
+	
+	private static final int MAX_REF = (1 << 8) + (1 << 3);
+	
+	private static final int CHUNK_UNCOMPRESSED = 0;
+	
+	private static final int CHUNK_COMPRESSED = 1;
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#getName()
+	 */
+	public String getName() {
+		return CompressionCodecs.LZF;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#compress(java.io.OutputStream, int)
+	 */
+	public OutputStream compress(OutputStream out, int level) {
+		return new LzfOutputStream(out);
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#decompress(java.io.InputStream)
+	 */
+	public InputStream decompress(InputStream in) {
+		return new LzfInputStream(in);
+	}
+	
+	/**
+	 * Compresses the given bytes
+	 * 
+	 * @param in the bytes
+	 * @param inLen how many of them there are
+	 * @param out where the compressed bytes go, with room for at least inLen + inLen / 32 + 1 bytes
+	 * @param hashTab table of earlier positions, HASH_SIZE long
+	 * @return the length of the compressed bytes
+	 */
+	static int compress(byte[] in, int inLen, byte[] out, int[] hashTab) {
+		int inPos = 0;
+		int outPos = 1; // room for the length of the first literal run
+		int literals = 0;
+		int future = first(in, 0);
+		while (inPos < inLen - 4) {
+			byte p2 = in[inPos + 2];
+			future = (future << 8) + (p2 & 255);
+			int off = hash(future);
+			int ref = hashTab[off];
+			hashTab[off] = inPos;
+			// the table isn't cleared between chunks: stale entries are caught by comparing the bytes
+			if (ref < inPos && ref > 0 && (off = inPos - ref - 1) < MAX_OFF && in[ref + 2] == p2
+			        && in[ref + 1] == (byte) (future >> 8) && in[ref] == (byte) (future >> 16)) {
+				int maxLen = Math.min(inLen - inPos - 2, MAX_REF);
+				if (literals == 0) {
+					outPos--;
+				} else {
+					out[outPos - literals - 1] = (byte) (literals - 1);
+					literals = 0;
+				}
+				int len = 3;
+				while (len < maxLen && in[ref + len] == in[inPos + len])
+					len++;
+				len -= 2;
+				if (len < 7) {
+					out[outPos++] = (byte) ((off >> 8) + (len << 5));
+				} else {
+					out[outPos++] = (byte) ((off >> 8) + (7 << 5));
+					out[outPos++] = (byte) (len - 7);
+				}
+				out[outPos++] = (byte) off;
+				outPos++; // room for the length of the next literal run
+				inPos += len;
+				future = first(in, inPos);
+				future = next(future, in, inPos);
+				hashTab[hash(future)] = inPos++;
+				future = next(future, in, inPos);
+				hashTab[hash(future)] = inPos++;
+			} else {
+				out[outPos++] = in[inPos++];
+				literals++;
+				if (literals == MAX_LITERAL) {
+					out[outPos - literals - 1] = (byte) (literals - 1);
+					literals = 0;
+					outPos++;
+				}
+			}
+		}
+		while (inPos < inLen) {
+			out[outPos++] = in[inPos++];
+			literals++;
+			if (literals == MAX_LITERAL) {
+				out[outPos - literals - 1] = (byte) (literals - 1);
+				literals = 0;
+				outPos++;
+			}
+		}
+		out[outPos - literals - 1] = (byte) (literals - 1);
+		if (literals == 0)
+			outPos--;
+		return outPos;
+	}
+	
+	/**
+	 * Expands compressed bytes
+	 * 
+	 * @param in the compressed bytes
+	 * @param inLen how many of them there are
+	 * @param out where the expanded bytes go
+	 * @param outLen how many bytes they expand to
+	 * @throws IOException if the compressed bytes are damaged
+	 */
+	static void expand(byte[] in, int inLen, byte[] out, int outLen) throws IOException {
+		int inPos = 0;
+		int outPos = 0;
+		try {
+			while (outPos < outLen) {
+				int ctrl = in[inPos++] & 255;
+				if (ctrl < MAX_LITERAL) {
+					ctrl++;
+					System.arraycopy(in, inPos, out, outPos, ctrl);
+					outPos += ctrl;
+					inPos += ctrl;
+				} else {
+					int len = ctrl >> 5;
+					if (len == 7)
+						len += in[inPos++] & 255;
+					len += 2;
+					int ref = outPos - ((ctrl & 0x1f) << 8) - 1 - (in[inPos++] & 255);
+					if (ref < 0)
+						throw new IOException("Corrupt LZF chunk: reference before the start of the chunk");
+					for (int i = 0; i < len; i++)
+						out[outPos++] = out[ref++];
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZF chunk: it doesn't expand to " + outLen + " bytes");
+		}
+		if (inPos != inLen)
+			throw new IOException("Corrupt LZF chunk: " + (inLen - inPos) + " bytes left over");
+	}
+	
+	private static int first(byte[] in, int inPos) {
+		return (in[inPos] << 8) | (in[inPos + 1] & 255);
+	}
+	
+	private static int next(int v, byte[] in, int inPos) {
+		return (v << 8) | (in[inPos + 2] & 255);
+	}
+	
+	private static int hash(int h) {
+		return ((h * 2777) >> 9) & (HASH_SIZE - 1);
+	}
+	
+	/**
+	 * Collects what is written into chunks and writes each chunk compressed, or as it is if it
+	 * doesn't get any smaller
+	 */
+	private static class LzfOutputStream extends FilterOutputStream {
+		
+		private final byte[] chunk = new byte[MAX_CHUNK_LENGTH];
+		
+		private final byte[] compressed = new byte[MAX_CHUNK_LENGTH + MAX_CHUNK_LENGTH / 32 + 8];
+		
+		private final int[] hashTab = new int[HASH_SIZE];
+		
+		private int length = 0;
+		
+		private boolean closed = false;
+		
+		public LzfOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (length == chunk.length)
+				writeChunk();
+			chunk[length++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (length == chunk.length)
+					writeChunk();
+				int n = Math.min(len, chunk.length - length);
+				System.arraycopy(b, off, chunk, length, n);
+				length += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			writeChunk();
+			out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				writeChunk();
+				out.close();
+			}
+		}
+		
+		private void writeChunk() throws IOException {
+			if (length == 0)
+				return;
+			int compressedLength = length > 16 ? compress(chunk, length, compressed, hashTab) : length;
+			if (compressedLength < length - 2) {
+				out.write(new byte[] { 'Z', 'V', CHUNK_COMPRESSED, (byte) (compressedLength >> 8), (byte) compressedLength,
+				        (byte) (length >> 8), (byte) length });
+				out.write(compressed, 0, compressedLength);
+			} else {
+				out.write(new byte[] { 'Z', 'V', CHUNK_UNCOMPRESSED, (byte) (length >> 8), (byte) length });
+				out.write(chunk, 0, length);
+			}
+			length = 0;
+		}
+	}
+	
+	/**
+	 * Reads the chunks written by {@link LzfOutputStream}
+	 */
+	private static class LzfInputStream extends FilterInputStream {
+		
+		private final byte[] chunk = new byte[MAX_CHUNK_LENGTH];
+		
+		private final byte[] compressed = new byte[MAX_CHUNK_LENGTH];
+		
+		private int position = 0;
+		
+		private int length = 0;
+		
+		public LzfInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			while (position == length) {
+				if (!readChunk())
+					return -1;
+			}
+			return chunk[position++] & 255;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (position == length) {
+				if (!readChunk())
+					return -1;
+			}
+			int n = Math.min(len, length - position);
+			System.arraycopy(chunk, position, b, off, n);
+			position += n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return length - position;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n && (position < length || readChunk())) {
+				int step = (int) Math.min(n - skipped, length - position);
+				position += step;
+				skipped += step;
+			}
+			return skipped;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		/**
+		 * @return false at the end of the data
+		 */
+		private boolean readChunk() throws IOException {
+			int z = in.read();
+			if (z < 0)
+				return false;
+			if (z != 'Z' || readByte() != 'V')
+				throw new IOException("Corrupt LZF data: no chunk header");
+			int type = readByte();
+			int chunkLength = (readByte() << 8) | readByte();
+			if (type == CHUNK_UNCOMPRESSED) {
+				readFully(chunk, chunkLength);
+				length = chunkLength;
+			} else if (type == CHUNK_COMPRESSED) {
+				int uncompressedLength = (readByte() << 8) | readByte();
+				readFully(compressed, chunkLength);
+				expand(compressed, chunkLength, chunk, uncompressedLength);
+				length = uncompressedLength;
+			} else {
+				throw new IOException("Corrupt LZF data: unknown chunk type " + type);
+			}
+			position = 0;
+			return true;
+		}
+		
+		private int readByte() throws IOException {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("LZF data ends in the middle of a chunk");
+			return b;
+		}
+		
+		private void readFully(byte[] b, int len) throws IOException {
+			int off = 0;
+			while (off < len) {
+				int read = in.read(b, off, len - off);
+				if (read < 0)
+					throw new EOFException("LZF data ends in the middle of a chunk");
+				off += read;
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sends transmissions as they are
+ */
+public class NoCompressionCodec implements CompressionCodec {
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#getName()
+	 */
+	public String getName() {
+		return CompressionCodecs.NONE;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#compress(java.io.OutputStream, int)
+	 */
+	public OutputStream compress(OutputStream out, int level) {
+		return out;
+	}
+	
+	/**
+	 * @see org.openmrs.module.sync.server.compression.CompressionCodec#decompress(java.io.InputStream)
+	 */
+	public InputStream decompress(InputStream in) {
+		return in;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link JournalWatermark}
+ */
+public class JournalWatermarkTest {
+	
+	private static Set<String> open(String... transactions) {
+		Set<String> open = new HashSet<String>();
+		Collections.addAll(open, transactions);
+		return open;
+	}
+	
+	/**
+	 * @see {@link JournalWatermark#observe(int,Set)}
+	 */
+	@Test
+	@Verifies(value = "should not settle a record of a transaction that is still open", method = "observe(int,Set)")
+	public void observe_shouldNotSettleARecordOfATransactionThatIsStillOpen() throws Exception {
+		JournalWatermark watermark = new JournalWatermark();
+		Assert.assertEquals(Integer.valueOf(10), watermark.observe(11, open()));
+		
+		// transaction A got record 11 and is still open, B got record 12 and committed right away
+		Assert.assertEquals(Integer.valueOf(10), watermark.observe(13, open("A")));
+		
+		// newer records keep being committed while A is open
+		Assert.assertEquals(Integer.valueOf(10), watermark.observe(20, open("A", "C")));
+		Assert.assertEquals(Integer.valueOf(10), watermark.observe(25, open("A")));
+		
+		// once A commits record 11, everything before the first observation it was in is settled
+		Assert.assertEquals(Integer.valueOf(24), watermark.observe(25, open("D")));
+	}
+	
+	/**
+	 * @see {@link JournalWatermark#observe(int,Set)}
+	 */
+	@Test
+	@Verifies(value = "should settle everything below the next record id if no transaction is open", method = "observe(int,Set)")
+	public void observe_shouldSettleEverythingBelowTheNextRecordIdIfNoTransactionIsOpen() throws Exception {
+		JournalWatermark watermark = new JournalWatermark();
+		Assert.assertNull(watermark.getSettled());
+		Assert.assertNull(watermark.observe(5, open("A")));
+		Assert.assertEquals(Integer.valueOf(8), watermark.observe(9, open()));
+		Assert.assertEquals(Integer.valueOf(8), watermark.getSettled());
+		
+		// the watermark never goes back
+		Assert.assertEquals(Integer.valueOf(8), watermark.observe(3, open()));
+	}
+	
+	/**
+	 * @see {@link JournalWatermark#observe(int,Set)}
+	 */
+	@Test
+	@Verifies(value = "should merge observations once too many are waiting", method = "observe(int,Set)")
+	public void observe_shouldMergeObservationsOnceTooManyAreWaiting() throws Exception {
+		JournalWatermark watermark = new JournalWatermark();
+		// A stays open the whole time
+		for (int i = 1; i <= JournalWatermark.MAX_PENDING; i++)
+			Assert.assertNull(watermark.observe(i * 10, open("A", "T" + i)));
+		
+		// merged into the last observation, which now also waits for X
+		Assert.assertNull(watermark.observe(5000, open("A", "X")));
+		
+		// the observations before the last are settled once A is gone, the last still waits for X
+		Assert.assertEquals(Integer.valueOf((JournalWatermark.MAX_PENDING - 1) * 10 - 1), watermark.observe(5001,
+		    open("X")));
+		Assert.assertEquals(Integer.valueOf(5000), watermark.observe(5002, open("Y")));
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.zip.CRC32;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SegmentChecksums}
+ */
+public class SegmentChecksumsTest {
+	
+	private static long crc(byte[] bytes, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, off, len);
+		return crc.getValue();
+	}
+	
+	/**
+	 * @see {@link SegmentChecksums#write(java.io.Writer)}
+	 */
+	@Test
+	@Verifies(value = "should write the offset length and checksum of every segment", method = "write(Writer)")
+	public void write_shouldWriteTheOffsetLengthAndChecksumOfEverySegment() throws Exception {
+		byte[] bytes = "0123456789".getBytes("UTF-8");
+		byte[] trailer = "end".getBytes("UTF-8");
+		SegmentChecksums checksums = new SegmentChecksums(4);
+		checksums.update(bytes, 0, bytes.length);
+		checksums.addSegment(trailer);
+		
+		StringWriter writer = new StringWriter();
+		checksums.write(writer);
+		
+		String[] lines = writer.toString().trim().split("\\r?\\n");
+		Assert.assertEquals(4, lines.length);
+		Assert.assertEquals("0 4 " + Long.toHexString(crc(bytes, 0, 4)), lines[0]);
+		Assert.assertEquals("4 4 " + Long.toHexString(crc(bytes, 4, 4)), lines[1]);
+		Assert.assertEquals("8 2 " + Long.toHexString(crc(bytes, 8, 2)), lines[2]);
+		Assert.assertEquals("10 3 " + Long.toHexString(crc(trailer, 0, 3)), lines[3]);
+		Assert.assertEquals(13, checksums.getLength());
+	}
+	
+	/**
+	 * @see {@link SegmentChecksums#forFile(File)}
+	 */
+	@Test
+	@Verifies(value = "should work out the checksums of a file that has none yet", method = "forFile(File)")
+	public void forFile_shouldWorkOutTheChecksumsOfAFileThatHasNoneYet() throws Exception {
+		File file = File.createTempFile("segments", ".sql.gz");
+		try {
+			byte[] bytes = new byte[SegmentChecksums.DEFAULT_SEGMENT_SIZE + 100];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = (byte) i;
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(bytes);
+			out.close();
+			
+			SegmentChecksums checksums = SegmentChecksums.forFile(file);
+			
+			Assert.assertEquals(2, checksums.getSegments().size());
+			Assert.assertEquals(crc(bytes, 0, SegmentChecksums.DEFAULT_SEGMENT_SIZE), checksums.getSegments().get(0)[2]);
+			Assert.assertEquals(100, checksums.getSegments().get(1)[1]);
+			Assert.assertTrue(SegmentChecksums.getFile(file).exists());
+		}
+		finally {
+			SegmentChecksums.getFile(file).delete();
+			file.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link SegmentChecksums#forFile(File)}
+	 */
+	@Test
+	@Verifies(value = "should read the checksums kept for a file", method = "forFile(File)")
+	public void forFile_shouldReadTheChecksumsKeptForAFile() throws Exception {
+		File file = File.createTempFile("segments", ".sql.gz");
+		try {
+			byte[] bytes = "0123456789".getBytes("UTF-8");
+			SegmentChecksums written = new SegmentChecksums(4);
+			OutputStream checksummed = written.checksumming(new FileOutputStream(file));
+			checksummed.write(bytes);
+			checksummed.close();
+			written.save(file);
+			
+			// the segment size of the saved checksums is kept, rather than worked out again
+			SegmentChecksums read = SegmentChecksums.forFile(file);
+			
+			Assert.assertEquals(3, read.getSegments().size());
+			Assert.assertEquals(10, read.getLength());
+			for (int i = 0; i < 3; i++)
+				Assert.assertArrayEquals(written.getSegments().get(i), read.getSegments().get(i));
+		}
+		finally {
+			SegmentChecksums.getFile(file).delete();
+			file.delete();
+		}
+	}
+}
@@ -34,6 +34,7 @@ import org.openmrs.ConceptNameTag;
 import org.openmrs.ConceptNumeric;
 import org.openmrs.ConceptSet;
 import org.openmrs.ConceptWord;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.ConceptNameType;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
@@ -513,6 +514,47 @@ public class SyncConceptTest extends SyncBaseTest {
 		});
 	}
 	
+	@Test
+	@NotTransactional
+	public void shouldAddAndRemoveConceptAnswerInDeltaMode() throws Exception {
+		runSyncTest(new SyncTestHelper() {
+			
+			ConceptService cs;
+			
+			public void runOnChild() {
+				Context.getAdministrationService().saveGlobalProperty(
+				    new GlobalProperty(SyncConstants.PROPERTY_COLLECTION_DELTA, "true"));
+				cs = Context.getConceptService();
+				
+				Concept coded = cs.getConcept(1);
+				
+				// remove the first answer
+				coded.removeAnswer(coded.getAnswers().toArray(new ConceptAnswer[]{})[0]);
+				
+				// add a new answer
+				Concept other = cs.getConceptByName("WEIGHT");
+				assertNotNull("Failed to get concept WEIGHT", other);
+				coded.addAnswer(new ConceptAnswer(other));
+				
+				cs.saveConcept(coded);
+			}
+			
+			public void runOnParent() {
+				Context.clearSession();
+				
+				Concept conceptCoded = cs.getConcept(1);
+				
+				Set<String> answers = new HashSet<String>();
+				for (ConceptAnswer a : conceptCoded.getAnswers()) {
+					answers.add(a.getAnswerConcept().getName().getName());
+				}
+				Assert.assertTrue(answers.contains("WEIGHT")); // we added this as a new answer
+				Assert.assertFalse(answers.contains("OTHER NON-CODED")); // we removed this
+				Assert.assertTrue(answers.contains("NONE")); // was already on the concept, so wasn't sent
+			}
+		});
+	}
+	
 	@Test
 	@NotTransactional
 	public void shouldTurnConceptIntoConceptNumericWithoutFrakkingUuids() throws Exception {
@@ -0,0 +1,102 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncDependencyTracker}
+ */
+public class SyncDependencyTrackerTest {
+	
+	private static final String PATIENT_UUID = "0f3e2b5c-6e4a-4d6a-9b7e-2a1c3d4e5f60";
+	
+	private static final String OBS_UUID = "7b1d9c2e-3f4a-4b5c-8d6e-9f0a1b2c3d4e";
+	
+	/**
+	 * Creates a record with one item for the given uuid, referring to the given uuids
+	 */
+	private SyncRecord record(String uuid, SyncItemState state, String... references) {
+		StringBuilder content = new StringBuilder("<org.openmrs.Obs>");
+		for (String reference : references) {
+			content.append("<person type=\"org.openmrs.Person\">").append(reference).append("</person>");
+		}
+		content.append("</org.openmrs.Obs>");
+		
+		SyncItem item = new SyncItem();
+		item.setKey(new SyncItemKey<String>(uuid, String.class));
+		item.setState(state);
+		item.setContent(content.toString());
+		
+		SyncRecord record = new SyncRecord();
+		record.addItem(item);
+		return record;
+	}
+	
+	@Test
+	@Verifies(value = "should return false when nothing is held back", method = "dependsOnHeldBack(SyncRecord)")
+	public void dependsOnHeldBack_shouldReturnFalseWhenNothingIsHeldBack() throws Exception {
+		SyncDependencyTracker tracker = new SyncDependencyTracker();
+		Assert.assertFalse(tracker.dependsOnHeldBack(record(OBS_UUID, SyncItemState.NEW, PATIENT_UUID)));
+		Assert.assertEquals(0, tracker.getHeldBackCount());
+	}
+	
+	@Test
+	@Verifies(value = "should return true for a record referring to an object written by a held back record", method = "dependsOnHeldBack(SyncRecord)")
+	public void dependsOnHeldBack_shouldReturnTrueForARecordReferringToAnObjectWrittenByAHeldBackRecord() throws Exception {
+		SyncDependencyTracker tracker = new SyncDependencyTracker();
+		tracker.holdBack(record(PATIENT_UUID, SyncItemState.NEW));
+		
+		Assert.assertTrue(tracker.dependsOnHeldBack(record(OBS_UUID, SyncItemState.NEW, PATIENT_UUID)));
+		Assert.assertTrue(tracker.dependsOnHeldBack(record(PATIENT_UUID, SyncItemState.UPDATED)));
+	}
+	
+	@Test
+	@Verifies(value = "should return true for a record deleting an object referred to by a held back record", method = "dependsOnHeldBack(SyncRecord)")
+	public void dependsOnHeldBack_shouldReturnTrueForARecordDeletingAnObjectReferredToByAHeldBackRecord() throws Exception {
+		SyncDependencyTracker tracker = new SyncDependencyTracker();
+		tracker.holdBack(record(OBS_UUID, SyncItemState.NEW, PATIENT_UUID));
+		
+		Assert.assertTrue(tracker.dependsOnHeldBack(record(PATIENT_UUID, SyncItemState.DELETED)));
+	}
+	
+	@Test
+	@Verifies(value = "should return false for an unrelated record", method = "dependsOnHeldBack(SyncRecord)")
+	public void dependsOnHeldBack_shouldReturnFalseForAnUnrelatedRecord() throws Exception {
+		SyncDependencyTracker tracker = new SyncDependencyTracker();
+		tracker.holdBack(record(OBS_UUID, SyncItemState.NEW, PATIENT_UUID));
+		
+		// updating the patient the stopped obs refers to doesn't need to wait for the obs
+		Assert.assertFalse(tracker.dependsOnHeldBack(record(PATIENT_UUID, SyncItemState.UPDATED)));
+		Assert.assertFalse(tracker.dependsOnHeldBack(record("9a8b7c6d-5e4f-4a3b-2c1d-0e9f8a7b6c5d", SyncItemState.NEW)));
+		Assert.assertEquals(1, tracker.getHeldBackCount());
+	}
+	
+	@Test
+	@Verifies(value = "should hold back the records depending on the given footprint", method = "holdBack(String,Footprint)")
+	public void holdBack_shouldHoldBackTheRecordsDependingOnTheGivenFootprint() throws Exception {
+		SyncRecord stopped = record(PATIENT_UUID, SyncItemState.NEW);
+		stopped.setUuid("5d4c3b2a-1f0e-4d9c-8b7a-6f5e4d3c2b1a");
+		
+		SyncDependencyTracker tracker = new SyncDependencyTracker();
+		tracker.holdBack(stopped.getUuid(), SyncDependencyTracker.getFootprint(stopped));
+		
+		Assert.assertTrue(tracker.isHeldBack(stopped.getUuid()));
+		Assert.assertNotNull(SyncDependencyTracker.getCachedFootprint(stopped.getUuid()));
+		Assert.assertTrue(tracker.dependsOnHeldBack(record(OBS_UUID, SyncItemState.NEW, PATIENT_UUID)));
+		Assert.assertEquals(1, tracker.getHeldBackCount());
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.serialization.FilePackage;
+import org.openmrs.module.sync.serialization.Item;
+import org.openmrs.module.sync.serialization.Record;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncRecordFragmentCache}
+ */
+public class SyncRecordFragmentCacheTest {
+	
+	/**
+	 * Creates a new record holding one person
+	 */
+	private SyncRecord record(String name) {
+		SyncRecord record = new SyncRecord();
+		record.setUuid(UUID.randomUUID().toString());
+		record.setTimestamp(new Date());
+		record.setContainedClasses("org.openmrs.Person");
+		record.setState(SyncRecordState.NEW);
+		
+		SyncItem item = new SyncItem();
+		item.setKey(new SyncItemKey<String>(UUID.randomUUID().toString(), String.class));
+		item.setState(SyncItemState.NEW);
+		item.setContent("<org.openmrs.Person><name>" + name + "</name></org.openmrs.Person>");
+		record.addItem(item);
+		return record;
+	}
+	
+	/**
+	 * @see {@link SyncRecordFragmentCache#getFragment(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should serialize a record only once", method = "getFragment(SyncRecord)")
+	public void getFragment_shouldSerializeARecordOnlyOnce() throws Exception {
+		SyncRecordFragmentCache cache = new SyncRecordFragmentCache(1024 * 1024);
+		SyncRecord record = record("Jane");
+		
+		String first = cache.getFragment(record);
+		String second = cache.getFragment(record);
+		
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(1, cache.getHits());
+	}
+	
+	/**
+	 * @see {@link SyncRecordFragmentCache#getFragment(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should serialize a record again if its state changed", method = "getFragment(SyncRecord)")
+	public void getFragment_shouldSerializeARecordAgainIfItsStateChanged() throws Exception {
+		SyncRecordFragmentCache cache = new SyncRecordFragmentCache(1024 * 1024);
+		SyncRecord record = record("Jane");
+		
+		String first = cache.getFragment(record);
+		record.setRetryCount(1);
+		record.setState(SyncRecordState.SENT);
+		String second = cache.getFragment(record);
+		
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertTrue(second.contains("SENT"));
+		Assert.assertFalse(first.equals(second));
+	}
+	
+	/**
+	 * @see {@link SyncRecordFragmentCache#getFragment(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should drop the least recently used records when full", method = "getFragment(SyncRecord)")
+	public void getFragment_shouldDropTheLeastRecentlyUsedRecordsWhenFull() throws Exception {
+		SyncRecord first = record("Jane");
+		SyncRecord second = record("John");
+		SyncRecord third = record("Joan");
+		
+		// room for two records only
+		long recordSize = new SyncRecordFragmentCache(1024 * 1024).getFragment(first).length() * 2L + 200;
+		SyncRecordFragmentCache cache = new SyncRecordFragmentCache(recordSize * 2);
+		
+		cache.getFragment(first);
+		cache.getFragment(second);
+		cache.getFragment(first);
+		cache.getFragment(third);
+		Assert.assertTrue(cache.getSize() <= recordSize * 2);
+		Assert.assertEquals(3, cache.getMisses());
+		
+		cache.getFragment(first);
+		Assert.assertEquals(2, cache.getHits());
+		cache.getFragment(second);
+		Assert.assertEquals(4, cache.getMisses());
+	}
+	
+	/**
+	 * @see {@link SyncRecordFragmentCache#getFragment(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should give xml that reads back as the same record", method = "getFragment(SyncRecord)")
+	public void getFragment_shouldGiveXmlThatReadsBackAsTheSameRecord() throws Exception {
+		SyncRecordFragmentCache cache = new SyncRecordFragmentCache(1024 * 1024);
+		SyncRecord first = record("Jane");
+		SyncRecord second = record("]]> & <John>");
+		
+		Record xml = new FilePackage().createRecordForWrite(SyncTransmission.class.getName());
+		Item records = xml.createItem(xml.getRootItem(), "records");
+		xml.createFragment(records, cache.getFragment(first));
+		xml.createFragment(records, cache.getFragment(second));
+		
+		Record read = new FilePackage().createRecordFromString(xml.toString());
+		List<Item> items = read.getItems(read.getItem(read.getRootItem(), "records"));
+		Assert.assertEquals(2, items.size());
+		
+		SyncRecord firstRead = new SyncRecord();
+		firstRead.load(read, items.get(0));
+		SyncRecord secondRead = new SyncRecord();
+		secondRead.load(read, items.get(1));
+		Assert.assertEquals(first, firstRead);
+		Assert.assertEquals(second, secondRead);
+	}
+	
+	/**
+	 * @see {@link SyncRecordFragmentCache#getFragment(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should keep nothing if the size is zero", method = "getFragment(SyncRecord)")
+	public void getFragment_shouldKeepNothingIfTheSizeIsZero() throws Exception {
+		SyncRecordFragmentCache cache = new SyncRecordFragmentCache(0);
+		SyncRecord record = record("Jane");
+		
+		cache.getFragment(record);
+		cache.getFragment(record);
+		
+		Assert.assertFalse(cache.isEnabled());
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(0, cache.getSize());
+	}
+}
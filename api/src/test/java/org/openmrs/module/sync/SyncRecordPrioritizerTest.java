@@ -0,0 +1,121 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncRecordPrioritizer}
+ */
+public class SyncRecordPrioritizerTest {
+	
+	private static final String PATIENT_UUID = "0f3e2b5c-6e4a-4d6a-9b7e-2a1c3d4e5f60";
+	
+	private final SyncRecordPrioritizer prioritizer = new SyncRecordPrioritizer(Arrays.asList("org.openmrs.Obs",
+	    "org.openmrs.Encounter"));
+	
+	private int nextId = 1;
+	
+	/**
+	 * Creates a record saving one object of the given class, referring to the given uuids
+	 */
+	private SyncRecord record(String containedClass, String uuid, String... references) {
+		SyncRecord record = new SyncRecord();
+		record.setRecordId(nextId++);
+		record.setContainedClasses(containedClass);
+		
+		StringBuilder content = new StringBuilder("<" + containedClass + ">");
+		for (String reference : references) {
+			content.append("<person type=\"org.openmrs.Person\">").append(reference).append("</person>");
+		}
+		content.append("</" + containedClass + ">");
+		
+		SyncItem item = new SyncItem();
+		item.setKey(new SyncItemKey<String>(uuid, String.class));
+		item.setState(SyncItemState.NEW);
+		item.setContent(content.toString());
+		record.addItem(item);
+		return record;
+	}
+	
+	private List<Integer> ids(List<SyncRecord> records) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (SyncRecord record : records) {
+			ids.add(record.getRecordId());
+		}
+		return ids;
+	}
+	
+	private List<SyncRecord> backlog(int size) {
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < size; i++) {
+			records.add(record("org.openmrs.ConceptWord", "concept-word-" + i));
+		}
+		return records;
+	}
+	
+	@Test
+	@Verifies(value = "should return all records when they fit", method = "select(List,int)")
+	public void select_shouldReturnAllRecordsWhenTheyFit() throws Exception {
+		List<SyncRecord> waiting = backlog(3);
+		waiting.add(record("org.openmrs.Obs", "obs-1"));
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 4), ids(prioritizer.select(waiting, 5)));
+	}
+	
+	@Test
+	@Verifies(value = "should let priority records go ahead of the others", method = "select(List,int)")
+	public void select_shouldLetPriorityRecordsGoAheadOfTheOthers() throws Exception {
+		List<SyncRecord> waiting = backlog(20);
+		waiting.add(record("org.openmrs.Obs", "obs-1"));
+		waiting.add(record("org.openmrs.Encounter", "encounter-1"));
+		
+		List<SyncRecord> selected = prioritizer.select(waiting, 5);
+		
+		// picked ones still go in journal order
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 21, 22), ids(selected));
+	}
+	
+	@Test
+	@Verifies(value = "should keep a share of the batch for the oldest other records", method = "select(List,int)")
+	public void select_shouldKeepAShareOfTheBatchForTheOldestOtherRecords() throws Exception {
+		List<SyncRecord> waiting = backlog(10);
+		for (int i = 0; i < 10; i++) {
+			waiting.add(record("org.openmrs.Obs", "obs-" + i));
+		}
+		
+		List<SyncRecord> selected = prioritizer.select(waiting, 10);
+		
+		Assert.assertEquals(Arrays.asList(1, 2, 11, 12, 13, 14, 15, 16, 17, 18), ids(selected));
+	}
+	
+	@Test
+	@Verifies(value = "should not let a priority record overtake an earlier change to an entity it refers to", method = "select(List,int)")
+	public void select_shouldNotLetAPriorityRecordOvertakeAnEarlierChangeToAnEntityItRefersTo() throws Exception {
+		List<SyncRecord> waiting = backlog(10);
+		waiting.add(record("org.openmrs.Patient", PATIENT_UUID));
+		waiting.add(record("org.openmrs.Obs", "obs-1", PATIENT_UUID));
+		waiting.add(record("org.openmrs.Obs", "obs-2"));
+		
+		List<SyncRecord> selected = prioritizer.select(waiting, 5);
+		
+		// the obs for the new patient has to wait for the patient, the other one doesn't
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 13), ids(selected));
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncStrategyFile}
+ */
+public class SyncStrategyFileTest extends BaseModuleContextSensitiveTest {
+	
+	@Test
+	@Verifies(value = "should send the records behind held back ones when these fill the batch", method = "createStateBasedSyncTransmission(SyncSource,boolean,RemoteServer,boolean,Integer)")
+	public void createStateBasedSyncTransmission_shouldSendTheRecordsBehindHeldBackOnesWhenTheseFillTheBatch()
+	                                                                                                           throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		// keep the records in journal order
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(SyncConstants.PROPERTY_PRIORITY_CLASSES, " "));
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		// record 2 updates the same task definition as record 1, so it is held back with it
+		SyncRecord stopped = syncService.getSyncRecord(1);
+		stopped.setState(SyncRecordState.FAILED_AND_STOPPED);
+		syncService.updateSyncRecord(stopped);
+		
+		RemoteServer parent = new RemoteServer();
+		parent.setServerType(RemoteServerType.PARENT);
+		parent.setNickname("parent");
+		
+		SyncTransmission tx = new SyncStrategyFile().createStateBasedSyncTransmission(new SyncSourceJournal(), false,
+		    parent, false, 2);
+		
+		List<Integer> sent = new ArrayList<Integer>();
+		for (SyncRecord record : tx.getSyncRecords()) {
+			sent.add(record.getRecordId());
+		}
+		Assert.assertEquals(Arrays.asList(3, 4), sent);
+		Assert.assertFalse(tx.getIsMaxRetryReached());
+	}
+}
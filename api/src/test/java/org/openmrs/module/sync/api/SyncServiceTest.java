@@ -13,9 +13,24 @@
  */
 package org.openmrs.module.sync.api;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.openmrs.ConceptDatatype;
@@ -25,8 +40,29 @@ import org.openmrs.Person;
 import org.openmrs.PersonAttributeType;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncClass;
+import org.openmrs.module.sync.SyncCloneSnapshot;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncDependencyTracker;
+import org.openmrs.module.sync.SyncItem;
+import org.openmrs.module.sync.SyncPayloadStorageReport;
 import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordPosition;
+import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.SyncUtil;
+import org.openmrs.module.sync.api.db.hibernate.usertype.SyncItemListSerializingUserType;
+import org.openmrs.module.sync.api.impl.SyncConfigurationCache;
 import org.openmrs.module.sync.api.impl.SyncServiceImpl;
+import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.module.sync.server.SyncServerRecord;
+import org.openmrs.module.sync.server.compression.CompressionCodec;
+import org.openmrs.module.sync.server.compression.CompressionDictionaries;
+import org.openmrs.module.sync.server.compression.CompressionDictionary;
+import org.openmrs.module.sync.server.compression.DeflateDictionaryCodec;
+import org.openmrs.module.sync.server.compression.DictionaryTrainer;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
 
@@ -136,10 +172,757 @@ public class SyncServiceTest extends BaseModuleContextSensitiveTest {
 		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
 		
 		SyncService syncService = Context.getService(SyncService.class);
+		// records put straight into the table are searchable once their terms are built, as after an upgrade
+		syncService.recodeSyncRecordPayloads(null, 100);
     	
 		List<SyncRecord> syncRecords = syncService.getSyncRecords("ConceptDatatype");
 		
 		Assert.assertEquals(7, syncRecords.size());
 	}
+	
+	/**
+	 * @see {@link SyncService#getSyncRecords(String)}
+	 */
+	@Test
+	@Verifies(value = "should find a compressed record by the words of its values", method = "getSyncRecords(String)")
+	public void getSyncRecords_shouldFindACompressedRecordByTheWordsOfItsValues() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncItemListSerializingUserType.setCompressionEnabled(true);
+		try {
+			syncService.recodeSyncRecordPayloads(null, 100);
+			Context.clearSession();
+			
+			// record 36 describes a concept as a "serologic test for Brucellosis"
+			List<SyncRecord> syncRecords = syncService.getSyncRecords("Brucell");
+			Assert.assertEquals(1, syncRecords.size());
+			Assert.assertEquals(Integer.valueOf(36), syncRecords.get(0).getRecordId());
+			
+			Assert.assertEquals(1, syncService.getSyncRecords("serologic brucellosis").size());
+			Assert.assertTrue(syncService.getSyncRecords("serologic malaria").isEmpty());
+		}
+		finally {
+			SyncItemListSerializingUserType.setCompressionEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#getLatestRecordId()}
+	 */
+	@Test
+	@Verifies(value = "should return the highest record id", method = "getLatestRecordId()")
+	public void getLatestRecordId_shouldReturnTheHighestRecordId() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		
+		Assert.assertEquals(Integer.valueOf(60), Context.getService(SyncService.class).getLatestRecordId());
+	}
+	
+	/**
+	 * @see {@link SyncService#getFirstSyncRecordPositionInState(RemoteServer,EnumSet)}
+	 */
+	@Test
+	@Verifies(value = "should return null if no records are in the given states", method = "getFirstSyncRecordPositionInState(RemoteServer,EnumSet)")
+	public void getFirstSyncRecordPositionInState_shouldReturnNullIfNoRecordsAreInTheGivenStates() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		
+		SyncRecordPosition position = Context.getService(SyncService.class).getFirstSyncRecordPositionInState(null,
+		    EnumSet.of(SyncRecordState.FAILED_AND_STOPPED));
+		
+		Assert.assertNull(position);
+	}
+	
+	/**
+	 * @see {@link SyncService#getFirstSyncRecordPositionInState(RemoteServer,EnumSet)}
+	 */
+	@Test
+	@Verifies(value = "should return the earliest record in the given states", method = "getFirstSyncRecordPositionInState(RemoteServer,EnumSet)")
+	public void getFirstSyncRecordPositionInState_shouldReturnTheEarliestRecordInTheGivenStates() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncRecordPosition position = syncService.getFirstSyncRecordPositionInState(null, EnumSet.of(SyncRecordState.NEW));
+		Assert.assertEquals(Integer.valueOf(1), position.getRecordId());
+		
+		position = syncService.getFirstSyncRecordPositionInState(null, EnumSet.of(SyncRecordState.NOT_SUPPOSED_TO_SYNC));
+		Assert.assertEquals(Integer.valueOf(60), position.getRecordId());
+		Assert.assertTrue(position.isAtOrBefore(syncService.getSyncRecord(60)));
+		Assert.assertFalse(position.isAtOrBefore(syncService.getSyncRecord(1)));
+	}
+	
+	/**
+	 * Creates a new record containing the given class, without any server records yet
+	 */
+	private SyncRecord newRecord(String containedClass) {
+		SyncRecord record = new SyncRecord();
+		record.setUuid(SyncUtil.generateUuid());
+		record.setOriginalUuid(record.getUuid());
+		record.setState(SyncRecordState.NEW);
+		record.setTimestamp(new Date());
+		record.setRetryCount(0);
+		record.setContainedClasses(containedClass);
+		return record;
+	}
+	
+	/**
+	 * @see {@link SyncService#createSyncRecord(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should create a server record for each child server", method = "createSyncRecord(SyncRecord)")
+	public void createSyncRecord_shouldCreateAServerRecordForEachChildServer() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncRecord record = newRecord("org.openmrs.PatientIdentifierType");
+		syncService.createSyncRecord(record);
+		Context.flushSession();
+		Context.clearSession();
+		
+		record = syncService.getSyncRecord(record.getUuid());
+		Assert.assertEquals(2, record.getServerRecords().size());
+		for (SyncServerRecord serverRecord : record.getServerRecords()) {
+			Assert.assertEquals(SyncRecordState.NEW, serverRecord.getState());
+			Assert.assertEquals(0, serverRecord.getRetryCount());
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#createSyncRecord(SyncRecord)}
+	 */
+	@Test
+	@Verifies(value = "should mark the record as not supposed to sync for children not sent its classes", method = "createSyncRecord(SyncRecord)")
+	public void createSyncRecord_shouldMarkTheRecordAsNotSupposedToSyncForChildrenNotSentItsClasses() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncRecord record = newRecord("org.openmrs.PersonAttributeType");
+		syncService.createSyncRecord(record);
+		Context.flushSession();
+		Context.clearSession();
+		
+		record = syncService.getSyncRecord(record.getUuid());
+		Assert.assertEquals(2, record.getServerRecords().size());
+		for (SyncServerRecord serverRecord : record.getServerRecords()) {
+			Assert.assertEquals(SyncRecordState.NOT_SUPPOSED_TO_SYNC, serverRecord.getState());
+		}
+	}
+	
+	/**
+	 * Journals two records for a parent whose children keep a cursor
+	 */
+	private List<SyncRecord> journalForChildCursors() {
+		SyncService syncService = Context.getService(SyncService.class);
+		syncService.setGlobalProperty(SyncConstants.PROPERTY_CHILD_CURSORS, "true");
+		for (RemoteServer server : syncService.getRemoteServers()) {
+			if (!RemoteServerType.PARENT.equals(server.getServerType()))
+				Assert.assertTrue(syncService.initializeChildCursor(server));
+		}
+		
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < 2; i++) {
+			SyncRecord record = newRecord("org.openmrs.PatientIdentifierType");
+			syncService.createSyncRecord(record);
+			records.add(record);
+		}
+		return records;
+	}
+	
+	/**
+	 * Has the given child acknowledge the given record as committed
+	 */
+	private void acknowledge(SyncRecord record, RemoteServer child) {
+		SyncService syncService = Context.getService(SyncService.class);
+		syncService.updateSyncRecordsToSent(Collections.singletonList(syncService.getSyncRecord(record.getUuid())), child);
+		
+		SyncImportRecord importRecord = new SyncImportRecord();
+		importRecord.setUuid(record.getOriginalUuid());
+		importRecord.setState(SyncRecordState.COMMITTED);
+		Context.getService(SyncIngestService.class).processSyncImportRecord(importRecord, child);
+	}
+	
+	/**
+	 * @see {@link SyncService#initializeChildCursor(RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should put the cursor before the records still to be sent", method = "initializeChildCursor(RemoteServer)")
+	public void initializeChildCursor_shouldPutTheCursorBeforeTheRecordsStillToBeSent() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		syncService.setGlobalProperty(SyncConstants.PROPERTY_CHILD_CURSORS, "true");
+		
+		// journaling leaves the child without a cursor, the records get a row for it
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < 2; i++) {
+			SyncRecord record = newRecord("org.openmrs.PatientIdentifierType");
+			syncService.createSyncRecord(record);
+			records.add(record);
+		}
+		RemoteServer child = syncService.getRemoteServer(1);
+		Assert.assertNull(child.getAcknowledgedRecordId());
+		
+		Assert.assertTrue(syncService.initializeChildCursor(child));
+		Assert.assertTrue(child.getAcknowledgedRecordId() < records.get(0).getRecordId());
+		Assert.assertEquals(2, syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, child, -1, null).size());
+	}
+	
+	/**
+	 * @see {@link SyncService#advanceChildCursor(RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should move the cursor past committed records", method = "advanceChildCursor(RemoteServer)")
+	public void advanceChildCursor_shouldMoveTheCursorPastCommittedRecords() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		List<SyncRecord> records = journalForChildCursors();
+		RemoteServer child = syncService.getRemoteServer(1);
+		
+		// the records are new for the child without any rows being written for them
+		Assert.assertTrue(child.getAcknowledgedRecordId() < records.get(0).getRecordId());
+		Assert.assertEquals(2, syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, child, -1, null).size());
+		
+		acknowledge(records.get(0), child);
+		syncService.advanceChildCursor(child);
+		
+		Assert.assertEquals(records.get(0).getRecordId(), child.getAcknowledgedRecordId());
+		List<SyncRecord> waiting = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, child, -1, null);
+		Assert.assertEquals(1, waiting.size());
+		Assert.assertEquals(records.get(1).getUuid(), waiting.get(0).getUuid());
+		
+		// the row of the committed record is gone
+		Context.flushSession();
+		Context.clearSession();
+		Assert.assertNull(syncService.getSyncRecord(records.get(0).getUuid()).getServerRecord(child));
+	}
+	
+	/**
+	 * @see {@link SyncService#advanceChildCursor(RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should not move the cursor past a record still to be sent", method = "advanceChildCursor(RemoteServer)")
+	public void advanceChildCursor_shouldNotMoveTheCursorPastARecordStillToBeSent() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		List<SyncRecord> records = journalForChildCursors();
+		RemoteServer child = syncService.getRemoteServer(1);
+		
+		acknowledge(records.get(1), child);
+		syncService.advanceChildCursor(child);
+		
+		Assert.assertTrue(child.getAcknowledgedRecordId() < records.get(0).getRecordId());
+		List<SyncRecord> waiting = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, child, -1, null);
+		Assert.assertEquals(1, waiting.size());
+		Assert.assertEquals(records.get(0).getUuid(), waiting.get(0).getUuid());
+	}
+	
+	/**
+	 * @see {@link SyncService#seedChildFromSnapshot(RemoteServer,SyncCloneSnapshot)}
+	 */
+	@Test
+	@Verifies(value = "should send the child only the records after the snapshot", method = "seedChildFromSnapshot(RemoteServer,SyncCloneSnapshot)")
+	public void seedChildFromSnapshot_shouldSendTheChildOnlyTheRecordsAfterTheSnapshot() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < 2; i++) {
+			SyncRecord record = newRecord("org.openmrs.PatientIdentifierType");
+			syncService.createSyncRecord(record);
+			records.add(record);
+		}
+		RemoteServer child = syncService.getRemoteServer(1);
+		Assert.assertEquals(2, syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, child, -1, null).size());
+		
+		// a snapshot that has the first record in it
+		SyncCloneSnapshot snapshot = new SyncCloneSnapshot(SyncConstants.CLONE_SNAPSHOT_FILE_NAME + "test.sql.gz",
+		        new SyncRecordPosition(records.get(0).getRecordId(), records.get(0).getTimestamp()), new Date());
+		syncService.seedChildFromSnapshot(child, snapshot);
+		
+		Assert.assertEquals(records.get(0).getRecordId(), child.getAcknowledgedRecordId());
+		List<SyncRecord> waiting = syncService.getSyncRecords(SyncConstants.SYNC_TO_PARENT_STATES, child, -1, null);
+		Assert.assertEquals(1, waiting.size());
+		Assert.assertEquals(records.get(1).getUuid(), waiting.get(0).getUuid());
+	}
+	
+	/**
+	 * @see {@link SyncService#getCloneSnapshotTrailer(RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should mark the database as the given child", method = "getCloneSnapshotTrailer(RemoteServer)")
+	public void getCloneSnapshotTrailer_shouldMarkTheDatabaseAsTheGivenChild() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer child = syncService.getRemoteServer(1);
+		
+		byte[] trailer = syncService.getCloneSnapshotTrailer(child);
+		
+		String sql = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(trailer)), SyncConstants.UTF8);
+		Assert.assertTrue(sql.contains("'" + child.getUuid() + "' where property = '"
+		        + SyncConstants.PROPERTY_SERVER_UUID + "'"));
+		
+		// the same every time, so that a download can be resumed
+		Assert.assertArrayEquals(trailer, syncService.getCloneSnapshotTrailer(child));
+	}
+	
+	/**
+	 * @see {@link SyncService#getStoppedSyncRecordTracker(RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should hold back the stopped records", method = "getStoppedSyncRecordTracker(RemoteServer)")
+	public void getStoppedSyncRecordTracker_shouldHoldBackTheStoppedRecords() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncRecord stopped = syncService.getSyncRecord(1);
+		stopped.setState(SyncRecordState.FAILED_AND_STOPPED);
+		syncService.updateSyncRecord(stopped);
+		
+		RemoteServer parent = new RemoteServer();
+		parent.setServerType(RemoteServerType.PARENT);
+		
+		SyncDependencyTracker tracker = syncService.getStoppedSyncRecordTracker(parent);
+		Assert.assertEquals(1, tracker.getHeldBackCount());
+		Assert.assertTrue(tracker.isHeldBack(stopped.getUuid()));
+		Assert.assertNotNull(SyncDependencyTracker.getCachedFootprint(stopped.getUuid()));
+		
+		// record 2 updates the same task definition
+		Assert.assertTrue(tracker.dependsOnHeldBack(syncService.getSyncRecord(2)));
+		Assert.assertFalse(tracker.dependsOnHeldBack(syncService.getSyncRecord(4)));
+	}
+	
+	/**
+	 * @see {@link SyncService#getHeldBackSyncRecords(RemoteServer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should return an empty list if no record is stopped", method = "getHeldBackSyncRecords(RemoteServer,Integer)")
+	public void getHeldBackSyncRecords_shouldReturnAnEmptyListIfNoRecordIsStopped() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		
+		RemoteServer parent = new RemoteServer();
+		parent.setServerType(RemoteServerType.PARENT);
+		
+		Assert.assertTrue(Context.getService(SyncService.class).getHeldBackSyncRecords(parent, -1).isEmpty());
+	}
+	
+	/**
+	 * @see {@link SyncService#recodeSyncRecordPayloads(Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should compress payloads that are stored uncompressed", method = "recodeSyncRecordPayloads(Integer,Integer)")
+	public void recodeSyncRecordPayloads_shouldCompressPayloadsThatAreStoredUncompressed() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncItemListSerializingUserType.setCompressionEnabled(true);
+		try {
+			SyncPayloadStorageReport report = syncService.recodeSyncRecordPayloads(null, 10);
+			Assert.assertEquals(10, report.getRecordsScanned());
+			Assert.assertEquals(10, report.getRecordsRewritten());
+			Assert.assertEquals(Integer.valueOf(10), report.getLastRecordId());
+			Assert.assertTrue(report.getBytesSaved() > 0);
+			
+			// running it again only picks up where the first batch left off
+			report = syncService.recodeSyncRecordPayloads(report.getLastRecordId(), 100);
+			Assert.assertEquals(50, report.getRecordsScanned());
+			
+			// and once everything is converted there is nothing left to do
+			report = syncService.recodeSyncRecordPayloads(null, 100);
+			Assert.assertEquals(0, report.getRecordsRewritten());
+		}
+		finally {
+			SyncItemListSerializingUserType.setCompressionEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#recodeSyncRecordPayloads(Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should keep compressed records readable and searchable", method = "recodeSyncRecordPayloads(Integer,Integer)")
+	public void recodeSyncRecordPayloads_shouldKeepCompressedRecordsReadableAndSearchable() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncItem originalItem = syncService.getSyncRecord(4).getItems().iterator().next();
+		String key = originalItem.getKey().getKeyValue().toString();
+		Context.clearSession();
+		
+		SyncItemListSerializingUserType.setCompressionEnabled(true);
+		try {
+			syncService.recodeSyncRecordPayloads(null, 100);
+			Context.clearSession();
+			
+			SyncItem item = syncService.getSyncRecord(4).getItems().iterator().next();
+			Assert.assertEquals(originalItem.getContent(), item.getContent());
+			
+			boolean found = false;
+			for (SyncRecord match : syncService.getSyncRecords(key))
+				found |= match.getRecordId().equals(4);
+			Assert.assertTrue(found);
+		}
+		finally {
+			SyncItemListSerializingUserType.setCompressionEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#recodeSyncRecordPayloads(Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should recompress payloads when the dictionary changes", method = "recodeSyncRecordPayloads(Integer,Integer)")
+	public void recodeSyncRecordPayloads_shouldRecompressPayloadsWhenTheDictionaryChanges() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		String originalContent = syncService.getSyncRecord(4).getItems().iterator().next().getContent();
+		Context.clearSession();
+		
+		SyncItemListSerializingUserType.setCompressionEnabled(true);
+		try {
+			syncService.recodeSyncRecordPayloads(null, 100);
+			
+			CompressionDictionary dictionary = syncService.trainCompressionDictionary(100,
+			    DictionaryTrainer.DEFAULT_DICTIONARY_SIZE);
+			CompressionDictionaries.setCurrent(dictionary.getIdString());
+			SyncPayloadStorageReport report = syncService.recodeSyncRecordPayloads(null, 100);
+			Assert.assertEquals(60, report.getRecordsRewritten());
+			Assert.assertTrue(report.getBytesSaved() > 0);
+			Context.clearSession();
+			
+			Assert.assertEquals(originalContent, syncService.getSyncRecord(4).getItems().iterator().next().getContent());
+		}
+		finally {
+			CompressionDictionaries.setCurrent(null);
+			SyncItemListSerializingUserType.setCompressionEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#trainCompressionDictionary(Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should train a dictionary that compresses the payloads better than the built in one", method = "trainCompressionDictionary(Integer,Integer)")
+	public void trainCompressionDictionary_shouldTrainADictionaryThatCompressesThePayloadsBetterThanTheBuiltInOne()
+	        throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		CompressionDictionary dictionary = syncService.trainCompressionDictionary(100, 8192);
+		Assert.assertFalse(dictionary.isBuiltIn());
+		Assert.assertTrue(dictionary.getBytes().length <= 8192);
+		Assert.assertSame(dictionary, CompressionDictionaries.get(dictionary.getId()));
+		
+		String xml = syncService.getSyncRecord(4).getItems().iterator().next().getContent();
+		Assert.assertTrue(compressedLength(new DeflateDictionaryCodec(dictionary), xml) < compressedLength(
+		    new DeflateDictionaryCodec(), xml));
+	}
+	
+	private int compressedLength(CompressionCodec codec, String content) throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream out = codec.compress(compressed, 6);
+		out.write(content.getBytes(SyncConstants.UTF8));
+		out.close();
+		return compressed.size();
+	}
+	
+	/**
+	 * @see {@link SyncService#deleteUnreferencedSyncPayloads(Date)}
+	 */
+	@Test
+	@Verifies(value = "should not delete shared payloads that are still referenced", method = "deleteUnreferencedSyncPayloads(Date)")
+	public void deleteUnreferencedSyncPayloads_shouldNotDeleteSharedPayloadsThatAreStillReferenced() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncItemListSerializingUserType.setSharingEnabled(true);
+		try {
+			SyncRecord record = syncService.getSyncRecord(4);
+			String content = record.getItems().iterator().next().getContent();
+			record.incrementRetryCount();
+			syncService.updateSyncRecord(record);
+			Context.flushSession();
+			Context.clearSession();
+			
+			Assert.assertEquals(0, syncService.deleteUnreferencedSyncPayloads(tomorrow()).intValue());
+			Assert.assertEquals(content, syncService.getSyncRecord(4).getItems().iterator().next().getContent());
+		}
+		finally {
+			SyncItemListSerializingUserType.setSharingEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#deleteUnreferencedSyncPayloads(Date)}
+	 */
+	@Test
+	@Verifies(value = "should delete shared payloads that are no longer referenced", method = "deleteUnreferencedSyncPayloads(Date)")
+	public void deleteUnreferencedSyncPayloads_shouldDeleteSharedPayloadsThatAreNoLongerReferenced() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncItemListSerializingUserType.setSharingEnabled(true);
+		try {
+			SyncRecord record = syncService.getSyncRecord(4);
+			record.incrementRetryCount();
+			syncService.updateSyncRecord(record);
+			Context.flushSession();
+			
+			syncService.deleteSyncRecord(record);
+			Context.flushSession();
+			Context.clearSession();
+			
+			// recently used payloads are kept
+			Assert.assertEquals(0, syncService.deleteUnreferencedSyncPayloads(new Date(0)).intValue());
+			Assert.assertEquals(1, syncService.deleteUnreferencedSyncPayloads(tomorrow()).intValue());
+		}
+		finally {
+			SyncItemListSerializingUserType.setSharingEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#deleteUnreferencedSyncPayloads(Date)}
+	 */
+	@Test
+	@Verifies(value = "should delete unreferenced payloads in batches until none are left", method = "deleteUnreferencedSyncPayloads(Date)")
+	public void deleteUnreferencedSyncPayloads_shouldDeleteUnreferencedPayloadsInBatchesUntilNoneAreLeft() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		PreparedStatement insert = getConnection().prepareStatement(
+		    "insert into sync_payload (hash, payload, last_referenced) values (?, ?, ?)");
+		try {
+			for (int i = 0; i < 1234; i++) {
+				insert.setString(1, String.format("%040d", i));
+				insert.setString(2, "<items/>");
+				insert.setTimestamp(3, new Timestamp(0));
+				insert.executeUpdate();
+			}
+		}
+		finally {
+			insert.close();
+		}
+		
+		Assert.assertEquals(1234, syncService.deleteUnreferencedSyncPayloads(tomorrow()).intValue());
+		Assert.assertEquals(0, syncService.deleteUnreferencedSyncPayloads(tomorrow()).intValue());
+	}
+	
+	/**
+	 * @see {@link SyncService#getParentServer()}
+	 */
+	@Test
+	@Verifies(value = "should find a server that was made the parent while the configuration is cached", method = "getParentServer()")
+	public void getParentServer_shouldFindAServerThatWasMadeTheParentWhileTheConfigurationIsCached() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncServerClasses.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncConfigurationCache.setEnabled(true);
+		try {
+			Assert.assertNull(syncService.getParentServer());
+			RemoteServer server = syncService.getRemoteServer("46b16ac6-144e-102b-8d9c-e44ed545d86c");
+			Assert.assertEquals(Integer.valueOf(1), server.getServerId());
+			
+			server.setServerType(RemoteServerType.PARENT);
+			server.setUuid("1bc26c34-5d7e-4a0b-9d11-6b0b0c7d6f21");
+			syncService.saveRemoteServer(server);
+			
+			Assert.assertEquals(server, syncService.getParentServer());
+			Assert.assertNull(syncService.getRemoteServer("46b16ac6-144e-102b-8d9c-e44ed545d86c"));
+			Assert.assertEquals(server, syncService.getRemoteServer("1bc26c34-5d7e-4a0b-9d11-6b0b0c7d6f21"));
+		}
+		finally {
+			SyncConfigurationCache.setEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#saveSyncClass(SyncClass)}
+	 */
+	@Test
+	@Verifies(value = "should filter the records fanned out to each server by the new class name", method = "saveSyncClass(SyncClass)")
+	public void saveSyncClass_shouldFilterTheRecordsFannedOutToEachServerByTheNewClassName() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncConfigurationCache.setEnabled(true);
+		try {
+			// fanning out a record caches the class filter of each child
+			SyncRecord record = newRecord("org.openmrs.PersonAttributeType");
+			syncService.createSyncRecord(record);
+			Context.flushSession();
+			Context.clearSession();
+			
+			record = syncService.getSyncRecord(record.getUuid());
+			for (SyncServerRecord serverRecord : record.getServerRecords()) {
+				Assert.assertEquals(SyncRecordState.NOT_SUPPOSED_TO_SYNC, serverRecord.getState());
+			}
+			
+			// the class that isn't sent no longer covers person attribute types
+			SyncClass syncClass = syncService.getSyncClass(30);
+			syncClass.setName("org.openmrs.PersonAttributeTypeNotSent");
+			syncService.saveSyncClass(syncClass);
+			
+			record = newRecord("org.openmrs.PersonAttributeType");
+			syncService.createSyncRecord(record);
+			Context.flushSession();
+			Context.clearSession();
+			
+			record = syncService.getSyncRecord(record.getUuid());
+			Assert.assertEquals(2, record.getServerRecords().size());
+			for (SyncServerRecord serverRecord : record.getServerRecords()) {
+				Assert.assertEquals(SyncRecordState.NEW, serverRecord.getState());
+			}
+		}
+		finally {
+			SyncConfigurationCache.setEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#getGlobalProperty(String)}
+	 */
+	@Test
+	@Verifies(value = "should return the new value of a cached global property after it is set", method = "getGlobalProperty(String)")
+	public void getGlobalProperty_shouldReturnTheNewValueOfACachedGlobalPropertyAfterItIsSet() throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncConfigurationCache.setEnabled(true);
+		try {
+			Assert.assertNull(syncService.getGlobalProperty(SyncConstants.PROPERTY_CONNECTION_TIMEOUT));
+			syncService.setGlobalProperty(SyncConstants.PROPERTY_CONNECTION_TIMEOUT, "1000");
+			Assert.assertEquals("1000", syncService.getGlobalProperty(SyncConstants.PROPERTY_CONNECTION_TIMEOUT));
+		}
+		finally {
+			SyncConfigurationCache.setEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncSettings()}
+	 */
+	@Test
+	@Verifies(value = "should return settings with the new value after a global property is set", method = "getSyncSettings()")
+	public void getSyncSettings_shouldReturnSettingsWithTheNewValueAfterAGlobalPropertyIsSet() throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncConfigurationCache.setEnabled(true);
+		try {
+			Assert.assertEquals(Long.parseLong(SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT), syncService
+			        .getSyncSettings().getMaxRetryCount());
+			Assert.assertSame(syncService.getSyncSettings(), syncService.getSyncSettings());
+			
+			syncService.setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT, "12");
+			Assert.assertEquals(12, syncService.getSyncSettings().getMaxRetryCount());
+		}
+		finally {
+			SyncConfigurationCache.setEnabled(false);
+		}
+	}
+	
+	/**
+	 * @see {@link SyncService#getSyncSettings()}
+	 */
+	@Test
+	@Verifies(value = "should parse the ignored exception class names", method = "getSyncSettings()")
+	public void getSyncSettings_shouldParseTheIgnoredExceptionClassNames() throws Exception {
+		SyncService syncService = Context.getService(SyncService.class);
+		syncService.setGlobalProperty(SyncConstants.PROPERTY_NAME_IGNORED_JAVA_EXCEPTIONS,
+		    " java.lang.IllegalStateException,,java.io.IOException ");
+		
+		SyncSettings settings = syncService.getSyncSettings();
+		Assert.assertEquals(2, settings.getIgnoredExceptionClassNames().size());
+		Assert.assertTrue(settings.isIgnoredException(new IOException()));
+		Assert.assertFalse(settings.isIgnoredException(new IllegalArgumentException()));
+		Assert.assertFalse(settings.isIgnoredException(null));
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncRecordsToSent(java.util.Collection,RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should mark new records as sent and others as sent again when sending to the parent", method = "updateSyncRecordsToSent(Collection,RemoteServer)")
+	public void updateSyncRecordsToSent_shouldMarkNewRecordsAsSentAndOthersAsSentAgainWhenSendingToTheParent()
+	        throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		executeDataSet("org/openmrs/module/sync/include/SyncRecordsAddingParent.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		SyncRecord failed = syncService.getSyncRecord(2);
+		failed.setState(SyncRecordState.FAILED);
+		syncService.updateSyncRecord(failed);
+		Context.flushSession();
+		
+		SyncRecord record = syncService.getSyncRecord(1);
+		syncService.updateSyncRecordsToSent(Arrays.asList(record, failed), syncService.getParentServer());
+		Assert.assertEquals(SyncRecordState.SENT, record.getState());
+		Assert.assertEquals(1, record.getRetryCount());
+		Context.clearSession();
+		
+		record = syncService.getSyncRecord(1);
+		Assert.assertEquals(SyncRecordState.SENT, record.getState());
+		Assert.assertEquals(1, record.getRetryCount());
+		failed = syncService.getSyncRecord(2);
+		Assert.assertEquals(SyncRecordState.SENT_AGAIN, failed.getState());
+		Assert.assertEquals(1, failed.getRetryCount());
+		Assert.assertEquals(SyncRecordState.NEW, syncService.getSyncRecord(3).getState());
+	}
+	
+	/**
+	 * @see {@link SyncService#updateSyncRecordsToSent(java.util.Collection,RemoteServer)}
+	 */
+	@Test
+	@Verifies(value = "should update the server records of the given child server instead of the records", method = "updateSyncRecordsToSent(Collection,RemoteServer)")
+	public void updateSyncRecordsToSent_shouldUpdateTheServerRecordsOfTheGivenChildServerInsteadOfTheRecords()
+	        throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		RemoteServer child = syncService.getRemoteServer(1);
+		
+		SyncRecord record = syncService.getSyncRecord(7);
+		syncService.updateSyncRecordsToSent(Collections.singletonList(record), child);
+		Context.clearSession();
+		
+		record = syncService.getSyncRecord(7);
+		Assert.assertEquals(SyncRecordState.NEW, record.getState());
+		Assert.assertEquals(0, record.getRetryCount());
+		SyncServerRecord serverRecord = record.getServerRecord(syncService.getRemoteServer(1));
+		Assert.assertEquals(SyncRecordState.SENT_AGAIN, serverRecord.getState());
+		Assert.assertEquals(2, serverRecord.getRetryCount());
+	}
+	
+	/**
+	 * @see {@link SyncService#getCommittedSyncImportUuids(java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should return the uuids of committed import records only", method = "getCommittedSyncImportUuids(Collection)")
+	public void getCommittedSyncImportUuids_shouldReturnTheUuidsOfCommittedImportRecordsOnly() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		
+		Set<String> committed = Context.getService(SyncService.class).getCommittedSyncImportUuids(
+		    Arrays.asList("29cb7f3d-c4da-4739-a2ab-c9e462044bf4", "31404559-1f80-4f84-b795-c0bc8b0cb6cf",
+		        "00000000-0000-0000-0000-000000000000"));
+		
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("29cb7f3d-c4da-4739-a2ab-c9e462044bf4",
+		    "31404559-1f80-4f84-b795-c0bc8b0cb6cf")), committed);
+	}
+	
+	/**
+	 * @see {@link SyncService#getCommittedSyncImportUuids(java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should not return the uuids of failed import records", method = "getCommittedSyncImportUuids(Collection)")
+	public void getCommittedSyncImportUuids_shouldNotReturnTheUuidsOfFailedImportRecords() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		SyncImportRecord importRecord = syncService.getSyncImportRecord("29cb7f3d-c4da-4739-a2ab-c9e462044bf4");
+		importRecord.setState(SyncRecordState.FAILED);
+		syncService.updateSyncImportRecord(importRecord);
+		
+		Assert.assertTrue(syncService.getCommittedSyncImportUuids(
+		    Collections.singletonList("29cb7f3d-c4da-4739-a2ab-c9e462044bf4")).isEmpty());
+	}
+	
+	private Date tomorrow() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.add(Calendar.DATE, 1);
+		return calendar.getTime();
+	}
     
-}
\ No newline at end of file
+}
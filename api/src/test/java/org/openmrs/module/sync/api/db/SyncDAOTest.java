@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncRecordState;
+import org.openmrs.module.sync.SyncUtil;
+import org.openmrs.module.sync.api.SyncIngestService;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.ingest.SyncImportRecord;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncDAO}
+ */
+public class SyncDAOTest extends BaseModuleContextSensitiveTest {
+	
+	/**
+	 * @see {@link SyncDAO#advanceChildCursor(RemoteServer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should not move the cursor past a record that is not settled", method = "advanceChildCursor(RemoteServer,Integer)")
+	public void advanceChildCursor_shouldNotMoveTheCursorPastARecordThatIsNotSettled() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncParentServer.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		SyncDAO dao = Context.getRegisteredComponents(SyncDAO.class).get(0);
+		syncService.setGlobalProperty(SyncConstants.PROPERTY_CHILD_CURSORS, "true");
+		RemoteServer child = syncService.getRemoteServer(1);
+		Assert.assertTrue(syncService.initializeChildCursor(child));
+		Integer start = child.getAcknowledgedRecordId();
+		
+		List<SyncRecord> records = new ArrayList<SyncRecord>();
+		for (int i = 0; i < 3; i++) {
+			SyncRecord record = new SyncRecord();
+			record.setUuid(SyncUtil.generateUuid());
+			record.setOriginalUuid(record.getUuid());
+			record.setState(SyncRecordState.NEW);
+			record.setTimestamp(new Date());
+			record.setRetryCount(0);
+			record.setContainedClasses("org.openmrs.PatientIdentifierType");
+			syncService.createSyncRecord(record);
+			records.add(record);
+		}
+		
+		// the child committed all of them, but the first was taken to be still open when the journal was looked at
+		for (SyncRecord record : records) {
+			syncService.updateSyncRecordsToSent(Collections.singletonList(syncService.getSyncRecord(record.getUuid())),
+			    child);
+			SyncImportRecord importRecord = new SyncImportRecord();
+			importRecord.setUuid(record.getOriginalUuid());
+			importRecord.setState(SyncRecordState.COMMITTED);
+			Context.getService(SyncIngestService.class).processSyncImportRecord(importRecord, child);
+		}
+		
+		Assert.assertEquals(start, dao.advanceChildCursor(child, records.get(0).getRecordId() - 1));
+		Assert.assertEquals(start, child.getAcknowledgedRecordId());
+		Assert.assertEquals(start, dao.advanceChildCursor(child, null));
+		
+		// once it is settled, the cursor moves up to where the journal is settled and no further
+		Assert.assertEquals(records.get(1).getRecordId(), dao.advanceChildCursor(child, records.get(1).getRecordId()));
+		Assert.assertEquals(records.get(2).getRecordId(), dao.advanceChildCursor(child, records.get(2).getRecordId()));
+	}
+}
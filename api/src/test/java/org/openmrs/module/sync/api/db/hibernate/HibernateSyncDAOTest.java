@@ -0,0 +1,53 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the parts of {@link HibernateSyncDAO} that don't need a database
+ */
+public class HibernateSyncDAOTest {
+	
+	@Test
+	@Verifies(value = "should leave the sync journal tables out of the data file", method = "getDataFileCommand(String,String,String,File,String[])")
+	public void getDataFileCommand_shouldLeaveTheSyncJournalTablesOutOfTheDataFile() throws Exception {
+		List<String> command = HibernateSyncDAO.getDataFileCommand("user", "secret", "openmrs", new File("dump.sql"),
+		    SyncConstants.CLONE_IGNORED_TABLES);
+		
+		for (String table : new String[] { "sync_record", "sync_server_record", "sync_import", "sync_payload",
+		        "sync_record_term" }) {
+			int index = command.indexOf("openmrs." + table);
+			Assert.assertTrue(table + " is dumped", index > 0);
+			Assert.assertEquals("--ignore-table", command.get(index - 1));
+		}
+		Assert.assertFalse(command.contains("openmrs.patient"));
+	}
+	
+	@Test
+	@Verifies(value = "should write to standard output without a file", method = "getDataFileCommand(String,String,String,File,String[])")
+	public void getDataFileCommand_shouldWriteToStandardOutputWithoutAFile() throws Exception {
+		List<String> command = HibernateSyncDAO.getDataFileCommand("user", "secret", "openmrs", null,
+		    SyncConstants.CLONE_IGNORED_TABLES);
+		
+		Assert.assertFalse(command.contains("-r"));
+		Assert.assertTrue(command.contains("openmrs"));
+	}
+}
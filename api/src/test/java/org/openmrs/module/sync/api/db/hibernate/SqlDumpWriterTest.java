@@ -0,0 +1,81 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SqlDumpWriter}
+ */
+public class SqlDumpWriterTest {
+	
+	/**
+	 * @see {@link SqlDumpWriter#writeString(String)}
+	 */
+	@Test
+	@Verifies(value = "should escape the characters mysql needs escaped", method = "writeString(String)")
+	public void writeString_shouldEscapeTheCharactersMysqlNeedsEscaped() throws Exception {
+		StringWriter out = new StringWriter();
+		new SqlDumpWriter(out).writeString("it's a \"test\"\n\tC:\\temp\r" + (char) 0 + (char) 26);
+		Assert.assertEquals("'it\\'s a \\\"test\\\"\\n\\tC:\\\\temp\\r\\0\\Z'", out.toString());
+	}
+	
+	/**
+	 * @see {@link SqlDumpWriter#writeBytes(java.io.InputStream)}
+	 */
+	@Test
+	@Verifies(value = "should write binary data as a hex literal", method = "writeBytes(InputStream)")
+	public void writeBytes_shouldWriteBinaryDataAsAHexLiteral() throws Exception {
+		StringWriter out = new StringWriter();
+		SqlDumpWriter writer = new SqlDumpWriter(out);
+		writer.writeBytes(new ByteArrayInputStream(new byte[] { 0, 39, -1, 16 }));
+		writer.writeBytes(new ByteArrayInputStream(new byte[0]));
+		Assert.assertEquals("0x0027FF10''", out.toString());
+	}
+	
+	/**
+	 * @see {@link SqlDumpWriter#writeRows(String,java.sql.ResultSet)}
+	 */
+	@Test
+	@Verifies(value = "should write the rows as one extended insert", method = "writeRows(String,ResultSet)")
+	public void writeRows_shouldWriteTheRowsAsOneExtendedInsert() throws Exception {
+		Connection connection = DriverManager.getConnection("jdbc:h2:mem:sqlDumpWriterTest", "sa", "");
+		try {
+			Statement st = connection.createStatement();
+			st.execute("CREATE TABLE person_test (id INT, name VARCHAR(50), dead BOOLEAN, birthdate DATE)");
+			st.execute("INSERT INTO person_test VALUES (1, 'O''Brien', false, '1970-01-02')");
+			st.execute("INSERT INTO person_test VALUES (2, NULL, true, NULL)");
+			
+			StringWriter out = new StringWriter();
+			SqlDumpWriter writer = new SqlDumpWriter(out);
+			ResultSet rs = st.executeQuery("SELECT * FROM person_test ORDER BY id");
+			Assert.assertEquals(2, writer.writeRows("person", rs));
+			
+			Assert.assertEquals("INSERT INTO `person` VALUES (1,'O\\'Brien',0,'1970-01-02'),\n(2,NULL,1,NULL);\n", out
+			        .toString());
+		}
+		finally {
+			connection.close();
+		}
+	}
+}
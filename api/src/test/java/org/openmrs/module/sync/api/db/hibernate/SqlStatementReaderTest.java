@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate;
+
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SqlStatementReader}
+ */
+public class SqlStatementReaderTest {
+	
+	/**
+	 * @see {@link SqlStatementReader#next()}
+	 */
+	@Test
+	@Verifies(value = "should split statements spanning lines", method = "next()")
+	public void next_shouldSplitStatementsSpanningLines() throws Exception {
+		SqlStatementReader reader = new SqlStatementReader(new StringReader(
+		        "CREATE TABLE `t` (\n  `id` int(11) NOT NULL\n);\nINSERT INTO `t` VALUES (1),(2);\n"));
+		Assert.assertEquals("CREATE TABLE `t` (\n  `id` int(11) NOT NULL\n)", reader.next());
+		Assert.assertEquals("INSERT INTO `t` VALUES (1),(2)", reader.next());
+		Assert.assertNull(reader.next());
+	}
+	
+	/**
+	 * @see {@link SqlStatementReader#next()}
+	 */
+	@Test
+	@Verifies(value = "should not split on semicolons in quotes", method = "next()")
+	public void next_shouldNotSplitOnSemicolonsInQuotes() throws Exception {
+		SqlStatementReader reader = new SqlStatementReader(new StringReader(
+		        "INSERT INTO `a;b` VALUES ('it\\'s; done',\"x;\");SELECT 1;"));
+		Assert.assertEquals("INSERT INTO `a;b` VALUES ('it\\'s; done',\"x;\")", reader.next());
+		Assert.assertEquals("SELECT 1", reader.next());
+		Assert.assertNull(reader.next());
+	}
+	
+	/**
+	 * @see {@link SqlStatementReader#next()}
+	 */
+	@Test
+	@Verifies(value = "should skip comment lines", method = "next()")
+	public void next_shouldSkipCommentLines() throws Exception {
+		SqlStatementReader reader = new SqlStatementReader(new StringReader(
+		        "-- MySQL dump\n#\n\nSELECT 1;\n-- Dumping data\nSELECT '-- not a comment';\n"));
+		Assert.assertEquals("SELECT 1", reader.next());
+		Assert.assertEquals("SELECT '-- not a comment'", reader.next());
+		Assert.assertNull(reader.next());
+	}
+	
+	/**
+	 * @see {@link SqlStatementReader#skipTo(long)}
+	 */
+	@Test
+	@Verifies(value = "should continue with the statement after the given position", method = "skipTo(long)")
+	public void skipTo_shouldContinueWithTheStatementAfterTheGivenPosition() throws Exception {
+		String script = "SELECT 1;\nSELECT 2;\nSELECT 3;\n";
+		SqlStatementReader reader = new SqlStatementReader(new StringReader(script));
+		reader.next();
+		reader.next();
+		long position = reader.getPosition();
+		
+		SqlStatementReader resumed = new SqlStatementReader(new StringReader(script));
+		resumed.skipTo(position);
+		Assert.assertEquals("SELECT 3", resumed.next());
+		Assert.assertNull(resumed.next());
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.api.db.hibernate.usertype;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncItemListSerializingUserType}
+ */
+public class SyncItemListSerializingUserTypeTest extends BaseModuleContextSensitiveTest {
+	
+	/**
+	 * Wraps the given connection so that the row for the given hash is stored, as if by another
+	 * transaction, just after the first update finds it isn't there yet
+	 */
+	private static Connection storingConcurrently(final Connection connection, final String hash) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class },
+		    new InvocationHandler() {
+			    
+			    private boolean stored = false;
+			    
+			    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				    Object result = call(connection, method, args);
+				    if (!stored && "prepareStatement".equals(method.getName())
+				            && ((String) args[0]).startsWith("update sync_payload")) {
+					    stored = true;
+					    final PreparedStatement update = (PreparedStatement) result;
+					    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					        new Class[] { PreparedStatement.class }, new InvocationHandler() {
+						        
+						        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							        Object result = call(update, method, args);
+							        if ("executeUpdate".equals(method.getName())) {
+								        PreparedStatement insert = connection
+								                .prepareStatement("insert into sync_payload (hash, payload, last_referenced) values (?, ?, ?)");
+								        insert.setString(1, hash);
+								        insert.setString(2, "<items/>");
+								        insert.setTimestamp(3, new Timestamp(0));
+								        insert.executeUpdate();
+								        insert.close();
+							        }
+							        return result;
+						        }
+					        });
+				    }
+				    return result;
+			    }
+		    });
+	}
+	
+	private static Object call(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * @see {@link SyncItemListSerializingUserType#toStoredValue(Connection,String)}
+	 */
+	@Test
+	@Verifies(value = "should store a payload another transaction is storing at the same time only once", method = "toStoredValue(Connection,String)")
+	public void toStoredValue_shouldStoreAPayloadAnotherTransactionIsStoringAtTheSameTimeOnlyOnce() throws Exception {
+		String xml = "<items/>";
+		String hash = DigestUtils.shaHex(xml);
+		
+		SyncItemListSerializingUserType.setSharingEnabled(true);
+		try {
+			String stored = SyncItemListSerializingUserType.toStoredValue(storingConcurrently(getConnection(), hash), xml);
+			Assert.assertEquals(SyncItemListSerializingUserType.SHARED_PAYLOAD_MARKER + hash, stored);
+		}
+		finally {
+			SyncItemListSerializingUserType.setSharingEnabled(false);
+		}
+		
+		// the row of the other transaction is kept, and marked as used now
+		PreparedStatement select = getConnection().prepareStatement(
+		    "select count(*), max(last_referenced) from sync_payload where hash = ?");
+		try {
+			select.setString(1, hash);
+			ResultSet rs = select.executeQuery();
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(1, rs.getInt(1));
+			Assert.assertTrue(rs.getTimestamp(2).getTime() > 0);
+			rs.close();
+		}
+		finally {
+			select.close();
+		}
+	}
+}
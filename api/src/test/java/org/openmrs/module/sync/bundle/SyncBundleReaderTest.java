@@ -0,0 +1,139 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncBundleReader} with bundles written by the {@link SyncBundleWriter}
+ */
+public class SyncBundleReaderTest {
+	
+	private byte[] entry(int i) {
+		StringBuilder entry = new StringBuilder("<SyncRecord uuid=\"" + i + "\">");
+		Random random = new Random(i);
+		for (int j = 0; j < 50 + i * 10; j++)
+			entry.append("<item id=\"").append(random.nextInt(1000)).append("\"/>");
+		return entry.append("</SyncRecord>").toString().getBytes();
+	}
+	
+	private File writeBundle(int entries) throws Exception {
+		File file = File.createTempFile("sync", SyncBundle.FILE_SUFFIX);
+		file.deleteOnExit();
+		SyncBundleWriter writer = new SyncBundleWriter(file, "bundle-uuid", "source-uuid", Deflater.BEST_SPEED);
+		writer.append(SyncBundle.ENTRY_RESPONSE, "<SyncTransmissionResponse/>".getBytes());
+		for (int i = 0; i < entries; i++)
+			writer.append(SyncBundle.ENTRY_RECORD, entry(i));
+		writer.close();
+		return file;
+	}
+	
+	@Test
+	@Verifies(value = "should read the entries of a complete bundle", method = "SyncBundleReader(File)")
+	public void SyncBundleReader_shouldReadTheEntriesOfACompleteBundle() throws Exception {
+		SyncBundleReader reader = new SyncBundleReader(writeBundle(20));
+		try {
+			Assert.assertTrue(reader.isComplete());
+			Assert.assertEquals("bundle-uuid", reader.getBundleUuid());
+			Assert.assertEquals("source-uuid", reader.getSourceUuid());
+			Assert.assertEquals(21, reader.getEntryCount());
+			Assert.assertEquals(SyncBundle.ENTRY_RESPONSE, reader.getEntryType(0));
+			Assert.assertEquals("<SyncTransmissionResponse/>", new String(reader.readEntry(0)));
+			for (int i = 19; i >= 0; i--) {
+				Assert.assertEquals(SyncBundle.ENTRY_RECORD, reader.getEntryType(i + 1));
+				Assert.assertArrayEquals(entry(i), reader.readEntry(i + 1));
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	@Test
+	@Verifies(value = "should read the whole entries of a bundle that was cut short", method = "SyncBundleReader(File)")
+	public void SyncBundleReader_shouldReadTheWholeEntriesOfABundleThatWasCutShort() throws Exception {
+		File file = writeBundle(20);
+		
+		// cut it halfway, in the middle of some record, with the index gone
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		try {
+			truncated.setLength(truncated.length() / 2);
+		}
+		finally {
+			truncated.close();
+		}
+		
+		SyncBundleReader reader = new SyncBundleReader(file);
+		try {
+			Assert.assertFalse(reader.isComplete());
+			Assert.assertTrue(reader.getEntryCount() > 1);
+			Assert.assertTrue(reader.getEntryCount() < 21);
+			for (int i = 1; i < reader.getEntryCount(); i++)
+				Assert.assertArrayEquals(entry(i - 1), reader.readEntry(i));
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	@Test
+	@Verifies(value = "should fail for an entry whose header gives lengths that don't fit", method = "readEntry(int)")
+	public void readEntry_shouldFailForAnEntryWhoseHeaderGivesLengthsThatDontFit() throws Exception {
+		File file = writeBundle(2);
+		
+		// the compressed length of the first entry, right after the magic, version and two uuids
+		RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+		try {
+			damaged.seek(SyncBundle.MAGIC.length() + 4 + 2 + "bundle-uuid".length() + 2 + "source-uuid".length() + 1);
+			damaged.writeInt(Integer.MAX_VALUE);
+		}
+		finally {
+			damaged.close();
+		}
+		
+		SyncBundleReader reader = new SyncBundleReader(file);
+		try {
+			Assert.assertTrue(reader.isComplete());
+			try {
+				reader.readEntry(0);
+				Assert.fail("the damaged entry was read");
+			}
+			catch (SyncException e) {
+				// expected
+			}
+			Assert.assertArrayEquals(entry(0), reader.readEntry(1));
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	@Test(expected = SyncException.class)
+	@Verifies(value = "should fail for a file that is not a bundle", method = "SyncBundleReader(File)")
+	public void SyncBundleReader_shouldFailForAFileThatIsNotABundle() throws Exception {
+		File file = File.createTempFile("sync", ".xml");
+		file.deleteOnExit();
+		FileUtils.writeStringToFile(file, "<SyncTransmission/>");
+		new SyncBundleReader(file);
+	}
+}
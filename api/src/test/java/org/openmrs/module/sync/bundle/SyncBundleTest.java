@@ -0,0 +1,37 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link SyncBundle}
+ */
+public class SyncBundleTest {
+	
+	@Test
+	@Verifies(value = "should return what was set", method = "getImportedCount(String)")
+	public void getImportedCount_shouldReturnWhatWasSet() throws Exception {
+		String bundleUuid = UUID.randomUUID().toString();
+		Assert.assertEquals(0, SyncBundle.getImportedCount(bundleUuid));
+		
+		SyncBundle.setImportedCount(bundleUuid, 12);
+		SyncBundle.setImportedCount(bundleUuid, 345);
+		Assert.assertEquals(345, SyncBundle.getImportedCount(bundleUuid));
+	}
+}
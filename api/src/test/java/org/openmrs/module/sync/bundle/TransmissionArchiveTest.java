@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.bundle;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link TransmissionArchive} in a directory of its own
+ */
+public class TransmissionArchiveTest {
+	
+	private File directory;
+	
+	@Before
+	public void createDirectory() throws Exception {
+		directory = File.createTempFile("sync", "archive");
+		directory.delete();
+		directory.mkdirs();
+	}
+	
+	@After
+	public void deleteDirectory() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+	
+	private String transmission(String uuid, int records) {
+		StringBuilder xml = new StringBuilder("<SyncTransmission uuid=\"" + uuid + "\">");
+		for (int i = 0; i < records; i++)
+			xml.append("<SyncRecord uuid=\"").append(uuid).append('-').append(i).append("\"/>");
+		return xml.append("</SyncTransmission>").toString();
+	}
+	
+	@Test
+	@Verifies(value = "should read a transmission by uuid or file name", method = "read(String)")
+	public void read_shouldReadATransmissionByUuidOrFileName() throws Exception {
+		TransmissionArchive archive = new TransmissionArchive(directory);
+		archive.archive("recrd", "tx-1", "sync_tx_1_request", transmission("tx-1", 10));
+		archive.archive("journal", "tx-1", "sync_tx_1_response", "<SyncTransmissionResponse uuid=\"tx-1\"/>");
+		archive.archive("recrd", "tx-2", "sync_tx_2_request", transmission("tx-2", 10));
+		archive.shutdown();
+		
+		List<String> read = archive.read("tx-1");
+		Assert.assertEquals(2, read.size());
+		Assert.assertEquals(transmission("tx-1", 10), read.get(0));
+		Assert.assertEquals("<SyncTransmissionResponse uuid=\"tx-1\"/>", read.get(1));
+		
+		read = archive.read("sync_tx_2_request");
+		Assert.assertEquals(1, read.size());
+		Assert.assertEquals(transmission("tx-2", 10), read.get(0));
+		
+		Assert.assertTrue(archive.read("tx-3").isEmpty());
+		
+		// and from the index, by another archive in the same directory
+		read = new TransmissionArchive(directory).read("sync_tx_1_response");
+		Assert.assertEquals(1, read.size());
+		Assert.assertEquals("<SyncTransmissionResponse uuid=\"tx-1\"/>", read.get(0));
+	}
+	
+	@Test
+	@Verifies(value = "should read transmissions from closed and open segments", method = "read(String)")
+	public void read_shouldReadTransmissionsFromClosedAndOpenSegments() throws Exception {
+		TransmissionArchive archive = new TransmissionArchive(directory);
+		archive.configure(true, 1000, 1000000, 0);
+		for (int i = 0; i < 30; i++)
+			archive.append("recrd", "tx-" + i, "sync_tx_" + i + "_request", System.currentTimeMillis(), transmission(
+			    "tx-" + i, 20));
+		
+		Assert.assertTrue(directory.list().length > 3);
+		for (int i = 0; i < 30; i++)
+			Assert.assertEquals(transmission("tx-" + i, 20), archive.read("tx-" + i).get(0));
+		archive.close();
+	}
+	
+	@Test
+	@Verifies(value = "should leave out transmissions of removed segments", method = "read(String)")
+	public void read_shouldLeaveOutTransmissionsOfRemovedSegments() throws Exception {
+		TransmissionArchive archive = new TransmissionArchive(directory);
+		archive.configure(true, 1, 1, 0);
+		for (int i = 0; i < 3; i++)
+			archive.append("recrd", "tx-" + i, "sync_tx_" + i + "_request", System.currentTimeMillis(), transmission(
+			    "tx-" + i, 20));
+		
+		// each transmission filled a segment of its own, and only the last one fits in the archive
+		Assert.assertFalse(new File(directory, "segment-1" + SyncBundle.FILE_SUFFIX).exists());
+		Assert.assertFalse(new File(directory, "segment-2" + SyncBundle.FILE_SUFFIX).exists());
+		Assert.assertTrue(archive.read("tx-0").isEmpty());
+		Assert.assertTrue(archive.read("tx-1").isEmpty());
+		Assert.assertEquals(1, archive.read("tx-2").size());
+		archive.close();
+		
+		archive = new TransmissionArchive(directory);
+		Assert.assertTrue(archive.read("sync_tx_0_request").isEmpty());
+		Assert.assertEquals(1, archive.read("sync_tx_2_request").size());
+		archive.close();
+	}
+}
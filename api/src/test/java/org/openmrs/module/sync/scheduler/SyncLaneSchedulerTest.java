@@ -0,0 +1,48 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Tests the {@link SyncLaneScheduler}
+ */
+public class SyncLaneSchedulerTest extends BaseModuleContextSensitiveTest {
+	
+	@Test
+	public void clearInterruptedSyncs_shouldClearTheStartOfSyncsThatAreNotRunning() throws Exception {
+		executeDataSet("org/openmrs/module/sync/include/SyncRecords.xml");
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		RemoteServer server = syncService.getRemoteServer(1);
+		server.setSyncStarted(new Date());
+		syncService.saveRemoteServer(server);
+		Context.flushSession();
+		
+		SyncLaneScheduler.getInstance().clearInterruptedSyncs();
+		Context.flushSession();
+		Context.clearSession();
+		
+		Assert.assertNull(syncService.getRemoteServer(1).getSyncStarted());
+		Assert.assertFalse(SyncLaneScheduler.getInstance().isRunning(1));
+	}
+	
+}
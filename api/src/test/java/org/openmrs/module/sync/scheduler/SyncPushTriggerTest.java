@@ -0,0 +1,106 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.scheduler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncConstants;
+
+/**
+ * Tests the {@link SyncPushTrigger}
+ */
+public class SyncPushTriggerTest {
+	
+	private static final Integer SERVER_ID = 99;
+	
+	private final AtomicInteger pushes = new AtomicInteger();
+	
+	private final Runnable sync = new Runnable() {
+		
+		public void run() {
+			pushes.incrementAndGet();
+		}
+	};
+	
+	@After
+	public void resetTrigger() {
+		SyncPushTrigger trigger = SyncPushTrigger.getInstance();
+		trigger.shutdown();
+		trigger.configure(Boolean.parseBoolean(SyncConstants.PROPERTY_PUSH_ENABLED_DEFAULT), Long
+		        .parseLong(SyncConstants.PROPERTY_PUSH_QUIET_PERIOD_DEFAULT), Long
+		        .parseLong(SyncConstants.PROPERTY_PUSH_MAX_DELAY_DEFAULT));
+	}
+	
+	@Test
+	public void journalCommitted_shouldSendABurstOfChangesInOnePush() throws Exception {
+		SyncPushTrigger trigger = SyncPushTrigger.getInstance();
+		trigger.configure(true, 100, 2000);
+		trigger.register(SERVER_ID, sync);
+		
+		for (int i = 0; i < 5; i++) {
+			trigger.journalCommitted();
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(0, pushes.get());
+		
+		Thread.sleep(600);
+		Assert.assertEquals(1, pushes.get());
+	}
+	
+	@Test
+	public void journalCommitted_shouldNotWaitLongerThanTheMaximumDelay() throws Exception {
+		SyncPushTrigger trigger = SyncPushTrigger.getInstance();
+		trigger.configure(true, 200, 300);
+		trigger.register(SERVER_ID, sync);
+		
+		// a change every 100 ms never leaves the quiet period
+		for (int i = 0; i < 8; i++) {
+			trigger.journalCommitted();
+			Thread.sleep(100);
+		}
+		Assert.assertTrue(pushes.get() >= 1);
+	}
+	
+	@Test
+	public void journalCommitted_shouldNotPushWhileTheLinkIsDown() throws Exception {
+		SyncPushTrigger trigger = SyncPushTrigger.getInstance();
+		trigger.configure(true, 50, 100);
+		trigger.register(SERVER_ID, sync);
+		trigger.setLinkUp(SERVER_ID, false);
+		
+		trigger.journalCommitted();
+		Thread.sleep(400);
+		Assert.assertEquals(0, pushes.get());
+		
+		trigger.setLinkUp(SERVER_ID, true);
+		trigger.journalCommitted();
+		Thread.sleep(400);
+		Assert.assertEquals(1, pushes.get());
+	}
+	
+	@Test
+	public void journalCommitted_shouldNotPushToServersThatWereUnregistered() throws Exception {
+		SyncPushTrigger trigger = SyncPushTrigger.getInstance();
+		trigger.configure(true, 50, 100);
+		trigger.register(SERVER_ID, sync);
+		trigger.unregister(SERVER_ID, sync);
+		
+		trigger.journalCommitted();
+		Thread.sleep(400);
+		Assert.assertEquals(0, pushes.get());
+	}
+}
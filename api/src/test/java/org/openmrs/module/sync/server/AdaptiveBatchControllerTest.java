@@ -0,0 +1,148 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link AdaptiveBatchController}
+ */
+public class AdaptiveBatchControllerTest extends BaseModuleContextSensitiveTest {
+	
+	private void setGlobalProperty(String name, String value) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(name, value));
+	}
+	
+	@Test
+	@Verifies(value = "should return the maximum when nothing was learned for the server yet", method = "getBatchSize(RemoteServer,Integer)")
+	public void getBatchSize_shouldReturnTheMaximumWhenNothingWasLearnedForTheServerYet() throws Exception {
+		Assert.assertEquals(50, AdaptiveBatchController.getBatchSize(new RemoteServer(), 50).intValue());
+		Assert.assertNull(AdaptiveBatchController.getBatchSize(new RemoteServer(), null));
+	}
+	
+	@Test
+	@Verifies(value = "should return the learned batch size even when it is larger than the starting size", method = "getBatchSize(RemoteServer,Integer)")
+	public void getBatchSize_shouldReturnTheLearnedBatchSizeEvenWhenItIsLargerThanTheStartingSize() throws Exception {
+		RemoteServer server = new RemoteServer();
+		server.setBatchSize(80);
+		Assert.assertEquals(80, AdaptiveBatchController.getBatchSize(server, 50).intValue());
+		Assert.assertEquals(80, AdaptiveBatchController.getBatchSize(server, null).intValue());
+	}
+	
+	@Test
+	@Verifies(value = "should not return more than the ceiling", method = "getBatchSize(RemoteServer,Integer)")
+	public void getBatchSize_shouldNotReturnMoreThanTheCeiling() throws Exception {
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB, "50");
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB_CEILING, "200");
+		RemoteServer server = new RemoteServer();
+		server.setBatchSize(300);
+		Assert.assertEquals(200, AdaptiveBatchController.getBatchSize(server, 50).intValue());
+		Assert.assertEquals(200, AdaptiveBatchController.getBatchSize(server, null).intValue());
+	}
+	
+	@Test
+	@Verifies(value = "should halve the batch after a failed transmission", method = "transmissionFailed(RemoteServer,int)")
+	public void transmissionFailed_shouldHalveTheBatchAfterAFailedTransmission() throws Exception {
+		RemoteServer server = new RemoteServer();
+		AdaptiveBatchController.transmissionFailed(server, 50);
+		Assert.assertEquals(25, server.getBatchSize().intValue());
+		AdaptiveBatchController.transmissionFailed(server, 1);
+		Assert.assertEquals(AdaptiveBatchController.MIN_BATCH_SIZE, server.getBatchSize().intValue());
+	}
+	
+	@Test
+	@Verifies(value = "should not shrink the batch when no records were sent", method = "transmissionFailed(RemoteServer,int)")
+	public void transmissionFailed_shouldNotShrinkTheBatchWhenNoRecordsWereSent() throws Exception {
+		RemoteServer server = new RemoteServer();
+		server.setBatchSize(40);
+		AdaptiveBatchController.transmissionFailed(server, 0);
+		Assert.assertEquals(40, server.getBatchSize().intValue());
+	}
+	
+	@Test
+	@Verifies(value = "should grow the batch after a full transmission", method = "transmissionSucceeded(RemoteServer,int,long,long)")
+	public void transmissionSucceeded_shouldGrowTheBatchAfterAFullTransmission() throws Exception {
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB, "100");
+		RemoteServer server = new RemoteServer();
+		server.setBatchSize(20);
+		
+		AdaptiveBatchController.transmissionSucceeded(server, 20, 4000, 2000);
+		Assert.assertEquals(20 + AdaptiveBatchController.BATCH_SIZE_INCREASE, server.getBatchSize().intValue());
+		Assert.assertEquals(10.0, server.getRecordsPerSecond(), 0.001);
+		Assert.assertEquals(2000.0, server.getBytesPerSecond(), 0.001);
+		
+		// a batch that wasn't full says nothing about what the link can take
+		AdaptiveBatchController.transmissionSucceeded(server, 5, 1000, 1000);
+		Assert.assertEquals(20 + AdaptiveBatchController.BATCH_SIZE_INCREASE, server.getBatchSize().intValue());
+		Assert.assertEquals(8.5, server.getRecordsPerSecond(), 0.001);
+	}
+	
+	@Test
+	@Verifies(value = "should start growing from the configured maximum when nothing was learned yet", method = "transmissionSucceeded(RemoteServer,int,long,long)")
+	public void transmissionSucceeded_shouldStartGrowingFromTheConfiguredMaximumWhenNothingWasLearnedYet() throws Exception {
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB, "100");
+		RemoteServer server = new RemoteServer();
+		
+		AdaptiveBatchController.transmissionSucceeded(server, 100, 10000, 1000);
+		Assert.assertEquals(100 + AdaptiveBatchController.BATCH_SIZE_INCREASE, server.getBatchSize().intValue());
+		Assert.assertEquals(100 + AdaptiveBatchController.BATCH_SIZE_INCREASE, AdaptiveBatchController.getBatchSize(server,
+		    100).intValue());
+	}
+	
+	@Test
+	@Verifies(value = "should not grow the batch beyond the ceiling", method = "transmissionSucceeded(RemoteServer,int,long,long)")
+	public void transmissionSucceeded_shouldNotGrowTheBatchBeyondTheCeiling() throws Exception {
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB, "100");
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB_CEILING, "200");
+		RemoteServer server = new RemoteServer();
+		server.setBatchSize(195);
+		
+		// the batch passes the starting size and is kept, rather than being cleared back to it
+		AdaptiveBatchController.transmissionSucceeded(server, 195, 10000, 1000);
+		Assert.assertEquals(200, server.getBatchSize().intValue());
+		AdaptiveBatchController.transmissionSucceeded(server, 200, 10000, 1000);
+		Assert.assertEquals(200, server.getBatchSize().intValue());
+	}
+	
+	@Test
+	@Verifies(value = "should use the configured timeout when there is one", method = "getTimeout(RemoteServer)")
+	public void getTimeout_shouldUseTheConfiguredTimeoutWhenThereIsOne() throws Exception {
+		setGlobalProperty(SyncConstants.PROPERTY_CONNECTION_TIMEOUT, "12345");
+		RemoteServer server = new RemoteServer();
+		server.setRecordsPerSecond(1.0);
+		Assert.assertEquals(12345.0, AdaptiveBatchController.getTimeout(server), 0.001);
+	}
+	
+	@Test
+	@Verifies(value = "should derive the timeout from the observed rate", method = "getTimeout(RemoteServer)")
+	public void getTimeout_shouldDeriveTheTimeoutFromTheObservedRate() throws Exception {
+		setGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB, "100");
+		RemoteServer server = new RemoteServer();
+		server.setRecordsPerSecond(1.0);
+		
+		// 100 records at one record per second, three times over, plus the latency allowance
+		Assert.assertEquals(AdaptiveBatchController.LATENCY_ALLOWANCE + 300000, AdaptiveBatchController.getTimeout(server),
+		    0.001);
+		
+		server.setBatchSize(10);
+		Assert.assertEquals(AdaptiveBatchController.LATENCY_ALLOWANCE + 30000, AdaptiveBatchController.getTimeout(server),
+		    0.001);
+	}
+}
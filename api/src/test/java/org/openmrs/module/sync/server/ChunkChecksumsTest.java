@@ -0,0 +1,81 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link ChunkChecksums}
+ */
+public class ChunkChecksumsTest {
+	
+	private byte[] transmission(int length) {
+		byte[] bytes = new byte[length];
+		new Random(5).nextBytes(bytes);
+		return bytes;
+	}
+	
+	@Test
+	@Verifies(value = "should work out the same checksums as from the bytes", method = "of(InputStream,long)")
+	public void of_shouldWorkOutTheSameChecksumsAsFromTheBytes() throws Exception {
+		for (int length : new int[] { 0, 1000, 150000, 3 * ChunkChecksums.MIN_CHUNK_SIZE }) {
+			byte[] bytes = transmission(length);
+			Assert.assertEquals(ChunkChecksums.of(bytes).toString(), ChunkChecksums.of(new ByteArrayInputStream(bytes),
+			    length).toString());
+		}
+	}
+	
+	@Test
+	@Verifies(value = "should read what it writes", method = "parse(String)")
+	public void parse_shouldReadWhatItWrites() throws Exception {
+		ChunkChecksums checksums = ChunkChecksums.of(transmission(150000));
+		Assert.assertEquals(3, checksums.getChunkCount());
+		Assert.assertEquals(150000 - 2 * ChunkChecksums.MIN_CHUNK_SIZE, checksums.getChunkLength(2));
+		Assert.assertEquals(checksums.toString(), ChunkChecksums.parse(checksums.toString()).toString());
+		
+		ChunkChecksums empty = ChunkChecksums.of(new byte[0]);
+		Assert.assertEquals(0, ChunkChecksums.parse(empty.toString()).getChunkCount());
+	}
+	
+	@Test(expected = SyncException.class)
+	@Verifies(value = "should fail for a value that does not match its length", method = "parse(String)")
+	public void parse_shouldFailForAValueThatDoesNotMatchItsLength() throws Exception {
+		ChunkChecksums.parse("150000 65536 1a2b3c4d,5e6f7a8b");
+	}
+	
+	@Test
+	@Verifies(value = "should find the damaged and the missing chunks", method = "findDamaged(byte[])")
+	public void findDamaged_shouldFindTheDamagedAndTheMissingChunks() throws Exception {
+		byte[] sent = transmission(5 * 1000);
+		ChunkChecksums checksums = ChunkChecksums.of(sent, 1000);
+		Assert.assertTrue(checksums.findDamaged(sent).isEmpty());
+		
+		byte[] received = Arrays.copyOf(sent, 3500);
+		received[1200] ^= 0x10;
+		Assert.assertEquals(Arrays.asList(1, 3, 4), checksums.findDamaged(received));
+		
+		// and once they are sent again all is well
+		byte[] repaired = new byte[3000];
+		System.arraycopy(sent, 1000, repaired, 0, 1000);
+		System.arraycopy(sent, 3000, repaired, 1000, 2000);
+		Assert.assertTrue(Arrays.equals(sent, checksums.repair(received, Arrays.asList(1, 3, 4), repaired)));
+	}
+}
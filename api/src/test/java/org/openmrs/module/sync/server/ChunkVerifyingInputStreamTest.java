@@ -0,0 +1,101 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link ChunkVerifyingInputStream}
+ */
+public class ChunkVerifyingInputStreamTest {
+	
+	private final byte[] sent = new byte[10 * 1000 + 123];
+	
+	private final ChunkChecksums checksums;
+	
+	private final List<Integer> fetched = new ArrayList<Integer>();
+	
+	public ChunkVerifyingInputStreamTest() {
+		new Random(9).nextBytes(sent);
+		checksums = ChunkChecksums.of(sent, 1000);
+	}
+	
+	/**
+	 * A source that has the chunks as they were sent
+	 */
+	private ChunkVerifyingInputStream.ChunkSource source() {
+		return new ChunkVerifyingInputStream.ChunkSource() {
+			
+			public byte[] fetch(int index) throws IOException {
+				fetched.add(index);
+				int offset = (int) checksums.getChunkOffset(index);
+				return Arrays.copyOfRange(sent, offset, offset + checksums.getChunkLength(index));
+			}
+		};
+	}
+	
+	@Test
+	@Verifies(value = "should hand on the chunks as sent", method = "read(byte[],int,int)")
+	public void read_shouldHandOnTheChunksAsSent() throws Exception {
+		ChunkVerifyingInputStream in = new ChunkVerifyingInputStream(new ByteArrayInputStream(sent), checksums, null);
+		Assert.assertTrue(Arrays.equals(sent, IOUtils.toByteArray(in)));
+		Assert.assertEquals(0, in.getChunksFetched());
+	}
+	
+	@Test
+	@Verifies(value = "should fetch only the damaged chunks again", method = "read(byte[],int,int)")
+	public void read_shouldFetchOnlyTheDamagedChunksAgain() throws Exception {
+		byte[] received = sent.clone();
+		received[2500] ^= 0x01;
+		received[7000] ^= 0x40;
+		
+		ChunkVerifyingInputStream in = new ChunkVerifyingInputStream(new ByteArrayInputStream(received), checksums,
+		        source());
+		Assert.assertTrue(Arrays.equals(sent, IOUtils.toByteArray(in)));
+		Assert.assertEquals(Arrays.asList(2, 7), fetched);
+	}
+	
+	@Test
+	@Verifies(value = "should fetch the chunks missing from a truncated transmission", method = "read(byte[],int,int)")
+	public void read_shouldFetchTheChunksMissingFromATruncatedTransmission() throws Exception {
+		ChunkVerifyingInputStream in = new ChunkVerifyingInputStream(new ByteArrayInputStream(Arrays.copyOf(sent, 8500)),
+		        checksums, source());
+		Assert.assertTrue(Arrays.equals(sent, IOUtils.toByteArray(in)));
+		Assert.assertEquals(Arrays.asList(8, 9, 10), fetched);
+	}
+	
+	@Test(expected = IOException.class)
+	@Verifies(value = "should fail if a chunk is still damaged after fetching it again", method = "read(byte[],int,int)")
+	public void read_shouldFailIfAChunkIsStillDamagedAfterFetchingItAgain() throws Exception {
+		byte[] received = sent.clone();
+		received[10] ^= 0x01;
+		ChunkVerifyingInputStream.ChunkSource damaged = new ChunkVerifyingInputStream.ChunkSource() {
+			
+			public byte[] fetch(int index) throws IOException {
+				return new byte[checksums.getChunkLength(index)];
+			}
+		};
+		IOUtils.toByteArray(new ChunkVerifyingInputStream(new ByteArrayInputStream(received), checksums, damaged));
+	}
+}
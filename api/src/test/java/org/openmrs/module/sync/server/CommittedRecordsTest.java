@@ -0,0 +1,60 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link CommittedRecords}
+ */
+public class CommittedRecordsTest {
+	
+	private List<String> asked() {
+		return Arrays.asList("u1", "u2", "u3", "u4", "u5", "u6", "u7", "u8", "u9");
+	}
+	
+	@Test
+	@Verifies(value = "should set the bits of the committed uuids only", method = "formatAnswer(List,Set)")
+	public void formatAnswer_shouldSetTheBitsOfTheCommittedUuidsOnly() throws Exception {
+		Set<String> committed = new HashSet<String>(Arrays.asList("u1", "u3", "u8", "u9", "elsewhere"));
+		Assert.assertEquals("a180", CommittedRecords.formatAnswer(asked(), committed));
+		Assert.assertEquals("", CommittedRecords.formatAnswer(Arrays.<String> asList(), committed));
+	}
+	
+	@Test
+	@Verifies(value = "should read back the committed uuids", method = "parseAnswer(List,String)")
+	public void parseAnswer_shouldReadBackTheCommittedUuids() throws Exception {
+		List<String> asked = CommittedRecords.parseUuids(CommittedRecords.formatUuids(asked()));
+		Assert.assertEquals(asked(), asked);
+		
+		Set<String> committed = new HashSet<String>(Arrays.asList("u2", "u5", "u9"));
+		Assert.assertEquals(committed, CommittedRecords.parseAnswer(asked, CommittedRecords.formatAnswer(asked,
+		    committed)));
+		Assert.assertTrue(CommittedRecords.parseAnswer(asked, "0000").isEmpty());
+	}
+	
+	@Test(expected = SyncException.class)
+	@Verifies(value = "should fail if the answer does not fit the question", method = "parseAnswer(List,String)")
+	public void parseAnswer_shouldFailIfTheAnswerDoesNotFitTheQuestion() throws Exception {
+		CommittedRecords.parseAnswer(asked(), "a1");
+	}
+}
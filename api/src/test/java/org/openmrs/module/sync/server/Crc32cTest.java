@@ -0,0 +1,53 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link Crc32c}
+ */
+public class Crc32cTest {
+	
+	@Test
+	@Verifies(value = "should compute the checksum of the standard check string", method = "update(byte[],int,int)")
+	public void update_shouldComputeTheChecksumOfTheStandardCheckString() throws Exception {
+		Crc32c crc = new Crc32c();
+		byte[] check = "123456789".getBytes("US-ASCII");
+		crc.update(check, 0, check.length);
+		Assert.assertEquals(0xE3069283L, crc.getValue());
+		
+		crc.reset();
+		for (byte b : check)
+			crc.update(b);
+		Assert.assertEquals(0xE3069283L, crc.getValue());
+	}
+	
+	@Test
+	@Verifies(value = "should compute the same checksum as the table driven implementation", method = "newChecksum()")
+	public void newChecksum_shouldComputeTheSameChecksumAsTheTableDrivenImplementation() throws Exception {
+		byte[] bytes = new byte[100000];
+		new Random(3).nextBytes(bytes);
+		Checksum checksum = Crc32c.newChecksum();
+		checksum.update(bytes, 17, 99000);
+		Crc32c ours = new Crc32c();
+		ours.update(bytes, 17, 99000);
+		Assert.assertEquals(ours.getValue(), checksum.getValue());
+	}
+}
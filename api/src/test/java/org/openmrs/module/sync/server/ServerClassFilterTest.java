@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.sync.SyncClass;
+import org.openmrs.module.sync.SyncRecord;
+import org.openmrs.module.sync.SyncServerClass;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link ServerClassFilter}
+ */
+public class ServerClassFilterTest {
+	
+	private SyncServerClass serverClass(String name, boolean sendTo, boolean receiveFrom) {
+		SyncClass syncClass = new SyncClass();
+		syncClass.setName(name);
+		
+		SyncServerClass serverClass = new SyncServerClass();
+		serverClass.setSyncClass(syncClass);
+		serverClass.setSendTo(sendTo);
+		serverClass.setReceiveFrom(receiveFrom);
+		return serverClass;
+	}
+	
+	private SyncRecord record(String... containedClasses) {
+		SyncRecord record = new SyncRecord();
+		StringBuilder classes = new StringBuilder();
+		for (String containedClass : containedClasses) {
+			classes.append(classes.length() == 0 ? "" : ",").append(containedClass);
+		}
+		record.setContainedClasses(classes.toString());
+		return record;
+	}
+	
+	@Test
+	@Verifies(value = "should return true if no class is excluded", method = "isSent(SyncRecord)")
+	public void isSent_shouldReturnTrueIfNoClassIsExcluded() throws Exception {
+		List<SyncServerClass> serverClasses = new ArrayList<SyncServerClass>();
+		serverClasses.add(serverClass("org.openmrs.GlobalProperty", true, false));
+		
+		Assert.assertTrue(new ServerClassFilter(serverClasses).isSent(record("org.openmrs.GlobalProperty")));
+		Assert.assertTrue(new ServerClassFilter(null).isSent(record("org.openmrs.Obs")));
+	}
+	
+	@Test
+	@Verifies(value = "should return false if a contained class starts with an excluded name", method = "isSent(SyncRecord)")
+	public void isSent_shouldReturnFalseIfAContainedClassStartsWithAnExcludedName() throws Exception {
+		List<SyncServerClass> serverClasses = new ArrayList<SyncServerClass>();
+		serverClasses.add(serverClass("org.openmrs.scheduler", false, true));
+		ServerClassFilter filter = new ServerClassFilter(serverClasses);
+		
+		Assert.assertFalse(filter.isSent(record("org.openmrs.Patient", "org.openmrs.scheduler.TaskDefinition")));
+		Assert.assertTrue(filter.isSent(record("org.openmrs.Patient", "org.openmrs.Person")));
+		Assert.assertTrue(filter.isReceived(record("org.openmrs.scheduler.TaskDefinition")));
+	}
+	
+	@Test
+	@Verifies(value = "should return false for a null record", method = "isSent(SyncRecord)")
+	public void isSent_shouldReturnFalseForANullRecord() throws Exception {
+		Assert.assertFalse(new ServerClassFilter(null).isSent(null));
+	}
+}
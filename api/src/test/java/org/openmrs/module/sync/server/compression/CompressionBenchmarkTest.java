@@ -0,0 +1,49 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link CompressionBenchmark}
+ */
+public class CompressionBenchmarkTest {
+	
+	@Test
+	@Verifies(value = "should report the size of the transmissions before and after compression", method = "run(CompressionCodec,int,int)")
+	public void run_shouldReportTheSizeOfTheTransmissionsBeforeAndAfterCompression() throws Exception {
+		CompressionBenchmark benchmark = new CompressionBenchmark();
+		StringBuilder xml = new StringBuilder("<SyncTransmission><records>");
+		for (int i = 0; i < 500; i++)
+			xml.append("<SyncRecord containedClasses=\"org.openmrs.Patient\" retryCount=\"0\" state=\"NEW\"/>");
+		xml.append("</records></SyncTransmission>");
+		benchmark.addTransmission(xml.toString().getBytes("UTF-8"));
+		benchmark.addTransmission("<SyncTransmission/>".getBytes("UTF-8"));
+		
+		List<CompressionBenchmark.Result> results = benchmark.runAll(6, 1);
+		
+		Assert.assertEquals(CompressionCodecs.getCodecs().size(), results.size());
+		for (CompressionBenchmark.Result result : results) {
+			Assert.assertEquals(xml.length() + "<SyncTransmission/>".length(), result.getBytes());
+			if (CompressionCodecs.NONE.equals(result.getCodec()))
+				Assert.assertEquals(result.getBytes(), result.getCompressedBytes());
+			else
+				Assert.assertTrue(result.getCodec(), result.getRatio() > 5);
+		}
+	}
+}
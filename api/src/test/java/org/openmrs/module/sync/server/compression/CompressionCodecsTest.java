@@ -0,0 +1,168 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncSettings;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link CompressionCodecs}
+ */
+public class CompressionCodecsTest extends BaseModuleContextSensitiveTest {
+	
+	private SyncSettings getSettings() {
+		return Context.getService(SyncService.class).getSyncSettings();
+	}
+	
+	/**
+	 * A transmission like the ones sent, with some random bytes that don't compress
+	 */
+	private byte[] transmission() throws Exception {
+		StringBuilder xml = new StringBuilder("<SyncTransmission><records>");
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			xml.append("<SyncRecord containedClasses=\"org.openmrs.Obs\" retryCount=\"0\" state=\"NEW\" uuid=\"");
+			xml.append(Long.toHexString(random.nextLong())).append("\"><items><SyncItem state=\"NEW\"><content>");
+			xml.append("<valueNumeric type=\"double\">").append(random.nextDouble()).append("</valueNumeric>");
+			xml.append("</content></SyncItem></items></SyncRecord>");
+		}
+		xml.append("</records></SyncTransmission>");
+		return xml.toString().getBytes("UTF-8");
+	}
+	
+	@Test
+	@Verifies(value = "should have codecs that give back what they compress", method = "getCodecs()")
+	public void getCodecs_shouldHaveCodecsThatGiveBackWhatTheyCompress() throws Exception {
+		byte[] transmission = transmission();
+		Assert.assertTrue(CompressionCodecs.getNames().containsAll(
+		    Arrays.asList(CompressionCodecs.NONE, CompressionCodecs.GZIP, CompressionCodecs.DEFLATE_DICTIONARY,
+		        CompressionCodecs.LZF)));
+		
+		for (CompressionCodec codec : CompressionCodecs.getCodecs().values()) {
+			for (byte[] bytes : new byte[][] { transmission, new byte[0], "<a/>".getBytes("UTF-8") }) {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+				OutputStream out = codec.compress(compressed, 6);
+				out.write(bytes);
+				out.close();
+				
+				byte[] expanded = IOUtils.toByteArray(codec.decompress(new ByteArrayInputStream(compressed.toByteArray())));
+				Assert.assertArrayEquals(codec.getName(), bytes, expanded);
+				if (bytes == transmission && !CompressionCodecs.NONE.equals(codec.getName()))
+					Assert.assertTrue(codec.getName(), compressed.size() < bytes.length / 2);
+			}
+		}
+	}
+	
+	@Test
+	@Verifies(value = "should read the true and false of servers that do not negotiate", method = "fromHeader(String)")
+	public void fromHeader_shouldReadTheTrueAndFalseOfServersThatDoNotNegotiate() throws Exception {
+		Assert.assertEquals(CompressionCodecs.GZIP, CompressionCodecs.fromHeader("true").getName());
+		Assert.assertEquals(CompressionCodecs.NONE, CompressionCodecs.fromHeader("false").getName());
+		Assert.assertEquals(CompressionCodecs.NONE, CompressionCodecs.fromHeader(null).getName());
+		Assert.assertEquals(CompressionCodecs.LZF, CompressionCodecs.fromHeader("lzf").getName());
+	}
+	
+	@Test(expected = SyncException.class)
+	@Verifies(value = "should fail for a codec this server does not have", method = "fromHeader(String)")
+	public void fromHeader_shouldFailForACodecThisServerDoesNotHave() throws Exception {
+		CompressionCodecs.fromHeader("brotli");
+	}
+	
+	@Test
+	@Verifies(value = "should send gzip until the server said what it reads", method = "forServer(RemoteServer,SyncSettings)")
+	public void forServer_shouldSendGzipUntilTheServerSaidWhatItReads() throws Exception {
+		RemoteServer server = new RemoteServer();
+		server.setAddress("http://never.answered/openmrs");
+		server.setCompression(CompressionCodecs.LZF);
+		Assert.assertEquals(CompressionCodecs.GZIP, CompressionCodecs.forServer(server, getSettings()).getName());
+	}
+	
+	@Test
+	@Verifies(value = "should send the codec chosen for the server if the server reads it", method = "forServer(RemoteServer,SyncSettings)")
+	public void forServer_shouldSendTheCodecChosenForTheServerIfTheServerReadsIt() throws Exception {
+		RemoteServer server = new RemoteServer();
+		server.setAddress("http://parent/openmrs");
+		CompressionCodecs.setAccepted(server.getAddress(), "none, gzip, lzf");
+		
+		server.setCompression(CompressionCodecs.LZF);
+		Assert.assertEquals(CompressionCodecs.LZF, CompressionCodecs.forServer(server, getSettings()).getName());
+		
+		// the parent doesn't have it, so the first of sync.compression_codecs it has
+		server.setCompression(CompressionCodecs.DEFLATE_DICTIONARY);
+		Assert.assertEquals(CompressionCodecs.GZIP, CompressionCodecs.forServer(server, getSettings()).getName());
+	}
+	
+	@Test
+	@Verifies(value = "should send nothing when compression is disabled", method = "forServer(RemoteServer,SyncSettings)")
+	public void forServer_shouldSendNothingWhenCompressionIsDisabled() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(SyncConstants.PROPERTY_ENABLE_COMPRESSION, "false"));
+		RemoteServer server = new RemoteServer();
+		server.setAddress("http://parent/openmrs");
+		CompressionCodecs.setAccepted(server.getAddress(), "none, gzip, lzf");
+		server.setCompression(CompressionCodecs.LZF);
+		Assert.assertEquals(CompressionCodecs.NONE, CompressionCodecs.forServer(server, getSettings()).getName());
+	}
+	
+	@Test
+	@Verifies(value = "should use the current dictionary only if the server has it", method = "forServer(RemoteServer,SyncSettings)")
+	public void forServer_shouldUseTheCurrentDictionaryOnlyIfTheServerHasIt() throws Exception {
+		CompressionDictionary dictionary = CompressionDictionaries.save("<SyncItem containedType=\"org.openmrs.Obs\">"
+		        .getBytes("UTF-8"));
+		CompressionDictionaries.setCurrent(dictionary.getIdString());
+		try {
+			RemoteServer server = new RemoteServer();
+			server.setAddress("http://parent/openmrs");
+			server.setCompression(CompressionCodecs.DEFLATE_DICTIONARY);
+			
+			// the parent only has the built in dictionary
+			CompressionCodecs.setAccepted(server.getAddress(), "none, gzip, deflate-dict");
+			Assert.assertEquals(CompressionCodecs.DEFLATE_DICTIONARY, CompressionCodecs.forServer(server, getSettings())
+			        .getName());
+			
+			CompressionCodecs.setAccepted(server.getAddress(), CompressionCodecs.getAcceptHeader());
+			CompressionCodec codec = CompressionCodecs.forServer(server, getSettings());
+			Assert.assertEquals(CompressionCodecs.DEFLATE_DICTIONARY + ":" + dictionary.getIdString(), codec.getName());
+			Assert.assertEquals(codec.getName(), CompressionCodecs.fromHeader(codec.getName()).getName());
+		}
+		finally {
+			CompressionDictionaries.setCurrent(null);
+		}
+	}
+	
+	@Test
+	@Verifies(value = "should answer with the codec of the request", method = "forResponse(String,SyncSettings)")
+	public void forResponse_shouldAnswerWithTheCodecOfTheRequest() throws Exception {
+		Assert.assertEquals(CompressionCodecs.LZF, CompressionCodecs.forResponse("lzf", getSettings()).getName());
+		Assert.assertEquals(CompressionCodecs.NONE, CompressionCodecs.forResponse("none", getSettings()).getName());
+		// servers that don't negotiate get gzip, as always
+		Assert.assertEquals(CompressionCodecs.GZIP, CompressionCodecs.forResponse(null, getSettings()).getName());
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link DeflateDictionaryCodec}
+ */
+public class DeflateDictionaryCodecTest {
+	
+	private static final String PAYLOAD = "<SyncItem containedType=\"org.openmrs.Obs\" state=\"NEW\"><content/></SyncItem>";
+	
+	private byte[] compress(DeflateDictionaryCodec codec) throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream out = codec.compress(compressed, 6);
+		out.write(PAYLOAD.getBytes("UTF-8"));
+		out.close();
+		return compressed.toByteArray();
+	}
+	
+	@Test
+	@Verifies(value = "should read data compressed with any dictionary of this server", method = "decompress(InputStream)")
+	public void decompress_shouldReadDataCompressedWithAnyDictionaryOfThisServer() throws Exception {
+		DeflateDictionaryCodec other = new DeflateDictionaryCodec(new CompressionDictionary("<content/>".getBytes("UTF-8"),
+		        false));
+		byte[] compressed = compress(new DeflateDictionaryCodec());
+		Assert.assertEquals(PAYLOAD, new String(IOUtils.toByteArray(other.decompress(new ByteArrayInputStream(compressed))),
+		        "UTF-8"));
+	}
+	
+	@Test(expected = IOException.class)
+	@Verifies(value = "should fail for a dictionary this server does not have", method = "decompress(InputStream)")
+	public void decompress_shouldFailForADictionaryThisServerDoesNotHave() throws Exception {
+		DeflateDictionaryCodec unknown = new DeflateDictionaryCodec(new CompressionDictionary("<SyncItem/>"
+		        .getBytes("UTF-8"), false));
+		new DeflateDictionaryCodec().decompress(new ByteArrayInputStream(compress(unknown)));
+	}
+}
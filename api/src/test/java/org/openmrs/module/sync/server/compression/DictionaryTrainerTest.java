@@ -0,0 +1,62 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.server.compression;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link DictionaryTrainer}
+ */
+public class DictionaryTrainerTest {
+	
+	/**
+	 * Payloads that share their markup and differ in random uuids and values
+	 */
+	private DictionaryTrainer trainer(int samples) throws Exception {
+		DictionaryTrainer trainer = new DictionaryTrainer();
+		Random random = new Random(7);
+		for (int i = 0; i < samples; i++) {
+			StringBuilder xml = new StringBuilder("<items><SyncItem containedType=\"org.openmrs.Obs\" state=\"NEW\">");
+			xml.append("<content><![CDATA[<org.openmrs.Obs><uuid type=\"string\">");
+			xml.append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong()));
+			xml.append("</uuid><valueNumeric type=\"double\">").append(random.nextDouble());
+			xml.append("</valueNumeric></org.openmrs.Obs>]]></content></SyncItem></items>");
+			trainer.addSample(xml.toString().getBytes("UTF-8"));
+		}
+		return trainer;
+	}
+	
+	@Test
+	@Verifies(value = "should only keep what several samples have in common", method = "train(int)")
+	public void train_shouldOnlyKeepWhatSeveralSamplesHaveInCommon() throws Exception {
+		String dictionary = new String(trainer(50).train(4096), "UTF-8");
+		Assert.assertTrue(dictionary.contains("<valueNumeric type=\"double\">"));
+		Assert.assertTrue(dictionary.contains("containedType=\"org.openmrs.Obs\""));
+		
+		// a lone sample has nothing in common with anything
+		Assert.assertEquals(0, trainer(1).train(4096).length);
+	}
+	
+	@Test
+	@Verifies(value = "should not be longer than the given size", method = "train(int)")
+	public void train_shouldNotBeLongerThanTheGivenSize() throws Exception {
+		DictionaryTrainer trainer = trainer(500);
+		Assert.assertTrue(trainer.train(256).length <= 256);
+		Assert.assertTrue(trainer.train(100000).length <= CompressionDictionaries.MAX_DICTIONARY_SIZE);
+	}
+}
@@ -1,141 +1,504 @@
-/**
- * The contents of this file are subject to the OpenMRS Public License
- * Version 1.0 (the "License"); you may not use this file except in
- * compliance with the License. You may obtain a copy of the License at
- * http://license.openmrs.org
- *
- * Software distributed under the License is distributed on an "AS IS"
- * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
- * License for the specific language governing rights and limitations
- * under the License.
- *
- * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
- */
-package org.openmrs.module.sync.web;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Date;
-
-import javax.servlet.ServletConfig;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.openmrs.api.context.Context;
-import org.openmrs.module.sync.SyncConstants;
-import org.openmrs.module.sync.SyncUtil;
-import org.openmrs.module.sync.api.SyncService;
-import org.openmrs.util.OpenmrsUtil;
-import org.openmrs.web.WebConstants;
-import org.springframework.web.multipart.MultipartFile;
-import org.springframework.web.multipart.MultipartHttpServletRequest;
-import org.springframework.web.multipart.commons.CommonsMultipartResolver;
-
-/**
- * 
- */
-public class CreateChildServlet extends HttpServlet {
-
-	/** Logger for this class and subclasses */
-	protected final Log log = LogFactory.getLog(getClass());
-	private static final long serialVersionUID = 1L;
-	private CommonsMultipartResolver multipartResolver;
-
-	/**
-	 * @see javax.servlet.GenericServlet#init(javax.servlet.ServletConfig)
-	 */
-	@Override
-	public void init(ServletConfig config) throws ServletException {
-		// TODO Auto-generated method stub
-		super.init(config);
-		multipartResolver = new CommonsMultipartResolver(this.getServletContext());
-	}
-
-	protected void doGet(HttpServletRequest request,
-	        HttpServletResponse response) throws ServletException, IOException {
-
-		HttpSession session = request.getSession();
-		if(!Context.isAuthenticated()){
-			response.sendRedirect(request.getContextPath() + "/login.htm");
-			return;
-		}
-		if (!Context.hasPrivilege(SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE)) {
-			session.setAttribute(WebConstants.OPENMRS_ERROR_ATTR,
-			                     "Privilege required: "
-			                             + SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE);
-			session.setAttribute(WebConstants.OPENMRS_LOGIN_REDIRECT_HTTPSESSION_ATTR,
-			                     request.getRequestURI() + "?"
-			                             + request.getQueryString());
-			response.sendRedirect(request.getContextPath() + "/login.htm");
-			return;
-		}
-		File generatedFile = Context.getService(SyncService.class).generateDataFile();
-		response.setContentType("text/sql");
-		response.setHeader("Content-Disposition", "attachment; filename=" + generatedFile.getName());
-		response.setHeader("Pragma", "no-cache");
-		IOUtils.copy(new FileInputStream(generatedFile), response.getOutputStream());
-		response.getOutputStream().flush();
-		response.getOutputStream().close();
-	}
-
-	protected void doPost(HttpServletRequest request,
-	        HttpServletResponse response) throws ServletException, IOException {
-
-		HttpSession session = request.getSession();
-		if(!Context.isAuthenticated()){
-			reply(response,"Not logged in, please login and retry again","red");
-			return;
-		}
-		if (!Context.hasPrivilege(SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE)) {
-			session.setAttribute(WebConstants.OPENMRS_ERROR_ATTR,
-			                     "Privilege required: "
-			                             + SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE);
-			session.setAttribute(WebConstants.OPENMRS_LOGIN_REDIRECT_HTTPSESSION_ATTR,
-			                     request.getRequestURI() + "?"
-			                             + request.getQueryString());
-			response.sendRedirect(request.getContextPath() + "/login.htm");
-			return;
-		}
-		response.setContentType("text/html");
-		MultipartHttpServletRequest multipartRequest = multipartResolver.resolveMultipart(request);
-		MultipartFile mf = multipartRequest.getFile("cloneFile");
-		if (mf != null && !mf.isEmpty()) {
-			try {
-				File dir = SyncUtil.getSyncApplicationDir();
-				File file = new File(dir, SyncConstants.CLONE_IMPORT_FILE_NAME
-				        + SyncConstants.SYNC_FILENAME_MASK.format(new Date())
-				        + ".sql");
-				IOUtils.copy(mf.getInputStream(),
-				             new FileOutputStream(file));
-				Context.getService(SyncService.class).execGeneratedFile(file);
-
-				reply(response,"Child database successfully updated","green");
-			} catch (Exception ex) {
-				log.warn("Unable to read the clone data file", ex);
-				reply(response,"Unable to read the data clonefile"+ ex.toString(),"red");
-				ex.printStackTrace();
-			}
-		} else {
-
-			reply(response,"The file sent is null or empty, please select a file to upload","red");
-		}
-
-	}
-
-	private void reply(HttpServletResponse response, String str,String color) {
-		try {
-			response.getWriter().println("<html><body onload=\"window.parent.showUploadResponse('"+str+"','"+color+"');\"></body></html>");
-		} catch (Exception ex) {
-			log.warn(ex.toString());
-			ex.printStackTrace();
-		}
-	}
-}
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.sync.web;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.sync.SegmentChecksums;
+import org.openmrs.module.sync.SyncCloneSnapshot;
+import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncUtil;
+import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.RemoteServerType;
+import org.openmrs.web.WebConstants;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.commons.CommonsMultipartResolver;
+
+/**
+ * Sends the database of a new child (GET) and loads it at the child (POST).
+ * <p>
+ * The database is always sent gzip compressed. A fresh export is streamed as it is produced, and
+ * spooled to a file in the sync directory at the same time (the export finishes into the spool
+ * even if the download breaks off). Clone snapshots and finished spools are served with support
+ * for HTTP Range requests: a download is resumed with the same url and an If-Range header holding
+ * its ETag, or with ?download=&lt;ETag&gt; and a Range header. ?download=&lt;ETag&gt;&amp;checksums=true
+ * lists the CRC32 of every segment of the download (offset, length and checksum per line), so a
+ * resumed download can be checked piece by piece. A download resumed while its export is still
+ * being spooled is answered with 503 and a Retry-After header, rather than starting another export.
+ */
+public class CreateChildServlet extends HttpServlet {
+
+	/** Logger for this class and subclasses */
+	protected final Log log = LogFactory.getLog(getClass());
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * How long spooled exports are kept for resuming their download
+	 */
+	private static final long SPOOL_MAX_AGE = 24 * 60 * 60 * 1000;
+	
+	/**
+	 * Seconds a download resumed while it is being spooled is asked to wait
+	 */
+	private static final int SPOOL_RETRY_AFTER = 60;
+	
+	/**
+	 * The names of the spools being written
+	 */
+	private static final Set<String> spooling = Collections.synchronizedSet(new HashSet<String>());
+	
+	private static final Pattern RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+	
+	private static final Pattern DOWNLOAD_NAME = Pattern.compile("^[A-Za-z0-9_.-]+$");
+	
+	private CommonsMultipartResolver multipartResolver;
+
+	/**
+	 * @see javax.servlet.GenericServlet#init(javax.servlet.ServletConfig)
+	 */
+	@Override
+	public void init(ServletConfig config) throws ServletException {
+		// TODO Auto-generated method stub
+		super.init(config);
+		multipartResolver = new CommonsMultipartResolver(this.getServletContext());
+	}
+
+	protected void doGet(HttpServletRequest request,
+	        HttpServletResponse response) throws ServletException, IOException {
+
+		HttpSession session = request.getSession();
+		if(!Context.isAuthenticated()){
+			response.sendRedirect(request.getContextPath() + "/login.htm");
+			return;
+		}
+		if (!Context.hasPrivilege(SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE)) {
+			session.setAttribute(WebConstants.OPENMRS_ERROR_ATTR,
+			                     "Privilege required: "
+			                             + SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE);
+			session.setAttribute(WebConstants.OPENMRS_LOGIN_REDIRECT_HTTPSESSION_ATTR,
+			                     request.getRequestURI() + "?"
+			                             + request.getQueryString());
+			response.sendRedirect(request.getContextPath() + "/login.htm");
+			return;
+		}
+		SyncService syncService = Context.getService(SyncService.class);
+		
+		// resuming (or checking) an earlier download
+		String downloadId = request.getParameter("download");
+		if (downloadId == null && request.getHeader("Range") != null)
+			downloadId = unquote(request.getHeader("If-Range"));
+		if (downloadId != null) {
+			Download download = findDownload(downloadId);
+			if (download != null) {
+				if ("true".equals(request.getParameter("checksums")))
+					sendChecksums(download, response);
+				else
+					sendDownload(download, request, response);
+				return;
+			}
+			if (spooling.contains(downloadId)) {
+				response.setHeader("Retry-After", Integer.toString(SPOOL_RETRY_AFTER));
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The download " + downloadId
+				        + " is still being written");
+				return;
+			}
+			if (request.getParameter("download") != null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "No download " + downloadId);
+				return;
+			}
+		}
+		
+		// a child that is known already can be seeded from the clone snapshot, and be sent what changed since
+		SyncCloneSnapshot snapshot = syncService.getCloneSnapshot();
+		if (snapshot != null && StringUtils.hasText(request.getParameter("serverId"))) {
+			RemoteServer server = syncService.getRemoteServer(Integer.valueOf(request.getParameter("serverId")));
+			if (server != null && RemoteServerType.CHILD.equals(server.getServerType())) {
+				// only a download from the start seeds the child, not the resuming of one
+				if (request.getHeader("Range") == null)
+					syncService.seedChildFromSnapshot(server, snapshot);
+				sendDownload(new Download(snapshot.getFile(), syncService.getCloneSnapshotTrailer(server), server
+				        .getServerId()), request, response);
+				return;
+			}
+		}
+		
+		deleteOldSpools();
+		File dir = SyncUtil.getSyncApplicationDir();
+		File spool = new File(dir, SyncConstants.CLONE_EXPORT_FILE_NAME + SyncConstants.SYNC_FILENAME_MASK.format(new Date())
+		        + ".sql.gz");
+		File part = new File(spool.getPath() + ".part");
+		
+		// streamed straight to the browser, already compressed, and spooled for resuming
+		response.setContentType("application/x-gzip");
+		response.setHeader("Content-Disposition", "attachment; filename=" + spool.getName());
+		response.setHeader("ETag", "\"" + spool.getName() + "\"");
+		response.setHeader("Pragma", "no-cache");
+		spooling.add(spool.getName());
+		SpoolingOutputStream out = null;
+		SegmentChecksums checksums = new SegmentChecksums();
+		boolean done = false;
+		try {
+			out = new SpoolingOutputStream(response.getOutputStream(), new FileOutputStream(part));
+			OutputStream checksummed = checksums.checksumming(out);
+			if ("true".equalsIgnoreCase(syncService.getGlobalProperty(SyncConstants.PROPERTY_NATIVE_EXPORT))) {
+				syncService.exportChildDB(null, checksummed);
+			} else {
+				// what mysqldump prints is compressed as it comes, without a file in between
+				GZIPOutputStream gzip = new GZIPOutputStream(checksummed, 64 * 1024);
+				syncService.generateDataFile(gzip);
+				gzip.finish();
+			}
+			done = true;
+		}
+		finally {
+			if (out != null)
+				out.close();
+			if (done && part.renameTo(spool))
+				checksums.save(spool);
+			else
+				part.delete();
+			spooling.remove(spool.getName());
+		}
+	}
+
+	protected void doPost(HttpServletRequest request,
+	        HttpServletResponse response) throws ServletException, IOException {
+
+		HttpSession session = request.getSession();
+		if(!Context.isAuthenticated()){
+			reply(response,"Not logged in, please login and retry again","red");
+			return;
+		}
+		if (!Context.hasPrivilege(SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE)) {
+			session.setAttribute(WebConstants.OPENMRS_ERROR_ATTR,
+			                     "Privilege required: "
+			                             + SyncConstants.PRIV_BACKUP_ENTIRE_DATABASE);
+			session.setAttribute(WebConstants.OPENMRS_LOGIN_REDIRECT_HTTPSESSION_ATTR,
+			                     request.getRequestURI() + "?"
+			                             + request.getQueryString());
+			response.sendRedirect(request.getContextPath() + "/login.htm");
+			return;
+		}
+		response.setContentType("text/html");
+		
+		// the loader reads plain and gzip compressed sql, so the upload is stored as it comes
+		File dir = SyncUtil.getSyncApplicationDir();
+		File file = new File(dir, SyncConstants.CLONE_IMPORT_FILE_NAME
+		        + SyncConstants.SYNC_FILENAME_MASK.format(new Date())
+		        + ".sql");
+		if (multipartResolver.isMultipart(request)) {
+			MultipartHttpServletRequest multipartRequest = multipartResolver.resolveMultipart(request);
+			MultipartFile mf = multipartRequest.getFile("cloneFile");
+			if (mf == null || mf.isEmpty()) {
+				reply(response,"The file sent is null or empty, please select a file to upload","red");
+				return;
+			}
+			// moves the uploaded file rather than copying it, where possible
+			mf.transferTo(file);
+		} else {
+			// the dump as the body of the request, straight to disk
+			OutputStream out = new FileOutputStream(file);
+			try {
+				IOUtils.copyLarge(request.getInputStream(), out);
+			}
+			finally {
+				out.close();
+			}
+			if (file.length() == 0) {
+				file.delete();
+				reply(response,"The file sent is null or empty, please select a file to upload","red");
+				return;
+			}
+		}
+		
+		try {
+			Context.getService(SyncService.class).execGeneratedFile(file);
+
+			reply(response,"Child database successfully updated","green");
+		} catch (Exception ex) {
+			log.warn("Unable to read the clone data file", ex);
+			reply(response,"Unable to read the data clonefile"+ ex.toString(),"red");
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @param id the ETag of a download: the name of a finished spool, or of the clone snapshot
+	 *            followed by / and the server id of the child it is for
+	 * @return the download, or null if there is no such download (any longer)
+	 */
+	private Download findDownload(String id) {
+		String name = id;
+		Integer serverId = null;
+		int slash = id.indexOf('/');
+		if (slash > 0) {
+			name = id.substring(0, slash);
+			try {
+				serverId = Integer.valueOf(id.substring(slash + 1));
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		if (!DOWNLOAD_NAME.matcher(name).matches())
+			return null;
+		
+		SyncService syncService = Context.getService(SyncService.class);
+		if (serverId != null) {
+			SyncCloneSnapshot snapshot = syncService.getCloneSnapshot();
+			RemoteServer server = syncService.getRemoteServer(serverId);
+			if (snapshot == null || !snapshot.getFile().getName().equals(name) || server == null
+			        || !StringUtils.hasText(server.getUuid()))
+				return null;
+			return new Download(snapshot.getFile(), syncService.getCloneSnapshotTrailer(server), serverId);
+		}
+		
+		File spool = new File(SyncUtil.getSyncApplicationDir(), name);
+		if (!name.startsWith(SyncConstants.CLONE_EXPORT_FILE_NAME) || !name.endsWith(".sql.gz") || !spool.exists())
+			return null;
+		return new Download(spool, new byte[0], null);
+	}
+	
+	/**
+	 * Sends the download, or the part of it asked for with a Range header
+	 */
+	private void sendDownload(Download download, HttpServletRequest request, HttpServletResponse response)
+	        throws IOException {
+		long length = download.getLength();
+		long start = 0;
+		long end = length - 1;
+		
+		response.setContentType("application/x-gzip");
+		response.setHeader("Content-Disposition", "attachment; filename=" + download.file.getName());
+		response.setHeader("ETag", "\"" + download.getId() + "\"");
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("Pragma", "no-cache");
+		
+		// a Range with an If-Range for another version of the download gets all of it
+		String range = request.getHeader("Range");
+		String ifRange = request.getHeader("If-Range");
+		if (range != null && (ifRange == null || download.getId().equals(unquote(ifRange)))) {
+			Matcher matcher = RANGE.matcher(range.trim());
+			if (matcher.matches() && (matcher.group(1).length() > 0 || matcher.group(2).length() > 0)) {
+				if (matcher.group(1).length() == 0) {
+					// the last so many bytes
+					start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+				} else {
+					start = Long.parseLong(matcher.group(1));
+					if (matcher.group(2).length() > 0)
+						end = Math.min(end, Long.parseLong(matcher.group(2)));
+				}
+				if (start > end) {
+					response.setHeader("Content-Range", "bytes */" + length);
+					response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+		response.setHeader("Content-Length", Long.toString(end - start + 1));
+		
+		OutputStream out = response.getOutputStream();
+		long fileLength = download.file.length();
+		if (start < fileLength) {
+			RandomAccessFile in = new RandomAccessFile(download.file, "r");
+			try {
+				in.seek(start);
+				byte[] buffer = new byte[64 * 1024];
+				long left = Math.min(end + 1, fileLength) - start;
+				while (left > 0) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (read < 0)
+						break;
+					out.write(buffer, 0, read);
+					left -= read;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		if (end >= fileLength) {
+			int from = (int) Math.max(0, start - fileLength);
+			out.write(download.trailer, from, (int) (end + 1 - fileLength) - from);
+		}
+		out.flush();
+		out.close();
+	}
+	
+	/**
+	 * Lists the checksums of the segments of the download, the trailer being a segment of its own
+	 */
+	private void sendChecksums(Download download, HttpServletResponse response) throws IOException {
+		SegmentChecksums checksums = SegmentChecksums.forFile(download.file);
+		if (download.trailer.length > 0)
+			checksums.addSegment(download.trailer);
+		
+		response.setContentType("text/plain");
+		response.setCharacterEncoding(SyncConstants.UTF8);
+		response.setHeader("ETag", "\"" + download.getId() + "\"");
+		Writer writer = new OutputStreamWriter(response.getOutputStream(), SyncConstants.UTF8);
+		checksums.write(writer);
+		writer.close();
+	}
+	
+	/**
+	 * Deletes the spools of exports that are too old to be resumed
+	 */
+	private void deleteOldSpools() {
+		File[] files = SyncUtil.getSyncApplicationDir().listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.getName().startsWith(SyncConstants.CLONE_EXPORT_FILE_NAME)
+			        && System.currentTimeMillis() - file.lastModified() > SPOOL_MAX_AGE)
+				file.delete();
+		}
+	}
+	
+	private static String unquote(String etag) {
+		if (etag == null)
+			return null;
+		etag = etag.trim();
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\""))
+			return etag.substring(1, etag.length() - 1);
+		return etag;
+	}
+
+	private void reply(HttpServletResponse response, String str,String color) {
+		try {
+			response.getWriter().println("<html><body onload=\"window.parent.showUploadResponse('"+str+"','"+color+"');\"></body></html>");
+		} catch (Exception ex) {
+			log.warn(ex.toString());
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * A file that can be downloaded in parts, followed by a few bytes of its own
+	 */
+	private static class Download {
+		
+		final File file;
+		
+		final byte[] trailer;
+		
+		final Integer serverId;
+		
+		Download(File file, byte[] trailer, Integer serverId) {
+			this.file = file;
+			this.trailer = trailer;
+			this.serverId = serverId;
+		}
+		
+		long getLength() {
+			return file.length() + trailer.length;
+		}
+		
+		String getId() {
+			return serverId == null ? file.getName() : file.getName() + "/" + serverId;
+		}
+	}
+	
+	/**
+	 * Writes to the response and to the spool. Once the response can't be written to any more (the
+	 * download broke off), it keeps writing to the spool only, so that the export still finishes
+	 * and the download can be resumed from the spool.
+	 */
+	private class SpoolingOutputStream extends OutputStream {
+		
+		private OutputStream response;
+		
+		private final OutputStream spool;
+		
+		public SpoolingOutputStream(OutputStream response, OutputStream spool) {
+			this.response = response;
+			this.spool = spool;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			spool.write(b, off, len);
+			if (response != null) {
+				try {
+					response.write(b, off, len);
+				}
+				catch (IOException e) {
+					log.info("The download of the child database broke off, finishing the export for resuming it: "
+					        + e.getMessage());
+					response = null;
+				}
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			spool.flush();
+			if (response != null) {
+				try {
+					response.flush();
+				}
+				catch (IOException e) {
+					response = null;
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			spool.close();
+			if (response != null) {
+				try {
+					response.close();
+				}
+				catch (IOException e) {
+					response = null;
+				}
+			}
+		}
+	}
+}
@@ -35,7 +35,6 @@ import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncTransmission;
-import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.SyncUtilTransmission;
 import org.openmrs.module.sync.api.SyncService;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
@@ -114,7 +113,7 @@ public class ConfigListController extends SimpleFormController {
 				
 				// we are creating a sync-transmission, so start by generating a SyncTransmission object
 				SyncTransmission tx = SyncUtilTransmission.createSyncTransmission(server, true,
-				    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_FILE));
+				    Context.getService(SyncService.class).getSyncSettings().getMaxRecordsFile());
 				String toTransmit = tx.getFileOutput();
 				
 				// Record last attempt
@@ -44,6 +44,7 @@ import org.openmrs.module.sync.serialization.TimestampNormalizer;
 import org.openmrs.module.sync.server.RemoteServer;
 import org.openmrs.module.sync.server.RemoteServerType;
 import org.openmrs.module.sync.server.ServerConnectionState;
+import org.openmrs.module.sync.server.compression.CompressionCodecs;
 import org.openmrs.scheduler.SchedulerException;
 import org.openmrs.scheduler.TaskDefinition;
 import org.openmrs.web.WebConstants;
@@ -540,6 +541,7 @@ public class ConfigServerFormController {
 					modelMap.put("connectionState", connectionState.entrySet());
 					modelMap.put("serverSchedule", serverSchedule);
 					modelMap.put("repeatInterval", repeatInterval);
+					modelMap.put("compressionCodecs", CompressionCodecs.getNames());
 				}
 				finally {
 					//We no longer need this privilege.
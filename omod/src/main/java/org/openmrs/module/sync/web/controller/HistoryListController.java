@@ -23,7 +23,6 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncConstants;
 import org.openmrs.module.sync.SyncItem;
@@ -68,14 +67,11 @@ public class HistoryListController {
 	                        @RequestParam(value = "size", required = false) Integer size,
 	                        @RequestParam(value = "state", required = false) String state) throws Exception {
 		
-		SyncRecord latestRecord = null;
-		SyncRecord earliestRecord  = null;
+		Integer latestRecordId = null;
+		Integer earliestRecordId = null;
 		// default the list size to 20 items
 		if (size == null) {
-			AdministrationService as = Context.getAdministrationService();
-			String max = as.getGlobalProperty(SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS,
-			    SyncConstants.PROPERTY_NAME_MAX_RETRY_COUNT_DEFAULT);
-			size = Integer.valueOf(max);
+			size = Context.getService(SyncService.class).getSyncSettings().getMaxPageRecords();
 		}
 		
 		log.debug("Vewing history page with size: " + size);
@@ -91,8 +87,8 @@ public class HistoryListController {
 				SyncRecordState[] states = new SyncRecordState[] { SyncRecordState.valueOf(state) };
 				recordList = ss.getSyncRecords(states, size, firstRecordId);
 			}
-			latestRecord = ss.getLatestRecord();
-			earliestRecord = ss.getEarliestRecord(null);
+			latestRecordId = ss.getLatestRecordId();
+			earliestRecordId = ss.getEarliestRecordId(null);
 			
 		}
 		
@@ -175,11 +171,11 @@ public class HistoryListController {
 		
 		modelMap.put("firstRecordId", firstRecordId);
 		
-		if(latestRecord != null)
-		modelMap.put("latestRecordId", latestRecord.getRecordId());
+		if(latestRecordId != null)
+		modelMap.put("latestRecordId", latestRecordId);
 		
-		if(earliestRecord != null){
-			if(earliestRecord.getRecordId() == recordList.get(recordList.size() -1).getRecordId())
+		if(earliestRecordId != null && recordList.size() > 0){
+			if(earliestRecordId.equals(recordList.get(recordList.size() -1).getRecordId()))
 				modelMap.put("isEarliestRecord", "true");	
 		}
 		modelMap.put("size", size);
@@ -190,11 +186,11 @@ public class HistoryListController {
 	                               HttpSession session) throws Exception {
 		SyncService ss = Context.getService(SyncService.class);
 		
-		SyncRecord syncRecordInError = ss.getOlderSyncRecordInState(ss.getSyncRecord(recordId),
+		Integer recordIdInError = ss.getOlderSyncRecordIdInState(ss.getSyncRecord(recordId),
 		    SyncConstants.SYNC_RECORD_ERROR_STATES);
 		
-		if (syncRecordInError != null) {
-			recordId = syncRecordInError.getRecordId();
+		if (recordIdInError != null) {
+			recordId = recordIdInError;
 		} else {
 			session.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "sync.general.noNextError");
 		}
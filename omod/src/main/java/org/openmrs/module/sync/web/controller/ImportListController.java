@@ -16,9 +16,14 @@ package org.openmrs.module.sync.web.controller;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -29,18 +34,27 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncConstants;
+import org.openmrs.module.sync.SyncException;
+import org.openmrs.module.sync.SyncSettings;
 import org.openmrs.module.sync.SyncTransmission;
 import org.openmrs.module.sync.SyncTransmissionState;
-import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.SyncUtilTransmission;
 import org.openmrs.module.sync.api.SyncIngestService;
 import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.bundle.SyncBundle;
 import org.openmrs.module.sync.ingest.SyncDeserializer;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.server.ChunkCache;
+import org.openmrs.module.sync.server.ChunkChecksums;
+import org.openmrs.module.sync.server.ChunkVerifyingInputStream;
+import org.openmrs.module.sync.server.CommittedRecords;
 import org.openmrs.module.sync.server.ConnectionRequest;
 import org.openmrs.module.sync.server.ConnectionResponse;
 import org.openmrs.module.sync.server.RemoteServer;
+import org.openmrs.module.sync.server.ServerConnectionState;
+import org.openmrs.module.sync.server.compression.CompressionCodec;
+import org.openmrs.module.sync.server.compression.CompressionCodecs;
 import org.springframework.validation.BindException;
 import org.springframework.web.bind.ServletRequestDataBinder;
 import org.springframework.web.bind.ServletRequestUtils;
@@ -84,11 +98,33 @@ public class ImportListController extends SimpleFormController {
 		log.info("syncData: " + request.getParameter("syncData"));
 		log.info("syncDataResponse: " + request.getParameter("syncDataResponse"));
 		
+		// the other side asks for a chunk of an answer that arrived damaged
+		String chunkOf = request.getParameter(ChunkChecksums.CHUNK_OF_PARAMETER);
+		if (chunkOf != null) {
+			sendChunk(request, response, chunkOf);
+			return null;
+		}
+		
+		// the other side is about to send records again and asks which of them are committed here
+		String committedOf = request.getParameter(CommittedRecords.PARAMETER);
+		if (committedOf != null) {
+			sendCommittedRecords(request, response, committedOf);
+			return null;
+		}
+		
 		long checksum = 0;
 		Integer serverId = 0;
 		boolean isResponse = false;
 		boolean isUpload = false;
 		boolean useCompression = false;
+		String compression = null;
+		ChunkChecksums chunkChecksums = null;
+		String transmissionId = null;
+		String repairOf = null;
+		CompressionCodec codec = null;
+		byte[] transmission = null;
+		File bundle = null;
+		List<Integer> damagedChunks = Collections.emptyList();
 		
 		String contents = "";
 		String username = "";
@@ -101,6 +137,7 @@ public class ImportListController extends SimpleFormController {
 			serverId = ServletRequestUtils.getIntParameter(multipartRequest, "serverId", 0);
 			isResponse = ServletRequestUtils.getBooleanParameter(multipartRequest, "isResponse", false);
 			useCompression = ServletRequestUtils.getBooleanParameter(multipartRequest, "compressed", false);
+			compression = ServletRequestUtils.getStringParameter(multipartRequest, "compression", null);
 			isUpload = ServletRequestUtils.getBooleanParameter(multipartRequest, "upload", false);
 			username = ServletRequestUtils.getStringParameter(multipartRequest, "username", "");
 			password = ServletRequestUtils.getStringParameter(multipartRequest, "password", "");
@@ -109,27 +146,62 @@ public class ImportListController extends SimpleFormController {
 			log.info("serverId: " + serverId);
 			log.info("upload = " + isUpload);
 			log.info("compressed = " + useCompression);
+			log.info("compression = " + compression);
 			log.info("response = " + isResponse);
 			log.info("username = " + username);
 			
 			log.info("Request content length: " + request.getContentLength());
 			MultipartFile multipartFile = multipartRequest.getFile("syncDataFile");
-			if (multipartFile != null && !multipartFile.isEmpty()) {
+			if (multipartFile != null && !multipartFile.isEmpty() && isUpload && isBundle(multipartFile)) {
+				// bundles are imported from disk a few records at a time, rather than read in
+				bundle = new File(SyncBundle.getDirectory(), UUID.randomUUID().toString() + SyncBundle.FILE_SUFFIX);
+				multipartFile.transferTo(bundle);
+				log.info("Received bundle " + multipartFile.getOriginalFilename() + " of " + bundle.length() + " bytes");
+			} else if (multipartFile != null && !multipartFile.isEmpty()) {
 				InputStream inputStream = null;
 				try {
-					// Decompress content in file
-					ConnectionResponse syncResponse = new ConnectionResponse(new ByteArrayInputStream(
-					        multipartFile.getBytes()), useCompression);
+					// servers that send chunk checksums post just the damaged chunks again to repair a transmission
+					String checksums = ServletRequestUtils.getStringParameter(multipartRequest,
+					    ChunkChecksums.CHECKSUMS_PARAMETER, null);
+					if (checksums != null) {
+						chunkChecksums = ChunkChecksums.parse(checksums);
+						transmissionId = ServletRequestUtils.getStringParameter(multipartRequest,
+						    ChunkChecksums.TRANSMISSION_ID_PARAMETER, null);
+						repairOf = ServletRequestUtils.getStringParameter(multipartRequest,
+						    ChunkChecksums.REPAIR_OF_PARAMETER, null);
+					}
 					
-					log.info("Content to decompress: " + multipartFile.getBytes());
-					log.info("Content received: " + syncResponse.getResponsePayload());
-					log.info("Decompression Checksum: " + syncResponse.getChecksum());
-					
-					contents = syncResponse.getResponsePayload();
-					checksum = syncResponse.getChecksum();
-					
-					log.info("Final content: " + contents);
+					// Decompress content in file, with the codec named by servers that negotiate one
+					codec = compression == null ? CompressionCodecs.getCodec(useCompression) : CompressionCodecs
+					        .getCodec(compression);
+					if (codec == null)
+						throw new SyncException("This server doesn't have the compression codec " + compression);
 					
+					if (repairOf != null) {
+						// just the damaged chunks, put together with the rest once the sender is authenticated
+						transmission = multipartFile.getBytes();
+					} else {
+						// the file is decompressed as it is read, each chunk checked on the way
+						inputStream = multipartFile.getInputStream();
+						if (chunkChecksums != null)
+							inputStream = new ChunkVerifyingInputStream(inputStream, chunkChecksums, null);
+						ConnectionResponse syncResponse = new ConnectionResponse(inputStream, codec);
+						if (chunkChecksums != null && !ServerConnectionState.OK.equals(syncResponse.getState())) {
+							// keep what did arrive, to ask for the damaged chunks only
+							transmission = multipartFile.getBytes();
+							damagedChunks = chunkChecksums.findDamaged(transmission);
+							if (!damagedChunks.isEmpty())
+								throw new SyncException("Chunks " + damagedChunks + " of the transmission arrived damaged");
+						}
+						
+						log.info("Content received: " + syncResponse.getResponsePayload());
+						log.info("Decompression Checksum: " + syncResponse.getChecksum());
+						
+						contents = syncResponse.getResponsePayload();
+						checksum = syncResponse.getChecksum();
+						
+						log.info("Final content: " + contents);
+					}
 				}
 				catch (Exception e) {
 					log.warn("Unable to read in sync data file", e);
@@ -159,7 +231,7 @@ public class ImportListController extends SimpleFormController {
 		//if no content, nothing to process just send back response
 		if (contents == null || contents.length() < 0) {
 			log.info("returning from ingest: nothing to process.");
-			this.sendResponse(str, isUpload, response);
+			this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 			return null;
 		}
 		
@@ -172,11 +244,13 @@ public class ImportListController extends SimpleFormController {
 		}
 		// Could not authenticate user: send back error
 		if (!Context.isAuthenticated()) {
+			if (bundle != null)
+				bundle.delete();
 			str.setErrorMessage(SyncConstants.ERROR_AUTH_FAILED);
 			str.setFileName(SyncConstants.FILENAME_AUTH_FAILED);
 			str.setState(SyncTransmissionState.AUTH_FAILED);
 			
-			this.sendResponse(str, isUpload, response);
+			this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 			return null;
 		}
 		
@@ -184,17 +258,65 @@ public class ImportListController extends SimpleFormController {
 		//know about us
 		str.setSyncTargetUuid(Context.getService(SyncService.class).getServerUuid());
 		
+		if (repairOf != null && transmission != null) {
+			try {
+				// only the sender of the damaged transmission can have it repaired
+				byte[] damaged = ChunkCache.getUploads().remove(getUploadKey(repairOf));
+				if (damaged == null)
+					throw new SyncException("The damaged transmission " + repairOf + " is no longer kept");
+				transmission = chunkChecksums.repair(damaged, ChunkChecksums.parseChunks(ServletRequestUtils
+				        .getStringParameter(request, ChunkChecksums.CHUNKS_PARAMETER, "")), transmission);
+				damagedChunks = chunkChecksums.findDamaged(transmission);
+				if (!damagedChunks.isEmpty())
+					throw new SyncException("Chunks " + damagedChunks + " of the transmission arrived damaged");
+				
+				ConnectionResponse syncResponse = new ConnectionResponse(new ByteArrayInputStream(transmission), codec);
+				contents = syncResponse.getResponsePayload();
+				checksum = syncResponse.getChecksum();
+			}
+			catch (Exception e) {
+				log.warn("Unable to repair sync data file " + repairOf, e);
+			}
+		}
+		
+		if (bundle != null) {
+			try {
+				str = SyncUtilTransmission.processSyncBundle(bundle, Context.getService(SyncService.class)
+				        .getSyncSettings().getMaxRecordsFile());
+			}
+			catch (Exception e) {
+				log.error("Unable to import the bundle", e);
+				str.setErrorMessage("Unable to import the bundle: " + e.getMessage());
+				str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
+			}
+			finally {
+				bundle.delete();
+			}
+			this.sendResponse(str, isUpload, compression, false, response);
+			return null;
+		}
+		
 		//Checksum check before doing anything at all: on unreliable networks we can get seemingly
 		//valid HTTP POST but content is messed up, defend against it with custom checksums
 		long checksumReceived = ServletRequestUtils.getLongParameter(request, "checksum", -1);
 		log.info("checksum value received in POST: " + checksumReceived);
 		log.info("checksum value of payload: " + checksum);
 		log.info("SIZE of payload: " + contents.length());
+		if (!damagedChunks.isEmpty()) {
+			// keep what did arrive and ask for the damaged chunks only
+			log.warn("Asking for chunks " + damagedChunks + " of transmission " + transmissionId + " again");
+			if (transmissionId != null && ChunkCache.getUploads().put(getUploadKey(transmissionId), transmission))
+				response.addHeader(ChunkChecksums.DAMAGED_HEADER, ChunkChecksums.formatChunks(damagedChunks));
+			str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
+			
+			this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
+			return null;
+		}
 		if (checksumReceived > 0 && (checksumReceived != checksum)) {
 			log.error("ERROR: FAILED CHECKSUM!");
 			str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
 			
-			this.sendResponse(str, isUpload, response);
+			this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 			return null;
 		}
 		
@@ -206,7 +328,7 @@ public class ImportListController extends SimpleFormController {
 			str.setUuid("");
 			str.setFileName(SyncConstants.FILENAME_TEST);
 			
-			this.sendResponse(str, isUpload, response);
+			this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 			return null;
 		}
 		
@@ -216,7 +338,7 @@ public class ImportListController extends SimpleFormController {
 				File file = Context.getService(SyncService.class).generateDataFile();
 				StringWriter writer = new StringWriter();
 				IOUtils.copy(new FileInputStream(file), writer);
-				this.sendCloneResponse(writer.toString(), response, false);
+				this.sendCloneResponse(writer.toString(), compression, chunkChecksums != null, response, false);
 			}
 			catch (Exception ex) {
 				log.warn(ex.toString());
@@ -242,7 +364,7 @@ public class ImportListController extends SimpleFormController {
 				log.error("Unable to deserialize the following: " + contents, e);
 				str.setErrorMessage("Unable to deserialize transmission contents into SyncTansmission.");
 				str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
-				this.sendResponse(str, isUpload, response);
+				this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 				return null;
 			}
 		} else {
@@ -258,7 +380,7 @@ public class ImportListController extends SimpleFormController {
 				log.error("Unable to deserialize the following: " + contents, e);
 				str.setErrorMessage("Unable to deserialize transmission contents into SyncTransmissionResponse.");
 				str.setState(SyncTransmissionState.TRANSMISSION_NOT_UNDERSTOOD);
-				this.sendResponse(str, isUpload, response);
+				this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 				return null;
 			}
 			
@@ -272,7 +394,7 @@ public class ImportListController extends SimpleFormController {
 				str.setErrorMessage("Source server not registered locally. Unable to find source server by uuid "
 				        + sourceUuid);
 				str.setState(SyncTransmissionState.INVALID_SERVER);
-				this.sendResponse(str, isUpload, response);
+				this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 				return null;
 			} else {
 				log.info("Found source server by uuid: " + sourceUuid + " = " + origin.getNickname());
@@ -291,6 +413,7 @@ public class ImportListController extends SimpleFormController {
 				for (SyncImportRecord importRecord : priorResponse.getSyncImportRecords()) {
 					Context.getService(SyncIngestService.class).processSyncImportRecord(importRecord, origin);
 				}
+				Context.getService(SyncService.class).advanceChildCursor(origin);
 			}
 			
 			// now pull out the data that originated on the 'source' server and try to process it
@@ -301,12 +424,12 @@ public class ImportListController extends SimpleFormController {
 		// now process the syncTransmission if one was received                    
 		if (st != null) {
 			str = SyncUtilTransmission.processSyncTransmission(st,
-			    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB));
+			    Context.getService(SyncService.class).getSyncSettings().getMaxRecordsWeb());
 		} else
 			log.info("st was null");
 		
 		//send response
-		this.sendResponse(str, isUpload, response);
+		this.sendResponse(str, isUpload, compression, chunkChecksums != null, response);
 		
 		// never a situation where we want to actually use the model/view - either file download or http request
 		return null;
@@ -323,7 +446,8 @@ public class ImportListController extends SimpleFormController {
 		return "";
 	}
 	
-	private void sendResponse(SyncTransmissionResponse str, boolean isUpload, HttpServletResponse response) throws Exception {
+	private void sendResponse(SyncTransmissionResponse str, boolean isUpload, String compression, boolean chunked,
+	                          HttpServletResponse response) throws Exception {
 		String content = null;
 		try {
 			str.createFile(false);
@@ -352,51 +476,174 @@ public class ImportListController extends SimpleFormController {
 		}
 		
 		// We're sending back a new sync transmission (an update).
-		// We need to check the local server about whether we should apply compression.
-		boolean useCompression = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
-		    SyncConstants.PROPERTY_ENABLE_COMPRESSION, "true"));
-		log.debug("Global property sychronization.enable_compression = " + useCompression);
+		// We need to check the local server about whether we should apply compression, with the codec of the request.
+		SyncSettings settings = Context.getService(SyncService.class).getSyncSettings();
+		CompressionCodec codec = CompressionCodecs.forResponse(compression, settings);
+		log.debug("Answering with compression " + codec.getName());
 		
 		// Otherwise, all other requests are compressed and sent back to the client 
-		ConnectionRequest syncRequest = new ConnectionRequest(content, useCompression);
+		ConnectionRequest syncRequest = new ConnectionRequest(content, codec, settings.getCompressionLevel());
 		log.info("Compressed content length: " + syncRequest.getContentLength());
 		log.info("Compression Checksum: " + syncRequest.getChecksum());
 		log.info("Full Content to send: " + content);
 		
 		response.setContentLength((int) syncRequest.getContentLength());
-		response.addHeader("Enable-Compression", String.valueOf(useCompression));
+		addCompressionHeaders(response, compression, syncRequest);
 		response.addHeader("Content-Checksum", String.valueOf(syncRequest.getChecksum()));
-		response.addHeader("Content-Encoding", "gzip");
 		
 		// Write compressed sync data to response
-		InputStream in = new ByteArrayInputStream(syncRequest.getBytes());
-		IOUtils.copy(in, response.getOutputStream());
+		writeBody(response, syncRequest.getBytes(), chunked);
 		
 		return;
 	}
 	
-	private void sendCloneResponse(String content, HttpServletResponse response, boolean isUpload) throws Exception {
+	private void sendCloneResponse(String content, String compression, boolean chunked, HttpServletResponse response,
+	                               boolean isUpload)
+	                                                                                                               throws Exception {
 		
-		boolean useCompression = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
-		    SyncConstants.PROPERTY_ENABLE_COMPRESSION, "true"));
-		log.debug("Global property sychronization.enable_compression = " + useCompression);
+		SyncSettings settings = Context.getService(SyncService.class).getSyncSettings();
+		CompressionCodec codec = CompressionCodecs.forResponse(compression, settings);
+		log.debug("Answering with compression " + codec.getName());
 		
 		// Otherwise, all other requests are compressed and sent back to the
 		// client
-		ConnectionRequest syncRequest = new ConnectionRequest(content, useCompression);
+		ConnectionRequest syncRequest = new ConnectionRequest(content, codec, settings.getCompressionLevel());
 		log.info("Compressed content length: " + syncRequest.getContentLength());
 		log.info("Compression Checksum: " + syncRequest.getChecksum());
 		
 		response.setContentLength((int) syncRequest.getContentLength());
-		response.addHeader("Enable-Compression", String.valueOf(useCompression));
+		addCompressionHeaders(response, compression, syncRequest);
 		response.addHeader("Content-Checksum", String.valueOf(syncRequest.getChecksum()));
-		response.addHeader("Content-Encoding", "gzip");
 		
 		// Write compressed sync data to response
-		InputStream in = new ByteArrayInputStream(syncRequest.getBytes());
-		IOUtils.copy(in, response.getOutputStream());
+		writeBody(response, syncRequest.getBytes(), chunked);
 		
 		return;
 		
 	}
+	
+	/**
+	 * Writes the compressed answer. Servers that sent chunk checksums get those of the answer too,
+	 * and the answer is kept for a while so they can fetch damaged chunks of it again.
+	 * 
+	 * @param chunked whether the other side sent chunk checksums
+	 */
+	private void writeBody(HttpServletResponse response, byte[] body, boolean chunked) throws IOException {
+		if (chunked) {
+			response.addHeader(ChunkChecksums.CHECKSUMS_HEADER, ChunkChecksums.of(body).toString());
+			String id = UUID.randomUUID().toString();
+			if (ChunkCache.getResponses().put(id, body))
+				response.addHeader(ChunkChecksums.SOURCE_HEADER, id);
+		}
+		InputStream in = new ByteArrayInputStream(body);
+		IOUtils.copy(in, response.getOutputStream());
+	}
+	
+	/**
+	 * @return whether the uploaded file is a {@link SyncBundle} rather than a transmission
+	 */
+	private boolean isBundle(MultipartFile multipartFile) throws IOException {
+		InputStream in = multipartFile.getInputStream();
+		try {
+			byte[] magic = new byte[SyncBundle.MAGIC.length()];
+			int read = 0;
+			while (read < magic.length) {
+				int n = in.read(magic, read, magic.length - read);
+				if (n < 0)
+					return false;
+				read += n;
+			}
+			return SyncBundle.isBundle(magic);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+	
+	/**
+	 * @param transmissionId the id a damaged transmission was sent with
+	 * @return the key the transmission is kept under in {@link ChunkCache#getUploads()}, which only
+	 *         the authenticated user that sent it gets
+	 */
+	private String getUploadKey(String transmissionId) {
+		return Context.getAuthenticatedUser().getUuid() + "/" + transmissionId;
+	}
+	
+	/**
+	 * Sends a chunk of an answer again, see {@link ChunkChecksums}
+	 * 
+	 * @param id the id the answer was sent with, in the {@value ChunkChecksums#SOURCE_HEADER} header
+	 */
+	private void sendChunk(HttpServletRequest request, HttpServletResponse response, String id) throws Exception {
+		if (!Context.isAuthenticated()) {
+			try {
+				Context.authenticate(request.getParameter("username"), request.getParameter("password"));
+			}
+			catch (Exception e) {}
+		}
+		if (!Context.isAuthenticated()) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		
+		byte[] body = ChunkCache.getResponses().get(id);
+		if (body == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "The answer " + id + " is no longer kept");
+			return;
+		}
+		int chunkSize = ChunkChecksums.getChunkSize(body.length);
+		long offset = (long) ServletRequestUtils.getIntParameter(request, ChunkChecksums.CHUNK_PARAMETER, -1) * chunkSize;
+		if (offset < 0 || offset >= body.length) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The answer " + id + " has no such chunk");
+			return;
+		}
+		int length = (int) Math.min(chunkSize, body.length - offset);
+		log.info("Sending " + length + " bytes of answer " + id + " again, from " + offset);
+		response.setContentLength(length);
+		response.getOutputStream().write(body, (int) offset, length);
+	}
+	
+	/**
+	 * Answers which of the records the other side asks about are committed here, see
+	 * {@link CommittedRecords}
+	 * 
+	 * @param uuids the original uuids of the records, as sent in {@value CommittedRecords#PARAMETER}
+	 */
+	private void sendCommittedRecords(HttpServletRequest request, HttpServletResponse response, String uuids)
+	        throws Exception {
+		if (!Context.isAuthenticated()) {
+			try {
+				Context.authenticate(request.getParameter("username"), request.getParameter("password"));
+			}
+			catch (Exception e) {}
+		}
+		if (!Context.isAuthenticated()) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		
+		List<String> asked = CommittedRecords.parseUuids(uuids);
+		Set<String> committed = Context.getService(SyncService.class).getCommittedSyncImportUuids(asked);
+		log.info(committed.size() + " of the " + asked.size() + " records asked about are committed already");
+		response.setHeader(CommittedRecords.HEADER, String.valueOf(committed.size()));
+		response.setContentType("text/plain");
+		response.getWriter().write(CommittedRecords.formatAnswer(asked, committed));
+	}
+	
+	/**
+	 * Says how the answer is compressed: true or false (gzip or nothing) to servers that don't
+	 * negotiate codecs, the name of the codec to those that do. Either way the codecs this server
+	 * reads are listed, for the other side to choose from next time.
+	 * 
+	 * @param requested the codec named in the request, null if there was none
+	 */
+	private void addCompressionHeaders(HttpServletResponse response, String requested, ConnectionRequest syncRequest) {
+		if (requested == null)
+			response.addHeader(CompressionCodecs.ENABLE_COMPRESSION_HEADER, String.valueOf(syncRequest.forceCompression()));
+		else
+			response.addHeader(CompressionCodecs.ENABLE_COMPRESSION_HEADER, syncRequest.getCodec().getName());
+		response.addHeader(CompressionCodecs.ACCEPT_COMPRESSION_HEADER, CompressionCodecs.getAcceptHeader());
+		if (CompressionCodecs.GZIP.equals(syncRequest.getCodec().getName()))
+			response.addHeader("Content-Encoding", "gzip");
+	}
 }
@@ -156,19 +156,7 @@ public class MaintenanceController extends SimpleFormController {
 			if (StringUtils.hasText(keyword))
 				matchesList = syncService.getSyncRecords(keyword);
 			
-			String maxPageRecordsString = Context.getAdministrationService().getGlobalProperty(
-			    SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS, SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS_DEFAULT);
-			
-			try {
-				maxPageRecords = Integer.parseInt(maxPageRecordsString);
-			}
-			catch (NumberFormatException e) {
-				log.warn("Unable to format gp: " + SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS + " into an integer", e);
-			}
-			
-			if (maxPageRecords < 1) {
-				maxPageRecords = Integer.parseInt(SyncConstants.PROPERTY_NAME_MAX_PAGE_RECORDS_DEFAULT);
-			}
+			maxPageRecords = syncService.getSyncSettings().getMaxPageRecords();
 			
 			// Adding paging
 			totalRecords = matchesList.size();
@@ -280,8 +268,7 @@ public class MaintenanceController extends SimpleFormController {
 		ret.put("servers", Context.getService(SyncService.class).getRemoteServers());
 		ret.put(
 		    "datePattern",
-		    Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_DATE_PATTERN,
-		        SyncConstants.DEFAULT_DATE_PATTERN));
+		    Context.getService(SyncService.class).getSyncSettings().getDatePattern());
 		ret.put("syncDateDisplayFormat", TimestampNormalizer.DATETIME_DISPLAY_FORMAT);
 		ret.put("synchronizationMaintenanceList", returnList);
 		
@@ -327,8 +314,7 @@ public class MaintenanceController extends SimpleFormController {
 			String dateString = ServletRequestUtils.getRequiredStringParameter(request, "date");
 			
 			RemoteServer server = syncService.getRemoteServer(serverId);
-			Date date = new SimpleDateFormat(Context.getAdministrationService().getGlobalProperty(
-			    SyncConstants.PROPERTY_DATE_PATTERN, SyncConstants.DEFAULT_DATE_PATTERN)).parse(dateString);
+			Date date = new SimpleDateFormat(syncService.getSyncSettings().getDatePattern()).parse(dateString);
 			
 			Integer numberBackproted = syncService.backportSyncRecords(server, date);
 			request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "sync.maintenance.backport.success");
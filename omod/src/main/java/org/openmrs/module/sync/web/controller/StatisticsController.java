@@ -28,7 +28,6 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.sync.SyncRecordState;
 import org.openmrs.module.sync.api.SyncService;
-import org.openmrs.module.sync.SyncConstants;
 import org.springframework.beans.propertyeditors.CustomDateEditor;
 import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
@@ -89,8 +88,8 @@ public class StatisticsController extends SimpleFormController {
 		super.initBinder(request, binder);
 		binder.registerCustomEditor(
 		    java.util.Date.class,
-		    new CustomDateEditor(new SimpleDateFormat(Context.getAdministrationService().getGlobalProperty(
-		        SyncConstants.PROPERTY_DATE_PATTERN, SyncConstants.DEFAULT_DATE_PATTERN)), true));
+		    new CustomDateEditor(new SimpleDateFormat(Context.getService(SyncService.class).getSyncSettings()
+		            .getDatePattern()), true));
 	}
 	
 	/**
@@ -102,8 +101,7 @@ public class StatisticsController extends SimpleFormController {
 	protected Object formBackingObject(HttpServletRequest request) throws ServletException {
 		
 		SyncStatisticsCommand command = new SyncStatisticsCommand();
-		command.setDatePattern(Context.getAdministrationService().getGlobalProperty(SyncConstants.PROPERTY_DATE_PATTERN,
-		    SyncConstants.DEFAULT_DATE_PATTERN));
+		command.setDatePattern(Context.getService(SyncService.class).getSyncSettings().getDatePattern());
 		command.setFromDate(null);
 		command.setToDate(new Date());
 		
@@ -15,6 +15,8 @@ package org.openmrs.module.sync.web.controller;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -48,9 +50,11 @@ import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.SyncUtilTransmission;
 import org.openmrs.module.sync.api.SyncIngestService;
 import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.bundle.SyncBundle;
 import org.openmrs.module.sync.ingest.SyncDeserializer;
 import org.openmrs.module.sync.ingest.SyncImportRecord;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
+import org.openmrs.module.sync.scheduler.SyncLaneScheduler;
 import org.openmrs.module.sync.serialization.Item;
 import org.openmrs.module.sync.serialization.Record;
 import org.openmrs.module.sync.serialization.TimestampNormalizer;
@@ -128,7 +132,7 @@ public class StatusListController extends SimpleFormController {
 				// we are creating a sync-transmission, so start by generating a SyncTransmission object
 				// and this is a sychronization via file	due the value of action being createTx	
 				SyncTransmission tx = SyncUtilTransmission.createSyncTransmission(parent, true,
-				    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_FILE));
+				    Context.getService(SyncService.class).getSyncSettings().getMaxRecordsFile());
 				String toTransmit = null; // the actual text that will be sent (either an ST or an STR)
 				
 				// Pull out the committed records from parent that haven't been sent back for confirmation
@@ -177,6 +181,56 @@ public class StatusListController extends SimpleFormController {
 				e.printStackTrace();
 				error = msa.getMessage("sync.status.createTx.error");
 			}
+		} else if ("createBundle".equals(action)) { // the same as createTx, as a bundle
+			File bundle = null;
+			try {
+				parent = syncService.getParentServer();
+				if (parent == null) {
+					throw new SyncException("Could not retrieve information about the parent server; null returned.");
+				}
+				
+				SyncTransmission tx = SyncUtilTransmission.createSyncTransmission(parent, true,
+				    Context.getService(SyncService.class).getSyncSettings().getMaxRecordsFile());
+				List<SyncImportRecord> syncImportRecords = syncService.getSyncImportRecords(SyncRecordState.COMMITTED, SyncRecordState.ALREADY_COMMITTED);
+				
+				// written a record at a time, then sent from disk
+				bundle = new File(SyncBundle.getDirectory(), tx.getUuid() + SyncBundle.FILE_SUFFIX);
+				SyncUtilTransmission.writeSyncBundle(tx, syncImportRecords, bundle);
+				
+				// Record last attempt
+				parent.setLastSync(new Date());
+				syncService.saveRemoteServer(parent);
+				
+				response.setContentType("application/octet-stream");
+				response.setHeader("Content-Disposition", "attachment; filename=" + tx.getFileName() + SyncBundle.FILE_SUFFIX);
+				response.setHeader("Content-Length", String.valueOf(bundle.length()));
+				InputStream in = new FileInputStream(bundle);
+				OutputStream out = response.getOutputStream();
+				try {
+					IOUtils.copy(in, out);
+				}
+				finally {
+					IOUtils.closeQuietly(in);
+				}
+				out.flush();
+				out.close();
+				
+				for (SyncImportRecord record : syncImportRecords) {
+					record.setState(SyncRecordState.COMMITTED_AND_CONFIRMATION_SENT);
+					syncService.updateSyncImportRecord(record);
+				}
+				
+				// don't return a model/view - we'll need to return a file instead.
+				result = null;
+			}
+			catch (Exception e) {
+				log.error("Unable to export local changes to a bundle", e);
+				error = msa.getMessage("sync.status.createTx.error");
+			}
+			finally {
+				if (bundle != null)
+					bundle.delete();
+			}
 		} else if ("uploadResponse".equals(action) && request instanceof MultipartHttpServletRequest) {
 			
 			try {
@@ -232,11 +286,11 @@ public class StatusListController extends SimpleFormController {
 					}
 					
 					try {
-						// store this file on filesystem too
-						str.createFile(false, SyncConstants.DIR_JOURNAL);
+						// keep this response in the transmission archive too
+						str.createFile(true, SyncConstants.DIR_JOURNAL);
 					}
 					catch (Exception e) {
-						log.error("Unable to create file to store SyncTransmissionResponse: " + str.getFileName());
+						log.error("Unable to archive SyncTransmissionResponse: " + str.getFileName());
 						e.printStackTrace();
 					}
 					
@@ -246,7 +300,7 @@ public class StatusListController extends SimpleFormController {
 					// now process the syncTransmission if one was received                    
 					if (st != null) {
 						str = SyncUtilTransmission.processSyncTransmission(st,
-						    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_FILE));
+						    Context.getService(SyncService.class).getSyncSettings().getMaxRecordsFile());
 						// get some numbers about what was just processed to show user the results
 						if (str.getSyncImportRecords() != null) {
 							for (SyncImportRecord importRecord : str.getSyncImportRecords()) {
@@ -305,11 +359,11 @@ public class StatusListController extends SimpleFormController {
 				
 				Integer maxConfigured = 0;
 				if ("SEND_WEB".equals(mode))
-					maxConfigured = SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB);
+					maxConfigured = Context.getService(SyncService.class).getSyncSettings().getMaxRecordsWeb();
 				else
-					maxConfigured = SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_FILE);
+					maxConfigured = Context.getService(SyncService.class).getSyncSettings().getMaxRecordsFile();
 				Integer maxDefault = Integer.valueOf(SyncConstants.PROPERTY_NAME_MAX_RECORDS_DEFAULT);
-				if (maxConfigured > maxDefault)
+				if (maxConfigured == null || maxConfigured > maxDefault)
 					maxConfigured = maxDefault; // limit to default value of 50 because we don't really need everything on this page
 				
 				recordList = source.getChanged(parent, maxConfigured);
@@ -439,9 +493,26 @@ public class StatusListController extends SimpleFormController {
 		//ret.put("itemInfo", itemInfo);
 		ret.put("recordText", recordText);
 		ret.put("recordChangeType", recordChangeType);
-		ret.put("parent", Context.getService(SyncService.class).getParentServer());
+		RemoteServer parent = Context.getService(SyncService.class).getParentServer();
+		ret.put("parent", parent);
+		
+		// changes that wait on a record that reached the max retry count, all others keep flowing
+		Map<String, Boolean> heldBackRecords = new HashMap<String, Boolean>();
+		if (parent != null) {
+			for (SyncRecord record : Context.getService(SyncService.class).getHeldBackSyncRecords(parent, -1)) {
+				heldBackRecords.put(record.getUuid(), Boolean.TRUE);
+			}
+		}
+		ret.put("heldBackRecords", heldBackRecords);
 		ret.put("syncDateDisplayFormat", TimestampNormalizer.DATETIME_DISPLAY_FORMAT);
 		
+		Map<Integer, RemoteServer> laneServers = new HashMap<Integer, RemoteServer>();
+		for (RemoteServer server : Context.getService(SyncService.class).getRemoteServers()) {
+			laneServers.put(server.getServerId(), server);
+		}
+		ret.put("syncLanes", SyncLaneScheduler.getInstance().getLaneStatuses());
+		ret.put("laneServers", laneServers);
+		
 		return ret;
 	}
 }
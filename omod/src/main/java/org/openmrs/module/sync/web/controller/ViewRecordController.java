@@ -77,10 +77,9 @@ public class ViewRecordController {
 	        	
 	        	// find the next record
 	        	id = record.getRecordId();
-	        	SyncRecord latestSyncRecord = syncService.getLatestRecord();
-	        	Integer highestId = 0;
-	        	if (latestSyncRecord != null)
-	        		highestId = latestSyncRecord.getRecordId();
+	        	Integer highestId = syncService.getLatestRecordId();
+	        	if (highestId == null)
+	        		highestId = 0;
 	        	
 	        	while (nextRecord == null && id <= highestId) {
 	        		nextRecord = syncService.getSyncRecord(++id);
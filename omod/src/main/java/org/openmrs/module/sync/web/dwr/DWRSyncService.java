@@ -19,6 +19,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -32,6 +33,7 @@ import org.openmrs.module.sync.SyncUtil;
 import org.openmrs.module.sync.SyncUtilTransmission;
 import org.openmrs.module.sync.SyncUtilTransmission.ReceivingSize;
 import org.openmrs.module.sync.api.SyncService;
+import org.openmrs.module.sync.bundle.TransmissionArchive;
 import org.openmrs.module.sync.ingest.SyncTransmissionResponse;
 import org.openmrs.module.sync.serialization.ZipPackage;
 import org.openmrs.module.sync.server.ConnectionResponse;
@@ -132,7 +134,7 @@ public class DWRSyncService {
 		// jsp page can know what we're dealing with
 		// before the whole SyncTransmissionsResponse is returned
 		SyncTransmissionResponse response = SyncUtilTransmission.doFullSynchronize(receivingSize,
-		    SyncUtil.getGlobalPropetyValueAsInteger(SyncConstants.PROPERTY_NAME_MAX_RECORDS_WEB));
+		    Context.getService(SyncService.class).getSyncSettings().getMaxRecordsWeb());
 		
 		receivingSize.setSize(null); // reset variable
 		
@@ -189,4 +191,25 @@ public class DWRSyncService {
 		        .zip(clearDir);
 	}
 	
+	/**
+	 * @param key the uuid or file name of a transmission
+	 * @return the archived transmissions and responses with that uuid or file name, one after the
+	 *         other; empty if there are none
+	 */
+	public String getArchivedTransmission(String key) {
+		StringBuilder content = new StringBuilder();
+		try {
+			List<String> transmissions = TransmissionArchive.getInstance().read(key);
+			for (String transmission : transmissions) {
+				if (content.length() > 0)
+					content.append("\n\n");
+				content.append(transmission);
+			}
+		}
+		catch (Exception e) {
+			log.error("Unable to read transmission " + key + " from the archive", e);
+		}
+		return content.toString();
+	}
+	
 }
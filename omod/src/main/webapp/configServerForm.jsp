@@ -269,7 +269,7 @@
 					<tr>
 					<td align="right" valign="top"><b><spring:message code="sync.settings.server.clone.down.backup" /></b></td>
 					<td align="left" valign="top"><input type="button"
-						onClick="document.location='${pageContext.request.contextPath}/moduleServlet/sync/createChildServlet';"
+						onClick="document.location='${pageContext.request.contextPath}/moduleServlet/sync/createChildServlet<c:if test="${not empty server.serverId}">?serverId=${server.serverId}</c:if>';"
 						value="<spring:message code="sync.settings.server.clone.down" />" />
 						<br/>
 						<i><span class="syncHint"><spring:message code="sync.settings.server.clone.down.backup.help" /></span></i>
@@ -313,6 +313,21 @@
 							<i><span class="syncHint"><spring:message code="sync.config.parent.login.hint" /></span></i>
 						</td>
 					</tr>
+					<tr>
+						<td align="right" valign="top" nowrap>
+							<b><spring:message code="sync.config.parent.compression" /></b>
+						</td>
+						<td align="left" valign="top">
+							<select id="compression" name="compression">
+								<option value=""><spring:message code="sync.config.parent.compression.default" /></option>
+								<c:forEach items="${compressionCodecs}" var="codec">
+									<option value="${codec}" <c:if test="${server.compression == codec}">selected</c:if>>${codec}</option>
+								</c:forEach>
+							</select>
+							<br/>
+							<i><span class="syncHint"><spring:message code="sync.config.parent.compression.hint" /></span></i>
+						</td>
+					</tr>
 					<tr>
 						<td align="right" valign="top" nowrap>
 							<b><spring:message code="sync.config.parent.scheduled" /></b>
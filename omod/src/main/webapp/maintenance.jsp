@@ -91,6 +91,21 @@
 		DWRSyncService.archiveSyncImport(clearDir,showImportArchiveResult);
 	}
 	
+	function showArchivedTransmission(content){
+		if(content){
+			DWRUtil.setValue("archivedTransmission", content);
+			showDiv("archivedTransmission");
+		}
+		else{
+			hideDiv("archivedTransmission");
+			DWRUtil.setValue("archiveResult","&nbsp;" + "<img src='${pageContext.request.contextPath}/images/error.gif' border='0'>" + "&nbsp;" +"<span class='syncFAILED'><b><spring:message code='sync.maintenance.archive.transmission.notFound' /></b></span>");
+			setTimeout("DWRUtil.setValue('archiveResult','');", 4000);
+		}
+	}
+	function openArchivedTransmission(){
+		DWRSyncService.getArchivedTransmission(DWRUtil.getValue("archivedTransmissionKey"),showArchivedTransmission);
+	}
+	
 	function removeProperty(btn) {
 		btn.parentNode.parentNode.parentNode.removeChild(btn.parentNode.parentNode);
 	}
@@ -124,6 +139,7 @@
   </label>
   <input type="submit" id="searchButton" value="Search">
 </form>
+<span><spring:message code="sync.maintenance.search.description"/></span>
 <c:if test="${not empty synchronizationMaintenanceList}">
 <div style="position: relative; border: 1px solid gray; margin: 10px; padding: 0px;">
 <table width="100%" border="0" align="center" cellpadding="0"
@@ -262,7 +278,15 @@
 				<input id="archiveImportButton" type="button"  onclick="archiveSyncImport(true);" value="<spring:message
 				code="sync.maintenance.archive.now" />" /></span>
 			</li>
+			<br/>
+			<li>
+				<span><spring:message code="sync.maintenance.archive.transmission" />
+				<input id="archivedTransmissionKey" type="text" size="40"/>
+				<input type="button" onclick="openArchivedTransmission();" value="<spring:message
+				code="sync.maintenance.archive.transmission.open" />" /></span>
+			</li>
 		</ul>
+		<textarea id="archivedTransmission" rows="20" cols="100" readonly="readonly" style="display: none"></textarea>
 		<br/>
 	<div id="archiveResult">
 	
@@ -214,6 +214,10 @@
 							<input type="submit" id="fileExportSubmit" value='<spring:message code="sync.status.createTx"/>' />
 							<input type="hidden" name="action" value="createTx"/>
 						</form>
+						<form method="post">
+							<input type="submit" value='<spring:message code="sync.status.createBundle"/>' />
+							<input type="hidden" name="action" value="createBundle"/>
+						</form>
 					</td>
 					<td valign="top">
 						|
@@ -236,6 +240,76 @@
 
 <br/>
 
+<c:if test="${not empty syncLanes}">
+	<b class="boxHeader"><spring:message code="sync.status.lanes"/></b>
+	<div class="box">
+		<table id="syncLanesTable" cellpadding="4" cellspacing="0">
+			<thead>
+				<tr>
+					<th><spring:message code="sync.status.lanes.server"/></th>
+					<th><spring:message code="sync.status.lanes.state"/></th>
+					<th><spring:message code="sync.status.lanes.transmissions"/></th>
+					<th><spring:message code="sync.status.lanes.failures"/></th>
+					<th><spring:message code="sync.status.lanes.records"/></th>
+					<th><spring:message code="sync.status.lanes.recordsPerMinute"/></th>
+					<th><spring:message code="sync.status.lanes.lastDuration"/></th>
+					<th><spring:message code="sync.status.lanes.batchSize"/></th>
+					<th><spring:message code="sync.status.lanes.linkSpeed"/></th>
+					<th><spring:message code="sync.status.lanes.replicationLag"/></th>
+				</tr>
+			</thead>
+			<tbody>
+				<c:forEach var="lane" items="${syncLanes}">
+					<tr>
+						<td>${laneServers[lane.serverId].nickname}</td>
+						<td>
+							<c:choose>
+								<c:when test="${not empty lane.waitingSince}">
+									<spring:message code="sync.status.lanes.waiting"/>
+								</c:when>
+								<c:when test="${not empty lane.startedAt}">
+									<spring:message code="sync.status.lanes.running"/>
+									<openmrs:formatDate date="${lane.startedAt}" format="${syncDateDisplayFormat}" />
+								</c:when>
+								<c:otherwise>
+									<spring:message code="sync.status.lanes.idle"/>
+									<c:if test="${not empty lane.lastState}">(${lane.lastState})</c:if>
+								</c:otherwise>
+							</c:choose>
+						</td>
+						<td class="centeredColumn">${lane.transmissions}</td>
+						<td class="centeredColumn">${lane.failures}</td>
+						<td class="centeredColumn">${lane.records}</td>
+						<td class="centeredColumn"><fmt:formatNumber value="${lane.recordsPerMinute}" maxFractionDigits="1"/></td>
+						<td class="centeredColumn"><fmt:formatNumber value="${lane.lastMillis / 1000}" maxFractionDigits="1"/> s</td>
+						<td class="centeredColumn">
+							<c:choose>
+								<c:when test="${not empty laneServers[lane.serverId].batchSize}">${laneServers[lane.serverId].batchSize}</c:when>
+								<c:otherwise><spring:message code="sync.status.lanes.batchSize.configured"/></c:otherwise>
+							</c:choose>
+						</td>
+						<td class="centeredColumn">
+							<c:if test="${not empty laneServers[lane.serverId].recordsPerSecond}">
+								<fmt:formatNumber value="${laneServers[lane.serverId].recordsPerSecond}" maxFractionDigits="1"/> /s,
+								<fmt:formatNumber value="${laneServers[lane.serverId].bytesPerSecond / 1024}" maxFractionDigits="1"/> KB/s
+							</c:if>
+						</td>
+						<td class="centeredColumn">
+							<c:if test="${lane.confirmedRecords > 0}">
+								<fmt:formatNumber value="${lane.lastReplicationLag / 1000}" maxFractionDigits="1"/> s
+								(<spring:message code="sync.status.lanes.replicationLag.average"/>
+								<fmt:formatNumber value="${lane.averageReplicationLag / 1000}" maxFractionDigits="1"/> s)
+							</c:if>
+						</td>
+					</tr>
+				</c:forEach>
+			</tbody>
+		</table>
+	</div>
+	
+	<br/>
+</c:if>
+
 <b class="boxHeader"><spring:message code="sync.changes.recent"/></b>
 <div class="box">
 	<form method="post">
@@ -243,6 +317,9 @@
 		<input type="hidden" name="mode" value="${mode}" />
 		<input type="submit" value="<spring:message code="sync.status.transmission.reset.attempts"/>" />
 	</form>
+	<c:if test="${not empty heldBackRecords}">
+		<div><i><spring:message code="sync.status.heldBack.count" arguments="${fn:length(heldBackRecords)}"/></i></div>
+	</c:if>
 	<table id="syncChangesTable" cellpadding="4" cellspacing="0">
 		<thead>
 			<tr>
@@ -270,6 +347,9 @@
 							</td>
 							<td id="state_${syncRecord.uuid}" class="centeredColumn">
 								<span class="sync${syncRecord.state}"><spring:message code="sync.record.state_${syncRecord.state}" /></span>
+								<c:if test="${heldBackRecords[syncRecord.uuid]}">
+									<br/><span style="color: #bbb" title="<spring:message code="sync.status.heldBack.description"/>"><spring:message code="sync.status.heldBack"/></span>
+								</c:if>
 							</td>
 							<td class="centeredColumn">${syncRecord.retryCount}</td>
 							<td class="centeredColumn"><span id="message_${syncRecord.uuid}"></span></td>